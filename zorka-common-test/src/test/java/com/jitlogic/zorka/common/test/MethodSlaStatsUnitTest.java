@@ -21,6 +21,9 @@ import com.jitlogic.zorka.common.stats.MethodCallStatistic;
 
 import com.jitlogic.zorka.common.util.ObjectInspector;
 import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.junit.Assert.*;
 
 public class MethodSlaStatsUnitTest {
@@ -64,4 +67,61 @@ public class MethodSlaStatsUnitTest {
         assertEquals(0.0, m.getSla().getStatistic("2000").getSla(), 0.1);
     }
 
+
+    @Test
+    public void testSlaStatisticsAreNotCreatedUntilQueried() {
+        MethodCallStatistic m = new MethodCallStatistic("test");
+
+        m.logCall(S); m.logError(S);
+
+        assertNull(((AtomicReference) ObjectInspector.get(m, ".sla")).get());
+        assertEquals(0, m.getSla().getStatisticNames().length);
+    }
+
+    @Test
+    public void testMultipleThresholdsAddedInAnyOrder() {
+        MethodCallStatistic m = new MethodCallStatistic("test");
+
+        m.getSla().getStatistic("3000");
+        m.logCall(2 * S); m.logCall(4 * S);
+
+        m.getSla().getStatistic("1000");
+        m.getSla().getStatistic("5000");
+        m.logCall(2 * S); m.logCall(6 * S); m.logError(S / 2);
+
+        assertEquals(40.0, m.getSla().getStatistic("3000").getSla(), 0.1);
+        assertEquals(0.0, m.getSla().getStatistic("1000").getSla(), 0.1);
+        assertEquals(33.3, m.getSla().getStatistic("5000").getSla(), 0.1);
+
+        assertEquals(40.0, m.getSla().getStatistic("3000").getSlaCLR(), 0.1);
+        m.logCall(2 * S);
+        assertEquals(100.0, m.getSla().getStatistic("3000").getSla(), 0.1);
+        assertEquals(50.0, m.getSla().getStatistic("5000").getSla(), 0.1);
+    }
+
+    @Test
+    public void testSlaCountedByManyThreads() throws Exception {
+        final MethodCallStatistic m = new MethodCallStatistic("test");
+        m.getSla().getStatistic("1000");
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        m.logCall(j % 4 == 0 ? 2 * S : S / 2);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(75.0, m.getSla().getStatistic("1000").getSla(), 0.01);
+    }
+
 }
@@ -58,6 +58,20 @@ public class AgentDiagnostics {
     public static final int ZICO_PACKETS_DROPPED = 32;  // Packets dropped due to queue overflow
     public static final int ZICO_PACKETS_LOST = 33;     // Packets lost due to communication errors
     public static final int ZICO_RECONNECTS = 34;       // ZICO reconnects
+    public static final int TRACE_RECORDS_CREATED = 35; // Trace records allocated by tracer
+    public static final int TRACE_RECORDS_REUSED = 36;  // Trace records taken from pool
+    public static final int TRACE_RECORDS_DISCARDED = 37; // Discarded trace records that did not fit into pool
+    public static final int TRACE_FRAGMENTS_SUBMITTED = 38; // Partial traces submitted by streaming tracer
+    public static final int EXCEPTION_CACHE_HITS = 39;  // Exception stack traces found in symbolic stack cache
+    public static final int EXCEPTION_CACHE_MISSES = 40; // Exception stack traces not found in symbolic stack cache
+    public static final int RETRANSFORM_SCANNED = 41;   // Loaded classes checked by retransformer
+    public static final int RETRANSFORM_CLASSES = 42;   // Classes retransformed
+    public static final int RETRANSFORM_TIME = 43;      // Time spent on retransforming classes
+    public static final int TYPE_INDEX_HITS = 44;       // Super class lookups resolved from type hierarchy index
+    public static final int TYPE_RESOURCE_READS = 45;   // Super class lookups resolved by reading class files
+    public static final int TYPE_CLASS_LOADS = 46;      // Super class lookups resolved by loading classes
+    public static final int ZORKA_STATS_EVICTED = 47;   // Statistics evicted from bounded statistics containers
+    public static final int ZORKA_STATS_FOLDED = 48;    // Calls of statistics not admitted to bounded containers
 
 
     private static final String[] counterNames = {
@@ -96,10 +110,24 @@ public class AgentDiagnostics {
             "ZicoPacketsDropped",   // ZICO_PACKETS_DROPPED = 33
             "ZicoPacketsLost",      // ZICO_PACKETS_LOST    = 34
             "ZicoReconnects",       // ZICO_RECONNECTS      = 35;
+            "TraceRecordsCreated",  // TRACE_RECORDS_CREATED = 36
+            "TraceRecordsReused",   // TRACE_RECORDS_REUSED  = 37
+            "TraceRecordsDiscarded", // TRACE_RECORDS_DISCARDED = 38
+            "TraceFragmentsSubmitted", // TRACE_FRAGMENTS_SUBMITTED = 39
+            "ExceptionCacheHits",   // EXCEPTION_CACHE_HITS  = 40
+            "ExceptionCacheMisses", // EXCEPTION_CACHE_MISSES = 41
+            "RetransformScanned",   // RETRANSFORM_SCANNED  = 42
+            "RetransformClasses",   // RETRANSFORM_CLASSES  = 43
+            "RetransformTime",      // RETRANSFORM_TIME     = 44
+            "TypeIndexHits",        // TYPE_INDEX_HITS      = 45
+            "TypeResourceReads",    // TYPE_RESOURCE_READS  = 46
+            "TypeClassLoads",       // TYPE_CLASS_LOADS     = 47
+            "ZorkaStatsEvicted",    // ZORKA_STATS_EVICTED  = 48
+            "ZorkaStatsFolded",     // ZORKA_STATS_FOLDED   = 49
     };
 
 
-    private static Set<Integer> timeCounters = ZorkaUtil.set(AGENT_TIME, ZABBIX_TIME, NAGIOS_TIME, PMON_TIME);
+    private static Set<Integer> timeCounters = ZorkaUtil.set(AGENT_TIME, ZABBIX_TIME, NAGIOS_TIME, PMON_TIME, RETRANSFORM_TIME);
 
 
     private static AtomicLong[] counters;
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Default method call summary: all counters are kept in single atomic variables.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class AtomicMethodCallSummary implements MethodCallSummary {
+
+    private final AtomicLong calls = new AtomicLong(0), errors = new AtomicLong(0),
+            time = new AtomicLong(0), maxTime = new AtomicLong(0);
+
+
+    @Override
+    public void log(long calls, long errors, long time, long maxTime) {
+        this.calls.addAndGet(calls);
+        if (errors != 0) {
+            this.errors.addAndGet(errors);
+        }
+        this.time.addAndGet(time);
+
+        long t = this.maxTime.get();
+        while (maxTime > t && !this.maxTime.compareAndSet(t, maxTime)) {
+            t = this.maxTime.get();
+        }
+    }
+
+
+    @Override
+    public long getCalls() {
+        return calls.get();
+    }
+
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+
+    @Override
+    public long getTimeNs() {
+        return time.get();
+    }
+
+
+    @Override
+    public long getMaxTimeNs() {
+        return maxTime.get();
+    }
+
+
+    @Override
+    public long getMaxTimeNsCLR() {
+        return maxTime.getAndSet(0);
+    }
+}
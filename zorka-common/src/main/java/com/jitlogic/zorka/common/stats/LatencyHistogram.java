@@ -0,0 +1,331 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets (in the manner of HDR histogram). Execution
+ * times are recorded with microsecond resolution, each power of 2 range is divided into 16 linear
+ * sub-buckets, so reported percentiles are accurate within about 6%. Times above 2^32 microseconds
+ * (about 71 minutes) are counted in the last bucket. Memory footprint is fixed.
+ * <p/>
+ * Histogram can be windowed: samples are recorded into current window while percentiles are
+ * calculated from last completed window. Windows are switched when percentiles are read and window
+ * time has elapsed, so if readers (eg. monitoring system polling agent) come less often than
+ * window time, reported window spans time between consecutive reads. Each window gets fresh
+ * buckets, so completed window is never cleared under concurrent readers.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class LatencyHistogram implements ZorkaStat {
+
+    private static final long US = 1000L;
+    private static final long MS = 1000000L;
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_BITS = 32;
+
+    /**
+     * Number of buckets: values 0..15 are counted exactly, then 16 sub-buckets for each power of 2.
+     */
+    private static final int NUM_BUCKETS = SUB_COUNT + (MAX_BITS - SUB_BITS) * SUB_COUNT;
+
+    /**
+     * Default window time (milliseconds, 0 means histogram is never reset).
+     */
+    private static volatile long defaultWindow = 60000L;
+
+    private String name;
+
+    /**
+     * Window time (milliseconds) or 0 if histogram is cumulative.
+     */
+    private final long window;
+
+    /**
+     * Buckets of current window.
+     */
+    private volatile AtomicLongArray current;
+
+    /**
+     * Buckets of last completed window (the same as current if histogram is cumulative).
+     */
+    private volatile AtomicLongArray last;
+
+    /**
+     * Time (milliseconds) when current window has been started.
+     */
+    private final AtomicLong windowStart;
+
+
+    public static long getDefaultWindow() {
+        return defaultWindow;
+    }
+
+
+    public static void setDefaultWindow(long window) {
+        defaultWindow = window;
+    }
+
+
+    public LatencyHistogram(String name) {
+        this(name, defaultWindow);
+    }
+
+
+    /**
+     * Creates latency histogram.
+     *
+     * @param name   statistic name
+     * @param window window time (in milliseconds), 0 for cumulative histogram
+     */
+    public LatencyHistogram(String name, long window) {
+        this(name, window, System.currentTimeMillis());
+    }
+
+
+    /**
+     * Creates latency histogram with first window started at given time.
+     *
+     * @param name   statistic name
+     * @param window window time (in milliseconds), 0 for cumulative histogram
+     * @param tstamp start time of first window (in milliseconds)
+     */
+    public LatencyHistogram(String name, long window, long tstamp) {
+        this.name = name;
+        this.window = window;
+        this.current = new AtomicLongArray(NUM_BUCKETS);
+        this.last = window > 0 ? new AtomicLongArray(NUM_BUCKETS) : current;
+        this.windowStart = new AtomicLong(tstamp);
+    }
+
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+
+    @Override
+    public String getDescription() {
+        return "Latency histogram of method calls.";
+    }
+
+
+    @Override
+    public String getUnit() {
+        return "MILLISECOND";
+    }
+
+
+    public long getWindow() {
+        return window;
+    }
+
+
+    /**
+     * Returns bucket index of a value (in microseconds).
+     */
+    private static int bucket(long v) {
+        if (v < SUB_COUNT) {
+            return v > 0 ? (int) v : 0;
+        }
+
+        int e = 63 - Long.numberOfLeadingZeros(v);
+
+        if (e >= MAX_BITS) {
+            return NUM_BUCKETS - 1;
+        }
+
+        return SUB_COUNT + (e - SUB_BITS) * SUB_COUNT + (int) ((v >>> (e - SUB_BITS)) & (SUB_COUNT - 1));
+    }
+
+
+    /**
+     * Returns middle value (in microseconds) of values counted in given bucket.
+     */
+    private static long value(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+
+        int e = (bucket - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+        long sub = (bucket - SUB_COUNT) % SUB_COUNT;
+        long width = 1L << (e - SUB_BITS);
+
+        return (1L << e) + sub * width + width / 2;
+    }
+
+
+    /**
+     * Records execution time.
+     *
+     * @param time execution time (in nanoseconds)
+     */
+    public void record(long time) {
+        current.incrementAndGet(bucket(time / US));
+    }
+
+
+    /**
+     * Returns buckets of last completed window (or all buckets if histogram is cumulative).
+     * Switches windows if window time has elapsed. Samples recorded by threads that still see
+     * previous window land in completed window, which is harmless.
+     *
+     * @param tstamp current time (in milliseconds)
+     */
+    private AtomicLongArray completed(long tstamp) {
+        if (window <= 0) {
+            return last;
+        }
+
+        long t0 = windowStart.get();
+
+        if (tstamp - t0 >= window && windowStart.compareAndSet(t0, tstamp)) {
+            last = current;
+            current = new AtomicLongArray(NUM_BUCKETS);
+        }
+
+        return last;
+    }
+
+
+    /**
+     * Returns number of samples in last completed window.
+     */
+    public long getCount() {
+        AtomicLongArray buckets = completed(System.currentTimeMillis());
+        long count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+
+    /**
+     * Returns percentile of execution times recorded in last completed window.
+     *
+     * @param percentile percentile (0.0 - 100.0)
+     * @return execution time (in nanoseconds) or 0 if no samples have been recorded
+     */
+    public long getPercentileNs(double percentile) {
+        return getPercentileNs(percentile, System.currentTimeMillis());
+    }
+
+
+    /**
+     * Returns percentile of execution times recorded in last completed window as seen at given time.
+     *
+     * @param percentile percentile (0.0 - 100.0)
+     * @param tstamp     current time (in milliseconds)
+     * @return execution time (in nanoseconds) or 0 if no samples have been recorded
+     */
+    public long getPercentileNs(double percentile, long tstamp) {
+        AtomicLongArray buckets = completed(tstamp);
+
+        long[] counts = new long[NUM_BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+
+        long sum = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            sum += counts[i];
+            if (sum >= target) {
+                return value(i) * US;
+            }
+        }
+
+        return value(NUM_BUCKETS - 1) * US;
+    }
+
+
+    /**
+     * Returns median execution time. Percentiles are reported in fractional milliseconds,
+     * so methods faster than 1ms are not reported as 0.
+     *
+     * @return execution time (in milliseconds)
+     */
+    public double getP50() {
+        return (double) getPercentileNs(50.0) / MS;
+    }
+
+
+    public double getP90() {
+        return (double) getPercentileNs(90.0) / MS;
+    }
+
+
+    public double getP95() {
+        return (double) getPercentileNs(95.0) / MS;
+    }
+
+
+    public double getP99() {
+        return (double) getPercentileNs(99.0) / MS;
+    }
+
+
+    public double getP999() {
+        return (double) getPercentileNs(99.9) / MS;
+    }
+
+
+    public long getP50Us() {
+        return getPercentileNs(50.0) / US;
+    }
+
+
+    public long getP90Us() {
+        return getPercentileNs(90.0) / US;
+    }
+
+
+    public long getP95Us() {
+        return getPercentileNs(95.0) / US;
+    }
+
+
+    public long getP99Us() {
+        return getPercentileNs(99.0) / US;
+    }
+
+
+    public long getP999Us() {
+        return getPercentileNs(99.9) / US;
+    }
+
+
+    @Override
+    public String toString() {
+        return "(p50=" + getP50Us() + "us, p99=" + getP99Us() + "us)";
+    }
+}
@@ -38,7 +38,7 @@ public class MethodCallStatistic implements ZorkaStat {
     /**
      * Summary data.
      */
-    private AtomicLong calls, errors, time, maxTime;
+    private final MethodCallSummary summary;
 
     /**
      * Contention monitoring.
@@ -55,17 +55,35 @@ public class MethodCallStatistic implements ZorkaStat {
      */
     private AtomicReference<MethodSlaStatistics> sla;
 
+    /**
+     * Latency histogram (created when percentiles are queried for the first time).
+     */
+    private AtomicReference<LatencyHistogram> histogram;
+
+    /**
+     * Rolling window statistics (created when queried for the first time).
+     */
+    private AtomicReference<RollingWindowStatistic> rolling;
+
     /**
      * Standard constructor.
      *
      * @param name statistic name
      */
     public MethodCallStatistic(String name) {
+        this(name, new AtomicMethodCallSummary());
+    }
+
+
+    /**
+     * Creates statistic with custom summary counters.
+     *
+     * @param name    statistic name
+     * @param summary summary counters
+     */
+    protected MethodCallStatistic(String name, MethodCallSummary summary) {
         this.name = name;
-        this.calls = new AtomicLong(0);
-        this.errors = new AtomicLong(0);
-        this.time = new AtomicLong(0);
-        this.maxTime = new AtomicLong(0);
+        this.summary = summary;
 
         this.curThreads = new AtomicLong(0);
         this.maxThreads = new AtomicLong(0);
@@ -74,6 +92,8 @@ public class MethodCallStatistic implements ZorkaStat {
         this.maxThroughput = new AtomicLong(0);
 
         this.sla = new AtomicReference<MethodSlaStatistics>(null);
+        this.histogram = new AtomicReference<LatencyHistogram>(null);
+        this.rolling = new AtomicReference<RollingWindowStatistic>(null);
     }
 
 
@@ -101,7 +121,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return number of calls
      */
     public long getCalls() {
-        return calls.longValue();
+        return summary.getCalls();
     }
 
 
@@ -111,7 +131,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return number of errors
      */
     public long getErrors() {
-        return errors.longValue();
+        return summary.getErrors();
     }
 
 
@@ -121,7 +141,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return total execution time (milliseconds)
      */
     public long getTime() {
-        return time.longValue() / MS;
+        return getTimeNs() / MS;
     }
 
 
@@ -131,7 +151,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return total execution time (microseconds)
      */
     public long getTimeUs() {
-        return time.longValue() / US;
+        return getTimeNs() / US;
     }
 
 
@@ -141,7 +161,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return total execution time (nanoseconds)
      */
     public long getTimeNs() {
-        return time.longValue();
+        return summary.getTimeNs();
     }
 
 
@@ -151,7 +171,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return maximum execution time (in milliseconds)
      */
     public long getMaxTime() {
-        return maxTime.longValue() / MS;
+        return getMaxTimeNs() / MS;
     }
 
 
@@ -161,7 +181,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return maximum execution time (in microseconds)
      */
     public long getMaxTimeUs() {
-        return maxTime.longValue() / US;
+        return getMaxTimeNs() / US;
     }
 
 
@@ -171,7 +191,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return maximum execution time (in nanoseconds)
      */
     public long getMaxTimeNs() {
-        return maxTime.longValue();
+        return summary.getMaxTimeNs();
     }
 
     /**
@@ -203,7 +223,7 @@ public class MethodCallStatistic implements ZorkaStat {
      * @return maximum execution time (in milliseconds)
      */
     public long getMaxTimeNsCLR() {
-        return getMaxCLR(maxTime);
+        return summary.getMaxTimeNsCLR();
     }
 
     public MethodSlaStatistics getSla() {
@@ -217,6 +237,126 @@ public class MethodCallStatistic implements ZorkaStat {
         return rslt;
     }
 
+    /**
+     * Returns latency histogram of this method. Histogram is created when it is requested for the first
+     * time, so execution times are recorded only for methods whose percentiles are actually monitored.
+     *
+     * @return latency histogram
+     */
+    public LatencyHistogram getHistogram() {
+        LatencyHistogram rslt = this.histogram.get();
+
+        if (rslt == null) {
+            this.histogram.compareAndSet(null, new LatencyHistogram(name));
+            rslt = this.histogram.get();
+        }
+
+        return rslt;
+    }
+
+
+    /**
+     * Returns median execution time (see LatencyHistogram for details).
+     *
+     * @return execution time (in milliseconds)
+     */
+    public double getP50() {
+        return getHistogram().getP50();
+    }
+
+
+    public double getP90() {
+        return getHistogram().getP90();
+    }
+
+
+    public double getP95() {
+        return getHistogram().getP95();
+    }
+
+
+    public double getP99() {
+        return getHistogram().getP99();
+    }
+
+
+    public double getP999() {
+        return getHistogram().getP999();
+    }
+
+    /**
+     * Returns rolling window statistics of this method. Similar to latency histogram, it is created
+     * when requested for the first time.
+     *
+     * @return rolling window statistics
+     */
+    public RollingWindowStatistic getRolling() {
+        RollingWindowStatistic rslt = this.rolling.get();
+
+        if (rslt == null) {
+            this.rolling.compareAndSet(null, new RollingWindowStatistic(name));
+            rslt = this.rolling.get();
+        }
+
+        return rslt;
+    }
+
+
+    /**
+     * Returns average number of calls per second over last minute (see RollingWindowStatistic).
+     *
+     * @return calls per second
+     */
+    public double getRate1m() {
+        return getRolling().getRate1m();
+    }
+
+
+    public double getRate5m() {
+        return getRolling().getRate5m();
+    }
+
+
+    public double getRate15m() {
+        return getRolling().getRate15m();
+    }
+
+
+    public double getErrorRate1m() {
+        return getRolling().getErrorRate1m();
+    }
+
+
+    public double getErrorRate5m() {
+        return getRolling().getErrorRate5m();
+    }
+
+
+    public double getErrorRate15m() {
+        return getRolling().getErrorRate15m();
+    }
+
+
+    /**
+     * Returns average execution time over last minute (see RollingWindowStatistic).
+     *
+     * @return average execution time (in milliseconds)
+     */
+    public double getAvgTime1m() {
+        return getRolling().getAvgTime1m();
+    }
+
+
+    public double getAvgTime5m() {
+        return getRolling().getAvgTime5m();
+    }
+
+
+    public double getAvgTime15m() {
+        return getRolling().getAvgTime15m();
+    }
+
+
     /**
      * Returns current value of a counter and zeroes it in one (atomic) operation.
      *
@@ -336,10 +476,8 @@ public class MethodCallStatistic implements ZorkaStat {
      * @param time execution time
      */
     public void logCall(long time) {
-        this.calls.incrementAndGet();
-        this.time.addAndGet(time);
-        this.setMax(maxTime, time);
-        getSla().logCall(time);
+        summary.log(1, 0, time, time);
+        logDetails(time, false);
     }
 
 
@@ -364,11 +502,8 @@ public class MethodCallStatistic implements ZorkaStat {
      * @param time execution time
      */
     public void logError(long time) {
-        this.errors.incrementAndGet();
-        this.calls.incrementAndGet();
-        this.time.addAndGet(time);
-        this.setMax(maxTime, time);
-        getSla().logError(time);
+        summary.log(1, 1, time, time);
+        logDetails(time, true);
     }
 
 
@@ -387,6 +522,45 @@ public class MethodCallStatistic implements ZorkaStat {
     }
 
 
+    /**
+     * Adds calls, errors and execution times of another statistic to this one.
+     *
+     * @param st added statistic
+     */
+    public void add(MethodCallStatistic st) {
+        summary.log(st.getCalls(), st.getErrors(), st.getTimeNs(), st.getMaxTimeNs());
+    }
+
+
+    /**
+     * Updates SLA statistics, latency histogram and rolling window statistics (if present). All
+     * of them are created only when queried, so no work is done here for statistics nobody looks at.
+     *
+     * @param time  execution time
+     * @param error true if method call ended with error
+     */
+    private void logDetails(long time, boolean error) {
+        MethodSlaStatistics s = sla.get();
+        if (s != null) {
+            if (error) {
+                s.logError(time);
+            } else {
+                s.logCall(time);
+            }
+        }
+
+        LatencyHistogram h = histogram.get();
+        if (h != null) {
+            h.record(time);
+        }
+
+        RollingWindowStatistic r = rolling.get();
+        if (r != null) {
+            r.log(System.currentTimeMillis(), time, error);
+        }
+    }
+
+
     @Override
     public String toString() {
         return "(calls=" + getCalls()
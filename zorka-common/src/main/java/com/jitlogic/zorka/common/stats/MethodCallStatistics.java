@@ -17,6 +17,8 @@
 
 package com.jitlogic.zorka.common.stats;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -29,7 +31,28 @@ public class MethodCallStatistics implements ZorkaStats {
     /**
      * Map of method call statistics objects.
      */
-    private ConcurrentHashMap<String, MethodCallStatistic> stats = new ConcurrentHashMap<String, MethodCallStatistic>();
+    protected ConcurrentHashMap<String, MethodCallStatistic> stats = new ConcurrentHashMap<String, MethodCallStatistic>();
+
+    /**
+     * If true, striped statistics will be created (see StripedMethodCallStatistic).
+     */
+    private boolean striped;
+
+
+    public MethodCallStatistics() {
+        this(false);
+    }
+
+
+    public MethodCallStatistics(boolean striped) {
+        this.striped = striped;
+    }
+
+
+    public boolean isStriped() {
+        return striped;
+    }
+
 
     @Override
     public ZorkaStat getStatistic(String statisticName) {
@@ -38,15 +61,8 @@ public class MethodCallStatistics implements ZorkaStats {
 
     @Override
     public String[] getStatisticNames() {
-        String[] names = new String[stats.size()];
-
-        int i = 0;
-
-        for (String name : stats.keySet()) {
-            names[i++] = name;
-        }
-
-        return names;
+        List<String> names = new ArrayList<String>(stats.keySet());
+        return names.toArray(new String[names.size()]);
     }
 
     /**
@@ -59,7 +75,8 @@ public class MethodCallStatistics implements ZorkaStats {
         MethodCallStatistic ret = stats.get(name);
 
         if (ret == null) {
-            MethodCallStatistic st = stats.putIfAbsent(name, ret = new MethodCallStatistic(name));
+            ret = newStatistic(name);
+            MethodCallStatistic st = stats.putIfAbsent(name, ret);
             if (st != null) {
                 ret = st;
             }
@@ -70,6 +87,11 @@ public class MethodCallStatistics implements ZorkaStats {
     }
 
 
+    protected MethodCallStatistic newStatistic(String name) {
+        return striped ? new StripedMethodCallStatistic(name) : new MethodCallStatistic(name);
+    }
+
+
     @Override
     public String toString() {
         return stats.toString();
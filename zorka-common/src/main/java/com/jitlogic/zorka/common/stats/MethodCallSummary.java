@@ -0,0 +1,53 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.stats;
+
+/**
+ * Summary counters of method call statistic (calls, errors, execution time and maximum
+ * execution time). Method call statistic delegates to one of implementations, so each
+ * statistic carries only counters it actually uses.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public interface MethodCallSummary {
+
+    /**
+     * Adds calls, errors and execution time to summary and updates maximum execution time.
+     */
+    void log(long calls, long errors, long time, long maxTime);
+
+
+    long getCalls();
+
+
+    long getErrors();
+
+
+    long getTimeNs();
+
+
+    long getMaxTimeNs();
+
+
+    /**
+     * Returns maximum execution time and zeroes it in thread safe manner.
+     *
+     * @return maximum execution time (in nanoseconds)
+     */
+    long getMaxTimeNsCLR();
+}
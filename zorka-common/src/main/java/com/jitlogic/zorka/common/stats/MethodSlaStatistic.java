@@ -18,41 +18,41 @@
 package com.jitlogic.zorka.common.stats;
 
 /**
+ * SLA statistic of a method for single threshold. Calls are counted by parent
+ * MethodSlaStatistics object, this object only presents them.
  *
+ * @author rafal.lewczuk@jitlogic.com
  */
 public class MethodSlaStatistic implements ZorkaStat {
 
-    private long threshold;
+    private MethodSlaStatistics parent;
 
-    private long calls;
+    /**
+     * Threshold (in milliseconds)
+     */
+    private int threshold;
 
-    private long errors;
+    /**
+     * Counts carried over from previous counter layouts (or negated counts at last reset).
+     * Guarded by parent object lock.
+     */
+    long carriedCalls, carriedErrors;
 
-    public MethodSlaStatistic(int threshold) {
-        this.threshold = threshold * 1000000L;
+    MethodSlaStatistic(MethodSlaStatistics parent, int threshold) {
+        this.parent = parent;
+        this.threshold = threshold;
     }
 
-    public synchronized double getSla() {
-        return calls != 0 ? 100.0 * (calls - errors) / calls : 100.0;
+    public long getThresholdNs() {
+        return threshold * 1000000L;
     }
 
-    public synchronized double getSlaCLR() {
-        double rslt = getSla();
-        calls = 0; errors = 0;
-        return rslt;
+    public double getSla() {
+        return parent.sla(this, false);
     }
 
-    public synchronized void logCall(long t) {
-        calls++;
-
-        if (t > threshold) {
-            errors++;
-        }
-    }
-
-    public synchronized  void logError(long t) {
-        calls++;
-        errors++;
+    public double getSlaCLR() {
+        return parent.sla(this, true);
     }
 
     @Override
@@ -72,6 +72,6 @@ public class MethodSlaStatistic implements ZorkaStat {
 
     @Override
     public String toString() {
-        return "SLA(sla=" + String.format("%.2d", getSla()) + ")";
+        return "SLA(sla=" + String.format("%.2f", getSla()) + ")";
     }
 }
@@ -17,62 +17,207 @@
 
 package com.jitlogic.zorka.common.stats;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
+ * SLA statistics of a method for multiple thresholds. Thresholds are kept in a sorted array.
+ * Each call falls into one interval between thresholds (found by binary search), so only one
+ * counter is updated regardless of number of thresholds. Counters are striped by thread ID,
+ * so concurrent threads don't fight for the same cache lines. Number of calls exceeding given
+ * threshold is calculated when statistic is read. Adding a threshold replaces counters without
+ * locking writers, so calls logged at the very moment threshold is being added can be lost.
  *
+ * @author rafal.lewczuk@jitlogic.com
  */
 public class MethodSlaStatistics implements ZorkaStats {
 
-    private ConcurrentMap<Integer,MethodSlaStatistic> stats = new ConcurrentHashMap<Integer, MethodSlaStatistic>();
+    private static final int MAX_CELLS = 16;
+
+    private static final int NUM_CELLS = cells(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Thresholds, statistics and counters. Replaced by a new layout when threshold is added.
+     * Each cell consists of (number of thresholds + 1) interval counters and error counter.
+     */
+    private static class Layout {
+
+        private final long[] thresholds;
+
+        private final MethodSlaStatistic[] stats;
+
+        private final AtomicLongArray cells;
+
+        private final int stride;
+
+        private Layout(long[] thresholds, MethodSlaStatistic[] stats) {
+            this.thresholds = thresholds;
+            this.stats = stats;
+            this.stride = (thresholds.length + 2 + 15) & ~15;
+            this.cells = thresholds.length > 0 ? new AtomicLongArray((NUM_CELLS + 1) * stride) : null;
+        }
+    }
+
+
+    private volatile Layout layout = new Layout(new long[0], new MethodSlaStatistic[0]);
+
+
+    private static int cells(int n) {
+        int c = 1;
+        while (c < n && c < MAX_CELLS) {
+            c <<= 1;
+        }
+        return c;
+    }
 
 
     @Override
     public MethodSlaStatistic getStatistic(String statisticName) {
         int threshold = Integer.parseInt(statisticName);
-        MethodSlaStatistic rslt = stats.get(threshold);
+        Layout l = layout;
+        int idx = Arrays.binarySearch(l.thresholds, threshold * 1000000L);
 
-        if (rslt == null) {
-            MethodSlaStatistic st = stats.putIfAbsent(threshold, rslt = new MethodSlaStatistic(threshold));
-            if (st != null) {
-                rslt = st;
-            }
+        return idx >= 0 ? l.stats[idx] : addThreshold(threshold);
+    }
+
+
+    private synchronized MethodSlaStatistic addThreshold(int threshold) {
+        Layout l = layout;
+        long t = threshold * 1000000L;
+        int idx = Arrays.binarySearch(l.thresholds, t);
+
+        if (idx >= 0) {
+            return l.stats[idx];
         }
 
-        return rslt;
+        int n = l.thresholds.length, ins = -idx - 1;
+
+        long[] thresholds = new long[n + 1];
+        MethodSlaStatistic[] stats = new MethodSlaStatistic[n + 1];
+
+        System.arraycopy(l.thresholds, 0, thresholds, 0, ins);
+        System.arraycopy(l.stats, 0, stats, 0, ins);
+        System.arraycopy(l.thresholds, ins, thresholds, ins + 1, n - ins);
+        System.arraycopy(l.stats, ins, stats, ins + 1, n - ins);
+
+        thresholds[ins] = t;
+        stats[ins] = new MethodSlaStatistic(this, threshold);
+
+        layout = new Layout(thresholds, stats);
+
+        // Counts collected so far are carried over by existing statistics. Old layout is summed
+        // after the new one is published, so only writers that fetched old layout before and
+        // haven't incremented their counter yet can still be missed.
+        for (int i = 0; i < l.stats.length; i++) {
+            long[] c = counts(l, i);
+            l.stats[i].carriedCalls += c[0];
+            l.stats[i].carriedErrors += c[1];
+        }
+
+        return stats[ins];
     }
 
 
     @Override
     public String[] getStatisticNames() {
-        List<String> lst = new ArrayList<String>(stats.size());
-        for (Integer i : stats.keySet()) {
-            lst.add(i.toString());
+        MethodSlaStatistic[] stats = layout.stats;
+        String[] names = new String[stats.length];
+        for (int i = 0; i < stats.length; i++) {
+            names[i] = stats[i].getName();
         }
-        return lst.toArray(new String[lst.size()]);
+        return names;
+    }
+
+
+    /**
+     * Returns number of calls and number of calls exceeding i-th threshold (or ending with error).
+     */
+    private static long[] counts(Layout l, int i) {
+        int n = l.thresholds.length;
+        long calls = 0, errors = 0;
+
+        for (int c = l.stride; c < l.cells.length(); c += l.stride) {
+            for (int j = 0; j <= n; j++) {
+                long v = l.cells.get(c + j);
+                calls += v;
+                if (j > i) {
+                    errors += v;
+                }
+            }
+            long v = l.cells.get(c + n + 1);
+            calls += v;
+            errors += v;
+        }
+
+        return new long[]{calls, errors};
+    }
+
+
+    /**
+     * Calculates SLA of given statistic.
+     *
+     * @param stat statistic
+     * @param clr  if true, statistic will be reset
+     * @return SLA (percentage of calls that did not exceed threshold nor ended with error)
+     */
+    synchronized double sla(MethodSlaStatistic stat, boolean clr) {
+        Layout l = layout;
+        int idx = Arrays.binarySearch(l.thresholds, stat.getThresholdNs());
+
+        long[] c = counts(l, idx);
+
+        long calls = c[0] + stat.carriedCalls, errors = c[1] + stat.carriedErrors;
+
+        if (clr) {
+            stat.carriedCalls = -c[0];
+            stat.carriedErrors = -c[1];
+        }
+
+        return calls != 0 ? 100.0 * (calls - errors) / calls : 100.0;
+    }
+
+
+    private static int cell(Layout l) {
+        return (((int) Thread.currentThread().getId() & (NUM_CELLS - 1)) + 1) * l.stride;
     }
 
 
     public void logCall(long t) {
-        for (Map.Entry<Integer,MethodSlaStatistic> e : stats.entrySet()) {
-            e.getValue().logCall(t);
+        Layout l = layout;
+        long[] thresholds = l.thresholds;
+
+        if (thresholds.length == 0) {
+            return;
         }
+
+        // Number of thresholds exceeded by this call
+        int lo = 0, hi = thresholds.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (thresholds[mid] < t) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        l.cells.incrementAndGet(cell(l) + lo);
     }
 
 
     public void logError(long t) {
-        for (Map.Entry<Integer,MethodSlaStatistic> e : stats.entrySet()) {
-            e.getValue().logError(t);
+        Layout l = layout;
+
+        if (l.thresholds.length == 0) {
+            return;
         }
+
+        l.cells.incrementAndGet(cell(l) + l.thresholds.length + 1);
     }
 
 
     @Override
     public String toString() {
-        return "MethodSlaStatistics(" + stats + ")";
+        return "MethodSlaStatistics(" + Arrays.asList(layout.stats) + ")";
     }
 }
@@ -0,0 +1,241 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rolling window statistics of method calls. Calls, errors and execution times are counted in
+ * a fixed ring of per-second slots covering last 15 minutes. Call rates, error rates and average
+ * execution times over last 1, 5 and 15 minutes are calculated from completed seconds when read.
+ * Rates of windows longer than statistic lifetime are calculated over statistic lifetime.
+ * Slots are recycled without locking, so samples logged at the very moment their slot is being
+ * recycled can be lost.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class RollingWindowStatistic implements ZorkaStat {
+
+    private static final long MS = 1000000L;
+
+    /**
+     * Number of slots: 15 minutes of completed seconds and current second.
+     */
+    private static final int SLOTS = 15 * 60 + 1;
+
+    private static final int EPOCH = 0, CALLS = 1, ERRORS = 2, TIME = 3, FIELDS = 4;
+
+    private String name;
+
+    /**
+     * Slots: second (since epoch) the slot is used for, number of calls, number of errors, summary time.
+     */
+    private final AtomicLongArray slots = new AtomicLongArray(SLOTS * FIELDS);
+
+    /**
+     * Second (since epoch) when statistic has been created.
+     */
+    private final long created;
+
+
+    public RollingWindowStatistic(String name) {
+        this(name, System.currentTimeMillis());
+    }
+
+
+    /**
+     * Creates rolling window statistic.
+     *
+     * @param name   statistic name
+     * @param tstamp creation time (milliseconds since epoch)
+     */
+    public RollingWindowStatistic(String name, long tstamp) {
+        this.name = name;
+        this.created = tstamp / 1000;
+    }
+
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+
+    @Override
+    public String getDescription() {
+        return "Call rates and average execution times over last 1, 5 and 15 minutes.";
+    }
+
+
+    @Override
+    public String getUnit() {
+        return "CALLS/SECOND";
+    }
+
+
+    /**
+     * Logs method call.
+     *
+     * @param tstamp current time (milliseconds since epoch)
+     * @param time   execution time (nanoseconds)
+     * @param error  true if method call ended with error
+     */
+    public void log(long tstamp, long time, boolean error) {
+        long sec = tstamp / 1000;
+        int i = (int) (sec % SLOTS) * FIELDS;
+
+        long epoch = slots.get(i + EPOCH);
+
+        if (epoch != sec) {
+            if (epoch > sec) {
+                return;
+            }
+            if (slots.compareAndSet(i + EPOCH, epoch, sec)) {
+                slots.set(i + CALLS, 0);
+                slots.set(i + ERRORS, 0);
+                slots.set(i + TIME, 0);
+            }
+        }
+
+        slots.incrementAndGet(i + CALLS);
+        if (error) {
+            slots.incrementAndGet(i + ERRORS);
+        }
+        slots.addAndGet(i + TIME, time);
+    }
+
+
+    public void logCall(long time) {
+        log(System.currentTimeMillis(), time, false);
+    }
+
+
+    public void logError(long time) {
+        log(System.currentTimeMillis(), time, true);
+    }
+
+
+    /**
+     * Sums up slots of completed seconds in a window ending at given time.
+     *
+     * @param tstamp  current time (milliseconds since epoch)
+     * @param seconds window length (seconds)
+     * @return number of calls, number of errors and summary execution time
+     */
+    public long[] sum(long tstamp, int seconds) {
+        long sec = tstamp / 1000;
+        long[] rslt = new long[3];
+
+        for (long s = sec - Math.min(seconds, SLOTS - 1); s < sec; s++) {
+            int i = (int) (s % SLOTS) * FIELDS;
+            if (slots.get(i + EPOCH) == s) {
+                rslt[0] += slots.get(i + CALLS);
+                rslt[1] += slots.get(i + ERRORS);
+                rslt[2] += slots.get(i + TIME);
+            }
+        }
+
+        return rslt;
+    }
+
+
+    /**
+     * Returns average number of calls per second in a window ending at given time. If statistic
+     * is younger than window, rate is calculated over completed seconds since statistic creation.
+     *
+     * @param tstamp  current time (milliseconds since epoch)
+     * @param seconds window length (seconds)
+     * @return calls per second
+     */
+    public double getRate(long tstamp, int seconds) {
+        return rate(tstamp, seconds, 0);
+    }
+
+
+    private double rate(long tstamp, int seconds, int field) {
+        long elapsed = Math.min(seconds, tstamp / 1000 - created);
+        return elapsed > 0 ? 1.0 * sum(tstamp, seconds)[field] / elapsed : 0.0;
+    }
+
+
+    private double rate(int seconds, int field) {
+        return rate(System.currentTimeMillis(), seconds, field);
+    }
+
+
+    private double avgTime(int seconds) {
+        long[] s = sum(System.currentTimeMillis(), seconds);
+        return s[0] != 0 ? 1.0 * s[2] / s[0] / MS : 0.0;
+    }
+
+
+    public double getRate1m() {
+        return rate(60, 0);
+    }
+
+
+    public double getRate5m() {
+        return rate(300, 0);
+    }
+
+
+    public double getRate15m() {
+        return rate(900, 0);
+    }
+
+
+    public double getErrorRate1m() {
+        return rate(60, 1);
+    }
+
+
+    public double getErrorRate5m() {
+        return rate(300, 1);
+    }
+
+
+    public double getErrorRate15m() {
+        return rate(900, 1);
+    }
+
+
+    /**
+     * Returns average execution time over last minute.
+     *
+     * @return average execution time (milliseconds)
+     */
+    public double getAvgTime1m() {
+        return avgTime(60);
+    }
+
+
+    public double getAvgTime5m() {
+        return avgTime(300);
+    }
+
+
+    public double getAvgTime15m() {
+        return avgTime(900);
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("(rate1m=%.2f, rate5m=%.2f, rate15m=%.2f)", getRate1m(), getRate5m(), getRate15m());
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.stats;
+
+/**
+ * Method call statistic suitable for methods called concurrently by many threads. Call counters
+ * are kept in striped summary (see StripedMethodCallSummary), so threads don't fight for the same
+ * cache lines.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class StripedMethodCallStatistic extends MethodCallStatistic {
+
+    public StripedMethodCallStatistic(String name) {
+        super(name, new StripedMethodCallSummary());
+    }
+
+
+    /**
+     * Creates striped statistic.
+     *
+     * @param name  statistic name
+     * @param ncells number of cells (will be rounded up to a power of 2)
+     */
+    public StripedMethodCallStatistic(String name, int ncells) {
+        super(name, new StripedMethodCallSummary(ncells));
+    }
+
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Method call summary suitable for methods called concurrently by many threads. Counters
+ * (calls, errors, time and maximum time) are kept in several cells, each thread updates cell
+ * selected by its thread ID, so threads don't fight for the same cache lines. Cells are summed up
+ * (or maximum is calculated) when summary is read.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class StripedMethodCallSummary implements MethodCallSummary {
+
+    /**
+     * Number of longs between cells (128 bytes, so cells do not share cache lines).
+     */
+    private static final int STRIDE = 16;
+
+    private static final int CALLS = 0, ERRORS = 1, TIME = 2, MAX_TIME = 3;
+
+    private static final int MAX_CELLS = 64;
+
+    /**
+     * Default number of cells (number of CPUs rounded up to a power of 2).
+     */
+    private static final int DEFAULT_CELLS = cells(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells;
+
+    private final int mask;
+
+
+    private static int cells(int n) {
+        int c = 1;
+        while (c < n && c < MAX_CELLS) {
+            c <<= 1;
+        }
+        return c;
+    }
+
+
+    public StripedMethodCallSummary() {
+        this(DEFAULT_CELLS);
+    }
+
+
+    /**
+     * Creates striped summary.
+     *
+     * @param ncells number of cells (will be rounded up to a power of 2)
+     */
+    public StripedMethodCallSummary(int ncells) {
+        int n = cells(ncells);
+        this.cells = new AtomicLongArray((n + 1) * STRIDE);
+        this.mask = n - 1;
+    }
+
+
+    /**
+     * Returns offset of cell used by current thread. Cell at index 0 is not used, so
+     * first cell doesn't share cache line with array header.
+     */
+    private int cell() {
+        return (((int) Thread.currentThread().getId() & mask) + 1) * STRIDE;
+    }
+
+
+    private long sum(int field) {
+        long v = 0;
+        for (int i = STRIDE + field; i < cells.length(); i += STRIDE) {
+            v += cells.get(i);
+        }
+        return v;
+    }
+
+
+    @Override
+    public void log(long calls, long errors, long time, long maxTime) {
+        int c = cell();
+
+        cells.addAndGet(c + CALLS, calls);
+        if (errors != 0) {
+            cells.addAndGet(c + ERRORS, errors);
+        }
+        cells.addAndGet(c + TIME, time);
+
+        long t = cells.get(c + MAX_TIME);
+        while (maxTime > t && !cells.compareAndSet(c + MAX_TIME, t, maxTime)) {
+            t = cells.get(c + MAX_TIME);
+        }
+    }
+
+
+    @Override
+    public long getCalls() {
+        return sum(CALLS);
+    }
+
+
+    @Override
+    public long getErrors() {
+        return sum(ERRORS);
+    }
+
+
+    @Override
+    public long getTimeNs() {
+        return sum(TIME);
+    }
+
+
+    @Override
+    public long getMaxTimeNs() {
+        long v = 0;
+        for (int i = STRIDE + MAX_TIME; i < cells.length(); i += STRIDE) {
+            v = Math.max(v, cells.get(i));
+        }
+        return v;
+    }
+
+
+    /**
+     * Returns maximum execution time and zeroes it. Each cell is zeroed atomically, so no samples
+     * are lost, but sample logged concurrently can be reported either now or at next call.
+     *
+     * @return maximum execution time (in nanoseconds)
+     */
+    @Override
+    public long getMaxTimeNsCLR() {
+        long v = 0;
+        for (int i = STRIDE + MAX_TIME; i < cells.length(); i += STRIDE) {
+            v = Math.max(v, cells.getAndSet(i, 0));
+        }
+        return v;
+    }
+}
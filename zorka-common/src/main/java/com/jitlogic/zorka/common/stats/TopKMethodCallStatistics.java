@@ -0,0 +1,485 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Method call statistics container keeping at most K statistics. Useful when statistic names are
+ * derived from request data (URLs, tags etc.) and number of distinct names is unbounded. Key frequencies
+ * are estimated using count-min sketch. Exact statistics are kept for K most frequent (heavy hitter) keys,
+ * calls for remaining keys are accounted in a single statistic named OTHER. When a key from the long tail
+ * becomes more frequent than least frequent resident key, the latter is evicted and its counters are
+ * folded into OTHER statistic. Sketch counters are periodically halved, so old traffic ages out.
+ * Lookups are counted in small buffers (selected by thread ID) and added to sketch in batches, so threads
+ * looking up the same keys don't fight for the same sketch counters. All buffers are drained to sketch
+ * before it is aged and before a key is admitted, so lookups of idle threads are not lost. Least frequent
+ * resident key is remembered and looked up again only when it is evicted or its estimate changes.
+ *
+ * Note that only calls, errors and execution times are folded, latency histograms, SLA and rolling window
+ * statistics of evicted keys are discarded. Calls logged concurrently with eviction of their statistic
+ * can be lost.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class TopKMethodCallStatistics extends MethodCallStatistics {
+
+    /**
+     * Name of statistic aggregating all keys that didn't make it into top K.
+     */
+    public static final String OTHER = "OTHER";
+
+    private static final int DEPTH = 4;
+
+    /**
+     * Minimum sketch width. Sketch must be much wider than K, as it also counts long tail keys.
+     */
+    private static final int MIN_WIDTH = 1024;
+
+    private static final int[] SEEDS = { 0x9e3779b1, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+
+    /**
+     * Maximum number of distinct keys in a buffer.
+     */
+    private static final int BUF_KEYS = 16;
+
+    /**
+     * Buffer is added to sketch after this many lookups.
+     */
+    private static final int BUF_HITS = 64;
+
+    private static final int MAX_BUFFERS = 64;
+
+    /**
+     * Lookups (key hash codes with their counts) buffered by threads using the same buffer. Buffer is guarded
+     * by a spin lock, which is almost always uncontended, as buffers are selected by thread ID.
+     */
+    private static class HitBuffer {
+        private final AtomicInteger lock = new AtomicInteger();
+        private final int[] keys = new int[BUF_KEYS];
+        private final int[] counts = new int[BUF_KEYS];
+        private int size, hits;
+
+        private boolean tryLock() {
+            return lock.compareAndSet(0, 1);
+        }
+
+        private void lock() {
+            while (!lock.compareAndSet(0, 1)) {
+                Thread.yield();
+            }
+        }
+
+        private void unlock() {
+            lock.lazySet(0);
+        }
+    }
+
+    /**
+     * Maximum number of statistics (not counting OTHER).
+     */
+    private final int maxStats;
+
+    /**
+     * Count-min sketch: DEPTH rows of width counters each.
+     */
+    private final AtomicIntegerArray sketch;
+
+    private final int width;
+
+    /**
+     * Number of sketch updates after which all sketch counters are halved.
+     */
+    private final long agingPeriod;
+
+    private final AtomicLong updates = new AtomicLong(0);
+
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    private final AtomicLong foldedCalls = new AtomicLong(0);
+
+    /**
+     * Estimated frequency of least frequent resident key. Keys estimated at or below it are not admitted.
+     */
+    private volatile int minHits;
+
+    /**
+     * Least frequent resident key (as found by last scan) and its estimate at that time.
+     * Guarded by container monitor.
+     */
+    private String victim;
+
+    private int victimHits;
+
+    private final HitBuffer[] buffers;
+
+    private final int bufferMask;
+
+
+    public TopKMethodCallStatistics(int maxStats) {
+        this(maxStats, false);
+    }
+
+
+    public TopKMethodCallStatistics(int maxStats, boolean striped) {
+        super(striped);
+
+        if (maxStats < 1) {
+            throw new IllegalArgumentException("Maximum number of statistics must be positive: " + maxStats);
+        }
+
+        this.maxStats = maxStats;
+
+        int w = MIN_WIDTH;
+        while (w < maxStats * 16) {
+            w <<= 1;
+        }
+
+        this.width = w;
+        this.sketch = new AtomicIntegerArray(DEPTH * w);
+        this.agingPeriod = 10L * w;
+
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n < MAX_BUFFERS) {
+            n <<= 1;
+        }
+
+        this.buffers = new HitBuffer[n];
+        for (int i = 0; i < n; i++) {
+            buffers[i] = new HitBuffer();
+        }
+        this.bufferMask = n - 1;
+    }
+
+
+    public int getMaxStats() {
+        return maxStats;
+    }
+
+
+    /**
+     * Returns number of statistics evicted from this container.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+
+    /**
+     * Returns number of statistic lookups redirected to OTHER statistic.
+     */
+    public long getFoldedCalls() {
+        return foldedCalls.get();
+    }
+
+
+    /**
+     * Returns estimated (recent) number of lookups of given statistic.
+     *
+     * @param name statistic name
+     * @return estimated frequency
+     */
+    public int estimate(String name) {
+        drain();
+        return estimate(name.hashCode());
+    }
+
+
+    private int estimate(int h) {
+        int est = Integer.MAX_VALUE;
+
+        for (int i = 0; i < DEPTH; i++) {
+            est = Math.min(est, sketch.get(index(i, h)));
+        }
+
+        return est;
+    }
+
+
+    /**
+     * Returns named statistic if it is (or can be) one of top K statistics, otherwise OTHER statistic is returned.
+     *
+     * @param name statistic (method) name
+     * @return method call statistic
+     */
+    @Override
+    public MethodCallStatistic getMethodCallStatistic(String name) {
+
+        if (OTHER.equals(name)) {
+            return other();
+        }
+
+        int hits = hit(name);
+
+        MethodCallStatistic ret = stats.get(name);
+
+        if (ret != null) {
+            return ret;
+        }
+
+        if (hits > minHits || stats.size() <= maxStats) {
+            ret = admit(name, hits);
+        }
+
+        if (ret == null) {
+            ret = other();
+            foldedCalls.incrementAndGet();
+            AgentDiagnostics.inc(AgentDiagnostics.ZORKA_STATS_FOLDED);
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * Registers new statistic, possibly evicting least frequent one. Returns null if key is not frequent enough.
+     */
+    private synchronized MethodCallStatistic admit(String name, int hits) {
+        MethodCallStatistic ret = stats.get(name);
+
+        if (ret != null) {
+            return ret;
+        }
+
+        drain();
+
+        if (residents() >= maxStats) {
+            if (victim == null || !stats.containsKey(victim) || estimate(victim.hashCode()) != victimHits) {
+                findVictim();
+            }
+
+            minHits = victimHits;
+
+            if (victim == null || hits <= victimHits) {
+                return null;
+            }
+
+            other().add(stats.remove(victim));
+            victim = null;
+            evictions.incrementAndGet();
+            AgentDiagnostics.inc(AgentDiagnostics.ZORKA_STATS_EVICTED);
+        }
+
+        ret = newStatistic(name);
+        stats.put(name, ret);
+        AgentDiagnostics.inc(AgentDiagnostics.ZORKA_STATS_CREATED);
+
+        return ret;
+    }
+
+
+    /**
+     * Finds least frequent resident key. Must be called while holding container monitor.
+     */
+    private void findVictim() {
+        victim = null;
+        victimHits = Integer.MAX_VALUE;
+
+        for (String key : stats.keySet()) {
+            if (!OTHER.equals(key)) {
+                int h = estimate(key.hashCode());
+                if (h < victimHits) {
+                    victim = key;
+                    victimHits = h;
+                }
+            }
+        }
+    }
+
+
+    private int residents() {
+        return stats.containsKey(OTHER) ? stats.size() - 1 : stats.size();
+    }
+
+
+    private MethodCallStatistic other() {
+        MethodCallStatistic ret = stats.get(OTHER);
+
+        if (ret == null) {
+            ret = newStatistic(OTHER);
+            MethodCallStatistic st = stats.putIfAbsent(OTHER, ret);
+            if (st != null) {
+                ret = st;
+            } else {
+                AgentDiagnostics.inc(AgentDiagnostics.ZORKA_STATS_CREATED);
+            }
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * Registers key occurrence in buffer and returns its updated frequency estimate.
+     */
+    private int hit(String name) {
+        int h = name.hashCode();
+        HitBuffer buf = buffers[(int) Thread.currentThread().getId() & bufferMask];
+
+        if (!buf.tryLock()) {
+            // Buffer is being used by another thread (or drained), so go straight to sketch
+            for (int row = 0; row < DEPTH; row++) {
+                sketch.incrementAndGet(index(row, h));
+            }
+            updated(1);
+            return estimate(h);
+        }
+
+        int est;
+        long flushed = 0;
+
+        try {
+            int i = 0;
+            while (i < buf.size && buf.keys[i] != h) {
+                i++;
+            }
+
+            if (i == BUF_KEYS) {
+                flushed += flush(buf);
+                i = 0;
+            }
+
+            if (i == buf.size) {
+                buf.keys[i] = h;
+                buf.counts[i] = 0;
+                buf.size++;
+            }
+
+            int count = ++buf.counts[i];
+            est = estimate(h) + count;
+
+            if (++buf.hits >= BUF_HITS) {
+                flushed += flush(buf);
+            }
+        } finally {
+            buf.unlock();
+        }
+
+        updated(flushed);
+
+        return est;
+    }
+
+
+    /**
+     * Adds buffered key occurrences to sketch and clears buffer. Must be called while holding buffer lock.
+     *
+     * @return number of key occurrences added to sketch
+     */
+    private long flush(HitBuffer buf) {
+        for (int i = 0; i < buf.size; i++) {
+            for (int row = 0; row < DEPTH; row++) {
+                sketch.addAndGet(index(row, buf.keys[i]), buf.counts[i]);
+            }
+        }
+
+        long n = buf.hits;
+
+        buf.size = 0;
+        buf.hits = 0;
+
+        return n;
+    }
+
+
+    /**
+     * Adds contents of all buffers to sketch, so lookups buffered by idle threads are taken into account.
+     */
+    private void drain() {
+        long n = 0;
+
+        for (HitBuffer buf : buffers) {
+            buf.lock();
+            try {
+                n += flush(buf);
+            } finally {
+                buf.unlock();
+            }
+        }
+
+        updated(n);
+    }
+
+
+    /**
+     * Counts sketch updates and ages sketch when aging period passes. Must not be called while holding buffer lock.
+     */
+    private void updated(long n) {
+        if (n > 0) {
+            long u = updates.addAndGet(n);
+            if (u / agingPeriod != (u - n) / agingPeriod) {
+                age();
+            }
+        }
+    }
+
+
+    /**
+     * Halves all sketch counters, so frequencies reflect recent traffic. Buffers are drained first,
+     * so buffered lookups are aged as well.
+     */
+    private synchronized void age() {
+        long n = 0;
+
+        for (HitBuffer buf : buffers) {
+            buf.lock();
+            try {
+                n += flush(buf);
+            } finally {
+                buf.unlock();
+            }
+        }
+
+        updates.addAndGet(n);
+
+        for (int i = 0; i < sketch.length(); i++) {
+            int v = sketch.get(i);
+            while (!sketch.compareAndSet(i, v, v >> 1)) {
+                v = sketch.get(i);
+            }
+        }
+
+        minHits >>= 1;
+        victim = null;
+    }
+
+
+    private int index(int row, int h) {
+        int x = h * SEEDS[row];
+        x ^= x >>> 16;
+        return row * width + (x & (width - 1));
+    }
+
+
+    /**
+     * Returns copy of resident statistics with their estimated frequencies.
+     */
+    public Map<String, Integer> getEstimates() {
+        drain();
+        Map<String, Integer> ret = new TreeMap<String, Integer>();
+        for (String key : stats.keySet()) {
+            ret.put(key, estimate(key.hashCode()));
+        }
+        return ret;
+    }
+}
@@ -55,6 +55,9 @@ public class FressianTraceWriter implements MetadataChecker, TraceWriter {
 
     @Override
     public void write(SymbolicRecord record) throws IOException {
+        if (record instanceof TraceBuffer) {
+            record = ((TraceBuffer) record).getRecord();
+        }
         checkOutput();
         record.traverse(this);
         writer.writeObject(record);
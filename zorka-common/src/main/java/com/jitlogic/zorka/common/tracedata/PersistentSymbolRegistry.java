@@ -0,0 +1,255 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.tracedata;
+
+import com.jitlogic.zorka.common.util.ZorkaLog;
+import com.jitlogic.zorka.common.util.ZorkaLogger;
+
+import java.io.*;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Random;
+
+/**
+ * Symbol registry that keeps all registered symbols in a file, so symbol IDs stay the same
+ * after agent restart. Each file has an epoch (random string written in its first line).
+ * When file is missing or cannot be read, new file (with new epoch) is created, so other
+ * data depending on symbol IDs (eg. cached instrumented bytecode) can be validated by
+ * comparing epochs.
+ *
+ * Symbols file is locked for exclusive use, so it cannot be shared by multiple agents. If lock
+ * cannot be obtained or symbols cannot be saved, registry stops being persistent and data
+ * depending on symbol IDs must not be saved anymore (see isPersistent()). New symbols are
+ * buffered, sync() must be called before saving any data that refers to them.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class PersistentSymbolRegistry extends SymbolRegistry {
+
+    private static final ZorkaLog log = ZorkaLogger.getLog(PersistentSymbolRegistry.class);
+
+    private static final String EPOCH_PREFIX = "#epoch:";
+
+    private File file;
+
+    private String epoch;
+
+    private Writer writer;
+
+    private RandomAccessFile lockFile;
+
+    private FileLock lock;
+
+    /**
+     * True as long as all registered symbols are saved (or buffered to be saved) in symbols file.
+     */
+    private volatile boolean persistent;
+
+
+    public PersistentSymbolRegistry(File file) {
+        this.file = file;
+
+        if (!lock()) {
+            epoch = newEpoch();
+            return;
+        }
+
+        if (!load()) {
+            create();
+        }
+
+        persistent = writer != null;
+    }
+
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+
+    /**
+     * Returns true if symbol IDs are saved and will be the same after restart.
+     */
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+
+    private static String newEpoch() {
+        return Long.toHexString(new Random().nextLong() ^ System.nanoTime());
+    }
+
+
+    private boolean lock() {
+        File f = new File(file.getPath() + ".lock");
+        try {
+            lockFile = new RandomAccessFile(f, "rw");
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            log.error(ZorkaLogger.ZAG_ERRORS, "Cannot lock " + f, e);
+            lock = null;
+        }
+
+        if (lock == null) {
+            log.error(ZorkaLogger.ZAG_ERRORS, "Symbols file " + file + " is used by another agent. "
+                + "Symbols will not be saved.");
+            closeLockFile();
+            return false;
+        }
+
+        return true;
+    }
+
+
+    private void closeLockFile() {
+        if (lockFile != null) {
+            try {
+                lockFile.close();
+            } catch (IOException e) {
+                log.error(ZorkaLogger.ZAG_ERRORS, "Cannot close lock file of " + file, e);
+            }
+            lockFile = null;
+        }
+    }
+
+
+    private boolean load() {
+        if (!file.canRead()) {
+            return false;
+        }
+
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(EPOCH_PREFIX)) {
+                return false;
+            }
+            epoch = line.substring(EPOCH_PREFIX.length());
+
+            while ((line = reader.readLine()) != null) {
+                int ix = line.indexOf('\t');
+                if (ix > 0) {
+                    int id = Integer.parseInt(line.substring(0, ix));
+                    String symbol = line.substring(ix + 1);
+                    register(id, symbol);
+                    if (id > lastSymbolId.get()) {
+                        lastSymbolId.set(id);
+                    }
+                }
+            }
+
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+            return true;
+        } catch (Exception e) {
+            log.error(ZorkaLogger.ZAG_ERRORS, "Cannot load symbols from " + file + ". Starting with empty registry.", e);
+            clear();
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    log.error(ZorkaLogger.ZAG_ERRORS, "Cannot close " + file, e);
+                }
+            }
+        }
+    }
+
+
+    private void create() {
+        epoch = newEpoch();
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, false), "UTF-8"));
+            writer.write(EPOCH_PREFIX + epoch + "\n");
+            writer.flush();
+        } catch (IOException e) {
+            log.error(ZorkaLogger.ZAG_ERRORS, "Cannot create symbols file " + file + ". Symbols will not be saved.", e);
+            writer = null;
+        }
+    }
+
+
+    @Override
+    protected synchronized void persist(int id, String name) {
+        if (writer != null) {
+            if (name.indexOf('\n') != -1) {
+                // Symbol cannot be saved, so its ID will be assigned to other symbol after restart
+                fail("Cannot save symbol containing line break.", null);
+                return;
+            }
+            try {
+                writer.write(id + "\t" + name + "\n");
+            } catch (IOException e) {
+                fail("Cannot save symbol to " + file + ".", e);
+            }
+        }
+    }
+
+
+    /**
+     * Flushes buffered symbols to disk. This must be called before saving any data referring
+     * to symbol IDs, so such data never refers to symbols that have not been saved.
+     *
+     * @return true if all symbols have been saved, false if registry is not persistent anymore
+     */
+    public synchronized boolean sync() {
+        if (writer != null) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                fail("Cannot save symbols to " + file + ".", e);
+            }
+        }
+        return persistent;
+    }
+
+
+    private void fail(String msg, Throwable e) {
+        log.error(ZorkaLogger.ZAG_ERRORS, msg + " Symbols will not be saved anymore.", e);
+        persistent = false;
+        try {
+            writer.close();
+        } catch (IOException e1) {
+            log.error(ZorkaLogger.ZAG_ERRORS, "Cannot close " + file, e1);
+        }
+        writer = null;
+    }
+
+
+    /**
+     * Saves buffered symbols, closes symbols file and releases its lock.
+     */
+    public synchronized void close() {
+        if (writer != null) {
+            sync();
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.error(ZorkaLogger.ZAG_ERRORS, "Cannot close " + file, e);
+            }
+            writer = null;
+        }
+        persistent = false;
+        closeLockFile();
+    }
+
+}
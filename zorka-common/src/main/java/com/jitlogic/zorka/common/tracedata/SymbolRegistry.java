@@ -19,9 +19,19 @@ package com.jitlogic.zorka.common.tracedata;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Maps symbol names to integer IDs and back. As symbol IDs are dense, ID to name mapping is kept
+ * in an array indexed by symbol ID. Lookups are lock free, registration of new symbols is serialized,
+ * so no IDs are wasted when several threads register the same symbol at once.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
 public class SymbolRegistry {
 
+    private static final int INITIAL_SIZE = 1024;
+
     /**
      * ID of last symbol added to registry.
      */
@@ -33,14 +43,15 @@ public class SymbolRegistry {
     protected ConcurrentMap<String, Integer> symbolIds;
 
     /**
-     * Symbol ID to name map
+     * Symbol ID to name map (indexed by symbol ID). Array is replaced by a bigger copy when needed,
+     * all modifications are made while holding registry lock.
      */
-    protected ConcurrentMap<Integer, String> symbolNames;
+    protected volatile AtomicReferenceArray<String> symbolNames;
 
     public SymbolRegistry() {
         lastSymbolId = new AtomicInteger(0);
         symbolIds = new ConcurrentHashMap<String, Integer>();
-        symbolNames = new ConcurrentHashMap<Integer, String>();
+        symbolNames = new AtomicReferenceArray<String>(INITIAL_SIZE);
     }
 
     /**
@@ -58,20 +69,23 @@ public class SymbolRegistry {
 
         Integer id = symbolIds.get(symbol);
 
-        if (id == null) {
-            int newid = lastSymbolId.incrementAndGet();
+        return id != null ? id : newSymbolId(symbol);
+    }
 
-            id = symbolIds.putIfAbsent(symbol, newid);
-            if (id == null) {
-                symbolNames.put(newid, symbol);
-                persist(newid, symbol);
-                id = newid;
-            }
+
+    private synchronized int newSymbolId(String symbol) {
+        Integer id = symbolIds.get(symbol);
+
+        if (id == null) {
+            id = lastSymbolId.incrementAndGet();
+            register(id, symbol);
+            persist(id, symbol);
         }
 
         return id;
     }
 
+
     public int trySymbolId(String symbol) {
 
         if (symbol == null) {
@@ -92,7 +106,9 @@ public class SymbolRegistry {
         if (symbolId == 0) {
             return "<null>";
         }
-        String sym = symbolNames.get(symbolId);
+
+        AtomicReferenceArray<String> names = symbolNames;
+        String sym = symbolId > 0 && symbolId < names.length() ? names.get(symbolId) : null;
 
         return sym != null ? sym : "<?>";
     }
@@ -104,10 +120,9 @@ public class SymbolRegistry {
      * @param symbolId symbol ID
      * @param symbol   symbol name
      */
-    public void put(int symbolId, String symbol) {
+    public synchronized void put(int symbolId, String symbol) {
 
-        symbolIds.put(symbol, symbolId);
-        symbolNames.put(symbolId, symbol);
+        register(symbolId, symbol);
 
         if (symbolId > lastSymbolId.get()) {
             lastSymbolId.set(symbolId);
@@ -116,6 +131,38 @@ public class SymbolRegistry {
         persist(symbolId, symbol);
     }
 
+
+    /**
+     * Stores symbol in both maps. Name is stored before ID, so it can be resolved by any thread that
+     * obtained its ID. Must be called while holding registry lock.
+     */
+    protected void register(int id, String symbol) {
+        AtomicReferenceArray<String> names = symbolNames;
+
+        if (id >= names.length()) {
+            AtomicReferenceArray<String> newNames = new AtomicReferenceArray<String>(Math.max(id + 1, names.length() * 2));
+            for (int i = 0; i < names.length(); i++) {
+                newNames.set(i, names.get(i));
+            }
+            symbolNames = names = newNames;
+        }
+
+        names.set(id, symbol);
+        symbolIds.put(symbol, id);
+    }
+
+
+    /**
+     * Removes all symbols from registry.
+     */
+    protected synchronized void clear() {
+        symbolIds.clear();
+        symbolNames = new AtomicReferenceArray<String>(INITIAL_SIZE);
+        lastSymbolId.set(0);
+        SymbolicStackCache.clear(this);
+    }
+
+
     protected void persist(int id, String name) {
     }
 
@@ -95,16 +95,7 @@ public class SymbolicException implements SymbolicRecord, Serializable {
         this.classId = symbols.symbolId(exception.getClass().getName());
         this.message = exception.getMessage();
 
-        StackTraceElement[] orig = exception.getStackTrace();
-
-        if (orig != null && orig.length > 0) {
-            stackTrace = new SymbolicStackElement[orig.length];
-            for (int i = 0; i < orig.length; i++) {
-                stackTrace[i] = new SymbolicStackElement(orig[i], symbols);
-            }
-        } else {
-            stackTrace = new SymbolicStackElement[0];
-        }
+        this.stackTrace = SymbolicStackCache.getStackTrace(exception, symbols);
     }
 
 
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.tracedata;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Caches symbolic forms of exception stack traces. Applications often throw lots of identical
+ * exceptions (eg. validation errors), so converting stack traces of such exceptions element
+ * by element (and looking up three symbols per element) every time is wasteful. Stack traces
+ * are cached by exception class name and stack frames, separately for each symbol registry.
+ * Registries are weakly referenced and no class objects are kept, so cache does not pin
+ * application class loaders. Cached arrays are shared between symbolic exceptions, so they
+ * must not be modified.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class SymbolicStackCache {
+
+    private static final SymbolicStackElement[] EMPTY_STACK = new SymbolicStackElement[0];
+
+    /**
+     * Maximum number of cached stack traces (0 disables caching).
+     */
+    private static int cacheSize = 256;
+
+    /**
+     * Maximum number of stack elements captured (0 means all stack elements are captured).
+     */
+    private static int maxStackDepth = 0;
+
+    /**
+     * Stack trace caches (one per symbol registry).
+     */
+    private static Map<SymbolRegistry, Map<Key, SymbolicStackElement[]>> caches
+            = new WeakHashMap<SymbolRegistry, Map<Key, SymbolicStackElement[]>>();
+
+
+    public static int getCacheSize() {
+        return cacheSize;
+    }
+
+
+    public static synchronized void setCacheSize(int size) {
+        cacheSize = size;
+        caches.clear();
+    }
+
+
+    /**
+     * Drops all stack traces cached for given symbol registry (eg. when registry is reset).
+     *
+     * @param symbols symbol registry
+     */
+    public static synchronized void clear(SymbolRegistry symbols) {
+        caches.remove(symbols);
+    }
+
+
+    public static int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+
+    public static void setMaxStackDepth(int depth) {
+        maxStackDepth = depth;
+    }
+
+
+    private static Map<Key, SymbolicStackElement[]> newCache() {
+        return new LinkedHashMap<Key, SymbolicStackElement[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, SymbolicStackElement[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+
+    /**
+     * Returns symbolic form of exception stack trace (possibly cached).
+     *
+     * @param exception exception object
+     * @param symbols   symbol registry
+     * @return symbolic stack trace (never null)
+     */
+    public static SymbolicStackElement[] getStackTrace(Throwable exception, SymbolRegistry symbols) {
+        StackTraceElement[] orig = exception.getStackTrace();
+
+        if (orig == null || orig.length == 0) {
+            return EMPTY_STACK;
+        }
+
+        int depth = maxStackDepth > 0 && maxStackDepth < orig.length ? maxStackDepth : orig.length;
+
+        if (cacheSize <= 0) {
+            return symbolicStack(orig, depth, symbols);
+        }
+
+        Key key = new Key(exception.getClass().getName(), orig, depth);
+        SymbolicStackElement[] stack;
+
+        synchronized (SymbolicStackCache.class) {
+            Map<Key, SymbolicStackElement[]> cache = caches.get(symbols);
+            stack = cache != null ? cache.get(key) : null;
+        }
+
+        if (stack != null) {
+            AgentDiagnostics.inc(AgentDiagnostics.EXCEPTION_CACHE_HITS);
+            return stack;
+        }
+
+        AgentDiagnostics.inc(AgentDiagnostics.EXCEPTION_CACHE_MISSES);
+        stack = symbolicStack(orig, depth, symbols);
+
+        synchronized (SymbolicStackCache.class) {
+            Map<Key, SymbolicStackElement[]> cache = caches.get(symbols);
+            if (cache == null) {
+                cache = newCache();
+                caches.put(symbols, cache);
+            }
+            cache.put(key, stack);
+        }
+
+        return stack;
+    }
+
+
+    private static SymbolicStackElement[] symbolicStack(StackTraceElement[] orig, int depth, SymbolRegistry symbols) {
+        SymbolicStackElement[] stack = new SymbolicStackElement[depth];
+        for (int i = 0; i < depth; i++) {
+            stack[i] = new SymbolicStackElement(orig[i], symbols);
+        }
+        return stack;
+    }
+
+
+    /**
+     * Cache key: exception class name and first 'depth' stack frames.
+     */
+    private static class Key {
+
+        private final String className;
+
+        private final StackTraceElement[] stack;
+
+        private final int depth;
+
+        private final int hash;
+
+
+        private Key(String className, StackTraceElement[] stack, int depth) {
+            this.className = className;
+            this.stack = stack;
+            this.depth = depth;
+
+            int h = className.hashCode();
+            for (int i = 0; i < depth; i++) {
+                h = 31 * h + stack[i].hashCode();
+            }
+            this.hash = h;
+        }
+
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key k = (Key) obj;
+
+            if (k.hash != hash || k.depth != depth || !k.className.equals(className)) {
+                return false;
+            }
+
+            for (int i = 0; i < depth; i++) {
+                if (!stack[i].equals(k.stack[i])) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
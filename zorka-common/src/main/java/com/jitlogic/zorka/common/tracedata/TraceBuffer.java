@@ -0,0 +1,294 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.tracedata;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact (struct-of-arrays) representation of method execution records. Records are stored
+ * in post-order: each record is preceded by records of its children, and knows only number
+ * of its direct children. This way a completed trace is a contiguous slice of the buffer
+ * and can be cut off (or dropped) without touching individual records.
+ *
+ * Trace buffers are submitted to tracer outputs instead of trace record trees. Tree of
+ * TraceRecord objects is reconstructed by output thread (see getRecord()).
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class TraceBuffer implements SymbolicRecord {
+
+    private int size;
+
+    private int[] classIds, methodIds, signatureIds, flags, children;
+
+    private long[] times, calls, errors;
+
+    /**
+     * Exceptions, attribute maps and trace markers are rare, so these arrays
+     * are allocated when first non-null value is stored.
+     */
+    private Object[] exceptions, attrs, markers;
+
+    /**
+     * Symbol registry used to convert exceptions into symbolic form.
+     */
+    private SymbolRegistry symbols;
+
+    /**
+     * Reconstructed record tree (lazily created).
+     */
+    private TraceRecord record;
+
+
+    public TraceBuffer(SymbolRegistry symbols, int capacity) {
+        this.symbols = symbols;
+        classIds = new int[capacity];
+        methodIds = new int[capacity];
+        signatureIds = new int[capacity];
+        flags = new int[capacity];
+        children = new int[capacity];
+        times = new long[capacity];
+        calls = new long[capacity];
+        errors = new long[capacity];
+    }
+
+
+    /**
+     * Appends record at the end of buffer.
+     *
+     * @return index of added record
+     */
+    public int add(int classId, int methodId, int signatureId, int flag, long time, long ncalls, long nerrors,
+                   int nchildren, Object exception, Map<Integer, Object> attr, TraceMarker marker) {
+
+        if (size == classIds.length) {
+            grow(size * 2);
+        }
+
+        classIds[size] = classId;
+        methodIds[size] = methodId;
+        signatureIds[size] = signatureId;
+        flags[size] = flag;
+        times[size] = time;
+        calls[size] = ncalls;
+        errors[size] = nerrors;
+        children[size] = nchildren;
+
+        exceptions = set(exceptions, size, exception);
+        attrs = set(attrs, size, attr);
+        markers = set(markers, size, marker);
+
+        return size++;
+    }
+
+
+    private Object[] set(Object[] objs, int idx, Object obj) {
+        if (objs == null) {
+            if (obj == null) {
+                return null;
+            }
+            objs = new Object[classIds.length];
+        }
+        objs[idx] = obj;
+        return objs;
+    }
+
+
+    private Object get(Object[] objs, int idx) {
+        return objs != null ? objs[idx] : null;
+    }
+
+
+    @SuppressWarnings("unchecked") // add() stores only attribute maps in attrs array
+    private Map<Integer, Object> getAttrs(int idx) {
+        return (Map<Integer, Object>) get(attrs, idx);
+    }
+
+
+    private void grow(int capacity) {
+        classIds = Arrays.copyOf(classIds, capacity);
+        methodIds = Arrays.copyOf(methodIds, capacity);
+        signatureIds = Arrays.copyOf(signatureIds, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        children = Arrays.copyOf(children, capacity);
+        times = Arrays.copyOf(times, capacity);
+        calls = Arrays.copyOf(calls, capacity);
+        errors = Arrays.copyOf(errors, capacity);
+        exceptions = exceptions != null ? Arrays.copyOf(exceptions, capacity) : null;
+        attrs = attrs != null ? Arrays.copyOf(attrs, capacity) : null;
+        markers = markers != null ? Arrays.copyOf(markers, capacity) : null;
+    }
+
+
+    /**
+     * Drops all records starting at given position.
+     *
+     * @param newSize new number of records
+     */
+    public void truncate(int newSize) {
+        for (Object[] objs : new Object[][]{exceptions, attrs, markers}) {
+            if (objs != null) {
+                Arrays.fill(objs, newSize, size, null);
+            }
+        }
+        size = newSize;
+    }
+
+
+    /**
+     * Returns copy of a slice of this buffer.
+     *
+     * @param from index of first record
+     * @param to   index after last record
+     * @return new trace buffer
+     */
+    public TraceBuffer copy(int from, int to) {
+        int n = to - from;
+        TraceBuffer buf = new TraceBuffer(symbols, Math.max(n, 1));
+
+        System.arraycopy(classIds, from, buf.classIds, 0, n);
+        System.arraycopy(methodIds, from, buf.methodIds, 0, n);
+        System.arraycopy(signatureIds, from, buf.signatureIds, 0, n);
+        System.arraycopy(flags, from, buf.flags, 0, n);
+        System.arraycopy(children, from, buf.children, 0, n);
+        System.arraycopy(times, from, buf.times, 0, n);
+        System.arraycopy(calls, from, buf.calls, 0, n);
+        System.arraycopy(errors, from, buf.errors, 0, n);
+
+        buf.exceptions = exceptions != null ? Arrays.copyOfRange(exceptions, from, to) : null;
+        buf.attrs = attrs != null ? Arrays.copyOfRange(attrs, from, to) : null;
+        buf.markers = markers != null ? Arrays.copyOfRange(markers, from, to) : null;
+
+        buf.size = n;
+
+        return buf;
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+
+    public int getClassId(int idx) {
+        return classIds[idx];
+    }
+
+
+    public int getFlags(int idx) {
+        return flags[idx];
+    }
+
+
+    public void markFlag(int idx, int flag) {
+        flags[idx] |= flag;
+    }
+
+
+    public long getTime(int idx) {
+        return times[idx];
+    }
+
+
+    public void setCalls(int idx, long ncalls) {
+        calls[idx] = ncalls;
+    }
+
+
+    public void setErrors(int idx, long nerrors) {
+        errors[idx] = nerrors;
+    }
+
+
+    public Object getException(int idx) {
+        return get(exceptions, idx);
+    }
+
+
+    /**
+     * Returns tree of trace records reconstructed from buffer contents. Buffer should contain
+     * exactly one root record (at the end). Exceptions are converted to symbolic form.
+     *
+     * @return root record
+     */
+    public synchronized TraceRecord getRecord() {
+        if (record == null) {
+            TraceRecord[] stack = new TraceRecord[size];
+            int sp = 0;
+
+            for (int i = 0; i < size; i++) {
+                TraceRecord tr = new TraceRecord(null);
+                tr.setClassId(classIds[i]);
+                tr.setMethodId(methodIds[i]);
+                tr.setSignatureId(signatureIds[i]);
+                tr.setFlags(flags[i]);
+                tr.setTime(times[i]);
+                tr.setCalls(calls[i]);
+                tr.setErrors(errors[i]);
+                tr.setException(get(exceptions, i));
+                tr.setAttrs(getAttrs(i));
+                tr.setMarker((TraceMarker) get(markers, i));
+
+                int nc = children[i];
+                for (int j = sp - nc; j < sp; j++) {
+                    tr.addChild(stack[j]);
+                }
+                sp -= nc;
+                stack[sp++] = tr;
+            }
+
+            record = sp > 0 ? stack[sp - 1] : null;
+
+            if (record != null) {
+                inheritMarkers(record, record.getMarker());
+                record.fixup(symbols);
+            }
+        }
+
+        return record;
+    }
+
+
+    private static void inheritMarkers(TraceRecord tr, TraceMarker marker) {
+        if (tr.getMarker() == null) {
+            tr.setMarker(marker);
+        }
+
+        List<TraceRecord> lst = tr.getChildren();
+
+        if (lst != null) {
+            for (int i = 0; i < lst.size(); i++) {
+                inheritMarkers(lst.get(i), tr.getMarker());
+            }
+        }
+    }
+
+
+    @Override
+    public void traverse(MetadataChecker checker) throws IOException {
+        getRecord().traverse(checker);
+    }
+
+
+    @Override
+    public String toString() {
+        return "TraceBuffer(size=" + size + ")";
+    }
+}
@@ -57,6 +57,17 @@ public class TraceMarker implements SymbolicRecord, Serializable {
      */
     public static final int DROP_TRACE = 0x20;
 
+    /**
+     * Partial trace. This flag is set on trace fragments submitted while trace is still executing.
+     * More fragments of the same trace (with the same trace ID and clock) will follow.
+     */
+    public static final int PARTIAL_TRACE = 0x40;
+
+    /**
+     * Continued trace. This flag is set on all trace fragments except the first one.
+     */
+    public static final int CONTINUED_TRACE = 0x80;
+
     /**
      * Trace error mark. This flag is used indicate that this trace ended with error condition (eg. HTTP/500).
      */
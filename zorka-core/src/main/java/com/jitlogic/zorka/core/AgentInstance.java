@@ -18,6 +18,7 @@ package com.jitlogic.zorka.core;
 
 import com.jitlogic.zorka.common.ZorkaService;
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.stats.LatencyHistogram;
 import com.jitlogic.zorka.common.stats.MethodCallStatistics;
 import com.jitlogic.zorka.common.stats.ValGetter;
 import com.jitlogic.zorka.common.util.ZorkaLog;
@@ -31,12 +32,14 @@ import com.jitlogic.zorka.core.mbeans.AttrGetter;
 import com.jitlogic.zorka.common.tracedata.MetricsRegistry;
 import com.jitlogic.zorka.core.perfmon.PerfMonLib;
 import com.jitlogic.zorka.core.spy.*;
+import com.jitlogic.zorka.common.tracedata.PersistentSymbolRegistry;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
 import com.jitlogic.zorka.core.integ.*;
 import com.jitlogic.zorka.core.mbeans.MBeanServerRegistry;
 import com.jitlogic.zorka.core.normproc.NormLib;
 import com.jitlogic.zorka.core.util.DaemonThreadFactory;
 
+import java.io.File;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.*;
@@ -176,6 +179,8 @@ public class AgentInstance implements ZorkaService {
 
         config.initLoggers();
 
+        LatencyHistogram.setDefaultWindow(config.longCfg("zorka.stats.histogram.window", 60000L));
+
         initBshLibs();
 
         zorkaAgent.initialize();
@@ -298,7 +303,14 @@ public class AgentInstance implements ZorkaService {
 
     public synchronized SymbolRegistry getSymbolRegistry() {
         if (symbolRegistry == null) {
-            symbolRegistry = new SymbolRegistry();
+            String cacheDir = getConfig().stringCfg("zorka.spy.cache.dir", "");
+            if (cacheDir.length() > 0) {
+                File dir = new File(cacheDir);
+                dir.mkdirs();
+                symbolRegistry = new PersistentSymbolRegistry(new File(dir, "symbols.dat"));
+            } else {
+                symbolRegistry = new SymbolRegistry();
+            }
         }
         return symbolRegistry;
     }
@@ -336,6 +348,8 @@ public class AgentInstance implements ZorkaService {
     public synchronized Tracer getTracer() {
         if (tracer == null) {
             tracer = new Tracer(getTracerMatcherSet(), getSymbolRegistry());
+            tracer.setLazyInstrumenter(new LazyInstrumenter(tracer, getSymbolRegistry(), getRetransformer()));
+            tracer.setAutoExcluder(new AutoExcluder(tracer, getSymbolRegistry(), getRetransformer()));
             MainSubmitter.setTracer(getTracer());
         }
         return tracer;
@@ -351,6 +365,19 @@ public class AgentInstance implements ZorkaService {
         if (classTransformer == null) {
             classTransformer = new SpyClassTransformer(getSymbolRegistry(), getTracer(),
                 getConfig().boolCfg("zorka.spy.compute.frames", true), stats, getRetransformer());
+            classTransformer.setRejectedPackages(getConfig().listCfg("zorka.spy.reject.packages",
+                "sun.reflect.Generated", "jdk.internal.reflect.Generated",
+                "com.jitlogic.zorka.core.spy.", "com.jitlogic.zorka.common."));
+            classTransformer.setRejectCacheSize(getConfig().intCfg("zorka.spy.reject.cache", 4096));
+            classTransformer.getTypeHierarchy().setMaxTypes(getConfig().intCfg("zorka.spy.hierarchy.size", 16384));
+            if (getSymbolRegistry() instanceof PersistentSymbolRegistry
+                && ((PersistentSymbolRegistry) getSymbolRegistry()).isPersistent()) {
+                classTransformer.setBytecodeCache(new BytecodeCache(
+                    new File(getConfig().stringCfg("zorka.spy.cache.dir", "")),
+                    getConfig().kiloCfg("zorka.spy.cache.size", 64L * 1024 * 1024),
+                    (PersistentSymbolRegistry) getSymbolRegistry(),
+                    getConfig().stringCfg("zorka.version", "unknown")));
+            }
         }
         return classTransformer;
     }
@@ -567,6 +594,10 @@ public class AgentInstance implements ZorkaService {
         if (nagiosAgent != null) {
             nagiosAgent.shutdown();
         }
+
+        if (symbolRegistry instanceof PersistentSymbolRegistry) {
+            ((PersistentSymbolRegistry) symbolRegistry).sync();
+        }
     }
 
 
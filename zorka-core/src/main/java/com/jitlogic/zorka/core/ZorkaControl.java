@@ -87,6 +87,24 @@ public class ZorkaControl implements ZorkaControlMBean {
     }
 
 
+    @Override
+    public String listTracerAutoExcludes() {
+        return instance.getTracerLib().listTracerAutoExcluded();
+    }
+
+
+    @Override
+    public boolean revertTracerAutoExclude(String name) {
+        return instance.getTracerLib().revertTracerAutoExclude(name);
+    }
+
+
+    @Override
+    public int revertTracerAutoExcludes() {
+        return instance.getTracerLib().revertTracerAutoExcludes();
+    }
+
+
     @Override
     public void reload() {
         instance.reload();
@@ -34,6 +34,12 @@ public interface ZorkaControlMBean {
 
     String listTracerIncludes();
 
+    String listTracerAutoExcludes();
+
+    boolean revertTracerAutoExclude(String name);
+
+    int revertTracerAutoExcludes();
+
     void reload();
 
 }
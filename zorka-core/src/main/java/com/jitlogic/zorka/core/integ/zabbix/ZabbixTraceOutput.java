@@ -251,6 +251,8 @@ public class ZabbixTraceOutput extends ZorkaAsyncThread<SymbolicRecord> implemen
 			// TODO Auto-generated method stub
 		} else if (rec instanceof TraceRecord) {
 			list = traceRecordToData(rec, "", 0);
+		} else if (rec instanceof TraceBuffer) {
+			list = traceRecordToData(((TraceBuffer) rec).getRecord(), "", 0);
 		}
 
 		for (ActiveCheckResult result : list){
@@ -161,6 +161,47 @@ public class MBeanServerRegistry {
     }
 
 
+    /**
+     * Returns mbean server attribute registered with getOrRegister() (or null if not registered yet).
+     * Malformed object names are logged only at debug level, as this method is meant to be called
+     * (with dynamically created names) before getOrRegister(), which reports them anyway.
+     *
+     * @param mbsName  mbean server name
+     * @param beanName bean name (object name)
+     * @param attrName attribute name
+     * @return attribute value or null
+     */
+    public Object get(String mbsName, String beanName, String attrName) {
+        MBeanServerConnection mbs = lookup(mbsName);
+
+        if (mbs != null) {
+            try {
+                return mbs.getAttribute(new ObjectName(beanName), attrName);
+            } catch (AttributeNotFoundException e) {
+                return null;
+            } catch (InstanceNotFoundException e) {
+                return null;
+            } catch (MalformedObjectNameException e) {
+                log.debug(ZorkaLogger.ZAG_DEBUG, "Malformed object name: '" + beanName + "'");
+            } catch (MBeanException e) {
+                log.error(ZorkaLogger.ZAG_ERRORS, "Error looking up '" + beanName + "'.'" + attrName + "'", e);
+            } catch (ReflectionException e) {
+                log.error(ZorkaLogger.ZAG_ERRORS, "Error looking up '" + beanName + "'.'" + attrName + "'", e);
+            } catch (IOException e) {
+                log.error(ZorkaLogger.ZAG_ERRORS, "Error looking up '" + beanName + "'.'" + attrName + "'", e);
+            }
+        } else {
+            for (DeferredRegistration dr : deferredRegistrations) {
+                if (dr.name.equals(mbsName) && dr.bean.equals(beanName) && dr.attr.equals(attrName)) {
+                    return dr.obj;
+                }
+            }
+        }
+
+        return null;
+    }
+
+
     /**
      * Registers object as mbean server attribute (or return existing one if already registered)
      *
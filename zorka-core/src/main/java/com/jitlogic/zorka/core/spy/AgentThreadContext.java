@@ -0,0 +1,280 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Holds all per-thread state agent needs on instrumented code paths and in class file transformer.
+ * Instead of looking up several independent thread locals (reentrancy flag, trace builder, submission
+ * stack, classes being transformed), agent fetches this object once and uses its fields directly.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class AgentThreadContext {
+
+    private static final ThreadLocal<AgentThreadContext> contexts =
+            new ThreadLocal<AgentThreadContext>() {
+                @Override
+                public AgentThreadContext initialValue() {
+                    return new AgentThreadContext();
+                }
+            };
+
+
+    /**
+     * Returns agent context of current thread.
+     */
+    public static AgentThreadContext get() {
+        return contexts.get();
+    }
+
+
+    private static final AtomicReferenceFieldUpdater<AgentThreadContext, MethodCallCounter> CALL_COUNTER =
+            AtomicReferenceFieldUpdater.newUpdater(AgentThreadContext.class, MethodCallCounter.class, "callCounter");
+
+    private static final AtomicIntegerFieldUpdater<AgentThreadContext> COUNTED_CALLS =
+            AtomicIntegerFieldUpdater.newUpdater(AgentThreadContext.class, "countedCalls");
+
+
+    /**
+     * Thread owning this context.
+     */
+    private final Thread thread = Thread.currentThread();
+
+    /**
+     * Set when current thread is processing spy submission. Both submitter and tracer skip
+     * events coming from code called by agent itself.
+     */
+    private boolean inSubmit;
+
+    /**
+     * Tracer trace builder has been obtained from.
+     */
+    private Tracer tracer;
+
+    /**
+     * Trace builder of current thread.
+     */
+    private TraceBuilder traceBuilder;
+
+    /**
+     * Submitter owning submission stack.
+     */
+    private Object stackOwner;
+
+    /**
+     * Submission stack associates results from method entry probes with results from return/error probes.
+     * As it is accessed only by owning thread, it is a plain array (not synchronized java.util.Stack).
+     */
+    private SpyRecord[] records = new SpyRecord[16];
+
+    /**
+     * Number of records on submission stack.
+     */
+    private int nrecords;
+
+    /**
+     * Names of classes currently transformed by this thread (used to avoid recursive transforms).
+     */
+    private Set<String> currentTransforms;
+
+    /**
+     * Calls registered by lazy instrumentation stubs. Only owner thread registers calls in it, collector
+     * takes it away by swapping reference (owner then starts a new one), so neither side takes locks.
+     */
+    private volatile MethodCallCounter callCounter;
+
+    /**
+     * Collector call counter is registered with (see LazyInstrumenter).
+     */
+    private volatile Object callCounterOwner;
+
+    /**
+     * Number of calls registered by owner thread. It is updated with ordered writes after each call,
+     * so collector reading it sees contents of call counter without owner thread issuing memory fences.
+     */
+    private volatile int countedCalls;
+
+
+    public Thread getThread() {
+        return thread;
+    }
+
+
+    public boolean isInSubmit() {
+        return inSubmit;
+    }
+
+
+    public void setInSubmit(boolean inSubmit) {
+        this.inSubmit = inSubmit;
+    }
+
+
+    /**
+     * Returns trace builder of current thread. Builder is created by tracer when first requested
+     * (or when another tracer instance is requesting it).
+     *
+     * @param tracer tracer owning trace builder
+     * @return trace builder
+     */
+    public TraceBuilder getTraceBuilder(Tracer tracer) {
+        if (this.tracer != tracer) {
+            this.traceBuilder = tracer.newHandler();
+            this.tracer = tracer;
+        }
+        return traceBuilder;
+    }
+
+
+    /**
+     * Pushes record on submission stack. Stack is reset when accessed by another submitter
+     * instance, so records are never passed between submitters.
+     *
+     * @param owner submitter using submission stack
+     * @param record spy record
+     */
+    public void pushRecord(Object owner, SpyRecord record) {
+        checkOwner(owner);
+
+        if (nrecords == records.length) {
+            records = Arrays.copyOf(records, records.length * 2);
+        }
+
+        records[nrecords++] = record;
+    }
+
+
+    /**
+     * Pops record from submission stack.
+     *
+     * @param owner submitter using submission stack
+     * @return spy record or null if stack is empty
+     */
+    public SpyRecord popRecord(Object owner) {
+        checkOwner(owner);
+
+        if (nrecords == 0) {
+            return null;
+        }
+
+        SpyRecord record = records[--nrecords];
+        records[nrecords] = null;
+        return record;
+    }
+
+
+    /**
+     * Returns number of records on submission stack.
+     */
+    public int getStackDepth() {
+        return nrecords;
+    }
+
+
+    private void checkOwner(Object owner) {
+        if (stackOwner != owner) {
+            Arrays.fill(records, 0, nrecords, null);
+            nrecords = 0;
+            stackOwner = owner;
+        }
+    }
+
+
+    /**
+     * Marks class as being transformed by current thread.
+     *
+     * @param className class name
+     * @return true if class was not being transformed, false if this is recursive transform attempt
+     */
+    public boolean beginTransform(String className) {
+        if (currentTransforms == null) {
+            currentTransforms = new HashSet<String>();
+        }
+        return currentTransforms.add(className);
+    }
+
+
+    /**
+     * Clears transform mark set by beginTransform().
+     *
+     * @param className class name
+     */
+    public void endTransform(String className) {
+        currentTransforms.remove(className);
+    }
+
+
+    /**
+     * Registers method call in call counter. Called only by owner thread.
+     *
+     * @param owner collector call counter is registered with
+     * @param classId class ID
+     * @param methodId method ID
+     * @param signatureId signature ID
+     * @return true if context has not been registered with this collector yet
+     */
+    public boolean countCall(Object owner, int classId, int methodId, int signatureId) {
+        MethodCallCounter mcc = callCounter;
+        boolean registered = callCounterOwner == owner;
+
+        if (mcc == null || !registered) {
+            // Collector only swaps counter out, so publishing new one here cannot lose any calls
+            mcc = new MethodCallCounter();
+            callCounterOwner = owner;
+            callCounter = mcc;
+        }
+
+        mcc.logCall(classId, methodId, signatureId, 0L);
+        COUNTED_CALLS.lazySet(this, countedCalls + 1);
+
+        return !registered;
+    }
+
+
+    /**
+     * Takes away call counter. Owner thread will start new counter on next call. Call registered
+     * by owner thread at the same moment might be missed.
+     *
+     * @param owner collector taking call counter
+     * @return call counter or null if there were no calls (or context has been registered with other collector)
+     */
+    public MethodCallCounter takeCallCounter(Object owner) {
+        if (callCounterOwner != owner) {
+            return null;
+        }
+
+        MethodCallCounter mcc = CALL_COUNTER.getAndSet(this, null);
+
+        // Reading call count after taking counter makes calls registered in it visible to collector
+        return countedCalls > 0 ? mcc : null;
+    }
+
+
+    /**
+     * Returns true if this context has been registered with given collector.
+     */
+    public boolean isCallCounterOwner(Object owner) {
+        return callCounterOwner == owner;
+    }
+
+}
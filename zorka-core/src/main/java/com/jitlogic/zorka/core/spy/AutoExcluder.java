@@ -0,0 +1,246 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import com.jitlogic.zorka.common.tracedata.MethodCallCounterRecord;
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.util.ZorkaLog;
+import com.jitlogic.zorka.common.util.ZorkaLogger;
+import com.jitlogic.zorka.core.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implements adaptive de-instrumentation of hot, trivial methods. Trace builders count method calls
+ * that were dropped from traces (too short, no errors) and calls that were kept. Counters are periodically
+ * collected and methods that were dropped often enough and never kept are automatically excluded from
+ * tracer: exclusion matchers are added to tracer matcher set and their classes are retransformed.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class AutoExcluder implements Runnable {
+
+    private static final ZorkaLog log = ZorkaLogger.getLog(AutoExcluder.class);
+
+    /**
+     * Priority of automatically created exclusion matchers (so they take precedence over includes).
+     */
+    public static final int EXCLUDE_PRIORITY = 10;
+
+    private Tracer tracer;
+
+    private SymbolRegistry symbolRegistry;
+
+    private SpyRetransformer retransformer;
+
+    /**
+     * Minimum number of dropped calls (in one collection interval) required to exclude method.
+     */
+    private volatile long minDrops = 10000;
+
+    /**
+     * Counters (dropped calls, kept calls) handed over by trace builders.
+     */
+    private ConcurrentLinkedQueue<MethodCallCounter[]> collected = new ConcurrentLinkedQueue<MethodCallCounter[]>();
+
+    /**
+     * Automatically excluded methods (className.methodName) and matchers excluding them.
+     */
+    private Map<String, SpyMatcher> excluded = new TreeMap<String, SpyMatcher>();
+
+    private ScheduledExecutorService scheduler;
+
+
+    public AutoExcluder(Tracer tracer, SymbolRegistry symbolRegistry, SpyRetransformer retransformer) {
+        this.tracer = tracer;
+        this.symbolRegistry = symbolRegistry;
+        this.retransformer = retransformer;
+    }
+
+
+    /**
+     * Enables automatic exclusion. Trace builders will start counting dropped method calls.
+     *
+     * @param minDrops minimum number of dropped calls in one interval required to exclude method
+     * @param interval collection interval (milliseconds)
+     */
+    public synchronized void start(long minDrops, long interval) {
+        this.minDrops = minDrops;
+
+        if (scheduler == null && interval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("ZORKA-auto-excluder"));
+            scheduler.scheduleAtFixedRate(this, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        Tracer.setActiveAutoExcluder(this);
+    }
+
+
+    /**
+     * Receives counters from trace builders. Counters passed here must not be used by caller anymore.
+     *
+     * @param dropped calls dropped from traces
+     * @param kept    calls kept in traces (excluding calls kept only due to ALL_METHODS flag)
+     */
+    public void collect(MethodCallCounter dropped, MethodCallCounter kept) {
+        collected.add(new MethodCallCounter[]{dropped, kept});
+    }
+
+
+    @Override
+    public void run() {
+        try {
+            exclude();
+        } catch (Throwable e) {
+            log.error(ZorkaLogger.ZTR_ERRORS, "Error excluding trivial methods.", e);
+        }
+    }
+
+
+    /**
+     * Sums up collected counters and excludes methods that were dropped often enough (and never kept) since last call.
+     *
+     * @return number of excluded methods
+     */
+    public synchronized int exclude() {
+        MethodCallCounter dropped = new MethodCallCounter(), kept = new MethodCallCounter();
+
+        for (MethodCallCounter[] mcc = collected.poll(); mcc != null; mcc = collected.poll()) {
+            dropped.sum(mcc[0]);
+            kept.sum(mcc[1]);
+        }
+
+        List<SpyMatcher> excludes = new ArrayList<SpyMatcher>();
+        List<SpyMatcher> classes = new ArrayList<SpyMatcher>();
+
+        for (MethodCallCounterRecord r : dropped.getRecords()) {
+            if (r.getnCalls() < minDrops || kept.get(r.getClassId(), r.getMethodId(), r.getSignatureId()) > 0) {
+                continue;
+            }
+
+            String className = symbolRegistry.symbolName(r.getClassId());
+            String methodName = symbolRegistry.symbolName(r.getMethodId());
+            String name = className + "." + methodName;
+
+            if (excluded.containsKey(name)) {
+                continue;
+            }
+
+            SpyMatcher sm = methodMatcher(className, methodName);
+
+            excluded.put(name, sm.exclude().priority(EXCLUDE_PRIORITY));
+            excludes.add(excluded.get(name));
+            classes.add(sm);
+
+            log.info(ZorkaLogger.ZTR_CONFIG, "Automatically excluding " + name
+                    + " (" + r.getnCalls() + " dropped calls)");
+        }
+
+        if (excludes.size() > 0) {
+            tracer.setMatcherSet(tracer.getMatcherSet().include(excludes.toArray(new SpyMatcher[excludes.size()])));
+            retransform(classes);
+        }
+
+        return excludes.size();
+    }
+
+
+    /**
+     * Reverts automatic exclusion of a method.
+     *
+     * @param name method name (className.methodName)
+     * @return true if method was excluded
+     */
+    public synchronized boolean revert(String name) {
+        SpyMatcher sm = excluded.remove(name);
+
+        if (sm != null) {
+            revert(Collections.singletonMap(name, sm));
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Reverts all automatic exclusions.
+     *
+     * @return number of reverted exclusions
+     */
+    public synchronized int revertAll() {
+        Map<String, SpyMatcher> excludes = new TreeMap<String, SpyMatcher>(excluded);
+        excluded.clear();
+        revert(excludes);
+        return excludes.size();
+    }
+
+
+    private void revert(Map<String, SpyMatcher> excludes) {
+        if (excludes.size() == 0) {
+            return;
+        }
+
+        List<SpyMatcher> matchers = new ArrayList<SpyMatcher>();
+        List<SpyMatcher> classes = new ArrayList<SpyMatcher>();
+
+        for (SpyMatcher sm : tracer.getMatcherSet().getMatchers()) {
+            if (!excludes.containsValue(sm)) {
+                matchers.add(sm);
+            }
+        }
+
+        for (String name : excludes.keySet()) {
+            log.info(ZorkaLogger.ZTR_CONFIG, "Reverting automatic exclusion of " + name);
+            int ix = name.lastIndexOf('.');
+            classes.add(methodMatcher(name.substring(0, ix), name.substring(ix + 1)));
+        }
+
+        tracer.setMatcherSet(new SpyMatcherSet(matchers.toArray(new SpyMatcher[matchers.size()])));
+        retransform(classes);
+    }
+
+
+    private static SpyMatcher methodMatcher(String className, String methodName) {
+        return new SpyMatcher(SpyMatcher.BY_CLASS_NAME | SpyMatcher.BY_METHOD_NAME, 0, className, methodName, null);
+    }
+
+
+    private void retransform(List<SpyMatcher> classes) {
+        if (retransformer.isEnabled()) {
+            retransformer.retransform(null, new SpyMatcherSet(classes.toArray(new SpyMatcher[classes.size()])), true);
+        }
+    }
+
+
+    /**
+     * Returns names of automatically excluded methods (in form className.methodName).
+     */
+    public synchronized List<String> getExcludedMethods() {
+        return new ArrayList<String>(excluded.keySet());
+    }
+
+}
@@ -0,0 +1,453 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+import com.jitlogic.zorka.common.ZorkaSubmitter;
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
+import com.jitlogic.zorka.common.tracedata.TraceBuffer;
+import com.jitlogic.zorka.common.tracedata.TraceMarker;
+import com.jitlogic.zorka.common.tracedata.TraceRecord;
+import com.jitlogic.zorka.common.util.ZorkaLog;
+import com.jitlogic.zorka.common.util.ZorkaLogger;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Trace builder that does not create trace record objects. Open method frames are kept in
+ * primitive arrays (indexed by stack depth) and completed methods that are to be kept in
+ * a trace are appended to trace buffer. When trace is submitted, its slice of trace buffer
+ * is copied and passed to outputs, that reconstruct trace record tree on their own threads.
+ * Dropped traces (and methods shorter than minimum method time) are discarded simply by
+ * truncating trace buffer.
+ *
+ * Filtering rules, trace call logging and automatic exclusion work the same way as in TraceBuilder.
+ * As no trace record objects are created, record pool is not used. Streaming of long traces is not
+ * supported, so tracer uses TraceBuilder when streaming is enabled (see Tracer.newHandler()).
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class BufferedTraceBuilder extends TraceBuilder {
+
+    private final static ZorkaLog log = ZorkaLogger.getLog(BufferedTraceBuilder.class);
+
+    /**
+     * Number of open method frames.
+     */
+    private int depth;
+
+    /**
+     * Number of open method frames inside traces.
+     */
+    private int tdepth;
+
+    private int[] classIds, methodIds, signatureIds, flags;
+
+    /**
+     * Position in trace buffer where records of method called from given frame start.
+     */
+    private int[] starts;
+
+    /**
+     * Number of records of methods called from given frame that have been kept in trace buffer.
+     */
+    private int[] children;
+
+    private long[] times, calls, errors;
+
+    private Object[] exceptions;
+
+    private Object[] attrs;
+
+    /**
+     * Trace markers (null for frames outside of traces).
+     */
+    private TraceMarker[] markers;
+
+    /**
+     * Records of completed methods that are kept in currently recorded trace.
+     */
+    private TraceBuffer buffer;
+
+
+    public BufferedTraceBuilder(ZorkaSubmitter<SymbolicRecord> output, SymbolRegistry symbols) {
+        super(output, symbols);
+        buffer = new TraceBuffer(symbols, 256);
+        resize(64);
+    }
+
+
+    private void resize(int size) {
+        classIds = ensure(classIds, size);
+        methodIds = ensure(methodIds, size);
+        signatureIds = ensure(signatureIds, size);
+        flags = ensure(flags, size);
+        starts = ensure(starts, size);
+        children = ensure(children, size);
+        times = ensure(times, size);
+        calls = ensure(calls, size);
+        errors = ensure(errors, size);
+        exceptions = exceptions != null ? Arrays.copyOf(exceptions, size) : new Object[size];
+        attrs = attrs != null ? Arrays.copyOf(attrs, size) : new Object[size];
+        markers = markers != null ? Arrays.copyOf(markers, size) : new TraceMarker[size];
+    }
+
+
+    @SuppressWarnings("unchecked") // newAttr() stores only attribute maps in attrs array
+    private Map<Integer, Object> attrs(int f) {
+        return (Map<Integer, Object>) attrs[f];
+    }
+
+
+    private static int[] ensure(int[] a, int size) {
+        return a != null ? Arrays.copyOf(a, size) : new int[size];
+    }
+
+
+    private static long[] ensure(long[] a, int size) {
+        return a != null ? Arrays.copyOf(a, size) : new long[size];
+    }
+
+
+    @Override
+    public void traceBegin(int traceId, long clock, int flags) {
+
+        if (depth == 0) {
+            log.error(ZorkaLogger.ZTR_TRACE_ERRORS, "Attempt to set trace marker on an non-traced method.");
+            return;
+        }
+
+        int f = depth - 1;
+
+        if (0 != (this.flags[f] & TraceRecord.TRACE_BEGIN)) {
+            log.error(ZorkaLogger.ZTR_TRACE_ERRORS, "Trace marker already set on current frame. Skipping.");
+            return;
+        }
+
+        TraceMarker parent = markers[f];
+        TraceMarker marker = new TraceMarker(traceId, clock);
+
+        if (parent != null) {
+            marker.setMinimumTime(parent.getMinimumTime());
+            marker.setFlags(parent.getFlags());
+        } else {
+            marker.setMinimumTime(TraceMarker.getMinTraceTime());
+            tdepth++;
+        }
+
+        marker.markFlags(flags);
+        markers[f] = marker;
+        this.flags[f] |= TraceRecord.TRACE_BEGIN;
+    }
+
+
+    @Override
+    public void traceEnter(int classId, int methodId, int signatureId, long tstamp) {
+
+        if (disabled) {
+            return;
+        }
+
+        if (depth == classIds.length) {
+            resize(depth * 2);
+        }
+
+        int f = depth++;
+
+        if (ZorkaLogger.isLogMask(ZorkaLogger.ZTR_TRACER_DBG) && isTraceCalls(f > 0 ? markers[f - 1] : null,
+                ZorkaLogger.ZTR_TRACE_CALLS)) {
+            log.trace(ZorkaLogger.ZTR_TRACER_DBG, "traceEnter("
+                    + symbols.symbolName(classId) + "." + symbols.symbolName(methodId) + ")");
+        }
+
+        classIds[f] = classId;
+        methodIds[f] = methodId;
+        signatureIds[f] = signatureId;
+        times[f] = tstamp;
+        calls[f] = 1;
+        errors[f] = 0;
+        flags[f] = 0;
+        starts[f] = buffer.size();
+        children[f] = 0;
+        exceptions[f] = null;
+        attrs[f] = null;
+
+        TraceMarker marker = f > 0 ? markers[f - 1] : null;
+        markers[f] = marker;
+
+        if (marker != null) {
+            tdepth++;
+            if (buffer.size() + tdepth > Tracer.getMaxTraceRecords()) {
+                flags[f] |= TraceRecord.OVERFLOW_FLAG;
+            }
+        }
+    }
+
+
+    @Override
+    public boolean traceLeave() {
+
+        if (disabled || depth == 0) {
+            return true;
+        }
+
+        if (markers[depth - 1] != null) {
+            return false;
+        }
+
+        depth--;
+
+        return true;
+    }
+
+
+    @Override
+    public void traceReturn(long tstamp) {
+
+        if (disabled || depth == 0) {
+            return;
+        }
+
+        int f = depth - 1;
+
+        if (ZorkaLogger.isLogMask(ZorkaLogger.ZTR_TRACER_DBG) && isTraceCalls(markers[f], ZorkaLogger.ZTR_TRACE_CALLS)) {
+            log.trace(ZorkaLogger.ZTR_TRACER_DBG, "traceReturn("
+                    + symbols.symbolName(classIds[f]) + "." + symbols.symbolName(methodIds[f]) + ")");
+        }
+
+        pop(tstamp);
+    }
+
+
+    @Override
+    public void traceError(Object exception, long tstamp) {
+
+        if (disabled || depth == 0) {
+            return;
+        }
+
+        int f = depth - 1;
+
+        if (ZorkaLogger.isLogMask(ZorkaLogger.ZTR_TRACER_DBG) && isTraceCalls(markers[f], ZorkaLogger.ZTR_TRACE_EXCEPTIONS)) {
+            log.trace(ZorkaLogger.ZTR_TRACER_DBG, "traceError(" + symbols.symbolName(classIds[f]) +
+                    "." + symbols.symbolName(methodIds[f]) + ")", (Throwable) exception);
+        }
+
+        exceptions[f] = exception;
+        errors[f]++;
+
+        pop(tstamp);
+    }
+
+
+    /**
+     * Returns true if call should be logged (globally enabled with given log flag or enabled for current trace).
+     */
+    private static boolean isTraceCalls(TraceMarker marker, long logFlag) {
+        return ZorkaLogger.isLogMask(logFlag) || (marker != null && marker.hasFlag(TraceMarker.TRACE_CALLS));
+    }
+
+
+    /**
+     * Closes method frame at the top of stack. Determines if method record should be kept,
+     * submits trace if trace beginning frame has been closed.
+     *
+     * @param tstamp method exit time
+     */
+    private void pop(long tstamp) {
+
+        int f = --depth;
+
+        TraceMarker marker = markers[f];
+
+        if (marker == null) {
+            return;
+        }
+
+        tdepth--;
+
+        long time = tstamp - times[f];
+        int flag = flags[f];
+        Object exception = exceptions[f];
+        int start = starts[f];
+
+        // Get rid of redundant exception object
+        if (exception != null && children[f] > 0) {
+            Object cex = buffer.getException(buffer.size() - 1);
+            if (cex == exception) {
+                exception = null;
+                flag |= TraceRecord.EXCEPTION_PASS;
+            } else if (cex == ((Throwable) exception).getCause()) {
+                flag |= TraceRecord.EXCEPTION_WRAP;
+            }
+        }
+
+        boolean begin = 0 != (flag & TraceRecord.TRACE_BEGIN);
+
+        int idx = buffer.add(classIds[f], methodIds[f], signatureIds[f], flag, time, calls[f], errors[f],
+                children[f], exception, attrs(f), begin ? marker : null);
+
+        TraceMarker parent = f > 0 ? markers[f - 1] : null;
+
+        if (begin) {
+            int mflags = marker.getFlags();
+            if ((time >= marker.getMinimumTime() && 0 == (mflags & TraceMarker.DROP_TRACE))
+                    || 0 != (mflags & TraceMarker.SUBMIT_TRACE)) {
+                if (exception != null || 0 != (flag & TraceRecord.EXCEPTION_PASS)) {
+                    marker.markFlags(TraceMarker.ERROR_MARK);
+                }
+                output.submit(buffer.copy(start, idx + 1));
+                AgentDiagnostics.inc(AgentDiagnostics.TRACES_SUBMITTED);
+            } else {
+                AgentDiagnostics.inc(AgentDiagnostics.TRACES_DROPPED);
+            }
+
+            if (parent != null) {
+                parent.inheritFlags(marker.getFlags());
+            }
+        }
+
+        boolean keep = false;
+
+        if (parent != null) {
+            AutoExcluder excluder = Tracer.getActiveAutoExcluder();
+            if (excluder != null && !marker.hasFlag(TraceMarker.ALL_METHODS)) {
+                countCall(excluder, classIds[f], methodIds[f], signatureIds[f],
+                        time > Tracer.getMinMethodTime() || errors[f] > 0);
+            }
+
+            if (time > Tracer.getMinMethodTime() || errors[f] > 0 || marker.hasFlag(TraceMarker.ALL_METHODS)) {
+                if (0 == (flag & TraceRecord.OVERFLOW_FLAG)) {
+                    if (marker.hasFlag(TraceMarker.DROP_INTERIM) && !begin && exception == null
+                            && attrs[f] == null && children[f] == 1
+                            && time - buffer.getTime(idx - 1) < Tracer.getMinMethodTime()) {
+                        // Drop interim record, its only child takes its place
+                        buffer.truncate(idx);
+                        buffer.setCalls(idx - 1, calls[f]);
+                        buffer.setErrors(idx - 1, errors[f]);
+                        buffer.markFlag(idx - 1, TraceRecord.DROPPED_PARENT);
+                    }
+                    children[f - 1]++;
+                    keep = true;
+                } else {
+                    parent.markFlags(TraceMarker.OVERFLOW_FLAG);
+                }
+            }
+            calls[f - 1] += calls[f];
+            errors[f - 1] += errors[f];
+        }
+
+        if (!keep) {
+            buffer.truncate(start);
+        }
+
+        exceptions[f] = null;
+        attrs[f] = null;
+        markers[f] = null;
+    }
+
+
+    @Override
+    public TraceRecord realTop() {
+        TraceRecord tr = new TraceRecord(null);
+        if (depth > 0) {
+            int f = depth - 1;
+            tr.setClassId(classIds[f]);
+            tr.setMethodId(methodIds[f]);
+            tr.setSignatureId(signatureIds[f]);
+            tr.setFlags(flags[f]);
+            tr.setMarker(markers[f]);
+            tr.setAttrs(attrs(f));
+        }
+        return tr;
+    }
+
+
+    @Override
+    public Object getAttr(int attrId) {
+        return depth > 0 && attrs[depth - 1] != null ? attrs(depth - 1).get(attrId) : null;
+    }
+
+
+    /**
+     * Finds frame matching trace ID (see getAttr() and newAttr() methods).
+     */
+    private int findFrame(int traceId) {
+        for (int f = depth - 1; f >= 0; f--) {
+            if (traceId == -1 || (0 != (flags[f] & TraceRecord.TRACE_BEGIN) &&
+                    (traceId == 0 || markers[f].getTraceId() == traceId))) {
+                return f;
+            }
+        }
+        return -1;
+    }
+
+
+    @Override
+    public Object getAttr(int traceId, int attrId) {
+        int f = findFrame(traceId);
+        return f >= 0 && attrs[f] != null ? attrs(f).get(attrId) : null;
+    }
+
+
+    @Override
+    public void newAttr(int traceId, int attrId, Object attrVal) {
+        int f = findFrame(traceId);
+        if (f >= 0) {
+            if (attrs[f] == null) {
+                attrs[f] = new LinkedHashMap<Integer, Object>();
+            }
+            attrs(f).put(attrId, attrVal);
+        }
+    }
+
+
+    @Override
+    public void setMinimumTraceTime(long minimumTraceTime) {
+        if (depth > 0 && markers[depth - 1] != null) {
+            markers[depth - 1].setMinimumTime(minimumTraceTime);
+        }
+    }
+
+
+    @Override
+    public void markTraceFlags(int traceId, int flag) {
+        for (int f = depth - 1; f >= 0; f--) {
+            TraceMarker tm = markers[f];
+            if (tm != null && (traceId == 0 || traceId == tm.getTraceId())) {
+                tm.markFlags(flag);
+                break;
+            }
+        }
+    }
+
+
+    @Override
+    public boolean isInTrace(int traceId) {
+        for (int f = depth - 1; f >= 0; f--) {
+            TraceMarker tm = markers[f];
+            if (tm != null && tm.getTraceId() == traceId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,364 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+import com.jitlogic.zorka.common.tracedata.PersistentSymbolRegistry;
+import com.jitlogic.zorka.common.util.ZorkaLog;
+import com.jitlogic.zorka.common.util.ZorkaLogger;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of instrumented bytecode. Entries are keyed by class name, checksum of original
+ * bytecode and fingerprint of instrumentation configuration. Each entry also contains symbol
+ * registry epoch and agent version, so entries created with different symbol IDs or by other
+ * agent version are never used. Total size of cached entries is limited, least recently used
+ * entries are removed when limit is exceeded.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class BytecodeCache {
+
+    private static final ZorkaLog log = ZorkaLogger.getLog(BytecodeCache.class);
+
+    private static final int MAGIC = 0x5a424332;
+
+    private static final String SUFFIX = ".zbc";
+
+    /**
+     * Entries with longer file names will not be cached.
+     */
+    private static final int MAX_NAME_LENGTH = 200;
+
+    private File dir;
+
+    private long maxSize;
+
+    private String epoch;
+
+    private String version;
+
+    /**
+     * Symbol registry IDs in cached bytecode refer to (or null if not tracked).
+     */
+    private PersistentSymbolRegistry symbols;
+
+    /**
+     * Cache entries (file name -> file size) in access order.
+     */
+    private Map<String, Long> entries = new LinkedHashMap<String, Long>(256, 0.75f, true);
+
+    private long totalSize;
+
+
+    /**
+     * Creates bytecode cache.
+     *
+     * @param dir     cache directory (will be created if it does not exist)
+     * @param maxSize maximum total size of cached entries (in bytes)
+     * @param epoch   symbol registry epoch (see PersistentSymbolRegistry)
+     * @param version agent version
+     */
+    public BytecodeCache(File dir, long maxSize, String epoch, String version) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.epoch = epoch;
+        this.version = version;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            log.error(ZorkaLogger.ZAG_ERRORS, "Cannot create bytecode cache directory: " + dir);
+        }
+
+        scan();
+    }
+
+
+    /**
+     * Creates bytecode cache for symbols from given registry. Buffered symbols are saved before
+     * each entry is stored, and no entries are stored after registry stops being persistent.
+     *
+     * @param dir     cache directory (will be created if it does not exist)
+     * @param maxSize maximum total size of cached entries (in bytes)
+     * @param symbols symbol registry
+     * @param version agent version
+     */
+    public BytecodeCache(File dir, long maxSize, PersistentSymbolRegistry symbols, String version) {
+        this(dir, maxSize, symbols.getEpoch(), version);
+        this.symbols = symbols;
+    }
+
+
+    /**
+     * Builds LRU index from cache directory contents (using file modification times).
+     */
+    private void scan() {
+        File[] files = dir.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long l1 = f1.lastModified(), l2 = f2.lastModified();
+                return l1 < l2 ? -1 : (l1 > l2 ? 1 : 0);
+            }
+        });
+
+        synchronized (this) {
+            for (File f : files) {
+                if (f.isFile() && f.getName().endsWith(SUFFIX)) {
+                    entries.put(f.getName(), f.length());
+                    totalSize += f.length();
+                }
+            }
+            evict();
+        }
+    }
+
+
+    /**
+     * Cached instrumented bytecode along with number of methods instrumented in it.
+     */
+    public static class Entry {
+
+        private final byte[] bytecode;
+
+        private final int methods;
+
+
+        public Entry(byte[] bytecode, int methods) {
+            this.bytecode = bytecode;
+            this.methods = methods;
+        }
+
+
+        public byte[] getBytecode() {
+            return bytecode;
+        }
+
+
+        public int getMethods() {
+            return methods;
+        }
+    }
+
+
+    /**
+     * Returns cached instrumented bytecode.
+     *
+     * @param className   class name
+     * @param orig        original bytecode
+     * @param fingerprint instrumentation configuration fingerprint
+     * @return instrumented bytecode or null if not found in cache
+     */
+    public byte[] get(String className, byte[] orig, long fingerprint) {
+        Entry entry = lookup(className, orig, fingerprint);
+        return entry != null ? entry.getBytecode() : null;
+    }
+
+
+    /**
+     * Returns cache entry with instrumented bytecode.
+     *
+     * @param className   class name
+     * @param orig        original bytecode
+     * @param fingerprint instrumentation configuration fingerprint
+     * @return cache entry or null if not found in cache
+     */
+    public Entry lookup(String className, byte[] orig, long fingerprint) {
+        long crc = crc(orig);
+        String name = entryName(className, crc, fingerprint);
+
+        if (name == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            if (entries.get(name) == null) {
+                return null;
+            }
+        }
+
+        DataInputStream is = null;
+
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, name))));
+
+            if (is.readInt() != MAGIC || !epoch.equals(is.readUTF()) || !version.equals(is.readUTF())
+                || is.readInt() != orig.length || is.readLong() != crc) {
+                invalidate(name);
+                return null;
+            }
+
+            int methods = is.readInt();
+            byte[] buf = new byte[is.readInt()];
+            is.readFully(buf);
+
+            return new Entry(buf, methods);
+        } catch (IOException e) {
+            log.error(ZorkaLogger.ZAG_ERRORS, "Cannot read cached bytecode of " + className, e);
+            invalidate(name);
+            return null;
+        } finally {
+            close(is);
+        }
+    }
+
+
+    /**
+     * Stores instrumented bytecode in cache.
+     *
+     * @param className   class name
+     * @param orig        original bytecode
+     * @param fingerprint instrumentation configuration fingerprint
+     * @param buf         instrumented bytecode
+     */
+    public void put(String className, byte[] orig, long fingerprint, byte[] buf) {
+        put(className, orig, fingerprint, buf, 0);
+    }
+
+
+    /**
+     * Stores instrumented bytecode in cache.
+     *
+     * @param className   class name
+     * @param orig        original bytecode
+     * @param fingerprint instrumentation configuration fingerprint
+     * @param buf         instrumented bytecode
+     * @param methods     number of instrumented methods (reported in agent diagnostics when entry is used)
+     */
+    public void put(String className, byte[] orig, long fingerprint, byte[] buf, int methods) {
+        long crc = crc(orig);
+        String name = entryName(className, crc, fingerprint);
+
+        if (name == null) {
+            return;
+        }
+
+        if (symbols != null && !symbols.sync()) {
+            // Entry might refer to symbols that will not be known after restart
+            return;
+        }
+
+        File tmp = new File(dir, name + ".tmp" + Thread.currentThread().getId());
+        DataOutputStream os = null;
+
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            os.writeInt(MAGIC);
+            os.writeUTF(epoch);
+            os.writeUTF(version);
+            os.writeInt(orig.length);
+            os.writeLong(crc);
+            os.writeInt(methods);
+            os.writeInt(buf.length);
+            os.write(buf);
+            os.close();
+            os = null;
+
+            File f = new File(dir, name);
+
+            synchronized (this) {
+                if (f.exists() && !f.delete()) {
+                    tmp.delete();
+                    return;
+                }
+
+                if (tmp.renameTo(f)) {
+                    Long l = entries.put(name, f.length());
+                    totalSize += f.length() - (l != null ? l : 0);
+                    evict();
+                } else {
+                    tmp.delete();
+                }
+            }
+        } catch (IOException e) {
+            log.error(ZorkaLogger.ZAG_ERRORS, "Cannot write cached bytecode of " + className, e);
+            close(os);
+            tmp.delete();
+        }
+    }
+
+
+    /**
+     * Returns total size of cached entries.
+     */
+    public synchronized long size() {
+        return totalSize;
+    }
+
+
+    /**
+     * Returns number of cached entries.
+     */
+    public synchronized int count() {
+        return entries.size();
+    }
+
+
+    private synchronized void invalidate(String name) {
+        Long l = entries.remove(name);
+        if (l != null) {
+            totalSize -= l;
+            new File(dir, name).delete();
+        }
+    }
+
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iter = entries.entrySet().iterator();
+        while (totalSize > maxSize && iter.hasNext()) {
+            Map.Entry<String, Long> e = iter.next();
+            new File(dir, e.getKey()).delete();
+            totalSize -= e.getValue();
+            iter.remove();
+        }
+    }
+
+
+    private static String entryName(String className, long crc, long fingerprint) {
+        String name = className + "." + Long.toHexString(crc) + "." + Long.toHexString(fingerprint) + SUFFIX;
+        return name.length() <= MAX_NAME_LENGTH ? name : null;
+    }
+
+
+    private static long crc(byte[] buf) {
+        CRC32 crc = new CRC32();
+        crc.update(buf);
+        return crc.getValue();
+    }
+
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                log.error(ZorkaLogger.ZAG_ERRORS, "Cannot close bytecode cache file.", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Basic class metadata extracted directly from class file: class name, super class name,
+ * directly implemented interfaces and all type descriptors found in constant pool (which
+ * include descriptors of all class, method and field annotations). Scanning class file this
+ * way is much cheaper than full ASM class reader/writer pass, so it is used to check classes
+ * matched only by annotation or interface matchers before actually transforming them.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class ClassHeader {
+
+    private int access;
+
+    private String className;
+
+    private String superName;
+
+    private List<String> interfaces;
+
+    private List<String> descriptors;
+
+
+    private ClassHeader(int access, String className, String superName, List<String> interfaces,
+                        List<String> descriptors) {
+        this.access = access;
+        this.className = className;
+        this.superName = superName;
+        this.interfaces = interfaces;
+        this.descriptors = descriptors;
+    }
+
+
+    /**
+     * Returns class access flags (as defined in class file)
+     */
+    public int getAccess() {
+        return access;
+    }
+
+
+    /**
+     * Returns true if scanned class file defines an interface.
+     */
+    public boolean isInterface() {
+        return 0 != (access & Opcodes.ACC_INTERFACE);
+    }
+
+
+    /**
+     * Returns class name (in java form, eg. java.lang.String)
+     */
+    public String getClassName() {
+        return className;
+    }
+
+
+    /**
+     * Returns super class name (in java form) or null if class has no super class.
+     */
+    public String getSuperName() {
+        return superName;
+    }
+
+
+    /**
+     * Returns names of interfaces directly implemented by scanned class (in java form).
+     */
+    public List<String> getInterfaces() {
+        return interfaces;
+    }
+
+
+    /**
+     * Returns all type descriptors found in constant pool (eg. Ljava.lang.Deprecated;). Note that
+     * slashes are replaced by dots, so they can be matched the same way SpyClassVisitor matches
+     * annotations.
+     */
+    public List<String> getDescriptors() {
+        return descriptors;
+    }
+
+
+    /**
+     * Scans class file.
+     *
+     * @param buf class file contents
+     * @return class metadata or null if class file cannot be parsed
+     */
+    public static ClassHeader scan(byte[] buf) {
+        try {
+            int count = u2(buf, 8);
+            int[] offsets = new int[count];
+            List<String> descriptors = new ArrayList<String>();
+
+            int pos = 10;
+            for (int i = 1; i < count; i++) {
+                offsets[i] = pos + 1;
+                switch (buf[pos]) {
+                    case 1: { // UTF8
+                        int len = u2(buf, pos + 1);
+                        if (len > 2 && buf[pos + 3] == 'L' && buf[pos + 2 + len] == ';') {
+                            descriptors.add(utf(buf, pos + 1).replace('/', '.'));
+                        }
+                        pos += 3 + len;
+                        break;
+                    }
+                    case 7:  // Class
+                    case 8:  // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        pos += 3;
+                        break;
+                    case 15: // MethodHandle
+                        pos += 4;
+                        break;
+                    case 3:  // Integer
+                    case 4:  // Float
+                    case 9:  // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        pos += 5;
+                        break;
+                    case 5:  // Long
+                    case 6:  // Double
+                        pos += 9;
+                        i++;
+                        break;
+                    default:
+                        return null;
+                }
+            }
+
+            String className = className(buf, offsets, u2(buf, pos + 2));
+            String superName = className(buf, offsets, u2(buf, pos + 4));
+
+            int nifc = u2(buf, pos + 6);
+            List<String> interfaces = new ArrayList<String>(nifc);
+            for (int i = 0; i < nifc; i++) {
+                interfaces.add(className(buf, offsets, u2(buf, pos + 8 + 2 * i)));
+            }
+
+            return new ClassHeader(u2(buf, pos), className, superName, interfaces, Collections.unmodifiableList(descriptors));
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+
+    private static int u2(byte[] buf, int pos) {
+        return ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+    }
+
+
+    private static String className(byte[] buf, int[] offsets, int idx) {
+        return idx != 0 ? utf(buf, offsets[u2(buf, offsets[idx])]).replace('/', '.') : null;
+    }
+
+
+    /**
+     * Decodes (modified) UTF8 constant.
+     *
+     * @param buf class file contents
+     * @param pos offset of constant length (just after tag)
+     * @return decoded string
+     */
+    private static String utf(byte[] buf, int pos) {
+        int len = u2(buf, pos);
+        char[] chars = new char[len];
+        int n = 0;
+
+        for (int i = pos + 2; i < pos + 2 + len; i++) {
+            int c = buf[i] & 0xff;
+            if (c < 0x80) {
+                chars[n++] = (char) c;
+            } else if (c < 0xe0) {
+                chars[n++] = (char) (((c & 0x1f) << 6) | (buf[++i] & 0x3f));
+            } else {
+                chars[n++] = (char) (((c & 0x0f) << 12) | ((buf[++i] & 0x3f) << 6) | (buf[++i] & 0x3f));
+            }
+        }
+
+        return new String(chars, 0, n);
+    }
+}
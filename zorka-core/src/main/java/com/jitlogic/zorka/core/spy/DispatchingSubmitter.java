@@ -19,12 +19,10 @@ package com.jitlogic.zorka.core.spy;
 
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
-import com.jitlogic.zorka.common.util.ZorkaUtil;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 import static com.jitlogic.zorka.core.spy.SpyLib.*;
 
@@ -46,18 +44,6 @@ public class DispatchingSubmitter implements SpySubmitter {
      */
     private SpyClassTransformer transformer;
 
-    /**
-     * Submission stack is used to associate results from method entry probes with results from return/error probes.
-     */
-    private ThreadLocal<Stack<Map<String, Object>>> submissionStack =
-            new ThreadLocal<Stack<Map<String, Object>>>() {
-                @Override
-                public Stack<Map<String, Object>> initialValue() {
-                    return new Stack<Map<String, Object>>();
-                }
-            };
-
-
     /**
      * Creates dispatching submitter.
      *
@@ -71,27 +57,143 @@ public class DispatchingSubmitter implements SpySubmitter {
 
     @Override
     public void submit(int stage, int id, int submitFlags, Object[] vals) {
+        SpyRecord record = begin(stage, id, submitFlags);
+
+        if (record != null) {
+            int n = record.getLayout().getProbeSlots(stage).length;
+
+            // TODO check if vals.length == n and log something here ...
+
+            for (int i = 0; i < n; i++) {
+                put(record, stage, i, vals[i]);
+            }
+
+            dispatch(stage, submitFlags, record);
+        }
+    }
+
+
+    @Override
+    public void submit(int stage, int id, int submitFlags) {
+        SpyRecord record = begin(stage, id, submitFlags);
+
+        if (record != null) {
+            dispatch(stage, submitFlags, record);
+        }
+    }
+
+
+    @Override
+    public void submit(int stage, int id, int submitFlags, long v0) {
+        SpyRecord record = begin(stage, id, submitFlags);
+
+        if (record != null) {
+            put(record, stage, 0, v0);
+            dispatch(stage, submitFlags, record);
+        }
+    }
+
+
+    @Override
+    public void submit(int stage, int id, int submitFlags, Object v0) {
+        SpyRecord record = begin(stage, id, submitFlags);
+
+        if (record != null) {
+            put(record, stage, 0, v0);
+            dispatch(stage, submitFlags, record);
+        }
+    }
+
+
+    @Override
+    public void submit(int stage, int id, int submitFlags, Object v0, Object v1) {
+        SpyRecord record = begin(stage, id, submitFlags);
+
+        if (record != null) {
+            put(record, stage, 0, v0);
+            put(record, stage, 1, v1);
+            dispatch(stage, submitFlags, record);
+        }
+    }
+
+
+    @Override
+    public void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2) {
+        SpyRecord record = begin(stage, id, submitFlags);
+
+        if (record != null) {
+            put(record, stage, 0, v0);
+            put(record, stage, 1, v1);
+            put(record, stage, 2, v2);
+            dispatch(stage, submitFlags, record);
+        }
+    }
+
+
+    @Override
+    public void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2, Object v3) {
+        SpyRecord record = begin(stage, id, submitFlags);
+
+        if (record != null) {
+            put(record, stage, 0, v0);
+            put(record, stage, 1, v1);
+            put(record, stage, 2, v2);
+            put(record, stage, 3, v3);
+            dispatch(stage, submitFlags, record);
+        }
+    }
+
+
+    /**
+     * Looks up spy context submission comes from and retrieves (or creates) spy record for it.
+     *
+     * @param stage       method bytecode point where probe has been installed (entry, return, error)
+     * @param id          spy context ID
+     * @param submitFlags submission flags
+     * @return spy record or null if no context has been found
+     */
+    private SpyRecord begin(int stage, int id, int submitFlags) {
+        SpyContext ctx = getContext(stage, id, submitFlags);
+        return ctx != null ? getRecord(stage, ctx, submitFlags) : null;
+    }
+
+
+    /**
+     * Looks for spy context submission comes from.
+     *
+     * @param stage       method bytecode point where probe has been installed (entry, return, error)
+     * @param id          spy context ID
+     * @param submitFlags submission flags
+     * @return spy context or null if no context has been found
+     */
+    private SpyContext getContext(int stage, int id, int submitFlags) {
 
         if (ZorkaLogger.isLogMask(ZorkaLogger.ZSP_SUBMIT)) {
             log.debug(ZorkaLogger.ZSP_SUBMIT, "Submitted: stage=" + stage + ", id=" + id + ", flags=" + submitFlags);
         }
 
-        SpyContext ctx = transformer.getContext(id);
+        return transformer.getContext(id);
+    }
 
-        if (ctx == null) {
-            return;
-        }
 
-        Map<String, Object> record = getRecord(stage, ctx, submitFlags, vals);
+    /**
+     * Processes filled spy record and either pushes it onto submission stack (if it waits for
+     * more data from other probes) or passes it to SUBMIT chain.
+     *
+     * @param stage       method bytecode point where probe has been installed (entry, return, error)
+     * @param submitFlags submission flags
+     * @param record      spy record with fetched values
+     */
+    private void dispatch(int stage, int submitFlags, SpyRecord record) {
 
-        SpyDefinition sdef = ctx.getSpyDefinition();
+        SpyDefinition sdef = record.getContext().getSpyDefinition();
 
         if (null == (record = process(stage, sdef, record))) {
             return;
         }
 
         if (submitFlags == SF_NONE) {
-            submissionStack.get().push(record);
+            AgentThreadContext.get().pushRecord(this, record);
             return;
         }
 
@@ -111,49 +213,82 @@ public class DispatchingSubmitter implements SpySubmitter {
      * @param ctx         spy context associated with submitting probe
      * @param submitFlags controls whether SUBMIT chain should be immediately processed or record should be
      *                    stored in thread local stack (and wait for another probe submission)
-     * @param vals        submitted values
      * @return spy record
      */
-    private Map<String, Object> getRecord(int stage, SpyContext ctx, int submitFlags, Object[] vals) {
+    private SpyRecord getRecord(int stage, SpyContext ctx, int submitFlags) {
 
-        Map<String, Object> record;
+        SpyRecord record;
 
         switch (submitFlags) {
             case SF_IMMEDIATE:
             case SF_NONE:
-                record = ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0);
+                record = new SpyRecord(ctx);
                 break;
             case SF_FLUSH:
-                Stack<Map<String, Object>> stack = submissionStack.get();
-                if (stack.size() > 0) {
-                    record = stack.pop();
-                    // TODO check if record belongs to proper frame, warn if not
-                } else {
+                record = AgentThreadContext.get().popRecord(this);
+                // TODO check if record belongs to proper frame, warn if not
+                if (record == null) {
                     log.error(ZorkaLogger.ZSP_ERRORS, "Submission thread local stack mismatch (ctx=" + ctx
                             + ", stage=" + stage + ", submitFlags=" + submitFlags + ")");
-                    record = ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0);
+                    record = new SpyRecord(ctx);
                 }
                 break;
             default:
                 log.error(ZorkaLogger.ZSP_ERRORS, "Illegal submission flag: " + submitFlags + ". Creating empty records.");
-                record = ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0);
+                record = new SpyRecord(ctx);
                 break;
         }
 
-        SpyContext context = ((SpyContext) record.get(".CTX"));
-        List<SpyProbe> probes = context.getSpyDefinition().getProbes(stage);
+        record.markStage(stage);
+
+        return record;
+    }
+
+
+    /**
+     * Stores value fetched by probe in spy record. Fields that have no slot in record layout
+     * (eg. names starting with '.') are stored by name.
+     *
+     * @param record spy record
+     * @param stage  stage values have been fetched in
+     * @param idx    probe index
+     * @param val    fetched value
+     */
+    private static void put(SpyRecord record, int stage, int idx, Object val) {
+        int[] slots = record.getLayout().getProbeSlots(stage);
+        if (idx < slots.length) {
+            if (slots[idx] != SpyRecordLayout.NO_SLOT) {
+                record.put(slots[idx], val);
+            } else {
+                record.put(dstField(record, stage, idx), val);
+            }
+        }
+    }
 
-        // TODO check if vals.length == probes.size() and log something here ...
 
-        for (int i = 0; i < probes.size(); i++) {
-            SpyProbe probe = probes.get(i);
-            record.put(probe.getDstField(), vals[i]);
+    /**
+     * Stores unboxed long value fetched by probe in spy record. Fields that have no slot
+     * in record layout are stored by name (boxed).
+     *
+     * @param record spy record
+     * @param stage  stage values have been fetched in
+     * @param idx    probe index
+     * @param val    fetched value
+     */
+    private static void put(SpyRecord record, int stage, int idx, long val) {
+        int[] slots = record.getLayout().getProbeSlots(stage);
+        if (idx < slots.length) {
+            if (slots[idx] != SpyRecordLayout.NO_SLOT) {
+                record.put(slots[idx], val);
+            } else {
+                record.put(dstField(record, stage, idx), val);
+            }
         }
+    }
 
-        record.put(".STAGES", (Integer) record.get(".STAGES") | (1 << stage));
-        record.put(".STAGE", stage);
 
-        return record;
+    private static String dstField(SpyRecord record, int stage, int idx) {
+        return record.getContext().getSpyDefinition().getProbes(stage).get(idx).getDstField();
     }
 
 
@@ -165,11 +300,10 @@ public class DispatchingSubmitter implements SpySubmitter {
      * @param record spy record (input)
      * @return spy record (output) or null if record should not be further processed
      */
-    private Map<String, Object> process(int stage, SpyDefinition sdef, Map<String, Object> record) {
+    private SpyRecord process(int stage, SpyDefinition sdef, SpyRecord record) {
         List<SpyProcessor> processors = sdef.getProcessors(stage);
 
-        record.put(".STAGES", (Integer) record.get(".STAGES") | (1 << stage));
-        record.put(".STAGE", stage);
+        record.markStage(stage);
 
         if (ZorkaLogger.isLogMask(ZorkaLogger.ZSP_ARGPROC)) {
             log.debug(ZorkaLogger.ZSP_ARGPROC, "Processing records (stage=" + stage + ")");
@@ -177,9 +311,12 @@ public class DispatchingSubmitter implements SpySubmitter {
 
         for (SpyProcessor processor : processors) {
             try {
-                if (null == (record = processor.process(record))) {
-                    break;
+                Map<String, Object> rslt = processor.process(record);
+                if (null == rslt) {
+                    return null;
                 }
+                // Processors (eg. beanshell ones) can return arbitrary maps
+                record = SpyRecord.fromMap(record.getContext(), rslt);
             } catch (Throwable e) {
                 // This has to catch everything, even OOM.
                 log.error(ZorkaLogger.ZSP_ERRORS, "Error processing record %s (on processor %s, stage=%s)", e,
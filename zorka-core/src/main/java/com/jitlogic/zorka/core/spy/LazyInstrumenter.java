@@ -0,0 +1,223 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+import com.jitlogic.zorka.common.tracedata.MethodCallCounterRecord;
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.util.ZorkaLog;
+import com.jitlogic.zorka.common.util.ZorkaLogger;
+import com.jitlogic.zorka.core.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implements lazy (two-phase) tracer instrumentation. In lazy mode, methods matched by tracer are
+ * instrumented only with cheap counting stubs that register calls in per-thread method call counters.
+ * Counters are periodically collected and methods called often enough are promoted: they're added to
+ * tracer hot method set and their classes are retransformed with full tracer probes.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class LazyInstrumenter implements Runnable {
+
+    private static final ZorkaLog log = ZorkaLogger.getLog(LazyInstrumenter.class);
+
+    private Tracer tracer;
+
+    private SymbolRegistry symbolRegistry;
+
+    private SpyRetransformer retransformer;
+
+    /**
+     * Minimum number of calls (in one collection interval) required to promote method.
+     */
+    private volatile long minCalls = 1000;
+
+    /**
+     * Contexts of all threads that registered calls. Call counters are kept in thread contexts
+     * (see AgentThreadContext.countCall()), contexts of dead threads are dropped by collector.
+     */
+    private ConcurrentLinkedQueue<AgentThreadContext> threads = new ConcurrentLinkedQueue<AgentThreadContext>();
+
+    /**
+     * Already promoted methods (className.methodName) and hot matchers promoting them. Entries are dropped
+     * when their matchers are removed from tracer hot method set.
+     */
+    private Map<String, SpyMatcher> promoted = new TreeMap<String, SpyMatcher>();
+
+    private ScheduledExecutorService scheduler;
+
+
+    public LazyInstrumenter(Tracer tracer, SymbolRegistry symbolRegistry, SpyRetransformer retransformer) {
+        this.tracer = tracer;
+        this.symbolRegistry = symbolRegistry;
+        this.retransformer = retransformer;
+    }
+
+
+    /**
+     * Enables lazy instrumentation mode and starts collecting method call counters.
+     *
+     * @param minCalls minimum number of calls in one interval required to promote method
+     * @param interval collection interval (milliseconds)
+     */
+    public synchronized void start(long minCalls, long interval) {
+        this.minCalls = minCalls;
+
+        if (tracer.getHotMatcherSet() == null) {
+            tracer.setHotMatcherSet(new SpyMatcherSet());
+        }
+
+        if (scheduler == null && interval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("ZORKA-lazy-instrumenter"));
+            scheduler.scheduleAtFixedRate(this, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    /**
+     * Registers method call. This is called by counting stubs (via MainSubmitter).
+     */
+    public void countCall(int classId, int methodId, int signatureId) {
+        AgentThreadContext atc = AgentThreadContext.get();
+
+        if (atc.countCall(this, classId, methodId, signatureId)) {
+            threads.add(atc);
+        }
+    }
+
+
+    @Override
+    public void run() {
+        try {
+            promote();
+        } catch (Throwable e) {
+            log.error(ZorkaLogger.ZTR_ERRORS, "Error promoting hot methods.", e);
+        }
+    }
+
+
+    /**
+     * Collects counters of all threads (including idle ones) and promotes methods that were called
+     * often enough since last call, so each decision covers exactly one collection interval.
+     *
+     * @return number of promoted methods
+     */
+    public synchronized int promote() {
+        MethodCallCounter total = new MethodCallCounter();
+
+        for (Iterator<AgentThreadContext> i = threads.iterator(); i.hasNext(); ) {
+            AgentThreadContext atc = i.next();
+
+            if (!atc.isCallCounterOwner(this)) {
+                i.remove();
+                continue;
+            }
+
+            boolean alive = atc.getThread().isAlive();
+            MethodCallCounter mcc = atc.takeCallCounter(this);
+
+            if (mcc != null) {
+                total.sum(mcc);
+            }
+
+            if (!alive) {
+                i.remove();
+            }
+        }
+
+        prune();
+
+        List<SpyMatcher> matchers = new ArrayList<SpyMatcher>();
+        List<String> names = new ArrayList<String>();
+
+        for (MethodCallCounterRecord r : total.getRecords()) {
+            if (r.getnCalls() < minCalls) {
+                continue;
+            }
+
+            String className = symbolRegistry.symbolName(r.getClassId());
+            String methodName = symbolRegistry.symbolName(r.getMethodId());
+
+            if (className == null || methodName == null || promoted.containsKey(className + "." + methodName)) {
+                continue;
+            }
+
+            SpyMatcher sm = new SpyMatcher(SpyMatcher.BY_CLASS_NAME | SpyMatcher.BY_METHOD_NAME, 0,
+                    className, methodName, null);
+            promoted.put(className + "." + methodName, sm);
+            matchers.add(sm);
+            names.add(className + "." + methodName + " (" + r.getnCalls() + " calls)");
+        }
+
+        if (matchers.size() > 0) {
+            SpyMatcher[] newMatchers = matchers.toArray(new SpyMatcher[matchers.size()]);
+
+            log.info(ZorkaLogger.ZTR_CONFIG, "Promoting hot methods to full tracing: " + names);
+
+            SpyMatcherSet hot = tracer.getHotMatcherSet();
+            tracer.setHotMatcherSet(hot != null ? hot.include(newMatchers) : new SpyMatcherSet(newMatchers));
+
+            if (retransformer.isEnabled()) {
+                retransformer.retransform(null, new SpyMatcherSet(newMatchers), true);
+            }
+        }
+
+        return matchers.size();
+    }
+
+
+    /**
+     * Drops promoted methods whose matchers have been removed from tracer hot method set,
+     * so they can be promoted again.
+     */
+    private void prune() {
+        SpyMatcherSet hot = tracer.getHotMatcherSet();
+        Set<SpyMatcher> active = Collections.newSetFromMap(new IdentityHashMap<SpyMatcher, Boolean>());
+
+        if (hot != null) {
+            active.addAll(hot.getMatchers());
+        }
+
+        for (Iterator<SpyMatcher> i = promoted.values().iterator(); i.hasNext(); ) {
+            if (!active.contains(i.next())) {
+                i.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Returns names of promoted methods (in form className.methodName).
+     */
+    public synchronized List<String> getPromotedMethods() {
+        prune();
+        return new ArrayList<String>(promoted.keySet());
+    }
+
+}
@@ -17,7 +17,6 @@
 
 package com.jitlogic.zorka.core.spy;
 
-import bsh.EvalError;
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
@@ -33,6 +32,11 @@ public class MainSubmitter {
 
     private static final ZorkaLog log = ZorkaLogger.getLog(MainSubmitter.class);
 
+    /**
+     * Pseudo-arities of common submit method: single unboxed long value and array of values.
+     */
+    private static final int LONG_VAL = -1, ARRAY_VAL = -2;
+
     /**
      * Submitter receiving full submissions
      */
@@ -43,22 +47,96 @@ public class MainSubmitter {
      */
     private static Tracer tracer;
 
+    public MainSubmitter() {
+
+    }
+
     /**
-     * Thread local
+     * This method is called by spy probes that fetch no values.
+     *
+     * @param stage       entry, return point or error handling point of spy probe
+     * @param id          spy context ID
+     * @param submitFlags submit flags
      */
-    private static ThreadLocal<Boolean> inSubmit = new ThreadLocal<Boolean>() {
-        @Override
-        public Boolean initialValue() {
-            return false;
-        }
-    };
+    public static void submit(int stage, int id, int submitFlags) {
+        submit(stage, id, submitFlags, 0, 0L, null, null, null, null, null);
+    }
+
+
+    /**
+     * This method is called by spy probes fetching exactly one value of primitive long type (eg. time probes).
+     * As long value is passed directly, instrumented code does not need to box it nor allocate values array.
+     *
+     * @param stage       entry, return point or error handling point of spy probe
+     * @param id          spy context ID
+     * @param submitFlags submit flags
+     * @param v0          fetched value
+     */
+    public static void submit(int stage, int id, int submitFlags, long v0) {
+        submit(stage, id, submitFlags, LONG_VAL, v0, null, null, null, null, null);
+    }
+
+
+    /**
+     * This method is called by spy probes fetching exactly one value.
+     *
+     * @param stage       entry, return point or error handling point of spy probe
+     * @param id          spy context ID
+     * @param submitFlags submit flags
+     * @param v0          fetched value
+     */
+    public static void submit(int stage, int id, int submitFlags, Object v0) {
+        submit(stage, id, submitFlags, 1, 0L, v0, null, null, null, null);
+    }
+
+
+    /**
+     * This method is called by spy probes fetching exactly two values.
+     *
+     * @param stage       entry, return point or error handling point of spy probe
+     * @param id          spy context ID
+     * @param submitFlags submit flags
+     * @param v0          first fetched value
+     * @param v1          second fetched value
+     */
+    public static void submit(int stage, int id, int submitFlags, Object v0, Object v1) {
+        submit(stage, id, submitFlags, 2, 0L, v0, v1, null, null, null);
+    }
+
+
+    /**
+     * This method is called by spy probes fetching exactly three values.
+     *
+     * @param stage       entry, return point or error handling point of spy probe
+     * @param id          spy context ID
+     * @param submitFlags submit flags
+     * @param v0          first fetched value
+     * @param v1          second fetched value
+     * @param v2          third fetched value
+     */
+    public static void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2) {
+        submit(stage, id, submitFlags, 3, 0L, v0, v1, v2, null, null);
+    }
 
-    public MainSubmitter() {
 
+    /**
+     * This method is called by spy probes fetching exactly four values.
+     *
+     * @param stage       entry, return point or error handling point of spy probe
+     * @param id          spy context ID
+     * @param submitFlags submit flags
+     * @param v0          first fetched value
+     * @param v1          second fetched value
+     * @param v2          third fetched value
+     * @param v3          fourth fetched value
+     */
+    public static void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2, Object v3) {
+        submit(stage, id, submitFlags, 4, 0L, v0, v1, v2, v3, null);
     }
 
+
     /**
-     * This method is called by spy probes.
+     * This method is called by spy probes fetching more values than specialized submit methods can handle.
      *
      * @param stage       entry, return point or error handling point of spy probe
      * @param id          spy context ID
@@ -66,31 +144,74 @@ public class MainSubmitter {
      * @param vals        values fetched by probe
      */
     public static void submit(int stage, int id, int submitFlags, Object[] vals) {
+        submit(stage, id, submitFlags, ARRAY_VAL, 0L, null, null, null, null, vals);
+    }
+
+
+    /**
+     * Common part of all submit methods: checks submitter and reentrancy guard, passes values to submitter
+     * via method matching number of fetched values and catches everything coming out of submitter.
+     *
+     * @param n number of fetched values (or LONG_VAL, ARRAY_VAL)
+     */
+    private static void submit(int stage, int id, int submitFlags, int n, long l0,
+                               Object v0, Object v1, Object v2, Object v3, Object[] vals) {
+
+        if (submitter == null) {
+            return;
+        }
 
-        if (inSubmit.get()) {
+        AgentThreadContext ctx = AgentThreadContext.get();
+
+        if (ctx.isInSubmit()) {
             return;
         }
 
         try {
-            tracer.getHandler().disable();
-            if (submitter != null) {
-                inSubmit.set(true);
-                submitter.submit(stage, id, submitFlags, vals);
+            ctx.setInSubmit(true);
+            switch (n) {
+                case 0:
+                    submitter.submit(stage, id, submitFlags);
+                    break;
+                case 1:
+                    submitter.submit(stage, id, submitFlags, v0);
+                    break;
+                case 2:
+                    submitter.submit(stage, id, submitFlags, v0, v1);
+                    break;
+                case 3:
+                    submitter.submit(stage, id, submitFlags, v0, v1, v2);
+                    break;
+                case 4:
+                    submitter.submit(stage, id, submitFlags, v0, v1, v2, v3);
+                    break;
+                case LONG_VAL:
+                    submitter.submit(stage, id, submitFlags, l0);
+                    break;
+                default:
+                    submitter.submit(stage, id, submitFlags, vals);
+                    break;
             }
-        } catch (EvalError e) {
-            log.debug(ZorkaLogger.ZSP_ERRORS, "Error submitting value from instrumented code: ", e);
-            AgentDiagnostics.inc(AgentDiagnostics.SPY_ERRORS);
         } catch (Throwable e) {
-            // This is special case. We must catch everything going out of agent, even OOM errors.
-            log.debug(ZorkaLogger.ZSP_ERRORS, "Error submitting value from instrumented code: ", e);
-            AgentDiagnostics.inc(AgentDiagnostics.SPY_ERRORS);
+            handleError(e);
         } finally {
-            inSubmit.set(false);
-            tracer.getHandler().enable();
+            ctx.setInSubmit(false);
         }
     }
 
 
+    /**
+     * Handles errors caught while submitting values from instrumented code.
+     *
+     * @param e caught exception (or error)
+     */
+    private static void handleError(Throwable e) {
+        // This is special case. We must catch everything going out of agent, even OOM errors.
+        log.debug(ZorkaLogger.ZSP_ERRORS, "Error submitting value from instrumented code: ", e);
+        AgentDiagnostics.inc(AgentDiagnostics.SPY_ERRORS);
+    }
+
+
     /**
      * This method is called by tracer probes at method start.
      *
@@ -101,7 +222,10 @@ public class MainSubmitter {
 
         if (tracer != null) {
             try {
-                tracer.getHandler().traceEnter(classId, methodId, signatureId, System.nanoTime());
+                AgentThreadContext ctx = AgentThreadContext.get();
+                if (!ctx.isInSubmit()) {
+                    ctx.getTraceBuilder(tracer).traceEnter(classId, methodId, signatureId, System.nanoTime());
+                }
             } catch (Throwable e) {
                 // This is special case. We must catch everything going out of agent, even OOM errors.
                 log.debug(ZorkaLogger.ZTR_TRACE_ERRORS, "Error executing traceEnter", e);
@@ -114,6 +238,31 @@ public class MainSubmitter {
     }
 
 
+    /**
+     * This method is called by counting stubs (emitted instead of tracer probes in lazy mode) at method start.
+     *
+     * @param classId     class ID (registered)
+     * @param methodId    method ID (registered)
+     * @param signatureId signature ID (registered)
+     */
+    public static void traceCount(int classId, int methodId, int signatureId) {
+
+        if (tracer != null) {
+            try {
+                LazyInstrumenter lazyInstrumenter = tracer.getLazyInstrumenter();
+                if (lazyInstrumenter != null) {
+                    lazyInstrumenter.countCall(classId, methodId, signatureId);
+                }
+            } catch (Throwable e) {
+                // This is special case. We must catch everything going out of agent, even OOM errors.
+                log.debug(ZorkaLogger.ZTR_TRACE_ERRORS, "Error executing traceCount", e);
+                AgentDiagnostics.inc(AgentDiagnostics.TRACER_ERRORS);
+            }
+        }
+
+    }
+
+
     /**
      * This method is called by tracer probes at method exit.
      */
@@ -121,7 +270,13 @@ public class MainSubmitter {
 
         if (tracer != null) {
             try {
-                tracer.getHandler().traceReturn(System.nanoTime());
+                AgentThreadContext ctx = AgentThreadContext.get();
+                if (!ctx.isInSubmit()) {
+                    TraceBuilder traceBuilder = ctx.getTraceBuilder(tracer);
+                    if (!traceBuilder.traceLeave()) {
+                        traceBuilder.traceReturn(System.nanoTime());
+                    }
+                }
             } catch (Throwable e) {
                 // This is special case. We must catch everything going out of agent, even OOM errors.
                 log.debug(ZorkaLogger.ZTR_TRACE_ERRORS, "Error executing traceReturn", e);
@@ -143,7 +298,13 @@ public class MainSubmitter {
 
         if (tracer != null) {
             try {
-                tracer.getHandler().traceError(exception, System.nanoTime());
+                AgentThreadContext ctx = AgentThreadContext.get();
+                if (!ctx.isInSubmit()) {
+                    TraceBuilder traceBuilder = ctx.getTraceBuilder(tracer);
+                    if (!traceBuilder.traceLeave()) {
+                        traceBuilder.traceError(exception, System.nanoTime());
+                    }
+                }
             } catch (Throwable e) {
                 // This is special case. We must catch everything going out of agent, even OOM errors.
                 log.debug(ZorkaLogger.ZTR_TRACE_ERRORS, "Error executing traceError", e);
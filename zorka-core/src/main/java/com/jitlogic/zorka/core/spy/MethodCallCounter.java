@@ -21,11 +21,22 @@ import com.jitlogic.zorka.common.tracedata.MethodCallCounterRecord;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Counts method calls. Keys (class, method, signature IDs) and counts are kept in a single array
+ * of interleaved pairs, and resized table is filled before being published, so collector thread
+ * summing a counter that owner thread still updates (see AgentThreadContext) never sees mismatched
+ * keys and counts (at most the call registered concurrently may be missed).
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
 public class MethodCallCounter {
 
     private static final int INITIAL_SIZE = 64;
 
-    private long keys[], vals[];
+    /**
+     * Interleaved keys (even indexes) and call counts (odd indexes).
+     */
+    private long table[];
 
     private long initialTime = 0L;
 
@@ -35,8 +46,7 @@ public class MethodCallCounter {
     private static final long MASK = 0x1fffffL;
 
     public MethodCallCounter() {
-        keys = new long[INITIAL_SIZE];
-        vals = new long[INITIAL_SIZE];
+        table = new long[INITIAL_SIZE * 2];
         numEntries = 0;
         maxEntries = INITIAL_SIZE * 3 / 4;
     }
@@ -58,25 +68,38 @@ public class MethodCallCounter {
             rehash(maxEntries * 2);
         }
 
-        int idx = index(key);
+        long[] table = this.table;
+        int idx = index(table, key);
 
-        if (keys[idx] == FREE) {
-            keys[idx] = key;
-            vals[idx] = nCalls;
+        if (table[idx] == FREE) {
+            table[idx + 1] = nCalls;
+            table[idx] = key;
             numEntries++;
         } else {
-            vals[idx] += nCalls;
+            table[idx + 1] += nCalls;
         }
     }
 
 
+    /**
+     * Returns number of registered calls of given method (or 0 if method has not been called).
+     */
+    public long get(int classId, int methodId, int signatureId) {
+        long key = classId | (((long) methodId) << 21) | (((long) signatureId) << 42);
+        long[] table = this.table;
+        int idx = index(table, key);
+        return table[idx] == key ? table[idx + 1] : 0;
+    }
+
+
     public List<MethodCallCounterRecord> getRecords() {
         List<MethodCallCounterRecord> ret = new ArrayList<MethodCallCounterRecord>();
+        long[] table = this.table;
 
-        for (int i = 0; i < keys.length; i++) {
-            long key = keys[i];
+        for (int i = 0; i < table.length; i += 2) {
+            long key = table[i];
             if (key != FREE) {
-                ret.add(new MethodCallCounterRecord((int) (key & MASK), (int) ((key >> 21) & MASK), (int) ((key >> 42) & MASK), vals[i]));
+                ret.add(new MethodCallCounterRecord((int) (key & MASK), (int) ((key >> 21) & MASK), (int) ((key >> 42) & MASK), table[i + 1]));
             }
         }
 
@@ -85,14 +108,13 @@ public class MethodCallCounter {
 
 
     public void sum(MethodCallCounter mcc) {
-        long[] mkeys = mcc.keys;
-        long[] mvals = mcc.vals;
+        long[] mtable = mcc.table;
         long tst = mcc.initialTime;
 
-        for (int i = 0; i < mkeys.length; i++) {
-            long key = mkeys[i];
+        for (int i = 0; i < mtable.length; i += 2) {
+            long key = mtable[i];
             if (key != FREE) {
-                logCalls((int) (key & MASK), (int) ((key >> 21) & MASK), (int) ((key >> 42) & MASK), tst, mvals[i]);
+                logCalls((int) (key & MASK), (int) ((key >> 21) & MASK), (int) ((key >> 42) & MASK), tst, mtable[i + 1]);
             }
         }
     }
@@ -101,8 +123,8 @@ public class MethodCallCounter {
     public void clear() {
         initialTime = 0L;
         numEntries = 0;
-        for (int i = 0; i < keys.length; i++) {
-            keys[i] = 0;
+        for (int i = 0; i < table.length; i++) {
+            table[i] = 0;
         }
     }
 
@@ -114,42 +136,41 @@ public class MethodCallCounter {
 
 
     private void rehash(int capacity) {
-        int olen = keys.length;
+        long[] otable = table;
+        long[] ntable = new long[capacity * 2];
 
-        long[] okeys = keys;
-        long[] ovals = vals;
-
-        long[] nkeys = new long[capacity];
-        long[] nvals = new long[capacity];
+        for (int i = 0; i < otable.length; i += 2) {
+            long key = otable[i];
+            if (key == FREE) {
+                continue;
+            }
+            int idx = index(ntable, key);
+            ntable[idx] = key;
+            ntable[idx + 1] = otable[i + 1];
+        }
 
-        keys = nkeys;
-        vals = nvals;
+        table = ntable;
         maxEntries = capacity * 3 / 4;
-
-        for (int i = 0; i < olen; i++) {
-            long key = okeys[i];
-            int idx = index(key);
-            nkeys[idx] = key;
-            nvals[idx] = ovals[i];
-        }
     }
 
 
-    private int index(long key) {
-        long[] keys = this.keys;
-        int length = keys.length;
+    /**
+     * Returns index of key slot (call count is kept in next slot).
+     */
+    private int index(long[] table, long key) {
+        int length = table.length / 2;
 
         int hash = lhash(key);
         int i = hash % length;
 
         if (i < 0) {
-            System.out.println("kurwa!");
+            i += length;
         }
 
-        while (keys[i] != FREE && keys[i] != key) {
+        while (table[i * 2] != FREE && table[i * 2] != key) {
             i = (i > 0) ? i - 1 : length - 1;
         }
 
-        return i;
+        return i * 2;
     }
 }
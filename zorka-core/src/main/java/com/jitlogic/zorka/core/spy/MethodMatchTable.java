@@ -0,0 +1,261 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static com.jitlogic.zorka.core.spy.SpyMatcher.*;
+
+/**
+ * Method matching decision table for a single class. It is created from matcher set when class-level
+ * match is already known (see SpyMatcherSet.methodMatchTable()), so it contains only matchers whose
+ * class part matched. Matchers with literal method names (no wildcards) are indexed by name, so most
+ * methods are checked without evaluating any regular expression. Results of signature matching are
+ * cached by method descriptor. Matching semantics are the same as in SpyMatcherSet.methodMatch().
+ * <p/>
+ * Table is meant to be used by a single class visitor, so it is not thread safe.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class MethodMatchTable {
+
+    /**
+     * Signature pattern generated by SpyMatcher when no return type nor arguments are specified.
+     */
+    private static final String ANY_SIGNATURE = "^\\(.*\\).*$";
+
+    private static final int NO_FILTERS = NO_CONSTRUCTORS | NO_ACCESSORS | NO_COMMONS;
+
+    /**
+     * Matchers whose class part matched (in priority order)
+     */
+    private SpyMatcher[] matchers;
+
+    /**
+     * Literal method names (or null if method name has to be matched by regular expression)
+     */
+    private String[] names;
+
+    /**
+     * Signature patterns (or null if signature does not need to be checked)
+     */
+    private Pattern[] signatures;
+
+    /**
+     * Signature match results cached by method descriptor
+     */
+    private List<Map<String, Boolean>> signatureResults;
+
+    /**
+     * Indexes of matchers to be checked for given method name (always includes all indexes from unnamed)
+     */
+    private Map<String, int[]> byName = new HashMap<String, int[]>();
+
+    /**
+     * Indexes of matchers to be checked for all method names
+     */
+    private int[] unnamed;
+
+    private boolean hasMethodAnnotations;
+
+
+    public MethodMatchTable(List<SpyMatcher> matchers) {
+        int n = matchers.size();
+
+        this.matchers = matchers.toArray(new SpyMatcher[n]);
+        this.names = new String[n];
+        this.signatures = new Pattern[n];
+        this.signatureResults = new ArrayList<Map<String, Boolean>>(n);
+
+        List<Integer> unnamedIdx = new ArrayList<Integer>();
+        Map<String, List<Integer>> namedIdx = new HashMap<String, List<Integer>>();
+
+        for (int i = 0; i < n; i++) {
+            SpyMatcher m = this.matchers[i];
+
+            hasMethodAnnotations |= m.hasFlags(BY_METHOD_ANNOTATION);
+
+            if (m.hasFlags(BY_METHOD_NAME) && !m.hasFlags(BY_METHOD_ANNOTATION)) {
+                names[i] = literal(m.getMethodPattern().pattern());
+            }
+
+            if (m.hasFlags(BY_METHOD_SIGNATURE) && !ANY_SIGNATURE.equals(m.getSignaturePattern().pattern())) {
+                signatures[i] = m.getSignaturePattern();
+            }
+
+            signatureResults.add(signatures[i] != null ? new HashMap<String, Boolean>() : null);
+
+            if (names[i] != null && !m.hasFlags(NO_FILTERS)) {
+                List<Integer> idx = namedIdx.get(names[i]);
+                if (idx == null) {
+                    idx = new ArrayList<Integer>();
+                    namedIdx.put(names[i], idx);
+                }
+                idx.add(i);
+            } else {
+                unnamedIdx.add(i);
+            }
+        }
+
+        unnamed = toArray(unnamedIdx);
+
+        for (Map.Entry<String, List<Integer>> e : namedIdx.entrySet()) {
+            List<Integer> idx = new ArrayList<Integer>(e.getValue());
+            idx.addAll(unnamedIdx);
+            int[] a = toArray(idx);
+            Arrays.sort(a);
+            byName.put(e.getKey(), a);
+        }
+    }
+
+
+    private static int[] toArray(List<Integer> l) {
+        int[] a = new int[l.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = l.get(i);
+        }
+        return a;
+    }
+
+
+    /**
+     * Returns literal string matched by regular expression or null if expression contains any
+     * special characters (except for escaped dots and dollar signs, as generated by SpyMatcher).
+     */
+    private static String literal(String regex) {
+        StringBuilder sb = new StringBuilder(regex.length());
+
+        for (int i = 0; i < regex.length(); i++) {
+            char ch = regex.charAt(i);
+            if (ch == '\\' && i + 1 < regex.length() && (regex.charAt(i + 1) == '.' || regex.charAt(i + 1) == '$')) {
+                sb.append(regex.charAt(++i));
+            } else if (Character.isLetterOrDigit(ch) || ch == '_' || ch == '<' || ch == '>') {
+                sb.append(ch);
+            } else {
+                return null;
+            }
+        }
+
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+
+    /**
+     * Returns true if no matcher in this table can match any method.
+     */
+    public boolean isEmpty() {
+        return matchers.length == 0;
+    }
+
+
+    /**
+     * Returns true if any matcher in this table looks for method annotations.
+     */
+    public boolean hasMethodAnnotations() {
+        return hasMethodAnnotations;
+    }
+
+
+    /**
+     * Checks whether given method matches. If passed method annotations list is null and any matcher
+     * looks for method annotations, this method will return true.
+     *
+     * @param access            method access flags
+     * @param methodName        method name
+     * @param methodSignature   method descriptor
+     * @param methodAnnotations list of class names of method annotations
+     * @return true if method matches
+     */
+    public boolean match(int access, String methodName, String methodSignature, List<String> methodAnnotations) {
+        int[] idx = byName.get(methodName);
+
+        if (idx == null) {
+            idx = unnamed;
+        }
+
+        for (int i : idx) {
+            SpyMatcher matcher = matchers[i];
+            int flags = matcher.getFlags();
+
+            if ((0 != (flags & NO_CONSTRUCTORS) && ("<init>".equals(methodName) || "<clinit>".equals(methodName)))
+                    || (0 != (flags & NO_ACCESSORS) && isAccessor(methodName, methodSignature))
+                    || (0 != (flags & NO_COMMONS) && COMMON_METHODS.contains(methodName))) {
+                return false;
+            }
+
+            if ((0 == matcher.getAccess() || 0 != (access & matcher.getAccess()))
+                    && (0 == (flags & BY_METHOD_NAME) || nameMatch(i, methodName))
+                    && (0 == (flags & BY_METHOD_SIGNATURE) || signatureMatch(i, methodSignature))
+                    && (0 == (flags & BY_METHOD_ANNOTATION) || methodAnnotations == null
+                    || match(matcher.getMethodPattern(), methodAnnotations))) {
+                return !matcher.hasFlags(SpyMatcher.EXCLUDE_MATCH);
+            }
+
+            if (0 != (flags & BY_METHOD_ANNOTATION) && methodAnnotations == null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    private boolean nameMatch(int i, String methodName) {
+        return names[i] != null ? names[i].equals(methodName)
+                : matchers[i].getMethodPattern().matcher(methodName).matches();
+    }
+
+
+    private boolean signatureMatch(int i, String methodSignature) {
+        if (signatures[i] == null) {
+            return true;
+        }
+
+        Map<String, Boolean> results = signatureResults.get(i);
+        Boolean result = results.get(methodSignature);
+
+        if (result == null) {
+            result = signatures[i].matcher(methodSignature).matches();
+            results.put(methodSignature, result);
+        }
+
+        return result;
+    }
+
+
+    private static boolean match(Pattern pattern, List<String> candidates) {
+        for (String candidate : candidates) {
+            if (pattern.matcher(candidate).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    static boolean isAccessor(String methodName, String methodSignature) {
+        return (methodName.startsWith("set") && methodSignature.endsWith(")V"))
+                || (methodName.startsWith("get") && methodSignature.startsWith("()"))
+                || (methodName.startsWith("is") && methodSignature.startsWith("()"))
+                || (methodName.startsWith("has") && methodSignature.startsWith("()"));
+    }
+}
@@ -16,6 +16,7 @@
 package com.jitlogic.zorka.core.spy;
 
 
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.core.AgentConfig;
@@ -24,7 +25,20 @@ import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+/**
+ * Retransforms classes affected by changed spy definitions or tracer matchers. Loaded classes
+ * are matched in parallel (as matching may involve reflection on each class), then matching
+ * classes are retransformed in batches, so that JVM is not stalled for too long at once.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
 public class RealSpyRetransformer implements SpyRetransformer {
 
     private static final ZorkaLog log = ZorkaLogger.getLog(RealSpyRetransformer.class);
@@ -33,9 +47,21 @@ public class RealSpyRetransformer implements SpyRetransformer {
 
     private boolean matchMethods;
 
+    /**
+     * Number of threads matching loaded classes.
+     */
+    private int numThreads;
+
+    /**
+     * Maximum number of classes retransformed at once.
+     */
+    private int batchSize;
+
     public RealSpyRetransformer(Instrumentation instrumentation, AgentConfig config) {
         this.instrumentation = instrumentation;
         matchMethods = config.boolCfg("zorka.retransform.match.methods", false);
+        numThreads = config.intCfg("zorka.retransform.threads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+        batchSize = Math.max(1, config.intCfg("zorka.retransform.batch", 256));
         log.info(ZorkaLogger.ZSP_CONFIG, "Enabling spy retransformer. Full online reconfiguration should be possible.");
     }
 
@@ -47,35 +73,44 @@ public class RealSpyRetransformer implements SpyRetransformer {
             return false;
         }
 
-        List<Class<?>> classes = new ArrayList<Class<?>>();
+        long t1 = System.nanoTime();
 
-        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+        Class<?>[] loaded = instrumentation.getAllLoadedClasses();
+        List<Class<?>> classes = match(loaded, oldSet, newSet, isSdef);
 
-            if (clazz.isInterface() || clazz.isAnnotation()) {
-                continue;
-            }
+        long t2 = System.nanoTime();
 
-            boolean oldMatch = oldSet != null && oldSet.classMatch(clazz, matchMethods);
-            boolean newMatch = newSet.classMatch(clazz, matchMethods);
-            if (isSdef ? (oldMatch || newMatch) : (oldMatch != newMatch)) {
-                if (instrumentation.isModifiableClass(clazz)) {
-                    classes.add(clazz);
-                }
-            }
-        }
+        AgentDiagnostics.inc(AgentDiagnostics.RETRANSFORM_SCANNED, loaded.length);
+
+        log.info(ZorkaLogger.ZSP_CONFIG, "Matched " + loaded.length + " loaded classes in "
+                + ((t2 - t1) / 1000000L) + " ms.");
 
         if (classes.size() > 0) {
 
             log.info(ZorkaLogger.ZSP_CONFIG, "Retransforming " + classes.size() + " classes.");
 
-            try {
-                instrumentation.retransformClasses(classes.toArray(new Class[0]));
-            } catch (UnmodifiableClassException e) {
-                log.error(ZorkaLogger.ZSP_CONFIG, "Error when trying to retransform classes", e);
+            for (int i = 0; i < classes.size(); i += batchSize) {
+                List<Class<?>> batch = classes.subList(i, Math.min(i + batchSize, classes.size()));
+                try {
+                    instrumentation.retransformClasses(batch.toArray(new Class[batch.size()]));
+                    AgentDiagnostics.inc(AgentDiagnostics.RETRANSFORM_CLASSES, batch.size());
+                } catch (UnmodifiableClassException e) {
+                    log.error(ZorkaLogger.ZSP_CONFIG, "Error when trying to retransform classes", e);
+                }
+                if (classes.size() > batchSize) {
+                    log.info(ZorkaLogger.ZSP_CONFIG, "Retransformed " + (i + batch.size())
+                            + " of " + classes.size() + " classes.");
+                }
             }
 
+            long t3 = System.nanoTime();
+            AgentDiagnostics.inc(AgentDiagnostics.RETRANSFORM_TIME, t3 - t1);
+
+            log.info(ZorkaLogger.ZSP_CONFIG, "Retransform finished in " + ((t3 - t1) / 1000000L) + " ms.");
+
             return true;
         } else {
+            AgentDiagnostics.inc(AgentDiagnostics.RETRANSFORM_TIME, t2 - t1);
             log.info(ZorkaLogger.ZSP_CONFIG, "No classes need to be retransformed.");
         }
 
@@ -84,6 +119,85 @@ public class RealSpyRetransformer implements SpyRetransformer {
     }
 
 
+    /**
+     * Looks for classes that need to be retransformed. If there are many classes to check,
+     * loaded classes are split into chunks matched by separate threads.
+     *
+     * @return list of classes to be retransformed (in the same order as loaded classes)
+     */
+    private List<Class<?>> match(final Class<?>[] loaded, final SpyMatcherSet oldSet,
+                                 final SpyMatcherSet newSet, final boolean isSdef) {
+
+        if (numThreads <= 1 || loaded.length < batchSize * 2) {
+            return match(loaded, 0, loaded.length, oldSet, newSet, isSdef);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ZORKA-retransform");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            List<Future<List<Class<?>>>> chunks = new ArrayList<Future<List<Class<?>>>>();
+
+            for (int i = 0; i < loaded.length; i += batchSize) {
+                final int start = i, end = Math.min(i + batchSize, loaded.length);
+                chunks.add(executor.submit(new Callable<List<Class<?>>>() {
+                    @Override
+                    public List<Class<?>> call() {
+                        return match(loaded, start, end, oldSet, newSet, isSdef);
+                    }
+                }));
+            }
+
+            List<Class<?>> classes = new ArrayList<Class<?>>();
+
+            for (Future<List<Class<?>>> chunk : chunks) {
+                classes.addAll(chunk.get());
+            }
+
+            return classes;
+        } catch (InterruptedException e) {
+            log.error(ZorkaLogger.ZSP_CONFIG, "Interrupted while matching classes for retransform", e);
+            Thread.currentThread().interrupt();
+            return new ArrayList<Class<?>>();
+        } catch (ExecutionException e) {
+            log.error(ZorkaLogger.ZSP_CONFIG, "Error when matching classes for retransform", e.getCause());
+            return new ArrayList<Class<?>>();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    private List<Class<?>> match(Class<?>[] loaded, int start, int end, SpyMatcherSet oldSet,
+                                 SpyMatcherSet newSet, boolean isSdef) {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+
+        for (int i = start; i < end; i++) {
+            Class<?> clazz = loaded[i];
+
+            if (clazz.isInterface() || clazz.isAnnotation()) {
+                continue;
+            }
+
+            boolean oldMatch = oldSet != null && oldSet.classMatch(clazz, matchMethods);
+            boolean newMatch = newSet.classMatch(clazz, matchMethods);
+            if (isSdef ? (oldMatch || newMatch) : (oldMatch != newMatch)) {
+                if (instrumentation.isModifiableClass(clazz)) {
+                    classes.add(clazz);
+                }
+            }
+        }
+
+        return classes;
+    }
+
+
     @Override
     public boolean isEnabled() {
         return instrumentation != null && instrumentation.isRetransformClassesSupported();
@@ -26,7 +26,7 @@ import static org.objectweb.asm.Opcodes.*;
  *
  * @author rafal.lewczuk@jitlogic.com
  */
-public class SpyArgProbe extends SpyProbe {
+public class SpyArgProbe extends SpyProbe implements SpyLongProbe {
 
     /**
      * Argument index
@@ -53,21 +53,14 @@ public class SpyArgProbe extends SpyProbe {
             mv.visitInsn(ACONST_NULL);
         } else if (argIndex >= 0) {
 
-            if ((mv.getAccess() & ACC_STATIC) == 0 && argIndex == 0) {
+            if (isThisArg(mv)) {
                 mv.visitVarInsn(ALOAD, argIndex);
                 return 1;
             }
 
-            int aoffs = (mv.getAccess() & ACC_STATIC) == 0 ? 1 : 0;
-            int aidx = argIndex - aoffs;
-            Type type = mv.getArgType(aidx);
-            int insn = type.getOpcode(ILOAD);
+            Type type = argType(mv);
 
-            for (int i = 0; i < aidx; i++) {
-                aoffs += mv.getArgType(i).getSize();
-            }
-
-            mv.visitVarInsn(insn, aoffs);
+            mv.visitVarInsn(type.getOpcode(ILOAD), argOffset(mv));
             emitAutoboxing(mv, type);
 
             return 1;
@@ -80,6 +73,51 @@ public class SpyArgProbe extends SpyProbe {
     }
 
 
+    @Override
+    public boolean isLongProbe(SpyMethodVisitor mv, int stage) {
+        return argIndex >= 0 && !isThisArg(mv) && argType(mv).getSort() == Type.LONG;
+    }
+
+
+    @Override
+    public int emitLong(SpyMethodVisitor mv, int stage) {
+        mv.visitVarInsn(LLOAD, argOffset(mv));
+        return 2;
+    }
+
+
+    /**
+     * Returns true if probe fetches 'this' reference (argument 0 of non-static method).
+     */
+    private boolean isThisArg(SpyMethodVisitor mv) {
+        return (mv.getAccess() & ACC_STATIC) == 0 && argIndex == 0;
+    }
+
+
+    /**
+     * Returns type of fetched argument (must not be 'this' reference).
+     */
+    private Type argType(SpyMethodVisitor mv) {
+        int aoffs = (mv.getAccess() & ACC_STATIC) == 0 ? 1 : 0;
+        return mv.getArgType(argIndex - aoffs);
+    }
+
+
+    /**
+     * Returns local variable slot of fetched argument (must not be 'this' reference).
+     */
+    private int argOffset(SpyMethodVisitor mv) {
+        int aoffs = (mv.getAccess() & ACC_STATIC) == 0 ? 1 : 0;
+        int aidx = argIndex - aoffs;
+
+        for (int i = 0; i < aidx; i++) {
+            aoffs += mv.getArgType(i).getSize();
+        }
+
+        return aoffs;
+    }
+
+
     @Override
     public int hashCode() {
         return 31 * getDstField().hashCode();
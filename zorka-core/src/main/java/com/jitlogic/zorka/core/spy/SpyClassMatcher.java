@@ -0,0 +1,342 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import static com.jitlogic.zorka.core.spy.SpyMatcher.*;
+
+/**
+ * Combined class matcher compiled from matcher sets of all spy definitions and tracer. Class
+ * name patterns are split into literal prefix and wildcard suffix. Prefixes are stored in a
+ * trie, so class name is scanned only once and only matchers with matching prefix are checked.
+ * Typical suffixes (**, * or no suffix at all) are checked without regular expressions.
+ * Results are the same as SpyMatcherSet.classMatch() called for each matcher set.
+ * Matcher is immutable, so it has to be recompiled when spy definitions or tracer matchers change.
+ * This also invalidates cache of non-matching class names kept by each matcher.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class SpyClassMatcher {
+
+    /** Matcher decides regardless of class name (class annotations, interfaces etc.) */
+    private static final int M_ALWAYS = 0;
+
+    /** Class name has to be equal to prefix */
+    private static final int M_EXACT = 1;
+
+    /** Class name has to be longer than prefix (** wildcard) */
+    private static final int M_ANY = 2;
+
+    /** Rest of class name has to be an identifier (* wildcard) */
+    private static final int M_NAME = 3;
+
+    /** Class name has to be checked using regular expression */
+    private static final int M_REGEX = 4;
+
+    private static final String SFX_ANY = ".+", SFX_ANY0 = ".*", SFX_NAME = "[a-zA-Z0-9_]+";
+
+    private final List<SpyDefinition> sdefs;
+
+    private final SpyMatcherSet tracerMatchers;
+
+    private final Node root = new Node();
+
+    /**
+     * Names of classes that matched neither spy definitions nor tracer. Class level matching depends
+     * only on class names, so there is no need to keep separate entries for each class loader.
+     */
+    private final ConcurrentMap<String, Boolean> rejected = new ConcurrentHashMap<String, Boolean>();
+
+    private final int maxRejected;
+
+
+    /**
+     * Compiles matcher.
+     *
+     * @param sdefs          spy definitions (in order they should be checked)
+     * @param tracerMatchers tracer matcher set
+     * @param maxRejected    maximum number of cached non-matching class names (0 disables caching)
+     */
+    public SpyClassMatcher(Collection<SpyDefinition> sdefs, SpyMatcherSet tracerMatchers, int maxRejected) {
+        this.sdefs = new ArrayList<SpyDefinition>(sdefs);
+        this.tracerMatchers = tracerMatchers;
+        this.maxRejected = maxRejected;
+
+        for (int i = 0; i < this.sdefs.size(); i++) {
+            compile(i, this.sdefs.get(i).getMatcherSet());
+        }
+
+        if (tracerMatchers != null) {
+            compile(this.sdefs.size(), tracerMatchers);
+        }
+    }
+
+
+    public SpyMatcherSet getTracerMatchers() {
+        return tracerMatchers;
+    }
+
+
+    public List<SpyDefinition> getSpyDefinitions() {
+        return sdefs;
+    }
+
+
+    public int getMaxRejected() {
+        return maxRejected;
+    }
+
+
+    private void compile(int set, SpyMatcherSet sms) {
+        List<SpyMatcher> matchers = sms.getMatchers();
+        for (int i = 0; i < matchers.size(); i++) {
+            SpyMatcher m = matchers.get(i);
+            if (m.hasFlags(BY_CLASS_ANNOTATION | BY_INTERFACE | BY_METHOD_ANNOTATION)) {
+                // Undecidable at this stage, just as in SpyMatcherSet.classMatch()
+                root.add(new Entry(set, i, m, M_ALWAYS, 0));
+            } else if (m.hasFlags(BY_CLASS_NAME)) {
+                addPattern(set, i, m);
+            }
+        }
+    }
+
+
+    private void addPattern(int set, int order, SpyMatcher m) {
+        String regex = m.getClassPattern().pattern();
+        StringBuilder prefix = new StringBuilder();
+        int pos = 0;
+
+        if (regex.indexOf('|') == -1) {
+            while (pos < regex.length()) {
+                char c = regex.charAt(pos);
+                int len;
+                if (Character.isLetterOrDigit(c) || c == '_') {
+                    len = 1;
+                } else if (c == '\\' && pos + 1 < regex.length() && (regex.charAt(pos+1) == '.' || regex.charAt(pos+1) == '$')) {
+                    c = regex.charAt(pos + 1);
+                    len = 2;
+                } else {
+                    break;
+                }
+                if (pos + len < regex.length() && "*+?{".indexOf(regex.charAt(pos + len)) != -1) {
+                    // Quantified character is not part of literal prefix
+                    break;
+                }
+                prefix.append(c);
+                pos += len;
+            }
+        }
+
+        String suffix = regex.substring(pos);
+        int mode;
+
+        if (suffix.length() == 0) {
+            mode = M_EXACT;
+        } else if (SFX_ANY.equals(suffix)) {
+            mode = M_ANY;
+        } else if (SFX_ANY0.equals(suffix)) {
+            mode = M_ALWAYS;
+        } else if (SFX_NAME.equals(suffix)) {
+            mode = M_NAME;
+        } else {
+            mode = M_REGEX;
+        }
+
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.child(prefix.charAt(i), true);
+        }
+
+        node.add(new Entry(set, order, m, mode, prefix.length()));
+    }
+
+
+    /**
+     * Matches class name against all spy definitions and tracer.
+     *
+     * @param className class name
+     * @param found     spy definitions matching given class will be added here
+     * @return true if tracer matcher set matches given class
+     */
+    public boolean match(String className, List<SpyDefinition> found) {
+        Entry[] best = null;
+        Node node = root;
+
+        for (int pos = 0; node != null; pos++) {
+            for (int i = 0; i < node.entries.length; i++) {
+                Entry e = node.entries[i];
+                if ((best == null || best[e.set] == null || best[e.set].order > e.order) && e.matches(className)) {
+                    if (best == null) {
+                        best = new Entry[sdefs.size() + 1];
+                    }
+                    best[e.set] = e;
+                }
+            }
+            node = pos < className.length() ? node.child(className.charAt(pos), false) : null;
+        }
+
+        if (best == null) {
+            return false;
+        }
+
+        for (int i = 0; i < sdefs.size(); i++) {
+            if (best[i] != null && best[i].result) {
+                found.add(sdefs.get(i));
+            }
+        }
+
+        return best[sdefs.size()] != null && best[sdefs.size()].result;
+    }
+
+
+    /**
+     * Returns true if class is known not to match anything (see reject()).
+     *
+     * @param className class name
+     * @return true if class has been rejected before
+     */
+    public boolean isRejected(String className) {
+        return maxRejected > 0 && rejected.containsKey(className);
+    }
+
+
+    /**
+     * Remembers that given class does not match anything. When cache fills up, it is simply
+     * cleared, so there is no need to track usage of cache entries.
+     *
+     * @param className class name
+     */
+    public void reject(String className) {
+        if (maxRejected > 0) {
+            if (rejected.size() >= maxRejected) {
+                rejected.clear();
+            }
+            rejected.put(className, Boolean.TRUE);
+        }
+    }
+
+
+    /**
+     * Compiled class name matcher.
+     */
+    private static class Entry {
+
+        /** Matcher set index (spy definition index or number of spy definitions for tracer) */
+        private final int set;
+
+        /** Position of matcher in its matcher set (lower position wins) */
+        private final int order;
+
+        private final int mode, plen;
+
+        private final Pattern pattern;
+
+        /** Match result (false for exclusions) */
+        private final boolean result;
+
+
+        private Entry(int set, int order, SpyMatcher matcher, int mode, int plen) {
+            this.set = set;
+            this.order = order;
+            this.mode = mode;
+            this.plen = plen;
+            this.pattern = matcher.getClassPattern();
+            this.result = !matcher.hasFlags(EXCLUDE_MATCH)
+                    || !SFX_NAME.equals(matcher.getMethodPattern().toString());
+        }
+
+
+        private boolean matches(String className) {
+            switch (mode) {
+                case M_ALWAYS:
+                    return true;
+                case M_EXACT:
+                    return className.length() == plen;
+                case M_ANY:
+                    return className.length() > plen;
+                case M_NAME:
+                    if (className.length() == plen) {
+                        return false;
+                    }
+                    for (int i = plen; i < className.length(); i++) {
+                        char c = className.charAt(i);
+                        if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_')) {
+                            return false;
+                        }
+                    }
+                    return true;
+                default:
+                    return pattern.matcher(className).matches();
+            }
+        }
+    }
+
+
+    /**
+     * Prefix trie node.
+     */
+    private static class Node {
+
+        private char[] chars = new char[0];
+
+        private Node[] children = new Node[0];
+
+        private Entry[] entries = new Entry[0];
+
+
+        private Node child(char c, boolean create) {
+            for (int i = 0; i < chars.length; i++) {
+                if (chars[i] == c) {
+                    return children[i];
+                }
+            }
+
+            if (!create) {
+                return null;
+            }
+
+            Node node = new Node();
+
+            char[] nchars = new char[chars.length + 1];
+            System.arraycopy(chars, 0, nchars, 0, chars.length);
+            nchars[chars.length] = c;
+
+            Node[] nchildren = new Node[children.length + 1];
+            System.arraycopy(children, 0, nchildren, 0, children.length);
+            nchildren[children.length] = node;
+
+            chars = nchars;
+            children = nchildren;
+
+            return node;
+        }
+
+
+        private void add(Entry e) {
+            Entry[] nentries = new Entry[entries.length + 1];
+            System.arraycopy(entries, 0, nentries, 0, entries.length);
+            nentries[entries.length] = e;
+            entries = nentries;
+        }
+    }
+}
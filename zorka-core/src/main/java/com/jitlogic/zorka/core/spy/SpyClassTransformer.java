@@ -17,6 +17,7 @@
 
 package com.jitlogic.zorka.core.spy;
 
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.stats.MethodCallStatistic;
 import com.jitlogic.zorka.common.stats.MethodCallStatistics;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
@@ -25,12 +26,19 @@ import com.jitlogic.zorka.common.util.ZorkaLog;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
 
+import java.io.UnsupportedEncodingException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
 
 /**
  * This is main class transformer installed in JVM by Zorka agent (see premain() method).
@@ -49,30 +57,55 @@ public class SpyClassTransformer implements ClassFileTransformer {
      */
     private Map<String, SpyDefinition> sdefs = new LinkedHashMap<String, SpyDefinition>();
 
+    /**
+     * Class matcher compiled from all spy defs and tracer matchers. It is replaced (while holding
+     * transformer lock) every time spy defs change, so transform() can read it without locking.
+     */
+    private final AtomicReference<SpyClassMatcher> classMatcher = new AtomicReference<SpyClassMatcher>();
 
     /**
-     * SpyContext counter.
+     * Classes from these packages are never instrumented (they're rejected without any lookups).
      */
-    private int nextId = 1;
+    private volatile String[] rejectedPackages = new String[0];
 
     /**
-     * Map of spy contexts (by ID)
+     * Maximum number of cached names of classes that matched nothing (see SpyClassMatcher.reject()).
      */
-    private Map<Integer, SpyContext> ctxById = new ConcurrentHashMap<Integer, SpyContext>();
+    private int rejectCacheSize = 4096;
 
     /**
-     * Map of spy contexts (by instance)
+     * On-disk cache of instrumented bytecode (or null if disabled). Only classes instrumented
+     * by tracer alone are cached, as spy context IDs are different in each agent run.
      */
-    private Map<SpyContext, SpyContext> ctxInstances = new HashMap<SpyContext, SpyContext>();
+    private volatile BytecodeCache bytecodeCache;
 
-    private ThreadLocal<Boolean> transformLock = new ThreadLocal<Boolean>();
+    /**
+     * Fingerprint of global tracer configuration along with matcher set it has been computed from. Snapshot
+     * is immutable and replaced as a whole when tracer matchers change, so class load path reads it without locks.
+     */
+    private volatile CacheFingerprint cacheFingerprint;
 
-    private ThreadLocal<Set<String>> currentTransformsTL = new ThreadLocal<Set<String>>() {
-        @Override
-        public Set<String> initialValue() {
-            return new HashSet<String>();
-        }
-    };
+    /**
+     * SpyContext counter.
+     */
+    private AtomicInteger nextId = new AtomicInteger(1);
+
+    /**
+     * Spy contexts indexed by ID. As context IDs are dense, array is used instead of a map, so
+     * submitter can find contexts without boxing and hashing. Array is replaced by bigger copy
+     * when it fills up. Readers never lock, writers synchronize on ctxByIdLock.
+     */
+    private volatile AtomicReferenceArray<SpyContext> ctxById = new AtomicReferenceArray<SpyContext>(1024);
+
+    /**
+     * Guards modifications of ctxById array.
+     */
+    private final Object ctxByIdLock = new Object();
+
+    /**
+     * Map of spy contexts (by instance)
+     */
+    private ConcurrentMap<SpyContext, SpyContext> ctxInstances = new ConcurrentHashMap<SpyContext, SpyContext>();
 
     private SymbolRegistry symbolRegistry;
 
@@ -80,12 +113,24 @@ public class SpyClassTransformer implements ClassFileTransformer {
 
     private boolean computeFrames;
 
+    /**
+     * Super classes and interfaces of classes seen by transformer (used when computing frames).
+     */
+    private TypeHierarchy typeHierarchy = new TypeHierarchy();
+
     /**
      * Reference to tracer instance.
      */
     Tracer tracer;
 
-    private MethodCallStatistic tracerLookups, classesProcessed, classesTransformed, spyLookups;
+    /**
+     * Transformer statistics. Both spy defs and tracer are matched in a single lookup (see SpyClassMatcher),
+     * so SpyLookups measures all lookups and TracerLookups only counts classes matched by tracer. Lookups
+     * that could not be resolved by package filter or reject cache are also counted as SpyLookupMisses.
+     * Bytecode cache hits are counted as ClassesFromCache and misses as ClassCacheMisses.
+     */
+    private MethodCallStatistic tracerLookups, classesProcessed, classesTransformed, spyLookups, spyLookupMisses,
+        classesScanned, classesFromCache, classCacheMisses;
 
 
     /**
@@ -101,9 +146,15 @@ public class SpyClassTransformer implements ClassFileTransformer {
         this.retransformer = retransformer;
 
         this.spyLookups = statistics.getMethodCallStatistic("SpyLookups");
+        this.spyLookupMisses = statistics.getMethodCallStatistic("SpyLookupMisses");
         this.tracerLookups = statistics.getMethodCallStatistic("TracerLookups");
         this.classesProcessed = statistics.getMethodCallStatistic("ClassesProcessed");
         this.classesTransformed = statistics.getMethodCallStatistic("ClassesTransformed");
+        this.classesScanned = statistics.getMethodCallStatistic("ClassesScanned");
+        this.classesFromCache = statistics.getMethodCallStatistic("ClassesFromCache");
+        this.classCacheMisses = statistics.getMethodCallStatistic("ClassCacheMisses");
+
+        updateClassMatcher();
 
         if (!computeFrames) {
             log.info(ZorkaLogger.ZAG_CONFIG, "Disabling COMPUTE_FRAMES. Remeber to add -XX:-UseSplitVerifier JVM option in JDK7 or -noverify in JDK8.");
@@ -115,7 +166,33 @@ public class SpyClassTransformer implements ClassFileTransformer {
      * Returns context by its ID
      */
     public SpyContext getContext(int id) {
-        return ctxById.get(id);
+        AtomicReferenceArray<SpyContext> ctxs = ctxById;
+        return id >= 0 && id < ctxs.length() ? ctxs.get(id) : null;
+    }
+
+
+    /**
+     * Stores (or clears) context in ID-indexed array, growing array if necessary.
+     *
+     * @param id  context ID
+     * @param ctx context (or null)
+     */
+    private void setContext(int id, SpyContext ctx) {
+        synchronized (ctxByIdLock) {
+            AtomicReferenceArray<SpyContext> ctxs = ctxById;
+
+            if (id >= ctxs.length()) {
+                AtomicReferenceArray<SpyContext> newCtxs = new AtomicReferenceArray<SpyContext>(
+                        Math.max(ctxs.length() * 2, id + 1));
+                for (int i = 0; i < ctxs.length(); i++) {
+                    newCtxs.set(i, ctxs.get(i));
+                }
+                ctxs = newCtxs;
+                ctxById = newCtxs;
+            }
+
+            ctxs.set(id, ctx);
+        }
     }
 
 
@@ -130,16 +207,25 @@ public class SpyClassTransformer implements ClassFileTransformer {
      *         TODO BUG one context ID refers only to one sdef, so using multiple sdefs on a single method will result errors (submitting data from all probes only to first one)
      */
     public SpyContext lookup(SpyContext keyCtx) {
-        synchronized (this) { // TODO get rid of synchronized, use
-            SpyContext ctx = ctxInstances.get(keyCtx);
+        SpyContext ctx = ctxInstances.get(keyCtx);
+
+        if (ctx == null) {
+            keyCtx.setId(nextId.getAndIncrement());
+
+            // Context must be reachable by ID before other threads can find it and emit probes using its ID
+            setContext(keyCtx.getId(), keyCtx);
+
+            ctx = ctxInstances.putIfAbsent(keyCtx, keyCtx);
+
             if (ctx == null) {
                 ctx = keyCtx;
-                ctx.setId(nextId++);
-                ctxInstances.put(ctx, ctx);
-                ctxById.put(ctx.getId(), ctx);
+            } else {
+                // Another thread registered the same context in the meantime, so ID is wasted
+                setContext(keyCtx.getId(), null);
             }
-            return ctx;
         }
+
+        return ctx;
     }
 
 
@@ -164,7 +250,11 @@ public class SpyClassTransformer implements ClassFileTransformer {
             return null;
         }
 
+        // Resolve record field slots now, so it won't happen on first submission
+        sdef.getLayout();
+
         sdefs.put(sdef.getName(), sdef);
+        updateClassMatcher();
 
         if (retransformer.isEnabled() && (osdef == null || !osdef.sameProbes(sdef))) {
             retransformer.retransform(osdef != null ? osdef.getMatcherSet() : null, sdef.getMatcherSet(), true);
@@ -198,21 +288,13 @@ public class SpyClassTransformer implements ClassFileTransformer {
             log.info(ZorkaLogger.ZSP_CONFIG, "Removing spy definition: " + sdef.getName());
 
             sdefs.remove(sdef.getName());
+            updateClassMatcher();
 
-            Set<SpyContext> ctxs = new HashSet<SpyContext>();
-            Set<Integer> ids = new HashSet<Integer>();
-
-            for (Map.Entry<Integer, SpyContext> e : ctxById.entrySet()) {
-                ids.add(e.getKey());
-                ctxs.add(e.getValue());
-            }
-
-            for (Integer id : ids) {
-                ctxById.remove(id);
-            }
-
-            for (SpyContext ctx : ctxs) {
-                ctxInstances.remove(ctx);
+            for (SpyContext ctx : ctxInstances.values()) {
+                if (ctx.getSpyDefinition() == sdef) {
+                    ctxInstances.remove(ctx);
+                    setContext(ctx.getId(), null);
+                }
             }
 
             if (retransformer.isEnabled()) {
@@ -237,14 +319,166 @@ public class SpyClassTransformer implements ClassFileTransformer {
     }
 
 
+    /**
+     * Sets packages that will never be instrumented.
+     *
+     * @param packages package prefixes (eg. "sun.reflect.Generated")
+     */
+    public void setRejectedPackages(List<String> packages) {
+        rejectedPackages = packages.toArray(new String[packages.size()]);
+    }
+
+
+    /**
+     * Sets maximum number of cached names of classes that didn't match anything. Cache is
+     * invalidated every time spy definitions or tracer matchers change.
+     *
+     * @param size maximum number of cached class names (0 disables cache)
+     */
+    public synchronized void setRejectCacheSize(int size) {
+        rejectCacheSize = size;
+        updateClassMatcher();
+    }
+
+
+    /**
+     * Sets on-disk cache of instrumented bytecode.
+     *
+     * @param bytecodeCache bytecode cache (or null to disable caching)
+     */
+    public void setBytecodeCache(BytecodeCache bytecodeCache) {
+        this.bytecodeCache = bytecodeCache;
+    }
+
+
+    public BytecodeCache getBytecodeCache() {
+        return bytecodeCache;
+    }
+
+
+    /**
+     * Returns fingerprint of tracer configuration affecting instrumented bytecode of given class. Global part
+     * (tracer matchers) is computed once per matcher set. Methods promoted in lazy mode affect only their own
+     * classes, so only hot matchers that can match given class are mixed in, and promotions do not invalidate
+     * cached bytecode of other classes.
+     */
+    private long getCacheFingerprint(String className) {
+        long fingerprint = getCacheFingerprint();
+        SpyMatcherSet hot = tracer.getHotMatcherSet();
+
+        if (hot != null) {
+            CRC32 crc = new CRC32();
+            updateCrc(crc, "lazy");
+            for (SpyMatcher m : hot.getMatchers()) {
+                if (!m.hasFlags(SpyMatcher.BY_CLASS_NAME) || m.getClassPattern().matcher(className).matches()) {
+                    updateCrc(crc, "\n" + m);
+                }
+            }
+            fingerprint ^= crc.getValue() << 16;
+        }
+
+        return fingerprint;
+    }
+
+
+    /**
+     * Returns fingerprint of global tracer configuration affecting instrumented bytecode.
+     */
+    private long getCacheFingerprint() {
+        SpyMatcherSet sms = tracer.getMatcherSet();
+        CacheFingerprint fp = cacheFingerprint;
+
+        if (fp == null || fp.matchers != sms) {
+            // Racing threads compute the same value, so last write wins without harm
+            fp = new CacheFingerprint(sms, computeFrames);
+            cacheFingerprint = fp;
+        }
+
+        return fp.value;
+    }
+
+
+    /**
+     * Immutable snapshot of global cache fingerprint.
+     */
+    private static class CacheFingerprint {
+
+        private final SpyMatcherSet matchers;
+
+        private final long value;
+
+
+        private CacheFingerprint(SpyMatcherSet matchers, boolean computeFrames) {
+            CRC32 crc = new CRC32();
+            StringBuilder sb = new StringBuilder();
+            sb.append(computeFrames);
+            for (SpyMatcher m : matchers.getMatchers()) {
+                sb.append('\n').append(m);
+            }
+            updateCrc(crc, sb.toString());
+            this.matchers = matchers;
+            this.value = crc.getValue() ^ ((long) matchers.getMatchers().size() << 32);
+        }
+    }
+
+
+    private static void updateCrc(CRC32 crc, String s) {
+        try {
+            crc.update(s.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            crc.update(s.getBytes());
+        }
+    }
+
+
+    public TypeHierarchy getTypeHierarchy() {
+        return typeHierarchy;
+    }
+
+
+    private boolean isRejectedPackage(String className) {
+        String[] packages = rejectedPackages;
+        for (int i = 0; i < packages.length; i++) {
+            if (className.startsWith(packages[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Compiles and publishes class matcher for current spy defs. Must be called while holding transformer lock.
+     */
+    private void updateClassMatcher() {
+        classMatcher.set(new SpyClassMatcher(sdefs.values(), tracer.getMatcherSet(), rejectCacheSize));
+    }
+
+
+    /**
+     * Returns class matcher for current spy defs and tracer matchers. This is called on class load path,
+     * so no locks are taken. If tracer matchers have changed, matcher is recompiled with the same spy defs,
+     * unless another matcher has been published in the meantime.
+     *
+     * @return compiled class matcher
+     */
+    public SpyClassMatcher getClassMatcher() {
+        SpyClassMatcher matcher = classMatcher.get();
+        SpyMatcherSet tms = tracer.getMatcherSet();
+
+        if (matcher.getTracerMatchers() != tms) {
+            SpyClassMatcher m = new SpyClassMatcher(matcher.getSpyDefinitions(), tms, matcher.getMaxRejected());
+            matcher = classMatcher.compareAndSet(matcher, m) ? m : classMatcher.get();
+        }
+
+        return matcher;
+    }
+
+
     @Override
     public byte[] transform(ClassLoader classLoader, String className, Class<?> classBeingRedefined,
                             ProtectionDomain protectionDomain, byte[] cbf) throws IllegalClassFormatException {
 
-        if (Boolean.TRUE.equals(transformLock.get())) {
-            return null;
-        }
-
         if (cbf == null || cbf.length < 128 ||
             cbf[0] != (byte)0xca || cbf[1] != (byte)0xfe ||
             cbf[2] != (byte)0xba || cbf[3] != (byte)0xbe) {
@@ -253,72 +487,161 @@ public class SpyClassTransformer implements ClassFileTransformer {
 
         String clazzName = className.replace("/", ".");
 
-        Set<String> currentTransforms = currentTransformsTL.get();
-        if (currentTransforms.contains(clazzName)) {
+        AgentThreadContext atc = AgentThreadContext.get();
+        if (!atc.beginTransform(clazzName)) {
             return null;
-        } else {
-            currentTransforms.add(clazzName);
         }
 
-        long pt1 = System.nanoTime();
+        try {
+            long pt1 = System.nanoTime();
 
-        List<SpyDefinition> found = new ArrayList<SpyDefinition>();
+            List<SpyDefinition> found = new ArrayList<SpyDefinition>();
 
-        if (ZorkaLogger.isLogMask(ZorkaLogger.ZSP_CLASS_TRC)) {
-            log.debug(ZorkaLogger.ZSP_CLASS_TRC, "Encountered class: %s", className);
-        }
+            if (ZorkaLogger.isLogMask(ZorkaLogger.ZSP_CLASS_TRC)) {
+                log.debug(ZorkaLogger.ZSP_CLASS_TRC, "Encountered class: %s", className);
+            }
 
-        long st1 = System.nanoTime();
-        for (Map.Entry<String, SpyDefinition> e : sdefs.entrySet()) {
-            SpyDefinition sdef = e.getValue();
-            if (sdef.getMatcherSet().classMatch(clazzName)) {
-                found.add(sdef);
+            long st1 = System.nanoTime();
+            boolean tracerMatch = false;
+            SpyClassMatcher matcher = getClassMatcher();
+            if (isRejectedPackage(clazzName) || matcher.isRejected(clazzName)) {
+                spyLookups.logCall(System.nanoTime() - st1);
+            } else {
+                tracerMatch = matcher.match(clazzName, found);
+                if (!tracerMatch && found.isEmpty()) {
+                    matcher.reject(clazzName);
+                }
+                long lt = System.nanoTime() - st1;
+                spyLookups.logCall(lt);
+                spyLookupMisses.logCall(lt);
+                if (tracerMatch) {
+                    tracerLookups.logCall(lt);
+                }
+            }
+
+            if (found.size() > 0 || tracerMatch) {
+                tracerMatch = checkHeader(classLoader, cbf, found, tracerMatch);
             }
-        }
-        long st2 = System.nanoTime();
 
-        spyLookups.logCall(st2 - st1);
+            byte[] buf = cbf;
+
+            BytecodeCache cache = found.isEmpty() && tracerMatch ? bytecodeCache : null;
+            long fingerprint = 0;
+
+            if (cache != null) {
+                long ct1 = System.nanoTime();
+                fingerprint = getCacheFingerprint(clazzName);
+                BytecodeCache.Entry cached = cache.lookup(clazzName, cbf, fingerprint);
+                if (cached != null) {
+                    buf = cached.getBytecode();
+                    // Keep diagnostics consistent with classes instrumented from scratch
+                    AgentDiagnostics.inc(AgentDiagnostics.METHODS_INSTRUMENTED, cached.getMethods());
+                    classesFromCache.logCall(System.nanoTime() - ct1);
+                    cache = null;
+                    tracerMatch = false;
+                } else {
+                    classCacheMisses.logCall(System.nanoTime() - ct1);
+                }
+            }
 
-        long lt1 = System.nanoTime();
-        boolean tracerMatch = tracer.getMatcherSet().classMatch(clazzName);
-        long lt2 = System.nanoTime();
+            if (found.size() > 0 || tracerMatch) {
 
-        tracerLookups.logCall(lt2 - lt1);
+                long tt1 = System.nanoTime();
 
-        byte[] buf = cbf;
+                if (ZorkaLogger.isLogMask(ZorkaLogger.ZSP_CLASS_TRC)) {
+                    log.debug(ZorkaLogger.ZSP_CLASS_TRC, "Transforming class: %s (sdefs found: %d; tracer match: %b)",
+                            className, found.size(), tracerMatch);
+                }
 
-        if (found.size() > 0 || tracerMatch) {
+                boolean doComputeFrames = computeFrames && (cbf[7] > (byte) 0x32);
 
-            long tt1 = System.nanoTime();
+                ClassReader cr = new ClassReader(cbf);
 
-            if (ZorkaLogger.isLogMask(ZorkaLogger.ZSP_CLASS_TRC)) {
-                log.debug(ZorkaLogger.ZSP_CLASS_TRC, "Transforming class: %s (sdefs found: %d; tracer match: %b)",
-                        className, found.size(), tracerMatch);
-            }
+                if (doComputeFrames) {
+                    typeHierarchy.add(classLoader, new TypeHierarchy.TypeInfo(cr.getClassName(), cr.getSuperName(),
+                            cr.getInterfaces(), 0 != (cr.getAccess() & Opcodes.ACC_INTERFACE)));
+                }
 
-            boolean doComputeFrames = computeFrames && (cbf[7] > (byte) 0x32);
+                ClassWriter cw = new SpyClassWriter(cr, doComputeFrames ? ClassWriter.COMPUTE_FRAMES : 0,
+                        classLoader, typeHierarchy);
+                SpyClassVisitor scv = createVisitor(classLoader, clazzName, found, tracer, cw);
 
-            ClassReader cr = new ClassReader(cbf);
-            ClassWriter cw = new ClassWriter(cr, doComputeFrames ? ClassWriter.COMPUTE_FRAMES : 0);
-            SpyClassVisitor scv = createVisitor(classLoader, clazzName, found, tracer, cw);
-            cr.accept(scv, 0);
+                cr.accept(scv, 0);
 
-            if(scv.wasBytecodeModified()) {
-                buf = cw.toByteArray();
+                if (scv.wasBytecodeModified()) {
+                    buf = cw.toByteArray();
+                    if (cache != null) {
+                        cache.put(clazzName, cbf, fingerprint, buf, scv.getMethodsInstrumented());
+                    }
+                }
+
+                long tt2 = System.nanoTime();
+                classesTransformed.logCall(tt2 - tt1);
             }
 
-            long tt2 = System.nanoTime();
-            classesTransformed.logCall(tt2 - tt1);
+            long pt2 = System.nanoTime();
+            classesProcessed.logCall(pt2 - pt1);
+
+            return buf == cbf ? null : buf;
+        } catch (TypeNotPresentException e) {
+            log.error(ZorkaLogger.ZSP_ERRORS, "Cannot compute frames for class " + clazzName
+                    + ". Class will not be instrumented.", e);
+            AgentDiagnostics.inc(AgentDiagnostics.SPY_ERRORS);
+            return null;
+        } finally {
+            atc.endTransform(clazzName);
+        }
+    }
+
+    /**
+     * Checks class header if class has been matched by annotation or interface matchers. Spy definitions
+     * that cannot match are removed from list of found definitions.
+     *
+     * @param classLoader class loader of checked class
+     * @param cbf         class bytecode
+     * @param found       spy definitions matched by class name
+     * @param tracerMatch true if tracer matched class name
+     * @return true if tracer can match
+     */
+    private boolean checkHeader(ClassLoader classLoader, byte[] cbf, List<SpyDefinition> found, boolean tracerMatch) {
+        boolean checkTracer = tracerMatch && tracer.getMatcherSet().hasMetadataMatchers();
+        boolean checkSdefs = false;
+
+        for (SpyDefinition sdef : found) {
+            checkSdefs |= sdef.getMatcherSet().hasMetadataMatchers();
+        }
+
+        if (!checkTracer && !checkSdefs) {
+            return tracerMatch;
         }
 
-        currentTransforms.remove(clazzName);
+        long t1 = System.nanoTime();
 
-        long pt2 = System.nanoTime();
-        classesProcessed.logCall(pt2 - pt1);
+        ClassHeader header = ClassHeader.scan(cbf);
 
-        return buf == cbf ? null : buf;
+        if (header != null) {
+            if (computeFrames) {
+                typeHierarchy.add(classLoader, header);
+            }
+
+            for (Iterator<SpyDefinition> i = found.iterator(); i.hasNext(); ) {
+                SpyMatcherSet sms = i.next().getMatcherSet();
+                if (sms.hasMetadataMatchers() && !sms.classMatch(header)) {
+                    i.remove();
+                }
+            }
+
+            if (checkTracer) {
+                tracerMatch = tracer.getMatcherSet().classMatch(header);
+            }
+        }
+
+        classesScanned.logCall(System.nanoTime() - t1);
+
+        return tracerMatch;
     }
 
+
     /**
      * Spawn class visitor for transformed class.
      *
@@ -26,7 +26,9 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Traverses class file and instruments selected method according to supplied spy definitions.
@@ -78,6 +80,26 @@ public class SpyClassVisitor extends ClassVisitor {
 
     private boolean bytecodeWasModified = false;
 
+    /**
+     * Method visitors created for instrumented methods.
+     */
+    private List<SpyMethodVisitor> methodVisitors = new ArrayList<SpyMethodVisitor>();
+
+    /**
+     * Method matching tables of spy definitions (created when first method is visited)
+     */
+    private Map<SpyMatcherSet, MethodMatchTable> matchTables;
+
+    /**
+     * Method matching table of tracer
+     */
+    private MethodMatchTable tracerTable;
+
+    /**
+     * Method matching table of methods promoted to full tracing (or null if tracer is not in lazy mode)
+     */
+    private MethodMatchTable hotTable;
+
     /**
      * Creates Spy class visitor.
      *
@@ -168,24 +190,37 @@ public class SpyClassVisitor extends ClassVisitor {
 
         MethodVisitor mv = createVisitor(access, methodName, methodDesc, methodSignature, exceptions);
         List<SpyContext> ctxs = new ArrayList<SpyContext>(sdefs.size() + 2);
+        List<MethodMatchTable> ctxTables = new ArrayList<MethodMatchTable>(sdefs.size() + 2);
+
+        if (matchTables == null) {
+            createMatchTables();
+        }
 
         boolean m = true;
 
         for (SpyDefinition sdef : sdefs) {
-            if (sdef.getMatcherSet().methodMatch(className, classAnnotations, classInterfaces,
-                    access, methodName, methodDesc, null)) {
+            MethodMatchTable mmt = matchTables.get(sdef.getMatcherSet());
+            if (mmt.match(access, methodName, methodDesc, null)) {
                 log.debug(ZorkaLogger.ZSP_METHOD_DBG, "Instrumenting method (full SPY): " + className + "." + methodName + " " + methodDesc);
                 ctxs.add(transformer.lookup(
                         new SpyContext(sdef, className, methodName, methodDesc, access)));
+                ctxTables.add(mmt);
             }
 
-            if (sdef.getMatcherSet().hasMethodAnnotations()) {
+            if (mmt.hasMethodAnnotations()) {
                 m = false;
             }
         }
 
-        boolean doTrace = tracer.getMatcherSet().methodMatch(className, classAnnotations, classInterfaces,
-                access, methodName, methodDesc, null) || (tracer.isTraceSpyMethods() && ctxs.size() > 0);
+        boolean doTrace = tracerTable.match(access, methodName, methodDesc, null);
+
+        // In lazy mode methods not promoted yet get only counting stubs
+        boolean countOnly = doTrace && hotTable != null && !hotTable.match(access, methodName, methodDesc, null);
+
+        if (tracer.isTraceSpyMethods() && ctxs.size() > 0) {
+            doTrace = true;
+            countOnly = false;
+        }
 
         if (doTrace && ZorkaLogger.isLogMask(ZorkaLogger.ZTR_INSTRUMENT_METHOD)) {
             log.debug(ZorkaLogger.ZTR_INSTRUMENT_METHOD, "Instrumenting method (for trace): "
@@ -194,13 +229,36 @@ public class SpyClassVisitor extends ClassVisitor {
 
         if (ctxs.size() > 0 || doTrace) {
             bytecodeWasModified = true;
-            return new SpyMethodVisitor(m, doTrace ? symbolRegistry : null, className,
-                    classAnnotations, classInterfaces, access, methodName, methodDesc, ctxs, mv);
+            SpyMethodVisitor smv = new SpyMethodVisitor(m, doTrace ? symbolRegistry : null, countOnly, className,
+                    access, methodName, methodDesc, ctxs, ctxTables, mv);
+            methodVisitors.add(smv);
+            return smv;
         }
 
         return mv;
     }
 
+    /**
+     * Creates method matching tables for all spy definitions and tracer. This is done when first
+     * method is visited, so all class annotations are already known.
+     */
+    private void createMatchTables() {
+        matchTables = new IdentityHashMap<SpyMatcherSet, MethodMatchTable>();
+
+        for (SpyDefinition sdef : sdefs) {
+            SpyMatcherSet sms = sdef.getMatcherSet();
+            if (!matchTables.containsKey(sms)) {
+                matchTables.put(sms, sms.methodMatchTable(className, classAnnotations, classInterfaces));
+            }
+        }
+
+        tracerTable = tracer.getMatcherSet().methodMatchTable(className, classAnnotations, classInterfaces);
+
+        SpyMatcherSet hot = tracer.getHotMatcherSet();
+        hotTable = hot != null ? hot.methodMatchTable(className, classAnnotations, classInterfaces) : null;
+    }
+
+
     /**
      * Creates method visitor for given method.
      *
@@ -218,4 +276,18 @@ public class SpyClassVisitor extends ClassVisitor {
     public boolean wasBytecodeModified() {
         return bytecodeWasModified;
     }
+
+
+    /**
+     * Returns number of methods probes have been actually emitted into.
+     */
+    public int getMethodsInstrumented() {
+        int n = 0;
+        for (SpyMethodVisitor smv : methodVisitors) {
+            if (smv.isInstrumented()) {
+                n++;
+            }
+        }
+        return n;
+    }
 }
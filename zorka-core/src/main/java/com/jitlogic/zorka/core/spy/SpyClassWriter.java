@@ -0,0 +1,52 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Class writer that resolves common super classes using type hierarchy index instead of
+ * loading classes via agent class loader (as standard ClassWriter does).
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class SpyClassWriter extends ClassWriter {
+
+    private ClassLoader classLoader;
+
+    private TypeHierarchy hierarchy;
+
+
+    public SpyClassWriter(ClassReader cr, int flags, ClassLoader classLoader, TypeHierarchy hierarchy) {
+        super(cr, flags);
+        this.classLoader = classLoader;
+        this.hierarchy = hierarchy;
+    }
+
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        String type = hierarchy.getCommonSuperClass(classLoader, type1, type2);
+
+        if (type == null) {
+            throw new TypeNotPresentException(type1 + " or " + type2, null);
+        }
+
+        return type;
+    }
+}
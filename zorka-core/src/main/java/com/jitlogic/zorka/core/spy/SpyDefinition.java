@@ -58,6 +58,11 @@ public class SpyDefinition {
      */
     private SpyMatcherSet matcherSet = new SpyMatcherSet();
 
+    /**
+     * Record layout (computed on first use, typically when sdef is registered in class transformer)
+     */
+    private volatile SpyRecordLayout layout;
+
     /**
      * Creates partially configured spy definition that is suitable for measuring
      * method execution times.
@@ -128,6 +133,24 @@ public class SpyDefinition {
     }
 
 
+    /**
+     * Returns layout of spy records created for this spy definition. Field names of all probes
+     * and processors declaring their fields are resolved to slot numbers on first call.
+     *
+     * @return record layout
+     */
+    public SpyRecordLayout getLayout() {
+        SpyRecordLayout l = layout;
+
+        if (l == null) {
+            l = new SpyRecordLayout(this);
+            layout = l;
+        }
+
+        return l;
+    }
+
+
     public SpyMatcherSet getMatcherSet() {
         return matcherSet;
     }
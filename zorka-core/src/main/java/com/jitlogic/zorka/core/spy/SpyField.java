@@ -0,0 +1,181 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import java.util.Map;
+
+import static com.jitlogic.zorka.core.spy.SpyRecordLayout.NO_SLOT;
+
+/**
+ * Named spy record field used by processors. When processed record is a SpyRecord, field is accessed
+ * directly by slot number. Slot number is resolved once per record layout and cached, so processors shared
+ * by several spy definitions still work properly (albeit slower). Other maps are accessed by field name.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class SpyField {
+
+    /**
+     * Last record layout field has been resolved against with resolved slot number.
+     */
+    private static class Binding {
+        private final SpyRecordLayout layout;
+        private final int slot;
+
+        private Binding(SpyRecordLayout layout, int slot) {
+            this.layout = layout;
+            this.slot = slot;
+        }
+    }
+
+    private final String name;
+
+    private volatile Binding binding;
+
+
+    public SpyField(String name) {
+        this.name = name;
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    /**
+     * Returns slot number of this field in given layout.
+     *
+     * @param layout record layout
+     * @return slot number or NO_SLOT
+     */
+    public int slot(SpyRecordLayout layout) {
+        Binding b = binding;
+
+        if (b == null || b.layout != layout) {
+            b = new Binding(layout, layout.slot(name));
+            binding = b;
+        }
+
+        return b.slot;
+    }
+
+
+    /**
+     * Fetches field value from a record.
+     *
+     * @param record spy record (or any other map)
+     * @return field value
+     */
+    public Object get(Map<String, Object> record) {
+        if (record instanceof SpyRecord) {
+            SpyRecord rec = (SpyRecord) record;
+            int slot = slot(rec.getLayout());
+            if (slot != NO_SLOT) {
+                return rec.get(slot);
+            }
+        }
+
+        return record.get(name);
+    }
+
+
+    /**
+     * Returns true if field contains value of long type.
+     *
+     * @param record spy record (or any other map)
+     * @return true if field value is long
+     */
+    public boolean isLong(Map<String, Object> record) {
+        if (record instanceof SpyRecord) {
+            SpyRecord rec = (SpyRecord) record;
+            int slot = slot(rec.getLayout());
+            if (slot != NO_SLOT) {
+                return rec.isLong(slot);
+            }
+        }
+
+        return record.get(name) instanceof Long;
+    }
+
+
+    /**
+     * Fetches long value from a record. Values kept unboxed in spy record slots are not boxed.
+     * Use isLong() to check value type first.
+     *
+     * @param record spy record (or any other map)
+     * @return field value
+     */
+    public long getLong(Map<String, Object> record) {
+        if (record instanceof SpyRecord) {
+            SpyRecord rec = (SpyRecord) record;
+            int slot = slot(rec.getLayout());
+            if (slot != NO_SLOT) {
+                return rec.getLong(slot);
+            }
+        }
+
+        return ((Number) record.get(name)).longValue();
+    }
+
+
+    /**
+     * Stores field value in a record.
+     *
+     * @param record spy record (or any other map)
+     * @param val    field value
+     */
+    public void put(Map<String, Object> record, Object val) {
+        if (record instanceof SpyRecord) {
+            SpyRecord rec = (SpyRecord) record;
+            int slot = slot(rec.getLayout());
+            if (slot != NO_SLOT) {
+                rec.put(slot, val);
+                return;
+            }
+        }
+
+        record.put(name, val);
+    }
+
+
+    /**
+     * Stores long value in a record. Spy record slots keep it unboxed.
+     *
+     * @param record spy record (or any other map)
+     * @param val    field value
+     */
+    public void putLong(Map<String, Object> record, long val) {
+        if (record instanceof SpyRecord) {
+            SpyRecord rec = (SpyRecord) record;
+            int slot = slot(rec.getLayout());
+            if (slot != NO_SLOT) {
+                rec.put(slot, val);
+                return;
+            }
+        }
+
+        record.put(name, val);
+    }
+
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
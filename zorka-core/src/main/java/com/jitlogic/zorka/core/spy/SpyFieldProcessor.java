@@ -0,0 +1,33 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+/**
+ * Spy processors implementing this interface declare record fields they use, so spy definitions
+ * can reserve record slots for them when computing record layout (see SpyRecordLayout).
+ * Processors not implementing it still work, but their fields are kept in auxiliary map.
+ */
+public interface SpyFieldProcessor extends SpyProcessor {
+
+    /**
+     * Returns names of record fields this processor reads or writes.
+     *
+     * @return array of field names
+     */
+    String[] getFieldNames();
+}
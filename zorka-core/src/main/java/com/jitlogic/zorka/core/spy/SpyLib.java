@@ -51,6 +51,7 @@ public class SpyLib {
     public static final int ZST_STATS = 0x01;
     public static final int ZST_ENTER = 0x02;
     public static final int ZST_EXIT = 0x04;
+    public static final int ZST_STRIPED = 0x08;
 
     // Debug levels
 
@@ -161,6 +162,7 @@ public class SpyLib {
     public static final int ACTION_STATS = 0x01;
     public static final int ACTION_ENTER = 0x02;
     public static final int ACTION_EXIT = 0x04;
+    public static final int ACTION_STRIPED = 0x08;
 
     public static final String TRACE = "TRACE";
     public static final String DEBUG = "DEBUG";
@@ -583,7 +585,8 @@ public class SpyLib {
      * @param keyExpr         key expression
      * @param timeField       field containing execution time (in nanoseconds)
      * @param throughputField field containing throughput value (or null to skip throughput calculation)
-     * @param actions         which actions will be performed: ENTER, EXIT or STATS (or combination of them)
+     * @param actions         which actions will be performed: ENTER, EXIT or STATS (or combination of them),
+     *                        add STRIPED to use striped statistics (for methods called by many threads at once)
      * @return collector object
      */
     public SpyProcessor zorkaStats(String mbsName, String beanName, String attrName, String keyExpr,
@@ -592,6 +595,28 @@ public class SpyLib {
     }
 
 
+    /**
+     * Creates method call statistics collector object keeping at most maxStats statistics. Use it when statistic
+     * names are derived from request data (URLs, tags etc.): exact statistics are kept for most frequent keys,
+     * remaining keys are accounted in OTHER statistic.
+     *
+     * @param mbsName         mbean server name
+     * @param beanName        bean name
+     * @param attrName        attribute name
+     * @param keyExpr         key expression
+     * @param timeField       field containing execution time (in nanoseconds)
+     * @param throughputField field containing throughput value (or null to skip throughput calculation)
+     * @param actions         which actions will be performed: ENTER, EXIT or STATS (or combination of them)
+     * @param maxStats        maximum number of statistics (0 - unbounded)
+     * @return collector object
+     */
+    public SpyProcessor zorkaStats(String mbsName, String beanName, String attrName, String keyExpr,
+                                   String timeField, String throughputField, int actions, int maxStats) {
+        return new ZorkaStatsCollector(mbsRegistry, mbsName, beanName, attrName, keyExpr, timeField, throughputField,
+                actions, maxStats);
+    }
+
+
     /**
      * Creates getter collector object. It will present collected records as attributes via mbeans.
      *
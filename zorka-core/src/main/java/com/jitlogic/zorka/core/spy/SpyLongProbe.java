@@ -0,0 +1,49 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+/**
+ * Spy probe able to fetch its value as unboxed long. If it is the only probe of a stage, it is
+ * submitted via specialized submit method, so no boxing nor array allocation is needed.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public interface SpyLongProbe {
+
+    /**
+     * Returns true if probe is able to fetch its value as unboxed long in given method.
+     *
+     * @param mv method visitor of instrumented method
+     *
+     * @param stage point in method code probe is being inserted
+     *
+     * @return true if emitLong() can be used
+     */
+    boolean isLongProbe(SpyMethodVisitor mv, int stage);
+
+
+    /**
+     * Emits probe bytecode that leaves unboxed long value on JVM stack. Called only if isLongProbe()
+     * returned true for the same method and stage.
+     *
+     * @param mv output method visitor
+     *
+     * @param stage point in method code probe is being inserted
+     *
+     * @return number of JVM stack slots emitted code consumes
+     */
+    int emitLong(SpyMethodVisitor mv, int stage);
+}
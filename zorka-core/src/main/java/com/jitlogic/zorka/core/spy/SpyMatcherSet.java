@@ -102,6 +102,53 @@ public class SpyMatcherSet {
 
 
 
+    /**
+     * Checks whenever class described by class header can match any of included matchers. Contrary
+     * to classMatch(String), class annotations, interfaces and method annotations are also checked.
+     * Annotations are looked for among all type descriptors found in constant pool, so class will
+     * still match if it contains matching descriptor not used as an annotation.
+     *
+     * @param header class header
+     * @return true if class can match
+     */
+    public boolean classMatch(ClassHeader header) {
+        for (SpyMatcher matcher : matchers) {
+            int flags = matcher.getFlags();
+
+            if (!((0 != (flags & BY_CLASS_NAME) && match(matcher.getClassPattern(), header.getClassName()))
+                    || (0 != (flags & BY_CLASS_ANNOTATION) && match(matcher.getClassPattern(), header.getDescriptors()))
+                    || (0 != (flags & BY_INTERFACE) && (0 != (flags & RECURSIVE)
+                        || match(matcher.getClassPattern(), header.getInterfaces()))))) {
+                continue;
+            }
+
+            if (0 != (flags & BY_METHOD_ANNOTATION) && !match(matcher.getMethodPattern(), header.getDescriptors())) {
+                continue;
+            }
+
+            return finalClassMatch(matcher);
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Returns true if any of included matchers looks for class annotations, interfaces or
+     * method annotations (that is, classMatch(String) cannot really decide if class matches).
+     *
+     * @return true if class header should be checked before transforming class
+     */
+    public boolean hasMetadataMatchers() {
+        for (SpyMatcher matcher : matchers) {
+            if (matcher.hasFlags(BY_CLASS_ANNOTATION | BY_INTERFACE | BY_METHOD_ANNOTATION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
     private boolean finalClassMatch(SpyMatcher matcher) {
         if (matcher.hasFlags(EXCLUDE_MATCH)) {
             return !"[a-zA-Z0-9_]+".equals(matcher.getMethodPattern().toString());
@@ -250,11 +297,35 @@ public class SpyMatcherSet {
     }
 
 
+    /**
+     * Creates method matching decision table for a class. Class-level part of all matchers is evaluated
+     * once, so methods of this class can be matched quickly (see MethodMatchTable).
+     *
+     * @param className        class name
+     * @param classAnnotations list of class names of class annotations
+     * @param classInterfaces  list of class names of interfaces directly implemented by this class
+     * @return decision table
+     */
+    public MethodMatchTable methodMatchTable(String className, List<String> classAnnotations,
+                                             List<String> classInterfaces) {
+        List<SpyMatcher> classMatchers = new ArrayList<SpyMatcher>();
+
+        for (SpyMatcher matcher : matchers) {
+            int flags = matcher.getFlags();
+
+            if ((0 != (flags & BY_CLASS_NAME) && match(matcher.getClassPattern(), className))
+                    || (0 != (flags & BY_CLASS_ANNOTATION) && match(matcher.getClassPattern(), classAnnotations))
+                    || (0 != (flags & BY_INTERFACE) && match(matcher.getClassPattern(), classInterfaces))) {
+                classMatchers.add(matcher);
+            }
+        }
+
+        return new MethodMatchTable(classMatchers);
+    }
+
+
     private boolean isAccessor(String methodName, String methodSignature) {
-        return (methodName.startsWith("set") && methodSignature.endsWith(")V"))
-                || (methodName.startsWith("get") && methodSignature.startsWith("()"))
-                || (methodName.startsWith("is") && methodSignature.startsWith("()"))
-                || (methodName.startsWith("has") && methodSignature.startsWith("()"));
+        return MethodMatchTable.isAccessor(methodName, methodSignature);
     }
 
 
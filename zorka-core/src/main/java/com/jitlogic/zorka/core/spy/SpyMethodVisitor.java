@@ -52,8 +52,26 @@ public class SpyMethodVisitor extends MethodVisitor {
      */
     private final static String SUBMIT_METHOD = "submit";
     private final static String SUBMIT_SIGNATURE = "(III[Ljava/lang/Object;)V";
+    private final static String SUBMIT_LONG_SIGNATURE = "(IIIJ)V";
+
+    /**
+     * Signatures of specialized submit methods (indexed by number of probes), so small probe
+     * sets can be submitted without allocating values array.
+     */
+    private final static String[] SUBMIT_SIGNATURES = {
+            "(III)V",
+            "(IIILjava/lang/Object;)V",
+            "(IIILjava/lang/Object;Ljava/lang/Object;)V",
+            "(IIILjava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)V",
+            "(IIILjava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)V",
+    };
     private static final String ENTER_METHOD = "traceEnter";
     private static final String ENTER_SIGNATURE = "(III)V";
+
+    /**
+     * Name of counting stub method (used instead of tracer probes in lazy mode)
+     */
+    private static final String COUNT_METHOD = "traceCount";
     private static final String RETURN_METHOD = "traceReturn";
     private static final String RETURN_SIGNATURE = "()V";
     private static final String ERROR_METHOD = "traceError";
@@ -131,11 +149,17 @@ public class SpyMethodVisitor extends MethodVisitor {
      */
     private SymbolRegistry symbolRegistry;
 
-    private List<String> annotations = new ArrayList<String>();
+    /**
+     * If true, only counting stub will be emitted instead of tracer probes.
+     */
+    private boolean countOnly;
 
-    private List<String> classAnnotations;
+    private List<String> annotations = new ArrayList<String>();
 
-    private List<String> classInterfaces;
+    /**
+     * Method matching tables of spy definitions of each context (used when method annotations have to be checked)
+     */
+    private List<MethodMatchTable> ctxTables;
 
     private List<Boolean> ctxMatches = new ArrayList<Boolean>();
 
@@ -145,23 +169,25 @@ public class SpyMethodVisitor extends MethodVisitor {
      * Standard constructor.
      *
      * @param matches         true if visitor should always instrument or false if it should check for annotations
+     * @param symbolRegistry  symbol registry (or null if method should not be traced)
+     * @param countOnly       true if only counting stub should be emitted instead of tracer probes
      * @param access          method access flags
      * @param methodName      method name
      * @param methodSignature method descriptor
      * @param ctxs            spy contexts interested in receiving data from this visitor
+     * @param ctxTables       method matching tables of spy definitions of each context
      * @param mv              method visitor (next in processing chain)
      *                        TODO add explicit doTrace argument
      */
-    public SpyMethodVisitor(boolean matches, SymbolRegistry symbolRegistry,
-                            String className, List<String> classAnnotations, List<String> classInterfaces,
-                            int access, String methodName, String methodSignature,
-                            List<SpyContext> ctxs, MethodVisitor mv) {
+    public SpyMethodVisitor(boolean matches, SymbolRegistry symbolRegistry, boolean countOnly,
+                            String className, int access, String methodName, String methodSignature,
+                            List<SpyContext> ctxs, List<MethodMatchTable> ctxTables, MethodVisitor mv) {
         super(Opcodes.ASM4, mv);
         this.matches = matches;
         this.symbolRegistry = symbolRegistry;
+        this.countOnly = countOnly;
         this.className = className;
-        this.classAnnotations = classAnnotations;
-        this.classInterfaces = classInterfaces;
+        this.ctxTables = ctxTables;
         this.access = access;
         this.methodName = methodName;
         this.methodSignature = methodSignature;
@@ -222,17 +248,15 @@ public class SpyMethodVisitor extends MethodVisitor {
     public void visitCode() {
         mv.visitCode();
 
-        for (SpyContext ctx : ctxs) {
-            SpyMatcherSet sms = ctx.getSpyDefinition().getMatcherSet();
-            ctxMatches.add((!sms.hasMethodAnnotations()) || sms.methodMatch(className, classAnnotations, classInterfaces,
-                    access, methodName, methodSignature, annotations));
+        for (MethodMatchTable mmt : ctxTables) {
+            ctxMatches.add((!mmt.hasMethodAnnotations()) || mmt.match(access, methodName, methodSignature, annotations));
         }
 
 
         // Emit trace probe if required
         if (symbolRegistry != null) {
             log.debug(ZorkaLogger.ZTR_INSTRUMENT_METHOD, "Will trace method: %s.%s", className, methodName);
-            stackDelta = max(stackDelta, emitTraceEnter(
+            stackDelta = max(stackDelta, emitTraceEnter(countOnly ? COUNT_METHOD : ENTER_METHOD,
                     symbolRegistry.symbolId(className),
                     symbolRegistry.symbolId(methodName),
                     symbolRegistry.symbolId(methodSignature)));
@@ -277,7 +301,7 @@ public class SpyMethodVisitor extends MethodVisitor {
             }
 
             // Emit trace probe at the end
-            if (symbolRegistry != null) {
+            if (symbolRegistry != null && !countOnly) {
                 stackDelta = max(stackDelta, emitTraceReturn());
             }
         }
@@ -311,7 +335,7 @@ public class SpyMethodVisitor extends MethodVisitor {
         }
 
         // Emit trace probe at the end
-        if (symbolRegistry != null) {
+        if (symbolRegistry != null && !countOnly) {
             stackDelta = max(stackDelta, emitTraceError());
         }
 
@@ -319,12 +343,20 @@ public class SpyMethodVisitor extends MethodVisitor {
         mv.visitTryCatchBlock(lTryFrom, lTryTo, lTryHandler, null);
         mv.visitMaxs(maxStack + stackDelta, max(maxLocals, retValProbeSlot + 1));
 
-        if (spyProbesEmitted > 0 || tracerProbesEmitted > 0) {
+        if (isInstrumented()) {
             AgentDiagnostics.inc(AgentDiagnostics.METHODS_INSTRUMENTED);
         }
     }
 
 
+    /**
+     * Returns true if any probes have been emitted into visited method.
+     */
+    public boolean isInstrumented() {
+        return spyProbesEmitted > 0 || tracerProbesEmitted > 0;
+    }
+
+
     /**
      * Returns flag that will be passed by probes of a given sdef on a given stage.
      * This flag is used by submit dispatcher to determine if submit record has to be
@@ -379,18 +411,19 @@ public class SpyMethodVisitor extends MethodVisitor {
     /**
      * Emits tracer code on method entry.
      *
+     * @param method      called MainSubmitter method (traceEnter or traceCount)
      * @param classId     class name (symbol ID)
      * @param methodId    method name (symbol ID)
      * @param signatureId method signature (symbolID)
      * @return number of JVM stack slots consumed
      */
-    private int emitTraceEnter(int classId, int methodId, int signatureId) {
+    private int emitTraceEnter(String method, int classId, int methodId, int signatureId) {
 
         emitLoadInt(classId);
         emitLoadInt(methodId);
         emitLoadInt(signatureId);
 
-        mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, ENTER_METHOD, ENTER_SIGNATURE);
+        mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, method, ENTER_SIGNATURE);
 
         tracerProbesEmitted++;
 
@@ -448,25 +481,31 @@ public class SpyMethodVisitor extends MethodVisitor {
 
         int sd = 3;
 
-        // Create an array with fetched data (or push null)
-        if (probeElements.size() > 0) {
+        SpyProbe first = probeElements.size() == 1 ? probeElements.get(0) : null;
+
+        if (first instanceof SpyLongProbe && ((SpyLongProbe) first).isLongProbe(this, stage)) {
+            // Single primitive value (eg. time probe or long argument) is passed directly without boxing
+            sd = max(sd, ((SpyLongProbe) first).emitLong(this, stage) + 3);
+            mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, SUBMIT_METHOD, SUBMIT_LONG_SIGNATURE);
+        } else if (probeElements.size() < SUBMIT_SIGNATURES.length) {
+            // Small number of values is passed directly as arguments of specialized submit method
+            for (int i = 0; i < probeElements.size(); i++) {
+                sd = max(sd, probeElements.get(i).emit(this, stage, 0) + 3 + i);
+            }
+            mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, SUBMIT_METHOD, SUBMIT_SIGNATURES[probeElements.size()]);
+        } else {
+            // Create an array with fetched data
             emitLoadInt(probeElements.size());
             mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
             for (int i = 0; i < probeElements.size(); i++) {
-                SpyProbe element = probeElements.get(i);
                 mv.visitInsn(DUP);
                 emitLoadInt(i);
                 sd = max(sd, probeElements.get(i).emit(this, stage, 0) + 6);
                 mv.visitInsn(AASTORE);
             }
-        } else {
-            mv.visitInsn(ACONST_NULL);
-            sd++;
+            mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, SUBMIT_METHOD, SUBMIT_SIGNATURE);
         }
 
-        // Call MainSubmitter.submit()
-        mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, SUBMIT_METHOD, SUBMIT_SIGNATURE);
-
         spyProbesEmitted++;
 
         return sd;
@@ -0,0 +1,358 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import java.util.*;
+
+import static com.jitlogic.zorka.core.spy.SpyRecordLayout.NO_SLOT;
+
+/**
+ * Spy record passed through processing chains. Fields declared by spy definition (see SpyRecordLayout)
+ * are kept in array slots and can be accessed by index. Record is also a regular map, so processors
+ * (including beanshell ones) can still access all fields by name. Fields not declared in layout are
+ * kept in auxiliary map allocated on demand.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class SpyRecord extends AbstractMap<String, Object> {
+
+    public static final String CTX = ".CTX";
+    public static final String STAGE = ".STAGE";
+    public static final String STAGES = ".STAGES";
+
+    /**
+     * Marks slots that contain null values (empty slots are represented by nulls).
+     */
+    private static final Object NULL_VAL = new Object();
+
+    /**
+     * Marks slots that contain unboxed long values (kept in longs array).
+     */
+    private static final Object LONG_VAL = new Object();
+
+    private SpyContext ctx;
+
+    private int stage;
+
+    private int stages;
+
+    private final SpyRecordLayout layout;
+
+    private final Object[] slots;
+
+    /**
+     * Unboxed long values (allocated on demand, indexed by slot number).
+     */
+    private long[] longs;
+
+    /**
+     * Fields not declared in record layout.
+     */
+    private Map<String, Object> extra;
+
+
+    /**
+     * Creates empty spy record for given spy context. Record layout is taken from context spy definition.
+     *
+     * @param ctx spy context
+     */
+    public SpyRecord(SpyContext ctx) {
+        this(ctx, ctx.getSpyDefinition().getLayout());
+    }
+
+
+    /**
+     * Creates empty spy record with given layout.
+     *
+     * @param ctx    spy context
+     * @param layout record layout
+     */
+    public SpyRecord(SpyContext ctx, SpyRecordLayout layout) {
+        this.ctx = ctx;
+        this.layout = layout;
+        this.slots = new Object[layout.size()];
+    }
+
+
+    /**
+     * Converts arbitrary map (eg. returned by beanshell processor) to spy record.
+     *
+     * @param ctx    spy context (used if map does not contain one)
+     * @param record source map
+     * @return spy record (the same object if it already is spy record)
+     */
+    public static SpyRecord fromMap(SpyContext ctx, Map<String, Object> record) {
+        if (record instanceof SpyRecord) {
+            return (SpyRecord) record;
+        }
+
+        Object c = record.get(CTX);
+        SpyRecord rec = new SpyRecord(c instanceof SpyContext ? (SpyContext) c : ctx);
+        rec.putAll(record);
+        return rec;
+    }
+
+
+    public SpyContext getContext() {
+        return ctx;
+    }
+
+
+    public int getStage() {
+        return stage;
+    }
+
+
+    public int getStages() {
+        return stages;
+    }
+
+
+    public void setStages(int stages) {
+        this.stages = stages;
+    }
+
+
+    /**
+     * Marks record as being processed in given stage.
+     *
+     * @param stage stage
+     */
+    public void markStage(int stage) {
+        this.stages |= (1 << stage);
+        this.stage = stage;
+    }
+
+
+    public SpyRecordLayout getLayout() {
+        return layout;
+    }
+
+
+    /**
+     * Returns value stored in given slot.
+     *
+     * @param slot slot number (as returned by record layout)
+     * @return field value
+     */
+    public Object get(int slot) {
+        Object v = slots[slot];
+
+        if (v == LONG_VAL) {
+            return longs[slot];
+        }
+
+        return v != NULL_VAL ? v : null;
+    }
+
+
+    /**
+     * Returns true if given slot contains long value (either unboxed or boxed).
+     *
+     * @param slot slot number (as returned by record layout)
+     * @return true if value is of long type
+     */
+    public boolean isLong(int slot) {
+        Object v = slots[slot];
+        return v == LONG_VAL || v instanceof Long;
+    }
+
+
+    /**
+     * Returns long value stored in given slot without boxing it. Use isLong() to check value type first.
+     *
+     * @param slot slot number (as returned by record layout)
+     * @return field value
+     */
+    public long getLong(int slot) {
+        Object v = slots[slot];
+        return v == LONG_VAL ? longs[slot] : ((Number) v).longValue();
+    }
+
+
+    /**
+     * Stores value in given slot.
+     *
+     * @param slot slot number (as returned by record layout)
+     * @param val  field value
+     */
+    public void put(int slot, Object val) {
+        slots[slot] = val != null ? val : NULL_VAL;
+    }
+
+
+    /**
+     * Stores unboxed long value in given slot.
+     *
+     * @param slot slot number (as returned by record layout)
+     * @param val  field value
+     */
+    public void put(int slot, long val) {
+        if (longs == null) {
+            longs = new long[slots.length];
+        }
+        longs[slot] = val;
+        slots[slot] = LONG_VAL;
+    }
+
+
+    @Override
+    public Object get(Object key) {
+        if (CTX.equals(key)) {
+            return ctx;
+        } else if (STAGE.equals(key)) {
+            return stage;
+        } else if (STAGES.equals(key)) {
+            return stages;
+        }
+
+        int slot = layout.slot(key);
+
+        if (slot != NO_SLOT) {
+            return get(slot);
+        }
+
+        return extra != null ? extra.get(key) : null;
+    }
+
+
+    @Override
+    public Object put(String key, Object val) {
+        Object rslt = get(key);
+
+        if (CTX.equals(key)) {
+            ctx = (SpyContext) val;
+        } else if (STAGE.equals(key)) {
+            stage = val != null ? ((Number) val).intValue() : 0;
+        } else if (STAGES.equals(key)) {
+            stages = val != null ? ((Number) val).intValue() : 0;
+        } else {
+            int slot = layout.slot(key);
+            if (slot != NO_SLOT) {
+                put(slot, val);
+            } else {
+                if (extra == null) {
+                    extra = new HashMap<String, Object>();
+                }
+                extra.put(key, val);
+            }
+        }
+
+        return rslt;
+    }
+
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (CTX.equals(key) || STAGE.equals(key) || STAGES.equals(key)) {
+            return true;
+        }
+
+        int slot = layout.slot(key);
+
+        if (slot != NO_SLOT) {
+            return slots[slot] != null;
+        }
+
+        return extra != null && extra.containsKey(key);
+    }
+
+
+    @Override
+    public Object remove(Object key) {
+        if (CTX.equals(key) || STAGE.equals(key) || STAGES.equals(key)) {
+            throw new UnsupportedOperationException("Cannot remove " + key + " from spy record.");
+        }
+
+        Object rslt = get(key);
+
+        int slot = layout.slot(key);
+
+        if (slot != NO_SLOT) {
+            slots[slot] = null;
+        } else if (extra != null) {
+            extra.remove(key);
+        }
+
+        return rslt;
+    }
+
+
+    @Override
+    public int size() {
+        int size = 3;
+
+        for (Object v : slots) {
+            if (v != null) {
+                size++;
+            }
+        }
+
+        return extra != null ? size + extra.size() : size;
+    }
+
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                final List<String> keys = new ArrayList<String>(size());
+                keys.add(CTX);
+                keys.add(STAGE);
+                keys.add(STAGES);
+                for (int i = 0; i < slots.length; i++) {
+                    if (slots[i] != null) {
+                        keys.add(layout.name(i));
+                    }
+                }
+                if (extra != null) {
+                    keys.addAll(extra.keySet());
+                }
+
+                return new Iterator<Entry<String, Object>>() {
+                    private int pos = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return pos < keys.size();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (pos >= keys.size()) {
+                            throw new NoSuchElementException();
+                        }
+                        String key = keys.get(pos++);
+                        return new SimpleImmutableEntry<String, Object>(key, get(key));
+                    }
+
+                    @Override
+                    public void remove() {
+                        SpyRecord.this.remove(keys.get(pos - 1));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return SpyRecord.this.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import java.util.*;
+
+/**
+ * Record layout maps spy record field names to slot indices. Layout is computed once for each
+ * spy definition from its probes and processors declaring their fields (see SpyFieldProcessor),
+ * so submitter and processors can access record fields by index instead of hashing field names.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class SpyRecordLayout {
+
+    /**
+     * Returned by slot() if field has no slot assigned in this layout.
+     */
+    public static final int NO_SLOT = -1;
+
+    /**
+     * Field names (indexed by slot numbers)
+     */
+    private final String[] names;
+
+    /**
+     * Field name to slot number mapping. Not modified after layout is created.
+     */
+    private final Map<String, Integer> slots;
+
+    /**
+     * Slots of values fetched by probes (indexed by stage and probe index)
+     */
+    private final int[][] probeSlots;
+
+
+    /**
+     * Computes record layout for given spy definition.
+     *
+     * @param sdef spy definition
+     */
+    public SpyRecordLayout(SpyDefinition sdef) {
+        List<String> fields = new ArrayList<String>();
+        Map<String, Integer> slots = new HashMap<String, Integer>();
+
+        probeSlots = new int[4][];
+
+        for (int stage = 0; stage < probeSlots.length; stage++) {
+            List<SpyProbe> probes = sdef.getProbes(stage);
+            probeSlots[stage] = new int[probes.size()];
+            for (int i = 0; i < probes.size(); i++) {
+                probeSlots[stage][i] = addField(fields, slots, probes.get(i).getDstField());
+            }
+        }
+
+        for (int stage = 0; stage < probeSlots.length; stage++) {
+            for (SpyProcessor processor : sdef.getProcessors(stage)) {
+                if (processor instanceof SpyFieldProcessor) {
+                    for (String field : ((SpyFieldProcessor) processor).getFieldNames()) {
+                        addField(fields, slots, field);
+                    }
+                }
+            }
+        }
+
+        this.names = fields.toArray(new String[fields.size()]);
+        this.slots = slots;
+    }
+
+
+    private static int addField(List<String> fields, Map<String, Integer> slots, String name) {
+        if (name == null || name.startsWith(".")) {
+            return NO_SLOT;
+        }
+
+        Integer slot = slots.get(name);
+
+        if (slot == null) {
+            slot = fields.size();
+            fields.add(name);
+            slots.put(name, slot);
+        }
+
+        return slot;
+    }
+
+
+    /**
+     * Returns slot number for a given field name.
+     *
+     * @param name field name
+     * @return slot number or NO_SLOT if field has no slot in this layout
+     */
+    public int slot(Object name) {
+        Integer slot = slots.get(name);
+        return slot != null ? slot : NO_SLOT;
+    }
+
+
+    /**
+     * Returns name of field stored in given slot.
+     *
+     * @param slot slot number
+     * @return field name
+     */
+    public String name(int slot) {
+        return names[slot];
+    }
+
+
+    /**
+     * Returns number of slots in this layout.
+     *
+     * @return number of slots
+     */
+    public int size() {
+        return names.length;
+    }
+
+
+    /**
+     * Returns slots values fetched by probes in given stage will be stored in.
+     *
+     * @param stage stage (ON_ENTER, ON_RETURN, ON_ERROR)
+     * @return slot numbers (in the same order as probes in spy definition)
+     */
+    public int[] getProbeSlots(int stage) {
+        return probeSlots[stage];
+    }
+
+
+    @Override
+    public String toString() {
+        return "SpyRecordLayout(" + Arrays.toString(names) + ")";
+    }
+}
@@ -36,4 +36,62 @@ public interface SpySubmitter {
      */
     void submit(int stage, int id, int submitFlags, Object[] vals);
 
+
+    /**
+     * Receives spy probe submission with no fetched values.
+     *
+     * @param stage determines if submission comes from method entry, method return or method error handling code
+     *
+     * @param id spy context ID
+     *
+     * @param submitFlags submission flags
+     */
+    void submit(int stage, int id, int submitFlags);
+
+
+    /**
+     * Receives spy probe submission with exactly one fetched value of primitive long type.
+     *
+     * @param stage determines if submission comes from method entry, method return or method error handling code
+     *
+     * @param id spy context ID
+     *
+     * @param submitFlags submission flags
+     *
+     * @param v0 fetched value
+     */
+    void submit(int stage, int id, int submitFlags, long v0);
+
+
+    /**
+     * Receives spy probe submission with exactly one fetched value.
+     *
+     * @see #submit(int, int, int, Object[])
+     */
+    void submit(int stage, int id, int submitFlags, Object v0);
+
+
+    /**
+     * Receives spy probe submission with exactly two fetched values.
+     *
+     * @see #submit(int, int, int, Object[])
+     */
+    void submit(int stage, int id, int submitFlags, Object v0, Object v1);
+
+
+    /**
+     * Receives spy probe submission with exactly three fetched values.
+     *
+     * @see #submit(int, int, int, Object[])
+     */
+    void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2);
+
+
+    /**
+     * Receives spy probe submission with exactly four fetched values.
+     *
+     * @see #submit(int, int, int, Object[])
+     */
+    void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2, Object v3);
+
 }
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * Precompiled string template with '${field.attr1.attr2~len:default}' substitutions. It is equivalent
+ * to ObjectInspector.substitute(template, record) but template is parsed only once and record
+ * fields are accessed via SpyField objects (that is, by slot number when possible).
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class SpyTemplate {
+
+    /**
+     * Single substitution of template.
+     */
+    private static class Var {
+        /** Alternative fields (separated by '|' in template) */
+        private final SpyField[] fields;
+
+        /** Attribute chains for each alternative field */
+        private final Object[][] chains;
+
+        /** Default value (or null) */
+        private final String defVal;
+
+        /** Maximum length of substituted string (or -1) */
+        private final int len;
+
+        private Var(String expr) {
+            String def = null;
+            if (expr.contains(":")) {
+                String[] s = expr.split(":");
+                expr = s[0];
+                def = s.length > 1 ? s[1] : "";
+            }
+
+            int len = -1;
+            if (expr.contains("~")) {
+                String[] s = expr.split("~");
+                expr = s[0];
+                len = Integer.parseInt(s[1]);
+            }
+
+            String[] alts = expr.split("\\|");
+            fields = new SpyField[alts.length];
+            chains = new Object[alts.length][];
+
+            for (int i = 0; i < alts.length; i++) {
+                String[] segs = alts[i].split("\\.");
+                fields[i] = new SpyField(segs[0]);
+                chains[i] = Arrays.copyOfRange(segs, 1, segs.length, Object[].class);
+            }
+
+            this.defVal = def;
+            this.len = len;
+        }
+
+        private String format(Map<String, Object> record) {
+            Object val = null;
+
+            for (int i = 0; i < fields.length; i++) {
+                val = fields[i].get(record);
+                if (chains[i].length > 0) {
+                    val = ObjectInspector.get(val, chains[i]);
+                }
+                if (val != null) {
+                    break;
+                }
+            }
+
+            String s = ZorkaUtil.castString(val != null ? val : defVal);
+
+            return len >= 0 && s.length() > len ? s.substring(0, len) : s;
+        }
+    }
+
+    private final String template;
+
+    /** Literal parts of template (there is always one more literal than variables) */
+    private final String[] literals;
+
+    private final Var[] vars;
+
+
+    /**
+     * Parses template string.
+     *
+     * @param template template string
+     */
+    public SpyTemplate(String template) {
+        this.template = template;
+
+        List<String> literals = new ArrayList<String>();
+        List<Var> vars = new ArrayList<Var>();
+
+        Matcher m = ObjectInspector.reVarSubstPattern.matcher(template);
+        int pos = 0;
+
+        while (m.find()) {
+            literals.add(template.substring(pos, m.start()));
+            vars.add(new Var(m.group(1)));
+            pos = m.end();
+        }
+
+        literals.add(template.substring(pos));
+
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.vars = vars.toArray(new Var[vars.size()]);
+    }
+
+
+    /**
+     * Substitutes template with values from record.
+     *
+     * @param record spy record (or any other map)
+     * @return substituted string
+     */
+    public String format(Map<String, Object> record) {
+
+        if (vars.length == 0) {
+            return template;
+        }
+
+        StringBuilder sb = new StringBuilder(template.length() + 32);
+
+        for (int i = 0; i < vars.length; i++) {
+            sb.append(literals[i]);
+            sb.append(vars[i].format(record));
+        }
+
+        sb.append(literals[vars.length]);
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Returns names of all record fields used by this template.
+     *
+     * @return array of field names
+     */
+    public String[] getFieldNames() {
+        List<String> names = new ArrayList<String>();
+
+        for (Var v : vars) {
+            for (SpyField f : v.fields) {
+                names.add(f.getName());
+            }
+        }
+
+        return names.toArray(new String[names.size()]);
+    }
+
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
@@ -24,7 +24,7 @@ import static org.objectweb.asm.Opcodes.INVOKESTATIC;
  *
  * @author rafal.lewczuk@jitlogic.com
  */
-public class SpyTimeProbe extends SpyProbe {
+public class SpyTimeProbe extends SpyProbe implements SpyLongProbe {
 
     /**
      * Creates spy time probe
@@ -37,12 +37,25 @@ public class SpyTimeProbe extends SpyProbe {
 
     @Override
     public int emit(SpyMethodVisitor mv, int stage, int opcode) {
-        mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J");
+        emitLong(mv, stage);
         mv.visitMethodInsn(INVOKESTATIC, "java/lang/Long", "valueOf", "(J)Ljava/lang/Long;");
         return 2;
     }
 
 
+    @Override
+    public boolean isLongProbe(SpyMethodVisitor mv, int stage) {
+        return true;
+    }
+
+
+    @Override
+    public int emitLong(SpyMethodVisitor mv, int stage) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J");
+        return 2;
+    }
+
+
     @Override
     public int hashCode() {
         return 31 * getDstField().hashCode();
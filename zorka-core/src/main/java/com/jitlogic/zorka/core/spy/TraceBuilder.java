@@ -26,6 +26,8 @@ import com.jitlogic.zorka.common.tracedata.TraceRecord;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 
+import java.util.List;
+
 /**
  * This class receives loose tracer submissions from single thread
  * and constructs traces.
@@ -36,26 +38,72 @@ public class TraceBuilder {
 
     private final static ZorkaLog log = ZorkaLogger.getLog(TraceBuilder.class);
 
+    /**
+     * Name of attribute containing sequence number of a trace fragment (see Tracer.getStreamRecords()).
+     */
+    public static final String FRAGMENT_ATTR = "FRAGMENT";
+
 
     /**
      * Output
      */
-    private ZorkaSubmitter<SymbolicRecord> output;
+    protected ZorkaSubmitter<SymbolicRecord> output;
 
-    private SymbolRegistry symbols;
+    protected SymbolRegistry symbols;
 
     /**
      * Top of trace records stack.
      */
     private TraceRecord ttop = new TraceRecord(null);
 
-    private boolean disabled;
+    /**
+     * Trace records discarded by this builder, ready for reuse (see Tracer.getRecordPoolSize()).
+     */
+    private TraceRecord[] pool;
+
+    /**
+     * Number of records in pool
+     */
+    private int npool;
+
+    /**
+     * Pool statistics not yet reported to AgentDiagnostics. They're reported when trace is finished,
+     * so pool maintenance does not touch shared counters on each method call.
+     */
+    private long recordsCreated, recordsReused, recordsDiscarded;
+
+    protected boolean disabled;
 
     /**
      * Number of records collected so far
      */
     private int numRecords = 0;
 
+    /**
+     * Root record of a trace that is being streamed (already submitted in fragments) or null.
+     */
+    private TraceRecord streamedRoot;
+
+    /**
+     * Number of fragments of streamed trace submitted so far.
+     */
+    private int numFragments;
+
+    /**
+     * Number of dropped calls after which call counters are handed over to auto excluder.
+     */
+    private static final int EXCLUDER_FLUSH_CALLS = 1024;
+
+    /**
+     * Calls dropped from and kept in traces, not yet handed over to auto excluder (see Tracer.getActiveAutoExcluder()).
+     */
+    private MethodCallCounter droppedCalls, keptCalls;
+
+    /**
+     * Number of dropped calls registered in droppedCalls counter.
+     */
+    private int numDroppedCalls;
+
 
     /**
      * Creates new trace builder object.
@@ -102,7 +150,7 @@ public class TraceBuilder {
 
         if (!ttop.isEmpty()) {
             if (ttop.inTrace()) {
-                ttop = new TraceRecord(ttop);
+                ttop = newRecord(ttop);
                 numRecords++;
             } else {
                 ttop.clean();
@@ -149,7 +197,31 @@ public class TraceBuilder {
 
         ttop.setTime(tstamp - ttop.getTime());
 
-        pop();
+        pop(tstamp);
+    }
+
+
+    /**
+     * Fast path for method exit when no trace is being recorded. Top record is simply cleaned
+     * as nothing from it would be kept anyway, so caller does not even need to read clock.
+     *
+     * @return true if method exit has been handled, false if regular traceReturn() or traceError()
+     *         has to be called (eg. because trace is being recorded)
+     */
+    public boolean traceLeave() {
+
+        if (disabled) {
+            return true;
+        }
+
+        if (ttop.inTrace() || ttop.getParent() != null || ZorkaLogger.isLogMask(ZorkaLogger.ZTR_TRACER_DBG)) {
+            return false;
+        }
+
+        ttop.clean();
+        numRecords = 0;
+
+        return true;
     }
 
 
@@ -179,7 +251,7 @@ public class TraceBuilder {
         ttop.setTime(tstamp - ttop.getTime());
         ttop.setErrors(ttop.getErrors() + 1);
 
-        pop();
+        pop(tstamp);
     }
 
 
@@ -257,21 +329,29 @@ public class TraceBuilder {
      * trace record from top of stack but it also implements quite a bit of logic handling
      * various aspects of handling trace records (filtering, limiting number of records in one
      * frame, reusing trace record if suitable etc.).
+     *
+     * @param tstamp current time (nanoseconds)
      */
-    private void pop() {
+    private void pop(long tstamp) {
 
         boolean clean = true;
 
         TraceRecord parent = ttop.getParent();
 
+        TraceRecord dropped = null;
+
         popException();
 
 
         // Submit data if trace marker found
         if (ttop.hasFlag(TraceRecord.TRACE_BEGIN)) {
+            if (ttop == streamedRoot) {
+                // Last fragment has to be submitted regardless of filtering rules
+                endStream();
+            }
             int flags = ttop.getMarker().getFlags();
             if ((ttop.getTime() >= ttop.getMarker().getMinimumTime() && 0 == (flags & TraceMarker.DROP_TRACE))
-                    || 0 != (flags & TraceMarker.SUBMIT_TRACE)) {
+                    || 0 != (flags & (TraceMarker.SUBMIT_TRACE | TraceMarker.CONTINUED_TRACE))) {
                 submit(ttop);
                 AgentDiagnostics.inc(AgentDiagnostics.TRACES_SUBMITTED);
                 clean = false;
@@ -283,19 +363,28 @@ public class TraceBuilder {
             if (parent != null) {
                 parent.getMarker().inheritFlags(ttop.getMarker().getFlags());
             }
+
+            reportPoolStats();
         }
 
         // Determine how the top of stack should be rolled back
         if (parent != null) {
-            if ((ttop.getTime() > Tracer.getMinMethodTime() || ttop.getErrors() > 0)
-                    || 0 != (ttop.getMarker().getFlags() & TraceMarker.ALL_METHODS)) {
+            boolean keep = ttop.getTime() > Tracer.getMinMethodTime() || ttop.getErrors() > 0;
+            boolean allMethods = 0 != (ttop.getMarker().getFlags() & TraceMarker.ALL_METHODS);
+
+            AutoExcluder excluder = Tracer.getActiveAutoExcluder();
+            if (excluder != null && !allMethods) {
+                countCall(excluder, ttop.getClassId(), ttop.getMethodId(), ttop.getSignatureId(), keep);
+            }
 
+            if (keep || allMethods) {
 
                 if (!ttop.hasFlag(TraceRecord.OVERFLOW_FLAG)) {
-                    reparentTop(parent);
+                    dropped = reparentTop(parent);
 
                 } else {
                     parent.getMarker().markFlags(TraceMarker.OVERFLOW_FLAG);
+                    dropped = ttop;
                 }
                 clean = false;
             }
@@ -305,17 +394,155 @@ public class TraceBuilder {
 
 
         if (clean) {
+            recycleChildren(ttop);
             ttop.clean();
             numRecords--;
         } else {
             if (parent != null) {
                 ttop = parent;
             } else {
-                ttop = new TraceRecord(null);
+                ttop = newRecord(null);
                 numRecords = 0;
             }
         }
 
+        if (dropped != null) {
+            recycle(dropped);
+        }
+
+        if (Tracer.getStreamRecords() > 0 && numRecords >= Tracer.getStreamRecords() && ttop.inTrace()) {
+            flush(tstamp);
+        }
+
+    }
+
+
+    /**
+     * Counts method call as dropped or kept. Counters are handed over to auto excluder
+     * in batches, so shared structures are not touched on each method call.
+     */
+    protected void countCall(AutoExcluder excluder, int classId, int methodId, int signatureId, boolean keep) {
+        if (droppedCalls == null) {
+            droppedCalls = new MethodCallCounter();
+            keptCalls = new MethodCallCounter();
+        }
+
+        if (keep) {
+            keptCalls.logCall(classId, methodId, signatureId, 0L);
+        } else {
+            droppedCalls.logCall(classId, methodId, signatureId, 0L);
+            if (++numDroppedCalls >= EXCLUDER_FLUSH_CALLS) {
+                excluder.collect(droppedCalls, keptCalls);
+                droppedCalls = null;
+                keptCalls = null;
+                numDroppedCalls = 0;
+            }
+        }
+    }
+
+
+    /**
+     * Submits all completed records of currently recorded trace as a trace fragment, so they
+     * don't have to be kept in memory until trace ends. Fragment consists of copies of all
+     * records that are still executing (with execution time measured so far) and all completed
+     * records moved from them. Fragment root is marked as partial trace, all subsequent fragments
+     * (including final trace submitted when trace ends) are marked as continued trace, so collector
+     * can stitch them together. Note that fragments are always cut from outermost trace, so nested
+     * traces that are still executing won't include records that have already been flushed. No fragment
+     * is submitted if there are no completed records to move.
+     *
+     * @param tstamp current time (nanoseconds)
+     */
+    private void flush(long tstamp) {
+        TraceRecord root = null;
+        boolean finished = false, completed = false;
+
+        for (TraceRecord tr = ttop; tr != null; tr = tr.getParent()) {
+            finished |= tr.numChildren() > 0;
+            if (tr.hasFlag(TraceRecord.TRACE_BEGIN)) {
+                root = tr;
+                completed = finished;
+            }
+        }
+
+        // Nothing to flush if all records are still executing (eg. stack is deeper than threshold)
+        if (root == null || !completed) {
+            return;
+        }
+
+        TraceMarker tm = root.getMarker();
+        TraceMarker fm = new TraceMarker(tm.getTraceId(), tm.getClock());
+        fm.setMinimumTime(tm.getMinimumTime());
+        fm.setFlags(tm.getFlags() | TraceMarker.PARTIAL_TRACE | (numFragments > 0 ? TraceMarker.CONTINUED_TRACE : 0));
+
+        TraceRecord fragment = null;
+        int moved = 0;
+
+        for (TraceRecord tr = ttop; tr != null; tr = tr.getParent()) {
+            if (tr.isEmpty()) {
+                continue;
+            }
+
+            TraceRecord copy = new TraceRecord(null);
+            copy.setClassId(tr.getClassId());
+            copy.setMethodId(tr.getMethodId());
+            copy.setSignatureId(tr.getSignatureId());
+            copy.setFlags(tr.getFlags() & ~TraceRecord.TRACE_BEGIN);
+            copy.setTime(tstamp - tr.getTime());
+            copy.setCalls(tr.getCalls());
+            copy.setErrors(tr.getErrors());
+            copy.setMarker(fm);
+
+            List<TraceRecord> children = tr.getChildren();
+            if (children != null) {
+                tr.setChildren(null);
+                for (int i = 0; i < children.size(); i++) {
+                    copy.addChild(children.get(i));
+                    moved += countRecords(children.get(i));
+                }
+            }
+
+            if (fragment != null) {
+                copy.addChild(fragment);
+            }
+
+            fragment = copy;
+
+            if (tr == root) {
+                break;
+            }
+        }
+
+        numFragments++;
+        streamedRoot = root;
+        numRecords -= moved;
+
+        fragment.markFlag(TraceRecord.TRACE_BEGIN);
+        fragment.setAttr(symbols.symbolId(FRAGMENT_ATTR), numFragments);
+
+        submit(fragment);
+        AgentDiagnostics.inc(AgentDiagnostics.TRACE_FRAGMENTS_SUBMITTED);
+    }
+
+
+    /**
+     * Marks root of streamed trace as final fragment.
+     */
+    private void endStream() {
+        numFragments++;
+        ttop.getMarker().markFlags(TraceMarker.CONTINUED_TRACE);
+        ttop.setAttr(symbols.symbolId(FRAGMENT_ATTR), numFragments);
+        streamedRoot = null;
+        numFragments = 0;
+    }
+
+
+    private static int countRecords(TraceRecord tr) {
+        int n = 1;
+        for (int i = 0; i < tr.numChildren(); i++) {
+            n += countRecords(tr.getChild(i));
+        }
+        return n;
     }
 
 
@@ -334,7 +561,13 @@ public class TraceBuilder {
     }
 
 
-    private void reparentTop(TraceRecord parent) {
+    /**
+     * Attaches top record to its parent (or attaches its only child if top record is droppable).
+     *
+     * @param parent parent record
+     * @return dropped interim record or null
+     */
+    private TraceRecord reparentTop(TraceRecord parent) {
         // Drop interim record if necessary
         if (ttop.getMarker().hasFlag(TraceMarker.DROP_INTERIM) && ttop.isInterimDroppable()
                 && ttop.getTime() - ttop.getChild(0).getTime() < Tracer.getMinMethodTime()) {
@@ -344,9 +577,86 @@ public class TraceBuilder {
             child.markFlag(TraceRecord.DROPPED_PARENT);
             numRecords--;
             parent.addChild(child);
+            ttop.setChildren(null);
+            return ttop;
         } else {
             parent.addChild(ttop);
+            return null;
+        }
+    }
+
+
+    /**
+     * Returns fresh trace record, taken from pool if possible.
+     *
+     * @param parent parent record
+     * @return trace record
+     */
+    private TraceRecord newRecord(TraceRecord parent) {
+        if (npool > 0) {
+            TraceRecord tr = pool[--npool];
+            pool[npool] = null;
+            tr.setParent(parent);
+            recordsReused++;
+            return tr;
+        }
+
+        recordsCreated++;
+        return new TraceRecord(parent);
+    }
+
+
+    /**
+     * Returns discarded record (and all its children) to pool. Records that do not fit
+     * into pool are left for garbage collector. Trace beginnings (and everything below them)
+     * are never recycled as such records might have been submitted to (possibly many)
+     * asynchronous outputs.
+     *
+     * @param tr discarded trace record
+     */
+    private void recycle(TraceRecord tr) {
+        if (tr.hasFlag(TraceRecord.TRACE_BEGIN)) {
+            return;
+        }
+
+        recycleChildren(tr);
+
+        if (pool == null) {
+            pool = new TraceRecord[Tracer.getRecordPoolSize()];
+        }
+
+        if (npool < pool.length) {
+            tr.setParent(null);
+            tr.clean();
+            pool[npool++] = tr;
+        } else {
+            recordsDiscarded++;
+        }
+    }
+
+
+    private void recycleChildren(TraceRecord tr) {
+        List<TraceRecord> children = tr.getChildren();
+        if (children != null) {
+            tr.setChildren(null);
+            for (int i = 0; i < children.size(); i++) {
+                recycle(children.get(i));
+            }
+        }
+    }
+
+
+    private void reportPoolStats() {
+        if (recordsCreated != 0) {
+            AgentDiagnostics.inc(AgentDiagnostics.TRACE_RECORDS_CREATED, recordsCreated);
+        }
+        if (recordsReused != 0) {
+            AgentDiagnostics.inc(AgentDiagnostics.TRACE_RECORDS_REUSED, recordsReused);
+        }
+        if (recordsDiscarded != 0) {
+            AgentDiagnostics.inc(AgentDiagnostics.TRACE_RECORDS_DISCARDED, recordsDiscarded);
         }
+        recordsCreated = recordsReused = recordsDiscarded = 0;
     }
 
 
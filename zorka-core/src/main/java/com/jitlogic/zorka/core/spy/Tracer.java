@@ -44,6 +44,21 @@ public class Tracer implements ZorkaSubmitter<SymbolicRecord>, ZorkaService {
      */
     private static int maxTraceRecords = 4096;
 
+    /**
+     * Maximum number of discarded trace records kept for reuse by each trace builder.
+     */
+    private static int recordPoolSize = 256;
+
+    /**
+     * Number of completed records after which trace builder submits them as trace fragment (0 = never).
+     */
+    private static int streamRecords = 0;
+
+    /**
+     * Collects dropped method call counters from trace builders (or null if automatic exclusion is disabled).
+     */
+    private static volatile AutoExcluder activeAutoExcluder;
+
 
     private AtomicReference<List<ZorkaSubmitter<SymbolicRecord>>> outputs
             = new AtomicReference<List<ZorkaSubmitter<SymbolicRecord>>>(new ArrayList<ZorkaSubmitter<SymbolicRecord>>());
@@ -64,6 +79,28 @@ public class Tracer implements ZorkaSubmitter<SymbolicRecord>, ZorkaService {
      */
     private boolean traceSpyMethods = true;
 
+    /**
+     * If true, trace builders will record traces into compact buffers instead of trace record trees
+     * (see BufferedTraceBuilder).
+     */
+    private boolean bufferedTraces;
+
+    /**
+     * Methods promoted to full tracing in lazy mode (or null if lazy mode is disabled). In lazy mode
+     * methods matched by tracer but not by this set are only instrumented with counting stubs.
+     */
+    private volatile SpyMatcherSet hotMatcherSet;
+
+    /**
+     * Collects call counts from counting stubs and promotes hot methods (see LazyInstrumenter).
+     */
+    private LazyInstrumenter lazyInstrumenter;
+
+    /**
+     * Excludes hot methods that are always dropped from traces (see AutoExcluder).
+     */
+    private AutoExcluder autoExcluder;
+
 
     public static long getMinMethodTime() {
         return minMethodTime;
@@ -85,6 +122,36 @@ public class Tracer implements ZorkaSubmitter<SymbolicRecord>, ZorkaService {
     }
 
 
+    public static int getRecordPoolSize() {
+        return recordPoolSize;
+    }
+
+
+    public static void setRecordPoolSize(int poolSize) {
+        recordPoolSize = poolSize;
+    }
+
+
+    public static int getStreamRecords() {
+        return streamRecords;
+    }
+
+
+    public static void setStreamRecords(int numRecords) {
+        streamRecords = numRecords;
+    }
+
+
+    public static AutoExcluder getActiveAutoExcluder() {
+        return activeAutoExcluder;
+    }
+
+
+    public static void setActiveAutoExcluder(AutoExcluder excluder) {
+        activeAutoExcluder = excluder;
+    }
+
+
     public boolean isTraceSpyMethods() {
         return traceSpyMethods;
     }
@@ -95,15 +162,50 @@ public class Tracer implements ZorkaSubmitter<SymbolicRecord>, ZorkaService {
     }
 
 
+    public boolean isBufferedTraces() {
+        return bufferedTraces;
+    }
+
+
     /**
-     * Thread local serving trace builder objects for application threads
+     * Selects trace builder implementation. Note that this affects only threads that
+     * haven't executed any traced method yet, so it should be set at agent startup.
+     *
+     * @param bufferedTraces true if BufferedTraceBuilder should be used
      */
-    private ThreadLocal<TraceBuilder> localHandlers =
-            new ThreadLocal<TraceBuilder>() {
-                public TraceBuilder initialValue() {
-                    return new TraceBuilder(Tracer.this, symbolRegistry);
-                }
-            };
+    public void setBufferedTraces(boolean bufferedTraces) {
+        this.bufferedTraces = bufferedTraces;
+    }
+
+
+    public SpyMatcherSet getHotMatcherSet() {
+        return hotMatcherSet;
+    }
+
+
+    public void setHotMatcherSet(SpyMatcherSet hotMatcherSet) {
+        this.hotMatcherSet = hotMatcherSet;
+    }
+
+
+    public LazyInstrumenter getLazyInstrumenter() {
+        return lazyInstrumenter;
+    }
+
+
+    public void setLazyInstrumenter(LazyInstrumenter lazyInstrumenter) {
+        this.lazyInstrumenter = lazyInstrumenter;
+    }
+
+
+    public AutoExcluder getAutoExcluder() {
+        return autoExcluder;
+    }
+
+
+    public void setAutoExcluder(AutoExcluder autoExcluder) {
+        this.autoExcluder = autoExcluder;
+    }
 
 
     public Tracer(SpyMatcherSet matcherSet, SymbolRegistry symbolRegistry) {
@@ -118,7 +220,20 @@ public class Tracer implements ZorkaSubmitter<SymbolicRecord>, ZorkaService {
      * @return trace event handler (trace builder object)
      */
     public TraceBuilder getHandler() {
-        return localHandlers.get();
+        return AgentThreadContext.get().getTraceBuilder(this);
+    }
+
+
+    /**
+     * Creates new trace event handler. This is called once per application thread, handlers
+     * are then kept in thread contexts (see AgentThreadContext). Buffered trace builders do not
+     * support streaming, so regular trace builders are used when streaming is enabled.
+     *
+     * @return trace event handler (trace builder object)
+     */
+    public TraceBuilder newHandler() {
+        return bufferedTraces && streamRecords == 0
+                ? new BufferedTraceBuilder(this, symbolRegistry) : new TraceBuilder(this, symbolRegistry);
     }
 
 
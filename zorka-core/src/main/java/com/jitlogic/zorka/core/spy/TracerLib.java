@@ -18,6 +18,8 @@ package com.jitlogic.zorka.core.spy;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import com.jitlogic.zorka.common.ZorkaSubmitter;
@@ -565,11 +567,199 @@ public class TracerLib {
     }
 
 
+    /**
+     * Sets maximum number of discarded trace records each application thread keeps
+     * for reuse. Pooled records are used instead of allocating new ones, so tracer
+     * produces less garbage when traces (or parts of traces) are discarded. Note that
+     * changed setting affects only threads that haven't discarded any records yet.
+     *
+     * @param poolSize maximum number of pooled records per thread (0 disables pooling)
+     */
+    public void setTracerRecordPoolSize(int poolSize) {
+        Tracer.setRecordPoolSize(poolSize);
+    }
+
+
+    public int getTracerRecordPoolSize() {
+        return Tracer.getRecordPoolSize();
+    }
+
+
+    /**
+     * Enables streaming of very long traces. When number of collected records reaches
+     * given limit, all completed records are submitted as trace fragment and released
+     * from memory. Fragments are marked with PARTIAL_TRACE and CONTINUED_TRACE flags
+     * and have FRAGMENT attribute (sequence number) attached to their root records.
+     *
+     * @param numRecords number of records that triggers submission of a fragment (0 disables streaming)
+     */
+    public void setTracerStreamRecords(int numRecords) {
+        Tracer.setStreamRecords(numRecords);
+        checkBufferedStreaming();
+    }
+
+
+    public int getTracerStreamRecords() {
+        return Tracer.getStreamRecords();
+    }
+
+
+    /**
+     * Sets number of exception stack traces kept in symbolic form, so identical exceptions
+     * thrown repeatedly don't have to be converted again. Cache hits and misses are reported
+     * as ExceptionCacheHits and ExceptionCacheMisses agent diagnostics counters.
+     *
+     * @param size maximum number of cached stack traces (0 disables caching)
+     */
+    public void setTracerExceptionCacheSize(int size) {
+        SymbolicStackCache.setCacheSize(size);
+    }
+
+
+    public int getTracerExceptionCacheSize() {
+        return SymbolicStackCache.getCacheSize();
+    }
+
+
+    /**
+     * Limits number of stack elements captured when exception is recorded in a trace.
+     *
+     * @param depth maximum number of stack elements (0 means all elements are captured)
+     */
+    public void setTracerMaxStackDepth(int depth) {
+        SymbolicStackCache.setMaxStackDepth(depth);
+    }
+
+
+    public int getTracerMaxStackDepth() {
+        return SymbolicStackCache.getMaxStackDepth();
+    }
+
+
+    /**
+     * Enables lazy instrumentation mode. Methods matched by tracer are instrumented with cheap counting
+     * stubs first. Methods called at least minCalls times within one interval are then promoted to full
+     * tracing (their classes are retransformed). Only classes loaded after enabling lazy mode are affected.
+     *
+     * @param minCalls minimum number of calls within interval required to promote method
+     * @param interval interval (in milliseconds)
+     */
+    public void setTracerLazyMode(long minCalls, long interval) {
+        LazyInstrumenter lazyInstrumenter = tracer.getLazyInstrumenter();
+        if (lazyInstrumenter != null) {
+            lazyInstrumenter.start(minCalls, interval);
+        } else {
+            log.error(ZorkaLogger.ZTR_CONFIG, "Lazy instrumentation is not available in this tracer.");
+        }
+    }
+
+
+    /**
+     * Returns methods promoted to full tracing in lazy mode.
+     *
+     * @return list of promoted methods (className.methodName)
+     */
+    public List<String> getTracerPromotedMethods() {
+        LazyInstrumenter lazyInstrumenter = tracer.getLazyInstrumenter();
+        return lazyInstrumenter != null ? lazyInstrumenter.getPromotedMethods() : new ArrayList<String>();
+    }
+
+
+    /**
+     * Enables automatic exclusion of hot, trivial methods. Tracer counts calls dropped from traces
+     * (too short and without errors). Methods dropped at least minDrops times within one interval
+     * and never kept in any trace are excluded from tracer and their classes are retransformed.
+     *
+     * @param minDrops minimum number of dropped calls within interval required to exclude method
+     * @param interval interval (in milliseconds)
+     */
+    public void setTracerAutoExclude(long minDrops, long interval) {
+        AutoExcluder autoExcluder = tracer.getAutoExcluder();
+        if (autoExcluder != null) {
+            autoExcluder.start(minDrops, interval);
+        } else {
+            log.error(ZorkaLogger.ZTR_CONFIG, "Automatic exclusion is not available in this tracer.");
+        }
+    }
+
+
+    /**
+     * Returns methods automatically excluded from tracer.
+     *
+     * @return list of excluded methods (className.methodName)
+     */
+    public List<String> getTracerAutoExcluded() {
+        AutoExcluder autoExcluder = tracer.getAutoExcluder();
+        return autoExcluder != null ? autoExcluder.getExcludedMethods() : new ArrayList<String>();
+    }
+
+
+    public String listTracerAutoExcluded() {
+        StringBuilder sb = new StringBuilder();
+        for (String name : getTracerAutoExcluded()) {
+            sb.append(name);
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Reverts automatic exclusion of a method. Method will be traced again (its class is retransformed).
+     *
+     * @param name method name (className.methodName)
+     * @return true if method was automatically excluded
+     */
+    public boolean revertTracerAutoExclude(String name) {
+        AutoExcluder autoExcluder = tracer.getAutoExcluder();
+        return autoExcluder != null && autoExcluder.revert(name);
+    }
+
+
+    /**
+     * Reverts all automatic exclusions.
+     *
+     * @return number of reverted exclusions
+     */
+    public int revertTracerAutoExcludes() {
+        AutoExcluder autoExcluder = tracer.getAutoExcluder();
+        return autoExcluder != null ? autoExcluder.revertAll() : 0;
+    }
+
+
     public void setTraceSpyMethods(boolean tsm) {
         tracer.setTraceSpyMethods(tsm);
     }
 
 
+    /**
+     * Enables or disables buffered trace builders. Buffered trace builders record method calls
+     * into compact per-thread buffers, trace record trees are created only for submitted traces
+     * by output threads. Streaming is not supported by buffered trace builders, so regular
+     * trace builders are still used while streaming is enabled. Record pool is not used
+     * by buffered trace builders.
+     *
+     * @param buffered true if buffered trace builders should be used
+     */
+    public void setTracerBuffered(boolean buffered) {
+        tracer.setBufferedTraces(buffered);
+        checkBufferedStreaming();
+    }
+
+
+    private void checkBufferedStreaming() {
+        if (tracer.isBufferedTraces() && Tracer.getStreamRecords() > 0) {
+            log.warn(ZorkaLogger.ZTR_CONFIG, "Buffered trace builders do not support streaming. "
+                    + "Regular trace builders will be used while streaming is enabled.");
+        }
+    }
+
+
+    public boolean isTracerBuffered() {
+        return tracer.isBufferedTraces();
+    }
+
+
     public boolean isTraceSpyMethods() {
         return tracer.isTraceSpyMethods();
     }
@@ -0,0 +1,382 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.spy;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of super classes and interfaces of classes seen by class transformer. It is used to compute
+ * common super classes when computing stack map frames, so classes don't have to be loaded while
+ * another class is being transformed. Classes not found in index are looked up by reading class
+ * files from class loader resources and only then by loading them. Class names are in internal
+ * form (eg. java/lang/String), as used by ASM.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class TypeHierarchy {
+
+    public static final String OBJECT = "java/lang/Object";
+
+    /**
+     * Basic type information: super class, implemented interfaces, interface flag.
+     */
+    public static class TypeInfo {
+
+        private final String name;
+
+        private final String superName;
+
+        private final String[] interfaces;
+
+        private final boolean isInterface;
+
+
+        public TypeInfo(String name, String superName, String[] interfaces, boolean isInterface) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.isInterface = isInterface;
+        }
+
+
+        public String getName() {
+            return name;
+        }
+
+
+        public String getSuperName() {
+            return superName;
+        }
+
+
+        public String[] getInterfaces() {
+            return interfaces;
+        }
+
+
+        public boolean isInterface() {
+            return isInterface;
+        }
+    }
+
+    /**
+     * Identifies class loader in types map. Class loaders are compared by identity.
+     */
+    private interface LoaderKey {
+        ClassLoader loader();
+    }
+
+    /**
+     * Weak reference to class loader, used as key in types map, so indexed types don't pin class loaders.
+     */
+    private static class LoaderRef extends WeakReference<ClassLoader> implements LoaderKey {
+
+        private final int hash;
+
+        private LoaderRef(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            this.hash = System.identityHashCode(loader);
+        }
+
+        @Override
+        public ClassLoader loader() {
+            return get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj == this || (obj instanceof LoaderKey && get() != null && get() == ((LoaderKey) obj).loader());
+        }
+    }
+
+    /**
+     * Strong class loader key used only for lookups (never stored in types map).
+     */
+    private static class LoaderLookup implements LoaderKey {
+
+        private final ClassLoader loader;
+
+        private LoaderLookup(ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public ClassLoader loader() {
+            return loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(loader);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof LoaderKey && loader == ((LoaderKey) obj).loader();
+        }
+    }
+
+    /**
+     * Types of bootstrap classes.
+     */
+    private final ConcurrentMap<String, TypeInfo> bootTypes = new ConcurrentHashMap<String, TypeInfo>();
+
+    /**
+     * Types indexed by (weakly referenced) class loader. Lookups don't take any locks, as index is
+     * queried for each level of class hierarchy while computing frames.
+     */
+    private final ConcurrentMap<LoaderKey, ConcurrentMap<String, TypeInfo>> types =
+            new ConcurrentHashMap<LoaderKey, ConcurrentMap<String, TypeInfo>>();
+
+    /**
+     * References to collected class loaders (their entries are removed from types map).
+     */
+    private final ReferenceQueue<ClassLoader> collected = new ReferenceQueue<ClassLoader>();
+
+    /**
+     * Maximum number of types indexed for a single class loader (index is cleared when full).
+     */
+    private volatile int maxTypes = 16384;
+
+
+    public void setMaxTypes(int maxTypes) {
+        this.maxTypes = maxTypes;
+    }
+
+
+    private ConcurrentMap<String, TypeInfo> types(ClassLoader loader, boolean create) {
+        if (loader == null) {
+            return bootTypes;
+        }
+
+        ConcurrentMap<String, TypeInfo> m = types.get(new LoaderLookup(loader));
+
+        if (m == null && create) {
+            for (Reference<? extends ClassLoader> ref = collected.poll(); ref != null; ref = collected.poll()) {
+                types.remove(ref);
+            }
+            m = new ConcurrentHashMap<String, TypeInfo>();
+            ConcurrentMap<String, TypeInfo> m0 = types.putIfAbsent(new LoaderRef(loader, collected), m);
+            if (m0 != null) {
+                m = m0;
+            }
+        }
+
+        return m;
+    }
+
+
+    /**
+     * Adds type to index.
+     *
+     * @param loader class loader that loads this type
+     * @param type   type information
+     */
+    public void add(ClassLoader loader, TypeInfo type) {
+        ConcurrentMap<String, TypeInfo> m = types(loader, true);
+        if (m.size() >= maxTypes) {
+            m.clear();
+        }
+        m.put(type.getName(), type);
+    }
+
+
+    /**
+     * Adds type to index using metadata extracted from class file.
+     *
+     * @param loader class loader that loads this type
+     * @param header class header
+     */
+    public void add(ClassLoader loader, ClassHeader header) {
+        add(loader, toTypeInfo(header));
+    }
+
+
+    private static TypeInfo toTypeInfo(ClassHeader header) {
+        String[] ifcs = new String[header.getInterfaces().size()];
+        for (int i = 0; i < ifcs.length; i++) {
+            ifcs[i] = header.getInterfaces().get(i).replace('.', '/');
+        }
+        return new TypeInfo(header.getClassName().replace('.', '/'),
+                header.getSuperName() != null ? header.getSuperName().replace('.', '/') : null,
+                ifcs, header.isInterface());
+    }
+
+
+    /**
+     * Looks for type information. Index is checked first (for given class loader and all its parents),
+     * then class file is read from class loader resources and finally class is loaded (without
+     * initialization). Whatever is found is added to index.
+     *
+     * @param loader class loader
+     * @param name   class name (internal form)
+     * @return type information or null if type cannot be found
+     */
+    public TypeInfo lookup(ClassLoader loader, String name) {
+        for (ClassLoader cl = loader; ; cl = cl.getParent()) {
+            ConcurrentMap<String, TypeInfo> m = types(cl, false);
+            TypeInfo type = m != null ? m.get(name) : null;
+            if (type != null) {
+                AgentDiagnostics.inc(AgentDiagnostics.TYPE_INDEX_HITS);
+                return type;
+            }
+            if (cl == null) {
+                break;
+            }
+        }
+
+        TypeInfo type = null;
+
+        if (name.charAt(0) != '[') {
+            type = readType(loader, name);
+        }
+
+        if (type != null) {
+            AgentDiagnostics.inc(AgentDiagnostics.TYPE_RESOURCE_READS);
+        } else {
+            type = loadType(loader, name);
+            if (type != null) {
+                AgentDiagnostics.inc(AgentDiagnostics.TYPE_CLASS_LOADS);
+            }
+        }
+
+        if (type != null) {
+            add(loader, type);
+        }
+
+        return type;
+    }
+
+
+    private TypeInfo readType(ClassLoader loader, String name) {
+        InputStream is = null;
+        try {
+            String path = name + ".class";
+            is = loader != null ? loader.getResourceAsStream(path) : ClassLoader.getSystemResourceAsStream(path);
+
+            if (is == null) {
+                return null;
+            }
+
+            ByteArrayOutputStream os = new ByteArrayOutputStream(4096);
+            byte[] buf = new byte[4096];
+            for (int n = is.read(buf); n > 0; n = is.read(buf)) {
+                os.write(buf, 0, n);
+            }
+
+            ClassHeader header = ClassHeader.scan(os.toByteArray());
+            TypeInfo type = header != null ? toTypeInfo(header) : null;
+
+            return type != null && name.equals(type.getName()) ? type : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // Nothing interesting here.
+                }
+            }
+        }
+    }
+
+
+    private TypeInfo loadType(ClassLoader loader, String name) {
+        try {
+            Class<?> c = Class.forName(name.replace('/', '.'), false, loader);
+            Class<?>[] ci = c.getInterfaces();
+            String[] ifcs = new String[ci.length];
+            for (int i = 0; i < ci.length; i++) {
+                ifcs[i] = ci[i].getName().replace('.', '/');
+            }
+            return new TypeInfo(name, c.getSuperclass() != null ? c.getSuperclass().getName().replace('.', '/') : null,
+                    ifcs, c.isInterface());
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Finds common super class of two types. Semantics are the same as in ClassWriter.getCommonSuperClass():
+     * if any of types is an interface, java/lang/Object is returned.
+     *
+     * @param loader class loader of transformed class
+     * @param type1  first type (internal name)
+     * @param type2  second type (internal name)
+     * @return common super class or null if hierarchy of any type cannot be resolved
+     */
+    public String getCommonSuperClass(ClassLoader loader, String type1, String type2) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+
+        TypeInfo t1 = lookup(loader, type1), t2 = lookup(loader, type2);
+
+        if (t1 == null || t2 == null) {
+            return null;
+        }
+
+        if (t1.isInterface() || t2.isInterface()) {
+            return OBJECT;
+        }
+
+        Set<String> supers = new HashSet<String>();
+
+        for (TypeInfo t = t2; ; t = lookup(loader, t.getSuperName())) {
+            if (t == null) {
+                return null;
+            }
+            supers.add(t.getName());
+            if (t.getSuperName() == null) {
+                break;
+            }
+        }
+
+        for (TypeInfo t = t1; ; t = lookup(loader, t.getSuperName())) {
+            if (t == null) {
+                return null;
+            }
+            if (supers.contains(t.getName())) {
+                return t.getName();
+            }
+            if (t.getSuperName() == null) {
+                break;
+            }
+        }
+
+        return OBJECT;
+    }
+
+}
@@ -19,7 +19,8 @@ package com.jitlogic.zorka.core.spy.plugins;
 import com.jitlogic.zorka.common.util.ObjectInspector;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.common.util.ZorkaLog;
-import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyField;
+import com.jitlogic.zorka.core.spy.SpyFieldProcessor;
 
 import java.util.Map;
 
@@ -29,7 +30,7 @@ import java.util.Map;
  *
  * @author rafal.lewczuk@jitlogic.com
  */
-public class GetterProcessor implements SpyProcessor {
+public class GetterProcessor implements SpyFieldProcessor {
 
     /**
      * Logger
@@ -39,12 +40,12 @@ public class GetterProcessor implements SpyProcessor {
     /**
      * Source field
      */
-    private String srcField;
+    private SpyField srcField;
 
     /**
      * Destination field
      */
-    private String dstField;
+    private SpyField dstField;
 
     /**
      * Attribute chain
@@ -59,22 +60,28 @@ public class GetterProcessor implements SpyProcessor {
      * @param attrChain attribute chain
      */
     public GetterProcessor(String srcField, String dstField, Object... attrChain) {
-        this.srcField = srcField;
-        this.dstField = dstField;
+        this.srcField = new SpyField(srcField);
+        this.dstField = new SpyField(dstField);
         this.attrChain = attrChain;
     }
 
 
     @Override
     public Map<String, Object> process(Map<String, Object> record) {
-        Object val = ObjectInspector.get(record.get(srcField), attrChain);
+        Object val = ObjectInspector.get(srcField.get(record), attrChain);
 
         if (ZorkaLogger.isLogMask(ZorkaLogger.ZSP_ARGPROC)) {
             log.debug(ZorkaLogger.ZSP_ARGPROC, "Final result: '" + val + "' stored to slot " + dstField);
         }
 
-        record.put(dstField, val);
+        dstField.put(record, val);
 
         return record;
     }
+
+
+    @Override
+    public String[] getFieldNames() {
+        return new String[]{srcField.getName(), dstField.getName()};
+    }
 }
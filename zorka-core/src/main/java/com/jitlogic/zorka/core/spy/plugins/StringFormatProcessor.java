@@ -16,9 +16,11 @@
  */
 package com.jitlogic.zorka.core.spy.plugins;
 
-import com.jitlogic.zorka.common.util.ObjectInspector;
-import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyField;
+import com.jitlogic.zorka.core.spy.SpyFieldProcessor;
+import com.jitlogic.zorka.core.spy.SpyTemplate;
 
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -26,17 +28,17 @@ import java.util.Map;
  *
  * @author rafal.lewczuk@jitlogic.com
  */
-public class StringFormatProcessor implements SpyProcessor {
+public class StringFormatProcessor implements SpyFieldProcessor {
 
     /**
      * Destination field
      */
-    private String dstField;
+    private SpyField dstField;
 
     /**
-     * Format expression
+     * Format expression (parsed)
      */
-    private String expr;
+    private SpyTemplate expr;
 
     /**
      * Maximum length
@@ -50,21 +52,30 @@ public class StringFormatProcessor implements SpyProcessor {
      * @param expr     expression
      */
     public StringFormatProcessor(String dstField, String expr, int len) {
-        this.dstField = dstField;
-        this.expr = expr;
+        this.dstField = new SpyField(dstField);
+        this.expr = new SpyTemplate(expr);
         this.len = len;
     }
 
     @Override
     public Map<String, Object> process(Map<String, Object> record) {
-        String s = ObjectInspector.substitute(expr, record);
+        String s = expr.format(record);
 
         if (len > 0 && s.length() > len) {
             s = s.substring(0, len);
         }
 
-        record.put(dstField, s);
+        dstField.put(record, s);
 
         return record;
     }
+
+
+    @Override
+    public String[] getFieldNames() {
+        String[] names = expr.getFieldNames();
+        String[] rslt = Arrays.copyOf(names, names.length + 1);
+        rslt[names.length] = dstField.getName();
+        return rslt;
+    }
 }
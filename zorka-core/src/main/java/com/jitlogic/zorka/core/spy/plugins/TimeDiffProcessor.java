@@ -16,7 +16,8 @@
 
 package com.jitlogic.zorka.core.spy.plugins;
 
-import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyField;
+import com.jitlogic.zorka.core.spy.SpyFieldProcessor;
 
 import java.util.Map;
 
@@ -25,22 +26,22 @@ import java.util.Map;
  *
  * @author rafal.lewczuk@jitlogic.com
  */
-public class TimeDiffProcessor implements SpyProcessor {
+public class TimeDiffProcessor implements SpyFieldProcessor {
 
     /**
      * Field containing start timestamp
      */
-    private String tstart;
+    private SpyField tstart;
 
     /**
      * Field containing stop timestamp
      */
-    private String tstop;
+    private SpyField tstop;
 
     /**
      * Field containing result timestamp
      */
-    private String rslt;
+    private SpyField rslt;
 
     /**
      * Creates time difference calculating processor
@@ -50,23 +51,25 @@ public class TimeDiffProcessor implements SpyProcessor {
      * @param rslt   result field
      */
     public TimeDiffProcessor(String tstart, String tstop, String rslt) {
-        this.tstart = tstart;
-        this.tstop = tstop;
-        this.rslt = rslt;
+        this.tstart = new SpyField(tstart);
+        this.tstop = new SpyField(tstop);
+        this.rslt = new SpyField(rslt);
     }
 
 
     @Override
     public Map<String, Object> process(Map<String, Object> record) {
-        Object v1 = record.get(tstart),
-                v2 = record.get(tstop);
-
-        if (v1 instanceof Long && v2 instanceof Long) {
-            long l1 = (Long) v1, l2 = (Long) v2;
-            record.put(rslt, l2 - l1);
+        if (tstart.isLong(record) && tstop.isLong(record)) {
+            rslt.putLong(record, tstop.getLong(record) - tstart.getLong(record));
         } // TODO else (log something here ?)
 
         return record;
     }
 
+
+    @Override
+    public String[] getFieldNames() {
+        return new String[]{tstart.getName(), tstop.getName(), rslt.getName()};
+    }
+
 }
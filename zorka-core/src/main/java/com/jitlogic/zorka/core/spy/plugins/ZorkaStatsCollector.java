@@ -20,12 +20,18 @@ package com.jitlogic.zorka.core.spy.plugins;
 import com.jitlogic.zorka.core.mbeans.MBeanServerRegistry;
 import com.jitlogic.zorka.common.stats.MethodCallStatistic;
 import com.jitlogic.zorka.common.stats.MethodCallStatistics;
+import com.jitlogic.zorka.common.stats.TopKMethodCallStatistics;
 import com.jitlogic.zorka.common.util.ObjectInspector;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.common.util.ZorkaLog;
 import com.jitlogic.zorka.core.spy.SpyContext;
-import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyField;
+import com.jitlogic.zorka.core.spy.SpyFieldProcessor;
+import com.jitlogic.zorka.core.spy.SpyTemplate;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
@@ -37,12 +43,17 @@ import static com.jitlogic.zorka.core.spy.SpyLib.*;
  *
  * @author rafal.lewczuk@jitlogic.com
  */
-public class ZorkaStatsCollector implements SpyProcessor {
+public class ZorkaStatsCollector implements SpyFieldProcessor {
 
     public static final int ACTION_STATS = 0x01;
     public static final int ACTION_ENTER = 0x02;
     public static final int ACTION_EXIT = 0x04;
 
+    /**
+     * Use striped statistics (see StripedMethodCallStatistic). Suitable for statistics updated by many threads.
+     */
+    public static final int ACTION_STRIPED = 0x08;
+
     public static final String CLASS_NAME = "className";
     public static final String METHOD_NAME = "methodName";
     public static final String CLASS_SNAME = "shortClassName";
@@ -70,6 +81,11 @@ public class ZorkaStatsCollector implements SpyProcessor {
      */
     private int actions;
 
+    /**
+     * Maximum number of statistics kept in each statistics object (0 - unbounded)
+     */
+    private int maxStats;
+
     /**
      * MBean server name
      */
@@ -90,15 +106,20 @@ public class ZorkaStatsCollector implements SpyProcessor {
      */
     private String statTemplate;
 
+    /**
+     * Parsed templates (used for substitution)
+     */
+    private SpyTemplate mbeanTmpl, attrTmpl, statTmpl;
+
     /**
      * Execution time field
      */
-    private String timeField;
+    private SpyField timeField;
 
     /**
      * Throughput field
      */
-    private String throughputField;
+    private SpyField throughputField;
 
     /**
      * Object Name substitution flags
@@ -135,6 +156,13 @@ public class ZorkaStatsCollector implements SpyProcessor {
 
     private MethodCallStatistics cachedStatistics;
 
+    /**
+     * Record field statistic chosen by ACTION_ENTER is kept in, so ACTION_EXIT (of a collector with
+     * the same templates) marks exit on the same statistic, even if statistics container has evicted
+     * or admitted statistics in the meantime. Not used if statistic is constant.
+     */
+    private SpyField statField;
+
     /**
      * MBean server registry
      */
@@ -153,6 +181,24 @@ public class ZorkaStatsCollector implements SpyProcessor {
     public ZorkaStatsCollector(MBeanServerRegistry mbsRegistry, String mbsName, String mbeanTemplate,
                                String attrTemplate, String statTemplate, String timeField, String throughputField,
                                int actions) {
+        this(mbsRegistry, mbsName, mbeanTemplate, attrTemplate, statTemplate, timeField, throughputField, actions, 0);
+    }
+
+
+    /**
+     * Creates new method call statistics collector keeping at most maxStats statistics in each statistics
+     * object. Least frequent statistics are folded into OTHER statistic (see TopKMethodCallStatistics).
+     *
+     * @param mbsName       mbean server name
+     * @param mbeanTemplate mbean name template (object name)
+     * @param attrTemplate  attribute name template
+     * @param statTemplate  statistic name template
+     * @param timeField     execution time field name
+     * @param maxStats      maximum number of statistics (0 - unbounded)
+     */
+    public ZorkaStatsCollector(MBeanServerRegistry mbsRegistry, String mbsName, String mbeanTemplate,
+                               String attrTemplate, String statTemplate, String timeField, String throughputField,
+                               int actions, int maxStats) {
 
         // Some strings are intern()ed immediately, so
 
@@ -162,9 +208,14 @@ public class ZorkaStatsCollector implements SpyProcessor {
         this.attrTemplate = attrTemplate.intern();
         this.statTemplate = statTemplate.intern();
 
-        this.timeField = timeField;
-        this.throughputField = throughputField;
+        this.mbeanTmpl = new SpyTemplate(this.mbeanTemplate);
+        this.attrTmpl = new SpyTemplate(this.attrTemplate);
+        this.statTmpl = new SpyTemplate(this.statTemplate);
+
+        this.timeField = new SpyField(timeField);
+        this.throughputField = throughputField != null ? new SpyField(throughputField) : null;
         this.actions = actions;
+        this.maxStats = maxStats;
 
         this.mbeanFlags = templateFlags(mbeanTemplate);
         this.attrFlags = templateFlags(attrTemplate);
@@ -190,14 +241,17 @@ public class ZorkaStatsCollector implements SpyProcessor {
 
         if (mbeanFlags == 0 && attrFlags == 0) {
             // Object name and attribute name are constant ...
-            cachedStatistics = registry.getOrRegister(mbsName, mbeanTemplate, attrTemplate,
-                    new MethodCallStatistics(), "Call stats");
+            cachedStatistics = getStatistics(mbeanTemplate, attrTemplate);
 
             if (statFlags == 0) {
                 cachedStatistic = cachedStatistics.getMethodCallStatistic(statTemplate);
             }
         }
 
+        if (cachedStatistic == null && 0 != (actions & (ACTION_ENTER | ACTION_EXIT))) {
+            statField = new SpyField("STAT:" + mbeanTemplate + ":" + attrTemplate + ":" + statTemplate);
+        }
+
     }
 
 
@@ -221,17 +275,16 @@ public class ZorkaStatsCollector implements SpyProcessor {
                 statistics = statsCacheEnabled ? statsCache.get(ctx) : null;
 
                 if (statistics == null) {
-                    String mbeanName = subst(mbeanTemplate, record, ctx, mbeanFlags);
-                    String attrName = subst(attrTemplate, record, ctx, attrFlags);
-                    statistics = registry.getOrRegister(mbsName, mbeanName, attrName,
-                            new MethodCallStatistics(), "Call stats");
+                    String mbeanName = subst(mbeanTmpl, record, ctx, mbeanFlags);
+                    String attrName = subst(attrTmpl, record, ctx, attrFlags);
+                    statistics = getStatistics(mbeanName, attrName);
                     if (statsCacheEnabled) {
                         statsCache.putIfAbsent(ctx, statistics);
                     }
                 }
             }
 
-            String key = statFlags != 0 ? subst(statTemplate, record, ctx, statFlags) : statTemplate;
+            String key = statFlags != 0 ? subst(statTmpl, record, ctx, statFlags) : statTemplate;
 
             statistic = statistics.getMethodCallStatistic(key);
         }
@@ -242,9 +295,16 @@ public class ZorkaStatsCollector implements SpyProcessor {
 
         if (0 != (actions & ACTION_ENTER)) {
             statistic.markEnter();
+            if (statField != null) {
+                statField.put(record, statistic);
+            }
         }
 
         if (0 != (actions & ACTION_EXIT)) {
+            Object entered = statField != null ? statField.get(record) : null;
+            if (entered instanceof MethodCallStatistic) {
+                statistic = (MethodCallStatistic) entered;
+            }
             statistic.markExit();
         }
 
@@ -252,6 +312,23 @@ public class ZorkaStatsCollector implements SpyProcessor {
     }
 
 
+    /**
+     * Returns registered statistics container. New container is created only if there is none registered yet.
+     */
+    private MethodCallStatistics getStatistics(String mbeanName, String attrName) {
+        Object statistics = registry.get(mbsName, mbeanName, attrName);
+
+        return statistics instanceof MethodCallStatistics ? (MethodCallStatistics) statistics
+                : registry.getOrRegister(mbsName, mbeanName, attrName, newStatistics(), "Call stats");
+    }
+
+
+    private MethodCallStatistics newStatistics() {
+        boolean striped = 0 != (actions & ACTION_STRIPED);
+        return maxStats > 0 ? new TopKMethodCallStatistics(maxStats, striped) : new MethodCallStatistics(striped);
+    }
+
+
     /**
      * Returns true if given context attribute is needed to format at least one string.
      * Strings that consist solely of context attribute macro are not counted.
@@ -334,16 +411,16 @@ public class ZorkaStatsCollector implements SpyProcessor {
     /**
      * Performs string substitution. Chooses the fastest possible way to do so.
      *
-     * @param input  template string
+     * @param input  template
      * @param record spy record (with attributes used to do substitution)
      * @param ctx    spy context
      * @param flags  template flags.
      * @return
      */
-    private String subst(String input, Map<String, Object> record, SpyContext ctx, int flags) {
+    private String subst(SpyTemplate input, Map<String, Object> record, SpyContext ctx, int flags) {
 
         if (flags == 0) {
-            return input;
+            return input.toString();
         }
 
         if (0 != (flags & HAS_SINGLE_MACRO)) {
@@ -360,9 +437,9 @@ public class ZorkaStatsCollector implements SpyProcessor {
                     // TODO internal error - should be logged somewhere ...
                     break;
             }
-            return input;
+            return input.toString();
         } else {
-            return ObjectInspector.substitute(input, record);
+            return input.format(record);
         }
     }
 
@@ -374,11 +451,10 @@ public class ZorkaStatsCollector implements SpyProcessor {
      * @param statistic statistic used to
      */
     private void submit(Map<String, Object> record, MethodCallStatistic statistic) {
-        Object executionTime = record.get(timeField);
         Number throughput = null;
 
         if (throughputField != null) {
-            Object v = record.get(throughputField);
+            Object v = throughputField.get(record);
             if (v instanceof Number) {
                 throughput = (Number) v;
             } else {
@@ -388,24 +464,25 @@ public class ZorkaStatsCollector implements SpyProcessor {
             }
         }
 
-        if (executionTime instanceof Long) {
+        if (timeField.isLong(record)) {
+            long executionTime = timeField.getLong(record);
             if (0 != ((Integer) record.get(".STAGES") & (1 << ON_RETURN))) {
                 if (ZorkaLogger.isLogMask(ZorkaLogger.ZSP_ARGPROC)) {
                     log.debug(ZorkaLogger.ZSP_ARGPROC, "Updating stats using logCall()");
                 }
                 if (throughput != null) {
-                    statistic.logCall((Long) executionTime, throughput.longValue());
+                    statistic.logCall(executionTime, throughput.longValue());
                 } else {
-                    statistic.logCall((Long) executionTime);
+                    statistic.logCall(executionTime);
                 }
             } else if (0 != ((Integer) record.get(".STAGES") & (1 << ON_ERROR))) {
                 if (ZorkaLogger.isLogMask(ZorkaLogger.ZSP_ARGPROC)) {
                     log.debug(ZorkaLogger.ZSP_ARGPROC, "Updating stats using logError()");
                 }
                 if (throughput != null) {
-                    statistic.logError((Long) executionTime, throughput.longValue());
+                    statistic.logError(executionTime, throughput.longValue());
                 } else {
-                    statistic.logError((Long) executionTime);
+                    statistic.logError(executionTime);
                 }
             } else {
                 if (ZorkaLogger.isLogMask(ZorkaLogger.ZSP_ARGPROC)) {
@@ -414,8 +491,30 @@ public class ZorkaStatsCollector implements SpyProcessor {
             }
         } else {
             if (ZorkaLogger.isLogMask(ZorkaLogger.ZSP_ARGPROC)) {
-                log.debug(ZorkaLogger.ZSP_ARGPROC, "Unknown type of timeField: " + executionTime);
+                log.debug(ZorkaLogger.ZSP_ARGPROC, "Unknown type of timeField: " + timeField.get(record));
             }
         }
     }
+
+
+    @Override
+    public String[] getFieldNames() {
+        List<String> names = new ArrayList<String>();
+
+        names.add(timeField.getName());
+
+        if (statField != null) {
+            names.add(statField.getName());
+        }
+
+        if (throughputField != null) {
+            names.add(throughputField.getName());
+        }
+
+        names.addAll(Arrays.asList(mbeanTmpl.getFieldNames()));
+        names.addAll(Arrays.asList(attrTmpl.getFieldNames()));
+        names.addAll(Arrays.asList(statTmpl.getFieldNames()));
+
+        return names.toArray(new String[names.size()]);
+    }
 }
@@ -32,4 +32,20 @@ public class MbeanServerRegistryUnitTest  extends ZorkaFixture {
         assertSame(obj2, mBeanServerRegistry.getOrRegister("xxx", "test:name=Test", "stats2", obj2));
     }
 
+
+    @Test
+    public void testGetRegisteredObjectWithoutRegisteringNewOne() throws Exception {
+        Object obj = new Object();
+
+        assertNull(mBeanServerRegistry.get("xxx", "test:name=Test", "stats"));
+        mBeanServerRegistry.getOrRegister("xxx", "test:name=Test", "stats", obj);
+        assertSame(obj, mBeanServerRegistry.get("xxx", "test:name=Test", "stats"));
+
+        assertNull(mBeanServerRegistry.get("test", "test:name=Test", "stats"));
+        mBeanServerRegistry.getOrRegister("test", "test:name=Test", "stats", obj);
+        assertSame(obj, mBeanServerRegistry.get("test", "test:name=Test", "stats"));
+        assertNull(mBeanServerRegistry.get("test", "test:name=Test", "stats2"));
+        assertNull(mBeanServerRegistry.get("test", "malformed name", "stats"));
+    }
+
 }
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.test.common;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.core.test.support.OverheadBench;
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Microbenchmarks comparing symbol registry against its previous implementation (two concurrent
+ * hash maps with boxed keys) under contention. Not run as part of regular build, run it manually
+ * and look at printed results.
+ */
+public class SymbolRegistryOverheadIntegTest {
+
+    private static final int ROUNDS = 5;
+
+    private static final int THREADS = 4;
+
+    private static final int CALLS = 5000000;
+
+    private static final int SYMBOLS = 10000;
+
+
+    /**
+     * Reproduces symbol registry implementation used before symbol names were kept in array.
+     */
+    private static class LegacySymbolRegistry extends SymbolRegistry {
+
+        private AtomicInteger lastId = new AtomicInteger(0);
+
+        private ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+        private ConcurrentMap<Integer, String> names = new ConcurrentHashMap<Integer, String>();
+
+        @Override
+        public int symbolId(String symbol) {
+            Integer id = ids.get(symbol);
+
+            if (id == null) {
+                int newid = lastId.incrementAndGet();
+
+                id = ids.putIfAbsent(symbol, newid);
+                if (id == null) {
+                    names.put(newid, symbol);
+                    id = newid;
+                }
+            }
+
+            return id;
+        }
+
+        @Override
+        public String symbolName(int symbolId) {
+            String sym = names.get(symbolId);
+            return sym != null ? sym : "<?>";
+        }
+    }
+
+
+    private static final String[] syms = new String[SYMBOLS];
+
+    static {
+        for (int i = 0; i < SYMBOLS; i++) {
+            syms[i] = "com.myapp.SomeClass" + i;
+        }
+    }
+
+
+    private static void fill(SymbolRegistry registry) {
+        for (String sym : syms) {
+            registry.symbolId(sym);
+        }
+    }
+
+
+    @Test
+    public void testMeasureSymbolNameLookupOverhead() throws Exception {
+        final SymbolRegistry legacyRegistry = new LegacySymbolRegistry();
+        final SymbolRegistry registry = new SymbolRegistry();
+        fill(legacyRegistry);
+        fill(registry);
+
+        double legacy = new OverheadBench("symbolName() with hash map", ROUNDS, THREADS, CALLS) {
+            public long call(int i) {
+                return legacyRegistry.symbolName(1 + i % SYMBOLS).length();
+            }
+        }.run();
+
+        double current = new OverheadBench("SymbolRegistry.symbolName()", ROUNDS, THREADS, CALLS) {
+            public long call(int i) {
+                return registry.symbolName(1 + i % SYMBOLS).length();
+            }
+        }.run();
+
+        System.out.println(String.format("Speedup: %.2fx", legacy / current));
+        assertTrue(current > 0);
+    }
+
+
+    @Test
+    public void testMeasureSymbolIdLookupOverhead() throws Exception {
+        final SymbolRegistry legacyRegistry = new LegacySymbolRegistry();
+        final SymbolRegistry registry = new SymbolRegistry();
+        fill(legacyRegistry);
+        fill(registry);
+
+        double legacy = new OverheadBench("symbolId() with hash map", ROUNDS, THREADS, CALLS) {
+            public long call(int i) {
+                return legacyRegistry.symbolId(syms[i % SYMBOLS]);
+            }
+        }.run();
+
+        double current = new OverheadBench("SymbolRegistry.symbolId()", ROUNDS, THREADS, CALLS) {
+            public long call(int i) {
+                return registry.symbolId(syms[i % SYMBOLS]);
+            }
+        }.run();
+
+        System.out.println(String.format("Speedup: %.2fx", legacy / current));
+        assertTrue(current > 0);
+    }
+
+}
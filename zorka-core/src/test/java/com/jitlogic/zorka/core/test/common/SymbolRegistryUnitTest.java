@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.test.common;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class SymbolRegistryUnitTest {
+
+    @Test
+    public void testRegisterAndResolveSymbols() {
+        SymbolRegistry registry = new SymbolRegistry();
+
+        int id1 = registry.symbolId("some.Class");
+        int id2 = registry.symbolId("someMethod");
+
+        assertEquals(1, id1);
+        assertEquals(2, id2);
+        assertEquals(id1, registry.symbolId("some.Class"));
+        assertEquals("some.Class", registry.symbolName(id1));
+        assertEquals("<null>", registry.symbolName(0));
+        assertEquals("<?>", registry.symbolName(3));
+        assertEquals("<?>", registry.symbolName(-1));
+        assertEquals(0, registry.trySymbolId("otherMethod"));
+    }
+
+
+    @Test
+    public void testPutSymbolsBeyondInitialArraySize() {
+        SymbolRegistry registry = new SymbolRegistry();
+
+        registry.put(100000, "some.Class");
+
+        assertEquals("some.Class", registry.symbolName(100000));
+        assertEquals(100001, registry.symbolId("someMethod"));
+        assertEquals("someMethod", registry.symbolName(100001));
+
+        for (int i = 0; i < 5000; i++) {
+            registry.symbolId("sym" + i);
+        }
+
+        assertEquals("some.Class", registry.symbolName(100000));
+        assertEquals("sym4999", registry.symbolName(105001));
+    }
+
+
+    @Test
+    public void testConcurrentRegistrationDoesNotLeaveHolesInIdSpace() throws Exception {
+        final SymbolRegistry registry = new SymbolRegistry();
+        final CountDownLatch start = new CountDownLatch(1);
+        final int nsyms = 5000;
+
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < nsyms; i++) {
+                        registry.symbolId("sym" + i);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(nsyms, registry.size());
+
+        Set<String> names = new HashSet<String>();
+        for (int id = 1; id <= nsyms; id++) {
+            names.add(registry.symbolName(id));
+        }
+
+        assertEquals(nsyms, names.size());
+        assertFalse(names.contains("<?>"));
+    }
+
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.core.spy.AgentThreadContext;
+import com.jitlogic.zorka.core.spy.SpyContext;
+import com.jitlogic.zorka.core.spy.SpyRecord;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AgentThreadContextUnitTest extends ZorkaFixture {
+
+    @Test
+    public void testPushAndPopRecordsBeyondInitialStackSize() {
+        AgentThreadContext atc = AgentThreadContext.get();
+        Object owner = new Object();
+        SpyContext ctx = new SpyContext(spy.instrument("x"), "C", "m", "()V", 1);
+        SpyRecord[] records = new SpyRecord[40];
+
+        for (int i = 0; i < records.length; i++) {
+            records[i] = new SpyRecord(ctx);
+            atc.pushRecord(owner, records[i]);
+        }
+
+        assertEquals(40, atc.getStackDepth());
+
+        for (int i = records.length - 1; i >= 0; i--) {
+            assertSame(records[i], atc.popRecord(owner));
+        }
+
+        assertNull(atc.popRecord(owner));
+    }
+
+
+    @Test
+    public void testSubmissionStackIsResetWhenAccessedByAnotherOwner() {
+        AgentThreadContext atc = AgentThreadContext.get();
+        Object owner1 = new Object(), owner2 = new Object();
+        SpyContext ctx = new SpyContext(spy.instrument("x"), "C", "m", "()V", 1);
+
+        atc.pushRecord(owner1, new SpyRecord(ctx));
+
+        assertNull(atc.popRecord(owner2));
+        assertEquals(0, atc.getStackDepth());
+    }
+
+
+    @Test
+    public void testRecursiveTransformOfTheSameClassIsRejected() {
+        AgentThreadContext atc = AgentThreadContext.get();
+
+        assertTrue(atc.beginTransform("some.Class"));
+        assertFalse(atc.beginTransform("some.Class"));
+        assertTrue(atc.beginTransform("other.Class"));
+
+        atc.endTransform("other.Class");
+        atc.endTransform("some.Class");
+
+        assertTrue(atc.beginTransform("some.Class"));
+        atc.endTransform("some.Class");
+    }
+}
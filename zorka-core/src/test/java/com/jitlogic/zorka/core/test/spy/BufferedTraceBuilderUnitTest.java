@@ -0,0 +1,288 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.ZorkaSubmitter;
+import com.jitlogic.zorka.common.tracedata.*;
+import com.jitlogic.zorka.core.spy.AutoExcluder;
+import com.jitlogic.zorka.core.spy.BufferedTraceBuilder;
+import com.jitlogic.zorka.core.spy.DummySpyRetransformer;
+import com.jitlogic.zorka.core.spy.TraceBuilder;
+import com.jitlogic.zorka.core.spy.Tracer;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks if buffered trace builder produces the same traces as regular trace builder.
+ */
+public class BufferedTraceBuilderUnitTest extends ZorkaFixture {
+
+    private static final int MS = 1000000;
+
+    private SymbolRegistry symbols = new SymbolRegistry();
+
+    private int c1 = symbols.symbolId("some.Class");
+    private int m1 = symbols.symbolId("someMethod");
+    private int m2 = symbols.symbolId("otherMethod");
+    private int m3 = symbols.symbolId("anotherMethod");
+    private int s1 = symbols.symbolId("()V");
+    private int t1 = symbols.symbolId("TRACE1");
+    private int t2 = symbols.symbolId("TRACE2");
+    private int a1 = symbols.symbolId("ATTR1");
+
+
+    private interface Scenario {
+        void run(TraceBuilder b);
+    }
+
+
+    @After
+    public void tearDown() {
+        tracer.setTracerMaxTraceRecords(4096);
+        tracer.setTracerMinMethodTime(250000);
+        tracer.setTracerMinTraceTime(50);
+        Tracer.setActiveAutoExcluder(null);
+        Tracer.setStreamRecords(0);
+    }
+
+
+    private List<TraceRecord> run(Scenario scenario, boolean buffered) {
+        final List<TraceRecord> records = new ArrayList<TraceRecord>();
+
+        ZorkaSubmitter<SymbolicRecord> output = new ZorkaSubmitter<SymbolicRecord>() {
+            @Override
+            public boolean submit(SymbolicRecord obj) {
+                return records.add(obj instanceof TraceBuffer ? ((TraceBuffer) obj).getRecord() : (TraceRecord) obj);
+            }
+        };
+
+        scenario.run(buffered ? new BufferedTraceBuilder(output, symbols) : new TraceBuilder(output, symbols));
+
+        return records;
+    }
+
+
+    private static void dump(TraceRecord tr, String indent, StringBuilder sb) {
+        sb.append(indent).append(tr.getClassId()).append('.').append(tr.getMethodId())
+                .append(" t=").append(tr.getTime()).append(" c=").append(tr.getCalls())
+                .append(" e=").append(tr.getErrors()).append(" f=").append(tr.getFlags())
+                .append(" x=").append(tr.getException() != null).append(" a=").append(tr.getAttrs());
+        if (tr.hasFlag(TraceRecord.TRACE_BEGIN)) {
+            sb.append(" m=").append(tr.getMarker().getTraceId()).append('/').append(tr.getMarker().getFlags());
+        }
+        sb.append('\n');
+        for (int i = 0; i < tr.numChildren(); i++) {
+            dump(tr.getChild(i), indent + "  ", sb);
+        }
+    }
+
+
+    private static String dump(List<TraceRecord> records) {
+        StringBuilder sb = new StringBuilder();
+        for (TraceRecord tr : records) {
+            dump(tr, "", sb);
+            sb.append("--\n");
+        }
+        return sb.toString();
+    }
+
+
+    private void check(int expectedTraces, Scenario scenario) {
+        List<TraceRecord> expected = run(scenario, false);
+        List<TraceRecord> actual = run(scenario, true);
+        assertEquals(expectedTraces, expected.size());
+        assertEquals(dump(expected), dump(actual));
+    }
+
+
+    @Test
+    public void testTracesWithShortAndLongMethods() {
+        check(1, new Scenario() {
+            public void run(TraceBuilder b) {
+                b.traceEnter(c1, m1, s1, 100 * MS);
+                b.traceBegin(t1, 100L, 0);
+                b.traceEnter(c1, m2, s1, 200 * MS);
+                b.traceEnter(c1, m3, s1, 210 * MS);
+                b.traceReturn(210 * MS + 10);
+                b.traceEnter(c1, m3, s1, 220 * MS);
+                b.traceReturn(300 * MS);
+                b.traceReturn(350 * MS);
+                b.newAttr(-1, a1, "xyz");
+                b.traceReturn(400 * MS);
+            }
+        });
+    }
+
+
+    @Test
+    public void testDroppedAndSubmittedTraces() {
+        check(1, new Scenario() {
+            public void run(TraceBuilder b) {
+                b.traceEnter(c1, m1, s1, 100 * MS);
+                b.traceBegin(t1, 100L, 0);
+                b.traceEnter(c1, m2, s1, 200 * MS);
+                b.traceReturn(300 * MS);
+                b.markTraceFlags(0, TraceMarker.DROP_TRACE);
+                b.traceReturn(400 * MS);
+
+                b.traceEnter(c1, m1, s1, 500 * MS);
+                b.traceBegin(t1, 100L, 0);
+                b.traceEnter(c1, m2, s1, 500 * MS + 10);
+                b.traceReturn(500 * MS + 20);
+                b.traceReturn(500 * MS + 30);
+
+                b.traceEnter(c1, m1, s1, 600 * MS);
+                b.traceBegin(t1, 100L, 0);
+                b.traceEnter(c1, m2, s1, 600 * MS + 10);
+                b.traceReturn(600 * MS + 20);
+                b.markTraceFlags(0, TraceMarker.SUBMIT_TRACE);
+                b.traceReturn(600 * MS + 30);
+            }
+        });
+    }
+
+
+    @Test
+    public void testDropInterimRecords() {
+        check(1, new Scenario() {
+            public void run(TraceBuilder b) {
+                b.traceEnter(c1, m1, s1, 100 * MS);
+                b.traceBegin(t1, 100L, TraceMarker.DROP_INTERIM);
+                b.traceEnter(c1, m2, s1, 200 * MS);
+                b.traceEnter(c1, m3, s1, 200 * MS + 10);
+                b.traceReturn(300 * MS);
+                b.traceReturn(300 * MS + 10);
+                b.traceReturn(400 * MS);
+            }
+        });
+    }
+
+
+    @Test
+    public void testExceptionPassedAndWrapped() {
+        check(1, new Scenario() {
+            public void run(TraceBuilder b) {
+                Exception e1 = new RuntimeException("oja!");
+                Exception e2 = new RuntimeException("wrapped", e1);
+                b.traceEnter(c1, m1, s1, 100 * MS);
+                b.traceBegin(t1, 100L, 0);
+                b.traceEnter(c1, m2, s1, 200 * MS);
+                b.traceEnter(c1, m3, s1, 200 * MS + 10);
+                b.traceError(e1, 200 * MS + 20);
+                b.traceError(e1, 200 * MS + 30);
+                b.traceEnter(c1, m2, s1, 300 * MS);
+                b.traceEnter(c1, m3, s1, 300 * MS + 10);
+                b.traceError(e1, 300 * MS + 20);
+                b.traceError(e2, 300 * MS + 30);
+                b.traceReturn(400 * MS);
+            }
+        });
+    }
+
+
+    @Test
+    public void testEmbeddedTracesAndOverflow() {
+        tracer.setTracerMinTraceTime(0);
+        tracer.setTracerMinMethodTime(0);
+        tracer.setTracerMaxTraceRecords(4);
+
+        check(2, new Scenario() {
+            public void run(TraceBuilder b) {
+                b.traceEnter(c1, m1, s1, 1 * MS);
+                b.traceBegin(t1, 2 * MS, 0);
+                b.traceEnter(c1, m2, s1, 3 * MS);
+                b.traceBegin(t2, 4 * MS, 0);
+                for (int i = 0; i < 5; i++) {
+                    b.traceEnter(c1, m3, s1, (5 + 2 * i) * MS);
+                    b.traceReturn((6 + 2 * i) * MS);
+                }
+                b.traceReturn(20 * MS);
+                b.traceReturn(30 * MS);
+            }
+        });
+    }
+
+
+    @Test
+    public void testFramesOutsideOfTraceAreNotRecorded() {
+        check(1, new Scenario() {
+            public void run(TraceBuilder b) {
+                b.traceEnter(c1, m1, s1, 100 * MS);
+                b.traceEnter(c1, m2, s1, 200 * MS);
+                assertFalse(b.isInTrace(t1));
+                b.traceReturn(300 * MS);
+                b.traceEnter(c1, m2, s1, 400 * MS);
+                b.traceBegin(t1, 100L, 0);
+                assertTrue(b.isInTrace(t1));
+                b.traceEnter(c1, m3, s1, 500 * MS);
+                b.newAttr(t1, a1, "abc");
+                assertEquals("abc", b.getAttr(t1, a1));
+                b.traceReturn(600 * MS);
+                b.traceReturn(700 * MS);
+                b.traceReturn(800 * MS);
+            }
+        });
+    }
+
+
+
+    @Test
+    public void testExcludeMethodsAlwaysDroppedFromBufferedTraces() {
+        AutoExcluder excluder = new AutoExcluder(agentInstance.getTracer(), symbols,
+                new DummySpyRetransformer(null, config));
+        excluder.start(2048, 0);
+
+        run(new Scenario() {
+            public void run(TraceBuilder b) {
+                b.traceEnter(c1, m1, s1, 10 * MS);
+                b.traceBegin(t1, 100L, 0);
+                b.traceEnter(c1, m3, s1, 11 * MS);
+                b.traceReturn(20 * MS);
+                for (int i = 0; i < 2048; i++) {
+                    b.traceEnter(c1, m2, s1, 30 * MS + i);
+                    b.traceReturn(30 * MS + i + 1);
+                    b.traceEnter(c1, m3, s1, 40 * MS + i);
+                    b.traceReturn(40 * MS + i + 1);
+                }
+                b.traceReturn(50 * MS);
+            }
+        }, true);
+
+        assertEquals(1, excluder.exclude());
+        assertEquals(Arrays.asList("some.Class.otherMethod"), excluder.getExcludedMethods());
+    }
+
+
+    @Test
+    public void testRegularTraceBuildersAreUsedWhenStreamingIsEnabled() {
+        Tracer t = agentInstance.getTracer();
+        t.setBufferedTraces(true);
+        assertTrue(t.newHandler() instanceof BufferedTraceBuilder);
+
+        Tracer.setStreamRecords(100);
+        assertFalse(t.newHandler() instanceof BufferedTraceBuilder);
+        t.setBufferedTraces(false);
+    }
+}
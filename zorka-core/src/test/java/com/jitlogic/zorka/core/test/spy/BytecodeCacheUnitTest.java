@@ -0,0 +1,251 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.tracedata.PersistentSymbolRegistry;
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.stats.MethodCallStatistics;
+import com.jitlogic.zorka.core.spy.BytecodeCache;
+import com.jitlogic.zorka.core.spy.SpyClassTransformer;
+import com.jitlogic.zorka.core.spy.SpyClassVisitor;
+import com.jitlogic.zorka.core.spy.SpyDefinition;
+import com.jitlogic.zorka.core.spy.SpyMatcher;
+import com.jitlogic.zorka.core.spy.SpyMatcherSet;
+import com.jitlogic.zorka.core.spy.Tracer;
+import com.jitlogic.zorka.core.test.spy.support.TestSpyTransformer;
+import com.jitlogic.zorka.core.test.support.BytecodeInstrumentationFixture;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static com.jitlogic.zorka.core.test.support.TestUtil.transform;
+import static org.junit.Assert.*;
+
+public class BytecodeCacheUnitTest extends BytecodeInstrumentationFixture {
+
+    private static final byte[] ORIG = { 1, 2, 3, 4 };
+    private static final byte[] INSTR = { 5, 6, 7, 8, 9 };
+
+
+    private File cacheDir() {
+        return new File(getTmpDir(), "cache");
+    }
+
+
+    @Test
+    public void testPersistentSymbolRegistryKeepsIdsAfterRestart() {
+        File f = new File(getTmpDir(), "symbols.dat");
+
+        PersistentSymbolRegistry reg1 = new PersistentSymbolRegistry(f);
+        int id1 = reg1.symbolId("com.myapp.SomeClass");
+        int id2 = reg1.symbolId("someMethod");
+        reg1.close();
+
+        PersistentSymbolRegistry reg2 = new PersistentSymbolRegistry(f);
+        assertEquals(reg1.getEpoch(), reg2.getEpoch());
+        assertEquals(id1, reg2.symbolId("com.myapp.SomeClass"));
+        assertEquals(id2, reg2.symbolId("someMethod"));
+        assertTrue(reg2.symbolId("otherMethod") > id2);
+        reg2.close();
+    }
+
+
+    @Test
+    public void testPersistentSymbolRegistryCannotBeSharedByTwoInstances() {
+        File f = new File(getTmpDir(), "symbols.dat");
+
+        PersistentSymbolRegistry reg1 = new PersistentSymbolRegistry(f);
+        PersistentSymbolRegistry reg2 = new PersistentSymbolRegistry(f);
+
+        assertTrue(reg1.isPersistent());
+        assertFalse(reg2.isPersistent());
+        assertFalse(reg1.getEpoch().equals(reg2.getEpoch()));
+
+        reg2.close();
+        reg1.close();
+    }
+
+
+    @Test
+    public void testCacheEntriesAreNotStoredWhenSymbolsCannotBeSaved() {
+        PersistentSymbolRegistry reg = new PersistentSymbolRegistry(new File(getTmpDir(), "symbols.dat"));
+        BytecodeCache cache = new BytecodeCache(cacheDir(), 1024 * 1024, reg, "v1");
+
+        reg.symbolId("com.myapp.SomeClass");
+        cache.put("com.myapp.SomeClass", ORIG, 42, INSTR);
+        assertEquals(1, cache.count());
+
+        reg.symbolId("broken\nsymbol");
+        assertFalse(reg.isPersistent());
+        cache.put("com.myapp.OtherClass", ORIG, 42, INSTR);
+        assertEquals(1, cache.count());
+
+        reg.close();
+    }
+
+
+    @Test
+    public void testPersistentSymbolRegistryStartsNewEpochWhenFileIsBroken() throws Exception {
+        File f = new File(getTmpDir(), "symbols.dat");
+
+        PersistentSymbolRegistry reg1 = new PersistentSymbolRegistry(f);
+        reg1.symbolId("com.myapp.SomeClass");
+        reg1.close();
+
+        FileOutputStream os = new FileOutputStream(f);
+        os.write("garbage\n".getBytes());
+        os.close();
+
+        PersistentSymbolRegistry reg2 = new PersistentSymbolRegistry(f);
+        assertFalse(reg1.getEpoch().equals(reg2.getEpoch()));
+        assertEquals(0, reg2.size());
+        reg2.close();
+    }
+
+
+    @Test
+    public void testCacheEntriesAreValidatedOnRead() {
+        BytecodeCache cache = new BytecodeCache(cacheDir(), 1024 * 1024, "e1", "v1");
+        cache.put("com.myapp.SomeClass", ORIG, 42, INSTR);
+
+        assertArrayEquals(INSTR, cache.get("com.myapp.SomeClass", ORIG, 42));
+        assertNull(cache.get("com.myapp.SomeClass", ORIG, 43));
+        assertNull(cache.get("com.myapp.SomeClass", new byte[] { 1, 2, 3, 5 }, 42));
+
+        assertArrayEquals(INSTR, new BytecodeCache(cacheDir(), 1024 * 1024, "e1", "v1")
+            .get("com.myapp.SomeClass", ORIG, 42));
+        assertNull(new BytecodeCache(cacheDir(), 1024 * 1024, "e2", "v1").get("com.myapp.SomeClass", ORIG, 42));
+        assertNull(new BytecodeCache(cacheDir(), 1024 * 1024, "e1", "v2").get("com.myapp.SomeClass", ORIG, 42));
+    }
+
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() {
+        BytecodeCache cache = new BytecodeCache(cacheDir(), 1024 * 1024, "e1", "v1");
+        cache.put("com.myapp.C1", ORIG, 1, INSTR);
+        long entrySize = cache.size();
+
+        cache = new BytecodeCache(cacheDir(), 2 * entrySize, "e1", "v1");
+        cache.put("com.myapp.C2", ORIG, 1, INSTR);
+        assertNotNull(cache.get("com.myapp.C1", ORIG, 1));
+        cache.put("com.myapp.C3", ORIG, 1, INSTR);
+
+        assertEquals(2, cache.count());
+        assertNotNull(cache.get("com.myapp.C1", ORIG, 1));
+        assertNull(cache.get("com.myapp.C2", ORIG, 1));
+        assertNotNull(cache.get("com.myapp.C3", ORIG, 1));
+        assertEquals(2, cacheDir().list().length);
+    }
+
+
+    @Test
+    public void testTransformerUsesCachedBytecode() throws Exception {
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+        BytecodeCache cache = new BytecodeCache(cacheDir(), 1024 * 1024, "e1", "v1");
+
+        engine.setBytecodeCache(cache);
+        byte[] buf1 = transform(engine, TCLASS1).transformedBytecode;
+        assertNotNull(buf1);
+        assertEquals(1, cache.count());
+
+        TestSpyTransformer engine2 = new TestSpyTransformer(agentInstance.getSymbolRegistry(),
+            agentInstance.getTracer(), agentInstance.getRetransformer()) {
+            @Override
+            protected SpyClassVisitor createVisitor(ClassLoader classLoader, String className,
+                                                    List<SpyDefinition> found, Tracer tracer, ClassWriter cw) {
+                throw new IllegalStateException("Class should have been loaded from cache.");
+            }
+        };
+        engine2.setBytecodeCache(cache);
+
+        long methods = AgentDiagnostics.get(AgentDiagnostics.METHODS_INSTRUMENTED);
+
+        assertArrayEquals(buf1, transform(engine2, TCLASS1).transformedBytecode);
+        assertEquals("should count methods instrumented in cached class",
+            methods + 1, AgentDiagnostics.get(AgentDiagnostics.METHODS_INSTRUMENTED));
+    }
+
+
+    @Test
+    public void testCacheMissesAreNotCountedAsErrors() throws Exception {
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+        MethodCallStatistics stats = new MethodCallStatistics();
+        SpyClassTransformer transformer = new SpyClassTransformer(agentInstance.getSymbolRegistry(),
+            agentInstance.getTracer(), false, stats, agentInstance.getRetransformer());
+        transformer.setBytecodeCache(new BytecodeCache(cacheDir(), 1024 * 1024, "e1", "v1"));
+
+        transform(transformer, TCLASS1);
+        transform(transformer, TCLASS1);
+
+        assertEquals(1, stats.getMethodCallStatistic("ClassCacheMisses").getCalls());
+        assertEquals(1, stats.getMethodCallStatistic("ClassesFromCache").getCalls());
+        assertEquals(0, stats.getMethodCallStatistic("ClassesFromCache").getErrors());
+    }
+
+
+    @Test
+    public void testCachedClassIsLoadedWhileTransformerIsLocked() throws Exception {
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+        engine.setBytecodeCache(new BytecodeCache(cacheDir(), 1024 * 1024, "e1", "v1"));
+
+        final byte[][] buf = new byte[1][];
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buf[0] = transform(engine, TCLASS1).transformedBytecode;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        // Transformer lock is held while spy definitions are being added or removed (and classes retransformed)
+        synchronized (engine) {
+            t.start();
+            t.join(5000);
+        }
+
+        assertNotNull("should not block on transformer lock", buf[0]);
+    }
+
+
+    @Test
+    public void testPromotingHotMethodKeepsCachedBytecodeOfOtherClasses() throws Exception {
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"), spy.byMethod(TCLASS2, "trivialMethod"));
+        agentInstance.getTracer().setHotMatcherSet(new SpyMatcherSet());
+        BytecodeCache cache = new BytecodeCache(cacheDir(), 1024 * 1024, "e1", "v1");
+
+        engine.setBytecodeCache(cache);
+        byte[] buf1 = transform(engine, TCLASS1).transformedBytecode;
+        transform(engine, TCLASS2);
+        assertEquals(2, cache.count());
+
+        agentInstance.getTracer().setHotMatcherSet(agentInstance.getTracer().getHotMatcherSet().include(
+            new SpyMatcher(SpyMatcher.BY_CLASS_NAME | SpyMatcher.BY_METHOD_NAME, 0, TCLASS2, "trivialMethod", null)));
+
+        assertArrayEquals(buf1, transform(engine, TCLASS1).transformedBytecode);
+        assertEquals("only promoted class should be instrumented again", 2, cache.count());
+
+        transform(engine, TCLASS2);
+        assertEquals(3, cache.count());
+    }
+
+}
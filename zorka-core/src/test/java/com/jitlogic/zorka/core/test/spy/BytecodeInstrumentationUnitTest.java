@@ -208,6 +208,37 @@ public class BytecodeInstrumentationUnitTest extends BytecodeInstrumentationFixt
     }
 
 
+    @Test
+    public void testFetchLongArgumentWithoutBoxing() throws Exception {
+        engine.add(spy.instance("x").onEnter(spy.fetchArg("E1", 2))
+                .include(spy.byMethod(TCLASS1, "paramMethod1")));
+
+        Object obj = instantiate(engine, TCLASS1);
+        checkForError(invoke(obj, "paramMethod1", 10, 20L, (short) 30, (byte) 40));
+
+        assertEquals("should submit one record", 1, submitter.size());
+        assertEquals("should use unboxed long submit", 1, submitter.getLongSubmits());
+        assertEquals("should fetch long parameter", Long.valueOf(20), submitter.get(0).get(0));
+    }
+
+
+    @Test
+    public void testFetchMoreArgumentsThanSpecializedSubmitsHandle() throws Exception {
+        engine.add(spy.instance("x")
+                .onEnter(spy.fetchArg("E0", 1), spy.fetchArg("E1", 2), spy.fetchArg("E2", 3),
+                        spy.fetchArg("E3", 4), spy.fetchTime("T1"))
+                .include(spy.byMethod(TCLASS1, "paramMethod1")));
+
+        Object obj = instantiate(engine, TCLASS1);
+        checkForError(invoke(obj, "paramMethod1", 10, 20L, (short) 30, (byte) 40));
+
+        assertEquals("should submit one record", 1, submitter.size());
+        assertEquals("should pass all values", 5, submitter.get(0).size());
+        assertEquals("should fetch integer as first parameter", Integer.valueOf(10), submitter.get(0).get(0));
+        assertTrue("should pass Long as last value", submitter.get(0).get(4) instanceof Long);
+    }
+
+
     @Test
     public void testFetchBooleanCharTypeArgument() throws Exception {
         engine.add(spy.instance("x").onEnter(spy.fetchArg("E0", 1), spy.fetchArg("E1", 2))
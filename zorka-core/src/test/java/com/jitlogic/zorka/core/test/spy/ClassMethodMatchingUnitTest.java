@@ -16,23 +16,37 @@
  */
 package com.jitlogic.zorka.core.test.spy;
 
+import com.jitlogic.zorka.common.stats.MethodCallStatistic;
+import com.jitlogic.zorka.common.stats.MethodCallStatistics;
 import com.jitlogic.zorka.common.util.ZorkaUtil;
 import com.jitlogic.zorka.core.AgentConfig;
+import com.jitlogic.zorka.core.spy.ClassHeader;
+import com.jitlogic.zorka.core.spy.MethodMatchTable;
+import com.jitlogic.zorka.core.spy.SpyClassMatcher;
+import com.jitlogic.zorka.core.spy.SpyClassTransformer;
+import com.jitlogic.zorka.core.spy.SpyClassVisitor;
+import com.jitlogic.zorka.core.spy.SpyDefinition;
 import com.jitlogic.zorka.core.spy.SpyLib;
 import com.jitlogic.zorka.core.spy.SpyMatcherSet;
+import com.jitlogic.zorka.core.spy.Tracer;
 import com.jitlogic.zorka.core.test.spy.support.*;
+import com.jitlogic.zorka.core.test.support.TestUtil;
 import com.jitlogic.zorka.core.test.support.ZorkaFixture;
 import com.jitlogic.zorka.core.spy.SpyMatcher;
 
 import org.junit.Assert;
+import org.objectweb.asm.ClassWriter;
 
 import static org.junit.Assert.*;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static com.jitlogic.zorka.core.spy.SpyLib.SM_NOARGS;
+import static com.jitlogic.zorka.core.test.support.BytecodeInstrumentationFixture.*;
 
 public class ClassMethodMatchingUnitTest extends ZorkaFixture {
 
@@ -312,4 +326,226 @@ public class ClassMethodMatchingUnitTest extends ZorkaFixture {
         assertTrue(sms.classMatch(TestClass2.class, true));
     }
 
+
+    private void checkCombinedClassMatch(List<SpyDefinition> sdefs, SpyMatcherSet tms, String...classNames) {
+        SpyClassMatcher scm = new SpyClassMatcher(sdefs, tms, 0);
+
+        for (String className : classNames) {
+            List<SpyDefinition> expected = new ArrayList<SpyDefinition>();
+            for (SpyDefinition sdef : sdefs) {
+                if (sdef.getMatcherSet().classMatch(className)) {
+                    expected.add(sdef);
+                }
+            }
+
+            List<SpyDefinition> found = new ArrayList<SpyDefinition>();
+            boolean tracerMatch = scm.match(className, found);
+
+            assertEquals("sdefs matching " + className, expected, found);
+            assertEquals("tracer matching " + className, tms.classMatch(className), tracerMatch);
+        }
+    }
+
+
+    @Test
+    public void testCombinedClassMatcherGivesTheSameResultsAsMatcherSets() {
+        List<SpyDefinition> sdefs = Arrays.asList(
+                SpyDefinition.instrument("s1").include(spy.byMethod("com.jitlogic.zorka.core.spy.**", "*")),
+                SpyDefinition.instrument("s2").include(spy.byMethod("com.jitlogic.zorka.core.spy.*", "*")),
+                SpyDefinition.instrument("s3").include(spy.byMethod("some.Class$1", "run"),
+                        spy.byMethod("some.Class", "run")),
+                SpyDefinition.instrument("s4").include(spy.byInterface("some.Interface")),
+                SpyDefinition.instrument("s5").include(spy.byMethod("~org\\.apache\\.[a-z]+\\.Valve.*", "invoke")),
+                SpyDefinition.instrument("s6").include(spy.byMethod("com.jitlogic.TestClazz", "*").priority(10),
+                        spy.byClass("com.jitlogic.**").exclude(), spy.byClass("**").priority(1000)));
+
+        SpyMatcherSet tms = new SpyMatcherSet(
+                spy.byMethod("java**", "*").exclude(),
+                spy.byMethod("com.jitlogic.zorka.core.**", "mapRow").exclude(),
+                spy.byClass("com.sun.**").exclude(),
+                spy.byMethod("**", "*").forTrace());
+
+        checkCombinedClassMatch(sdefs, tms,
+                "com.jitlogic.zorka.core.spy.unittest.SomeClass", "com.jitlogic.zorka.core.spy.AClass",
+                "comXjitlogicXzorkaXspyXAClass", "com.jitlogic.zorka.core.spy", "some.Class$1", "some.Class",
+                "some.Class$2", "some.Clas", "org.apache.catalina.ValveBase", "org.apache.Valve", "java.util.Properties",
+                "com.sun.Foo", "com.jitlogic.TestClazz", "com.jitlogic.zorka.core.AgentConfig", "x", "");
+    }
+
+
+    @Test
+    public void testCombinedClassMatcherWithoutSpyDefs() {
+        SpyClassMatcher scm = new SpyClassMatcher(new ArrayList<SpyDefinition>(), new SpyMatcherSet(), 0);
+        List<SpyDefinition> found = new ArrayList<SpyDefinition>();
+
+        assertFalse(scm.match("com.jitlogic.TestClazz", found));
+        assertEquals(0, found.size());
+    }
+
+
+    @Test
+    public void testClassMatcherIsAvailableWhileSpyDefsAreModified() throws Exception {
+        spyTransformer.add(spy.instance("x").include(spy.byMethod("some.Class", "*")));
+
+        final SpyClassMatcher[] matcher = new SpyClassMatcher[1];
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                matcher[0] = spyTransformer.getClassMatcher();
+            }
+        });
+
+        // Transformer lock is held while spy definitions are being added or removed (and classes retransformed)
+        synchronized (spyTransformer) {
+            t.start();
+            t.join(5000);
+        }
+
+        assertNotNull("should not block on transformer lock", matcher[0]);
+
+        List<SpyDefinition> found = new ArrayList<SpyDefinition>();
+        matcher[0].match("some.Class", found);
+        assertEquals(1, found.size());
+    }
+
+
+    @Test
+    public void testLookupMissesAreNotCountedAsErrors() throws Exception {
+        MethodCallStatistics stats = new MethodCallStatistics();
+        SpyClassTransformer transformer = new SpyClassTransformer(symbols, agentInstance.getTracer(), false,
+                stats, agentInstance.getRetransformer());
+        byte[] cbf = TestUtil.readResource(TCLASS4.replace('.', '/') + ".class");
+
+        transformer.transform(getClass().getClassLoader(), TCLASS4.replace('.', '/'), null, null, cbf);
+        transformer.transform(getClass().getClassLoader(), TCLASS4.replace('.', '/'), null, null, cbf);
+
+        MethodCallStatistic lookups = stats.getMethodCallStatistic("SpyLookups");
+        assertEquals(2, lookups.getCalls());
+        assertEquals(0, lookups.getErrors());
+        assertEquals(1, stats.getMethodCallStatistic("SpyLookupMisses").getCalls());
+    }
+
+
+    @Test
+    public void testClassCanBeTransformedAgainAfterFailedTransform() throws Exception {
+        final int[] attempts = new int[1];
+        SpyClassTransformer transformer = new SpyClassTransformer(symbols, agentInstance.getTracer(), false,
+                new MethodCallStatistics(), agentInstance.getRetransformer()) {
+            @Override
+            protected SpyClassVisitor createVisitor(ClassLoader classLoader, String className,
+                                                    List<SpyDefinition> found, Tracer tracer, ClassWriter cw) {
+                if (attempts[0]++ == 0) {
+                    throw new IllegalStateException("Simulated transform failure");
+                }
+                return super.createVisitor(classLoader, className, found, tracer, cw);
+            }
+        };
+        transformer.add(spy.instance("x").onEnter(spy.fetchTime("T")).include(spy.byMethod(TCLASS4, "*")));
+        byte[] cbf = TestUtil.readResource(TCLASS4.replace('.', '/') + ".class");
+
+        try {
+            transformer.transform(getClass().getClassLoader(), TCLASS4.replace('.', '/'), null, null, cbf);
+            fail("Transform should have failed");
+        } catch (IllegalStateException e) {
+        }
+
+        assertNotNull("class should not be skipped after failed transform",
+                transformer.transform(getClass().getClassLoader(), TCLASS4.replace('.', '/'), null, null, cbf));
+        assertEquals(2, attempts[0]);
+    }
+
+
+    @Test
+    public void testRejectedClassCacheIsClearedWhenFull() {
+        SpyClassMatcher scm = new SpyClassMatcher(new ArrayList<SpyDefinition>(), new SpyMatcherSet(), 2);
+
+        scm.reject("some.Class1");
+        scm.reject("some.Class2");
+        assertTrue(scm.isRejected("some.Class1"));
+        assertFalse(scm.isRejected("some.Class3"));
+
+        scm.reject("some.Class3");
+        assertFalse(scm.isRejected("some.Class1"));
+        assertTrue(scm.isRejected("some.Class3"));
+    }
+
+
+    private ClassHeader scanClass(String className) throws Exception {
+        return ClassHeader.scan(TestUtil.readResource(className.replace('.', '/') + ".class"));
+    }
+
+
+    @Test
+    public void testScanClassHeader() throws Exception {
+        ClassHeader h1 = scanClass(TCLASS1), h2 = scanClass(TCLASS2);
+
+        assertEquals(TCLASS1, h1.getClassName());
+        assertEquals("java.lang.Object", h1.getSuperName());
+        assertEquals(0, h1.getInterfaces().size());
+        assertTrue(h1.getDescriptors().contains("L" + TACLASS + ";"));
+
+        assertEquals(Arrays.asList(ICLASS1), h2.getInterfaces());
+        assertTrue(h2.getDescriptors().contains("L" + TAMETHOD + ";"));
+        assertFalse(h2.getDescriptors().contains("L" + TACLASS + ";"));
+
+        assertEquals(TCLASS2, scanClass(TCLASS4).getSuperName());
+    }
+
+
+    @Test
+    public void testClassMatchUsingClassHeader() throws Exception {
+        ClassHeader h1 = scanClass(TCLASS1), h2 = scanClass(TCLASS2);
+
+        SpyMatcherSet sms = new SpyMatcherSet(spy.byClassAnnotation(TACLASS));
+        assertTrue(sms.classMatch(h1));
+        assertFalse(sms.classMatch(h2));
+
+        sms = new SpyMatcherSet(spy.byInterface(ICLASS1));
+        assertFalse(sms.classMatch(h1));
+        assertTrue(sms.classMatch(h2));
+
+        sms = new SpyMatcherSet(spy.byMethodAnnotation("**", TAMETHOD));
+        assertFalse(sms.classMatch(h1));
+        assertTrue(sms.classMatch(h2));
+
+        sms = new SpyMatcherSet(spy.byClass(TCLASS1).exclude(), spy.byClassAnnotation(TACLASS));
+        assertFalse(sms.classMatch(h1));
+    }
+
+
+    @Test
+    public void testMethodMatchTableGivesSameResultsAsMatcherSet() {
+        SpyMatcherSet sms = new SpyMatcherSet(
+            spy.byMethod("test.SomeClass", "get").exclude(),
+            spy.byMethod("test.Some*", "getVal"),
+            spy.byMethod("test.SomeClass", "<init>"),
+            spy.byMethod(0xff, "test.*", "someMethod", "void"),
+            spy.byMethod(0xff, "test.*", "someMethod", "int", "int"),
+            spy.byMethod(0, "test.*", "run*", null),
+            spy.byMethod("test.**", "*").forTrace(),
+            spy.byMethod("other.**", "*"),
+            spy.byMethodAnnotation("test.SomeClass", "test.SomeAnnotation"));
+
+        String[] methods = { "get", "getVal", "<init>", "<clinit>", "someMethod", "runMe", "run", "equals",
+            "setVal", "isOk", "doSomething" };
+        String[] signatures = { "()V", "()I", "(I)I", "(I)V", "(Ljava/lang/String;)Z" };
+        int[] access = { 0, 1, 2, 8 };
+
+        for (String className : Arrays.asList("test.SomeClass", "test.OtherClass", "other.SomeClass", "foo.Bar")) {
+            MethodMatchTable mmt = sms.methodMatchTable(className, new ArrayList<String>(), new ArrayList<String>());
+            for (String m : methods) {
+                for (String s : signatures) {
+                    for (int a : access) {
+                        for (List<String> ma : Arrays.asList(null, new ArrayList<String>(),
+                            Arrays.asList("Ltest.SomeAnnotation;"))) {
+                            assertEquals(className + "." + m + s + " " + a + " " + ma,
+                                sms.methodMatch(className, new ArrayList<String>(), new ArrayList<String>(), a, m, s, ma),
+                                mmt.match(a, m, s, ma));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
 }
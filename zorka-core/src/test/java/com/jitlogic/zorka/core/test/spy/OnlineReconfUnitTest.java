@@ -18,19 +18,29 @@ package com.jitlogic.zorka.core.test.spy;
 
 import com.jitlogic.zorka.common.stats.MethodCallStatistics;
 import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.core.spy.RealSpyRetransformer;
 import com.jitlogic.zorka.core.spy.SpyDefinition;
+import com.jitlogic.zorka.core.spy.SpyMatcherSet;
+import com.jitlogic.zorka.core.spy.SpyRetransformer;
+import com.jitlogic.zorka.core.test.spy.support.TestClass1;
+import com.jitlogic.zorka.core.test.spy.support.TestClass2;
 import com.jitlogic.zorka.core.test.support.BytecodeInstrumentationFixture;
 import com.jitlogic.zorka.core.test.support.ZorkaFixture;
 import org.junit.Test;
 
 import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.jitlogic.zorka.core.test.support.TestUtil.getAttr;
 import static com.jitlogic.zorka.core.test.support.TestUtil.instantiate;
 import static com.jitlogic.zorka.core.test.support.TestUtil.invoke;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class OnlineReconfUnitTest extends ZorkaFixture {
 
@@ -102,4 +112,46 @@ public class OnlineReconfUnitTest extends ZorkaFixture {
 
     }
 
+
+    @Test
+    public void testRetransformMatchedClassesInBatches() throws Exception {
+        config.setCfg("zorka.retransform.threads", 4);
+        config.setCfg("zorka.retransform.batch", 2);
+
+        final Class<?>[] loaded = new Class<?>[64];
+        for (int i = 0; i < loaded.length; i++) {
+            loaded[i] = i % 3 == 0 ? TestClass1.class : TestClass2.class;
+        }
+
+        final List<Class<?>[]> batches = new ArrayList<Class<?>[]>();
+
+        Instrumentation instrumentation = (Instrumentation) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Instrumentation.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getAllLoadedClasses".equals(method.getName())) {
+                            return loaded;
+                        } else if ("retransformClasses".equals(method.getName())) {
+                            batches.add((Class<?>[]) args[0]);
+                            return null;
+                        } else {
+                            return true;
+                        }
+                    }
+                });
+
+        SpyRetransformer retransformer = new RealSpyRetransformer(instrumentation, config);
+
+        assertTrue(retransformer.retransform(null,
+                new SpyMatcherSet(spy.byMethod(BytecodeInstrumentationFixture.TCLASS1, "*")), true));
+
+        assertEquals(11, batches.size());
+        for (Class<?>[] batch : batches) {
+            assertTrue(batch.length <= 2);
+            for (Class<?> c : batch) {
+                assertEquals(TestClass1.class, c);
+            }
+        }
+    }
+
 }
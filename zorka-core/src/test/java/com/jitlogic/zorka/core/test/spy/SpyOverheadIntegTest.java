@@ -0,0 +1,203 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.core.spy.MainSubmitter;
+import com.jitlogic.zorka.core.spy.SpyMatcherSet;
+import com.jitlogic.zorka.core.spy.SpySubmitter;
+import com.jitlogic.zorka.core.spy.TraceBuilder;
+import com.jitlogic.zorka.core.spy.Tracer;
+import com.jitlogic.zorka.core.test.support.OverheadBench;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.jitlogic.zorka.core.spy.SpyLib.ON_ENTER;
+import static com.jitlogic.zorka.core.spy.SpyLib.SF_IMMEDIATE;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Microbenchmarks measuring per-call overhead of agent entry points called from instrumented code.
+ * Not run as part of regular build, run it manually and look at printed results.
+ */
+public class SpyOverheadIntegTest {
+
+    private static final int ROUNDS = 5;
+
+    private static final int CALLS = 10000000;
+
+
+    /**
+     * Counts submissions, so JIT cannot optimize calls out.
+     */
+    private static class NullSubmitter implements SpySubmitter {
+
+        private long calls;
+
+        public void submit(int stage, int id, int submitFlags) {
+            calls++;
+        }
+
+        public void submit(int stage, int id, int submitFlags, long v0) {
+            calls++;
+        }
+
+        public void submit(int stage, int id, int submitFlags, Object v0) {
+            calls++;
+        }
+
+        public void submit(int stage, int id, int submitFlags, Object v0, Object v1) {
+            calls++;
+        }
+
+        public void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2) {
+            calls++;
+        }
+
+        public void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2, Object v3) {
+            calls++;
+        }
+
+        public void submit(int stage, int id, int submitFlags, Object[] vals) {
+            calls++;
+        }
+    }
+
+
+    private NullSubmitter submitter;
+
+    private Tracer tracer;
+
+
+    @Before
+    public void setUp() {
+        submitter = new NullSubmitter();
+        tracer = new Tracer(new SpyMatcherSet(), new SymbolRegistry());
+        MainSubmitter.setSubmitter(submitter);
+        MainSubmitter.setTracer(tracer);
+    }
+
+
+    @After
+    public void tearDown() {
+        MainSubmitter.setSubmitter(null);
+        MainSubmitter.setTracer(null);
+    }
+
+
+    // Reproduces submission protocol used before thread state was kept in AgentThreadContext:
+    // reentrancy flag in ThreadLocal<Boolean> and tracer disabled/enabled via its own thread local.
+
+    private static final ThreadLocal<Boolean> legacyInSubmit = new ThreadLocal<Boolean>() {
+        @Override
+        public Boolean initialValue() {
+            return false;
+        }
+    };
+
+
+    private final ThreadLocal<TraceBuilder> legacyHandlers = new ThreadLocal<TraceBuilder>() {
+        @Override
+        public TraceBuilder initialValue() {
+            return tracer.newHandler();
+        }
+    };
+
+
+    private void legacySubmit(int stage, int id, int submitFlags) {
+        if (legacyInSubmit.get()) {
+            return;
+        }
+
+        try {
+            legacyInSubmit.set(true);
+            legacyHandlers.get().disable();
+            submitter.submit(stage, id, submitFlags);
+        } finally {
+            legacyInSubmit.set(false);
+            legacyHandlers.get().enable();
+        }
+    }
+
+
+    @Test
+    public void testMeasureMainSubmitterSubmitOverhead() throws Exception {
+        double legacy = new OverheadBench("submit() with separate thread locals", ROUNDS, 1, CALLS) {
+            public long call(int i) {
+                legacySubmit(ON_ENTER, 1, SF_IMMEDIATE);
+                return 0;
+            }
+        }.run();
+
+        double current = new OverheadBench("MainSubmitter.submit()", ROUNDS, 1, CALLS) {
+            public long call(int i) {
+                MainSubmitter.submit(ON_ENTER, 1, SF_IMMEDIATE);
+                return 0;
+            }
+        }.run();
+
+        System.out.println(String.format("Speedup: %.2fx", legacy / current));
+        assertTrue(submitter.calls > 0);
+    }
+
+
+    @Test
+    public void testMeasureTracerOverheadOutsideOfTrace() throws Exception {
+        new OverheadBench("System.nanoTime() pair", ROUNDS, 1, CALLS) {
+            public long call(int i) {
+                return System.nanoTime() - System.nanoTime();
+            }
+        }.run();
+
+        double legacy = new OverheadBench("trace enter/return via getHandler()", ROUNDS, 1, CALLS) {
+            public long call(int i) {
+                legacyHandlers.get().traceEnter(1, 2, 3, System.nanoTime());
+                legacyHandlers.get().traceReturn(System.nanoTime());
+                return 0;
+            }
+        }.run();
+
+        double current = new OverheadBench("MainSubmitter.traceEnter/traceReturn", ROUNDS, 1, CALLS) {
+            public long call(int i) {
+                MainSubmitter.traceEnter(1, 2, 3);
+                MainSubmitter.traceReturn();
+                return 0;
+            }
+        }.run();
+
+        System.out.println(String.format("Speedup: %.2fx", legacy / current));
+    }
+
+
+    @Test
+    public void testMeasureTracerOverheadOfShortMethodsInsideTrace() throws Exception {
+        MainSubmitter.traceEnter(1, 2, 3);
+        tracer.getHandler().traceBegin(4, System.currentTimeMillis(), 0);
+
+        new OverheadBench("short methods inside trace", ROUNDS, 1, CALLS) {
+            public long call(int i) {
+                MainSubmitter.traceEnter(1, 2, 3);
+                MainSubmitter.traceReturn();
+                return 0;
+            }
+        }.run();
+
+        MainSubmitter.traceReturn();
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.util.ObjectInspector;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+import com.jitlogic.zorka.core.spy.*;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static com.jitlogic.zorka.core.spy.SpyLib.*;
+import static org.junit.Assert.*;
+
+public class SpyRecordUnitTest extends ZorkaFixture {
+
+    @Test
+    public void testRecordLayoutContainsProbeAndProcessorFields() {
+        SpyDefinition sdef = spy.instrument("x").onSubmit(spy.get("C", "T", "class"));
+        SpyRecordLayout layout = sdef.getLayout();
+
+        assertEquals(0, layout.getProbeSlots(ON_ENTER)[0]);
+        assertEquals(layout.slot("T2"), layout.getProbeSlots(ON_RETURN)[0]);
+        assertEquals(layout.slot("T2"), layout.getProbeSlots(ON_ERROR)[0]);
+        assertTrue(layout.slot("T") >= 0);
+        assertTrue(layout.slot("C") >= 0);
+        assertEquals(SpyRecordLayout.NO_SLOT, layout.slot("X"));
+    }
+
+
+    @Test
+    public void testRecordBehavesAsMap() {
+        SpyDefinition sdef = spy.instrument("x");
+        SpyContext ctx = new SpyContext(sdef, "some.Class", "someMethod", "()V", 1);
+        SpyRecord record = new SpyRecord(ctx);
+
+        record.markStage(ON_ENTER);
+        record.put(sdef.getLayout().slot("T1"), 10L);
+        record.put("X", "ext");
+        record.put("T2", null);
+
+        assertEquals(6, record.size());
+        assertSame(ctx, record.get(".CTX"));
+        assertEquals(ON_ENTER, record.get(".STAGE"));
+        assertEquals(1 << ON_ENTER, record.get(".STAGES"));
+        assertEquals(10L, record.get("T1"));
+        assertEquals("ext", record.get("X"));
+        assertTrue(record.containsKey("T2"));
+        assertFalse(record.containsKey("T"));
+
+        Map<String, Object> copy = ZorkaUtil.map(".CTX", ctx, ".STAGE", ON_ENTER, ".STAGES", 1 << ON_ENTER,
+                "T1", 10L, "T2", null, "X", "ext");
+        assertEquals(copy, record);
+
+        record.remove("T1");
+        assertNull(record.get("T1"));
+        assertEquals(5, record.size());
+    }
+
+
+    @Test
+    public void testFieldSharedByRecordsWithDifferentLayouts() {
+        SpyField f = new SpyField("T1");
+        SpyDefinition sdef1 = spy.instrument("x"), sdef2 = spy.instance("y").onEnter(spy.fetchArg("A", 0));
+
+        SpyRecord r1 = new SpyRecord(new SpyContext(sdef1, "some.Class", "someMethod", "()V", 1));
+        SpyRecord r2 = new SpyRecord(new SpyContext(sdef2, "some.Class", "someMethod", "()V", 1));
+
+        f.put(r1, 1L);
+        f.put(r2, 2L);
+
+        assertEquals(1L, f.get(r1));
+        assertEquals(2L, f.get(r2));
+        assertEquals(2L, r2.get("T1"));
+    }
+
+
+    @Test
+    public void testTemplateMatchesObjectInspectorSubstitution() {
+        Map<String, Object> record = ZorkaUtil.map("A", "abcdef", "B", null, "C", 42);
+
+        for (String t : new String[]{"plain", "${A}", "x=${A~3}, y=${B:dflt}, z=${B|C}", "${A.length()}!"}) {
+            assertEquals(t, ObjectInspector.substitute(t, record), new SpyTemplate(t).format(record));
+        }
+    }
+
+}
@@ -23,6 +23,7 @@ import com.jitlogic.zorka.core.test.support.ZorkaFixture;
 import com.jitlogic.zorka.core.spy.DispatchingSubmitter;
 import com.jitlogic.zorka.core.spy.SpyContext;
 import com.jitlogic.zorka.core.spy.SpyDefinition;
+import com.jitlogic.zorka.core.spy.SpyRecord;
 import com.jitlogic.zorka.core.spy.SpySubmitter;
 
 import org.junit.Before;
@@ -102,6 +103,92 @@ public class SubmissionDispatchUnitTest extends ZorkaFixture {
     }
 
 
+    @Test
+    public void testSubmitPrimitiveLongWithBufferAndFlush() throws Exception {
+        SpyDefinition sdef = engine.add(spy.instrument("x").onSubmit(collector));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        int id = ctx.getId();
+
+        submitter.submit(ON_ENTER, id, SF_NONE, 1L);
+        submitter.submit(ON_RETURN, id, SF_FLUSH, 5L);
+
+        assertEquals(1, collector.size());
+        assertEquals(4L, collector.get(0).get("T"));
+    }
+
+
+    @Test
+    public void testSubmittedPrimitiveLongIsKeptUnboxedInRecord() throws Exception {
+        SpyDefinition sdef = engine.add(spy.instrument("x").onSubmit(collector));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        int id = ctx.getId();
+
+        submitter.submit(ON_ENTER, id, SF_NONE, 1L);
+        submitter.submit(ON_RETURN, id, SF_FLUSH, 5L);
+
+        SpyRecord record = (SpyRecord) collector.get(0);
+        int slot = record.getLayout().slot("T");
+
+        assertTrue(record.isLong(slot));
+        assertEquals(4L, record.getLong(slot));
+        assertEquals(1L, record.get("T1"));
+    }
+
+
+    @Test
+    public void testSubmitValuesOfFieldsWithoutRecordSlots() throws Exception {
+        SpyDefinition sdef = engine.add(spy.instance("x")
+                .onEnter(spy.fetchArg(".A", 0), spy.fetchArg("B", 1)).onSubmit(collector));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        submitter.submit(ON_ENTER, ctx.getId(), SF_IMMEDIATE, "a", "b");
+        submitter.submit(ON_ENTER, ctx.getId(), SF_IMMEDIATE, new Object[]{"c", "d"});
+
+        assertEquals(2, collector.size());
+        assertEquals("a", collector.get(0).get(".A"));
+        assertEquals("b", collector.get(0).get("B"));
+        assertEquals("c", collector.get(1).get(".A"));
+    }
+
+
+    @Test
+    public void testSubmitTwoValuesDirectly() throws Exception {
+        SpyDefinition sdef = engine.add(spy.instance("x")
+                .onEnter(spy.fetchArg("A", 0), spy.fetchArg("B", 1)).onSubmit(collector));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        submitter.submit(ON_ENTER, ctx.getId(), SF_IMMEDIATE, "a", "b");
+
+        assertEquals(1, collector.size());
+        assertEquals("a", collector.get(0).get("A"));
+        assertEquals("b", collector.get(0).get("B"));
+    }
+
+
+    @Test
+    public void testLookupManyContextsAndRemoveSdef() throws Exception {
+        SpyDefinition sdef1 = engine.add(spy.instance("x").onEnter(collector));
+        SpyDefinition sdef2 = engine.add(spy.instance("y").onEnter(collector));
+
+        SpyContext ctx1 = engine.lookup(new SpyContext(sdef1, "Class", "method", "()V", 1));
+
+        for (int i = 0; i < 3000; i++) {
+            SpyContext ctx = engine.lookup(new SpyContext(sdef2, "Class", "method" + i, "()V", 1));
+            assertSame(ctx, engine.getContext(ctx.getId()));
+        }
+
+        SpyContext ctx2 = engine.lookup(new SpyContext(sdef2, "Class", "method2999", "()V", 1));
+        assertSame(ctx2, engine.getContext(ctx2.getId()));
+
+        engine.remove(sdef1);
+
+        assertNull(engine.getContext(ctx1.getId()));
+        assertSame(ctx2, engine.getContext(ctx2.getId()));
+    }
+
+
     // TODO test if SpyRecord marks stages properly
 
     // TODO test submission stages are marked by DispatchingSubmitter
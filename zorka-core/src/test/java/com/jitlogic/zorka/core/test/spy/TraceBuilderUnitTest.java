@@ -17,6 +17,7 @@
 package com.jitlogic.zorka.core.test.spy;
 
 import com.jitlogic.zorka.common.ZorkaSubmitter;
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.tracedata.*;
 import com.jitlogic.zorka.common.util.ZorkaLogger;
 import com.jitlogic.zorka.core.spy.*;
@@ -28,6 +29,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -63,6 +65,8 @@ public class TraceBuilderUnitTest extends ZorkaFixture {
         tracer.setTracerMaxTraceRecords(4096);
         tracer.setTracerMinMethodTime(250000);
         tracer.setTracerMinTraceTime(50);
+        tracer.setTracerStreamRecords(0);
+        Tracer.setActiveAutoExcluder(null);
     }
 
     private void checkRC(int recs, int...chld) {
@@ -85,6 +89,158 @@ public class TraceBuilderUnitTest extends ZorkaFixture {
     }
 
 
+    @Test
+    public void testLeaveMethodOutsideOfTraceUsingFastPath() throws Exception {
+        b.traceEnter(c1, m1, s1, 100 * MS);
+        b.traceEnter(c1, m2, s1, 110 * MS);
+        assertTrue(b.traceLeave());
+        assertTrue(b.traceLeave());
+        assertTrue(b.realTop().isEmpty());
+
+        b.traceEnter(c1, m1, s1, 100 * MS);
+        b.traceBegin(t1, 100L, 0);
+        assertFalse(b.traceLeave());
+        b.traceReturn(200 * MS);
+
+        checkRC(1);
+    }
+
+
+    private void traceWithTwoNestedCalls(int flags) {
+        b.traceEnter(c1, m1, s1, 100 * MS);
+        b.traceBegin(t1, 100L, 0);
+        b.traceEnter(c1, m2, s1, 200 * MS);
+        b.traceEnter(c1, m3, s1, 210 * MS);
+        b.traceReturn(300 * MS);
+        b.traceReturn(350 * MS);
+        b.markTraceFlags(0, flags);
+        b.traceReturn(400 * MS);
+    }
+
+
+    @Test
+    public void testRecordsOfDroppedTraceAreReused() throws Exception {
+        long created = AgentDiagnostics.get(AgentDiagnostics.TRACE_RECORDS_CREATED);
+        long reused = AgentDiagnostics.get(AgentDiagnostics.TRACE_RECORDS_REUSED);
+
+        traceWithTwoNestedCalls(TraceMarker.DROP_TRACE);
+        traceWithTwoNestedCalls(TraceMarker.SUBMIT_TRACE);
+
+        checkRC(1, 1, 1, 0);
+        assertEquals(created + 2, AgentDiagnostics.get(AgentDiagnostics.TRACE_RECORDS_CREATED));
+        assertEquals(reused + 2, AgentDiagnostics.get(AgentDiagnostics.TRACE_RECORDS_REUSED));
+    }
+
+
+    @Test
+    public void testRecordsOfSubmittedTraceAreNotReused() throws Exception {
+        traceWithTwoNestedCalls(TraceMarker.SUBMIT_TRACE);
+        traceWithTwoNestedCalls(TraceMarker.SUBMIT_TRACE);
+
+        checkRC(2, 1, 1, 0);
+        assertNotSame(records.get(0), records.get(1));
+        assertNotSame(records.get(0).getChild(0), records.get(1).getChild(0));
+        assertEquals(m2, records.get(0).getChild(0).getMethodId());
+        assertEquals(m3, records.get(0).getChild(0).getChild(0).getMethodId());
+    }
+
+
+    @Test
+    public void testStreamLongTraceInFragments() throws Exception {
+        tracer.setTracerStreamRecords(3);
+        int fa = symbols.symbolId(TraceBuilder.FRAGMENT_ATTR);
+
+        b.traceEnter(c1, m1, s1, 100 * MS);
+        b.traceBegin(t1, 100L, 0);
+        for (int i = 0; i < 4; i++) {
+            b.traceEnter(c1, m2, s1, (200 + i * 100) * MS);
+            b.traceReturn((250 + i * 100) * MS);
+        }
+
+        checkRC(2, 2);
+        assertEquals(2, records.get(1).numChildren());
+
+        b.traceReturn(700 * MS);
+
+        checkRC(3, 2);
+        assertEquals(0, records.get(2).numChildren());
+
+        for (int i = 0; i < 3; i++) {
+            TraceRecord tr = records.get(i);
+            assertTrue(tr.hasFlag(TraceRecord.TRACE_BEGIN));
+            assertEquals(t1, tr.getTraceId());
+            assertEquals(100L, tr.getClock());
+            assertEquals(i + 1, tr.getAttr(fa));
+            assertEquals(i < 2, tr.getMarker().hasFlag(TraceMarker.PARTIAL_TRACE));
+            assertEquals(i > 0, tr.getMarker().hasFlag(TraceMarker.CONTINUED_TRACE));
+        }
+
+        assertEquals(250L * MS, records.get(0).getTime());
+        assertEquals(600L * MS, records.get(2).getTime());
+        assertEquals(5L, records.get(2).getCalls());
+    }
+
+
+    @Test
+    public void testStreamedFragmentContainsMethodsStillExecuting() throws Exception {
+        tracer.setTracerStreamRecords(4);
+
+        b.traceEnter(c1, m1, s1, 100 * MS);
+        b.traceBegin(t1, 100L, 0);
+        b.traceEnter(c1, m2, s1, 200 * MS);
+        b.traceEnter(c1, m3, s1, 300 * MS);
+        b.traceReturn(400 * MS);
+        b.traceEnter(c1, m3, s1, 500 * MS);
+        b.traceReturn(600 * MS);
+
+        checkRC(1, 1, 2, 0);
+        TraceRecord m2rec = records.get(0).getChild(0);
+        assertEquals(m2, m2rec.getMethodId());
+        assertEquals(400L * MS, m2rec.getTime());
+        assertFalse(m2rec.hasFlag(TraceRecord.TRACE_BEGIN));
+
+        b.traceReturn(700 * MS);
+        b.traceReturn(800 * MS);
+
+        checkRC(2);
+        assertEquals(1, records.get(1).numChildren());
+        assertEquals(0, records.get(1).getChild(0).numChildren());
+        assertEquals(500L * MS, records.get(1).getChild(0).getTime());
+        assertTrue(records.get(1).getMarker().hasFlag(TraceMarker.CONTINUED_TRACE));
+    }
+
+
+    @Test
+    public void testDoNotStreamEmptyFragmentsWhenStackIsDeeperThanThreshold() throws Exception {
+        tracer.setTracerStreamRecords(3);
+
+        b.traceEnter(c1, m1, s1, 100 * MS);
+        b.traceBegin(t1, 100L, 0);
+        b.traceEnter(c1, m2, s1, 200 * MS);
+        b.traceEnter(c1, m3, s1, 300 * MS);
+        b.traceEnter(c1, m2, s1, 400 * MS);
+
+        for (int i = 0; i < 4; i++) {
+            b.traceEnter(c1, m3, s1, 500 * MS + i * 200);
+            b.traceReturn(500 * MS + i * 200 + 100);
+        }
+
+        checkRC(0);
+    }
+
+
+    @Test
+    public void testDoNotStreamShortTraces() throws Exception {
+        tracer.setTracerStreamRecords(4);
+
+        traceWithTwoNestedCalls(TraceMarker.SUBMIT_TRACE);
+
+        checkRC(1, 1, 1, 0);
+        assertFalse(records.get(0).getMarker().hasFlag(TraceMarker.CONTINUED_TRACE | TraceMarker.PARTIAL_TRACE));
+        assertNull(records.get(0).getAttr(symbols.symbolId(TraceBuilder.FRAGMENT_ATTR)));
+    }
+
+
     @Test
     public void testSingleTraceWithOneShortElement() throws Exception {
         b.traceEnter(c1, m1, s1, 100 * MS);
@@ -561,4 +717,36 @@ public class TraceBuilderUnitTest extends ZorkaFixture {
         assertThat(records.get(0).numAttrs()).isEqualTo(1);
     }
 
+
+
+    @Test
+    public void testExcludeMethodsAlwaysDroppedFromTraces() throws Exception {
+        Tracer t = agentInstance.getTracer();
+        AutoExcluder excluder = new AutoExcluder(t, symbols, new DummySpyRetransformer(null, config));
+        excluder.start(2048, 0);
+        int nmatchers = t.getMatcherSet().getMatchers().size();
+
+        b.traceEnter(c1, m1, s1, 10 * MS);
+        b.traceBegin(t1, 100L, 0);
+        b.traceEnter(c1, m3, s1, 11 * MS);
+        b.traceReturn(20 * MS);
+        for (int i = 0; i < 2048; i++) {
+            b.traceEnter(c1, m2, s1, 30 * MS + i);
+            b.traceReturn(30 * MS + i + 1);
+            b.traceEnter(c1, m3, s1, 40 * MS + i);
+            b.traceReturn(40 * MS + i + 1);
+        }
+        b.traceReturn(50 * MS);
+
+        assertEquals(1, excluder.exclude());
+        assertEquals(0, excluder.exclude());
+        assertEquals(Arrays.asList("some.Class.otherMethod"), excluder.getExcludedMethods());
+        assertEquals(nmatchers + 1, t.getMatcherSet().getMatchers().size());
+        assertTrue(t.getMatcherSet().getMatchers().get(0).hasFlags(SpyMatcher.EXCLUDE_MATCH));
+
+        assertEquals(1, excluder.revertAll());
+        assertEquals(0, excluder.getExcludedMethods().size());
+        assertEquals(nmatchers, t.getMatcherSet().getMatchers().size());
+    }
+
 }
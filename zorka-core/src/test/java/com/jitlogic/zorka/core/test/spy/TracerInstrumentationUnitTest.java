@@ -16,7 +16,12 @@
 
 package com.jitlogic.zorka.core.test.spy;
 
+import com.jitlogic.zorka.core.spy.LazyInstrumenter;
+import com.jitlogic.zorka.core.spy.MainSubmitter;
 import com.jitlogic.zorka.core.spy.SpyDefinition;
+import com.jitlogic.zorka.core.spy.SpyLib;
+import com.jitlogic.zorka.core.spy.SpyMatcherSet;
+import com.jitlogic.zorka.core.test.spy.support.TestSubmitter;
 import com.jitlogic.zorka.core.test.support.BytecodeInstrumentationFixture;
 import org.junit.Assert;
 import org.junit.Test;
@@ -27,7 +32,10 @@ import java.util.Map;
 import static com.jitlogic.zorka.core.test.support.TestUtil.getField;
 import static com.jitlogic.zorka.core.test.support.TestUtil.instantiate;
 import static com.jitlogic.zorka.core.test.support.TestUtil.invoke;
+import static com.jitlogic.zorka.core.test.support.TestUtil.transform;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.fest.reflect.core.Reflection.field;
@@ -46,6 +54,34 @@ public class TracerInstrumentationUnitTest extends BytecodeInstrumentationFixtur
     }
 
 
+    @Test
+    public void testRejectedClassIsInstrumentedAfterTracerMatchersChange() throws Exception {
+        assertNull(transform(engine, TCLASS1).transformedBytecode);
+
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+
+        assertNotNull(transform(engine, TCLASS1).transformedBytecode);
+    }
+
+
+    @Test
+    public void testClassWithoutMatchingAnnotationIsNotTransformed() throws Exception {
+        tracer.include(spy.byClassAnnotation(TACLASS));
+
+        assertNull(transform(engine, TCLASS2).transformedBytecode);
+        assertNotNull(transform(engine, TCLASS1).transformedBytecode);
+    }
+
+
+    @Test
+    public void testClassesFromRejectedPackagesAreNotInstrumented() throws Exception {
+        engine.setRejectedPackages(Arrays.asList("com.jitlogic.zorka.core.test.spy.support."));
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+
+        assertNull(transform(engine, TCLASS1).transformedBytecode);
+    }
+
+
     @Test
     public void testInstrumentMethodForTraceAndCheckIfSpyContextHasBeenCreated() throws Exception {
         tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
@@ -55,7 +91,7 @@ public class TracerInstrumentationUnitTest extends BytecodeInstrumentationFixtur
         invoke(obj, "trivialMethod");
 
         assertThat(field("ctxInstances").ofType(Map.class).in(engine).get().size()).isEqualTo(0);
-        assertThat(field("ctxById").ofType(Map.class).in(engine).get().size()).isEqualTo(0);
+        assertNull(engine.getContext(1));
     }
 
 
@@ -150,4 +186,124 @@ public class TracerInstrumentationUnitTest extends BytecodeInstrumentationFixtur
         invoke(obj, "trivialMethod");
         assertEquals(2, traceBuilder.getData().size());
     }
+
+
+    @Test
+    public void testTracerEventsAreSkippedWhileSubmittingSpyValues() throws Exception {
+        MainSubmitter.setSubmitter(new TestSubmitter() {
+            @Override
+            public void submit(int stage, int id, int submitFlags) {
+                MainSubmitter.traceEnter(1, 2, 3);
+                MainSubmitter.traceReturn();
+                super.submit(stage, id, submitFlags);
+            }
+        });
+
+        MainSubmitter.submit(SpyLib.ON_ENTER, 1, SpyLib.SF_IMMEDIATE);
+        assertEquals(0, traceBuilder.size());
+
+        MainSubmitter.traceEnter(1, 2, 3);
+        MainSubmitter.traceReturn();
+        assertEquals(2, traceBuilder.size());
+    }
+
+
+    @Test
+    public void testLazyModeInstrumentsCountingStubsAndPromotesHotMethods() throws Exception {
+        LazyInstrumenter lazyInstrumenter = agentInstance.getTracer().getLazyInstrumenter();
+        tracerObj.setLazyInstrumenter(lazyInstrumenter);
+        lazyInstrumenter.start(256, 0);
+
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+
+        Object obj = instantiate(engine, TCLASS1);
+        for (int i = 0; i < 256; i++) {
+            invoke(obj, "trivialMethod");
+        }
+
+        assertEquals(0, traceBuilder.size());
+        assertEquals(1, lazyInstrumenter.promote());
+        assertEquals(Arrays.asList(TCLASS1 + ".trivialMethod"), tracer.getTracerPromotedMethods());
+        assertEquals(0, lazyInstrumenter.promote());
+
+        obj = instantiate(engine, TCLASS1);
+        invoke(obj, "trivialMethod");
+
+        assertEquals(2, traceBuilder.size());
+    }
+
+
+    @Test
+    public void testLazyModePromotesMethodsCalledByThreadsThatWentIdle() throws Exception {
+        final LazyInstrumenter lazyInstrumenter = agentInstance.getTracer().getLazyInstrumenter();
+        tracerObj.setLazyInstrumenter(lazyInstrumenter);
+        lazyInstrumenter.start(10, 0);
+
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+
+        final Object obj = instantiate(engine, TCLASS1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    try {
+                        invoke(obj, "trivialMethod");
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        });
+        t.start();
+        t.join();
+
+        assertEquals(1, lazyInstrumenter.promote());
+        assertEquals(Arrays.asList(TCLASS1 + ".trivialMethod"), tracer.getTracerPromotedMethods());
+    }
+
+
+    @Test
+    public void testLazyModeCountsCallsOnlyInCurrentInterval() throws Exception {
+        LazyInstrumenter lazyInstrumenter = agentInstance.getTracer().getLazyInstrumenter();
+        tracerObj.setLazyInstrumenter(lazyInstrumenter);
+        lazyInstrumenter.start(10, 0);
+
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+
+        Object obj = instantiate(engine, TCLASS1);
+        for (int i = 0; i < 5; i++) {
+            invoke(obj, "trivialMethod");
+        }
+        assertEquals(0, lazyInstrumenter.promote());
+
+        for (int i = 0; i < 5; i++) {
+            invoke(obj, "trivialMethod");
+        }
+        assertEquals(0, lazyInstrumenter.promote());
+    }
+
+
+    @Test
+    public void testLazyModeForgetsPromotedMethodsRemovedFromHotSet() throws Exception {
+        LazyInstrumenter lazyInstrumenter = agentInstance.getTracer().getLazyInstrumenter();
+        tracerObj.setLazyInstrumenter(lazyInstrumenter);
+        lazyInstrumenter.start(10, 0);
+
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+
+        Object obj = instantiate(engine, TCLASS1);
+        for (int i = 0; i < 10; i++) {
+            invoke(obj, "trivialMethod");
+        }
+        assertEquals(1, lazyInstrumenter.promote());
+
+        agentInstance.getTracer().setHotMatcherSet(new SpyMatcherSet());
+        assertEquals(0, tracer.getTracerPromotedMethods().size());
+
+        obj = instantiate(engine, TCLASS1);
+        for (int i = 0; i < 10; i++) {
+            invoke(obj, "trivialMethod");
+        }
+        assertEquals(1, lazyInstrumenter.promote());
+    }
 }
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.core.spy.TypeHierarchy;
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import static org.junit.Assert.*;
+
+public class TypeHierarchyUnitTest {
+
+    private TypeHierarchy hierarchy = new TypeHierarchy();
+
+    private ClassLoader loader = getClass().getClassLoader();
+
+
+    private void add(String name, String superName, boolean isInterface) {
+        hierarchy.add(loader, new TypeHierarchy.TypeInfo(name, superName, new String[0], isInterface));
+    }
+
+
+    @Test
+    public void testCommonSuperClassResolvedFromIndex() {
+        add("com/myapp/Base", "java/lang/Object", false);
+        add("com/myapp/A", "com/myapp/Base", false);
+        add("com/myapp/B", "com/myapp/Base", false);
+        add("com/myapp/C", "com/myapp/B", false);
+        add("com/myapp/I", "java/lang/Object", true);
+
+        assertEquals("com/myapp/Base", hierarchy.getCommonSuperClass(loader, "com/myapp/A", "com/myapp/C"));
+        assertEquals("com/myapp/B", hierarchy.getCommonSuperClass(loader, "com/myapp/C", "com/myapp/B"));
+        assertEquals("com/myapp/B", hierarchy.getCommonSuperClass(loader, "com/myapp/B", "com/myapp/C"));
+        assertEquals("java/lang/Object", hierarchy.getCommonSuperClass(loader, "com/myapp/A", "com/myapp/I"));
+    }
+
+
+    @Test
+    public void testTypesResolvedFromClassFilesWithoutLoading() {
+        long loads = AgentDiagnostics.get(AgentDiagnostics.TYPE_CLASS_LOADS);
+        long reads = AgentDiagnostics.get(AgentDiagnostics.TYPE_RESOURCE_READS);
+
+        assertEquals("java/util/AbstractList",
+                hierarchy.getCommonSuperClass(loader, "java/util/ArrayList", "java/util/LinkedList"));
+        assertEquals("java/lang/Number",
+                hierarchy.getCommonSuperClass(loader, "java/lang/Integer", "java/lang/Long"));
+
+        assertEquals(loads, AgentDiagnostics.get(AgentDiagnostics.TYPE_CLASS_LOADS));
+        assertTrue(AgentDiagnostics.get(AgentDiagnostics.TYPE_RESOURCE_READS) > reads);
+
+        long hits = AgentDiagnostics.get(AgentDiagnostics.TYPE_INDEX_HITS);
+        hierarchy.getCommonSuperClass(loader, "java/lang/Integer", "java/lang/Long");
+        assertTrue(AgentDiagnostics.get(AgentDiagnostics.TYPE_INDEX_HITS) > hits);
+    }
+
+
+    @Test
+    public void testTypesAreIndexedSeparatelyForEachClassLoader() {
+        ClassLoader child = new URLClassLoader(new URL[0], loader);
+
+        add("com/myapp/Base", "java/lang/Object", false);
+        hierarchy.add(child, new TypeHierarchy.TypeInfo("com/myapp/A", "com/myapp/Base", new String[0], false));
+        hierarchy.add(child, new TypeHierarchy.TypeInfo("com/myapp/B", "com/myapp/Base", new String[0], false));
+
+        assertEquals("com/myapp/Base", hierarchy.getCommonSuperClass(child, "com/myapp/A", "com/myapp/B"));
+        assertNull(hierarchy.lookup(loader, "com/myapp/A"));
+    }
+
+
+    @Test
+    public void testUnknownTypeCannotBeResolved() {
+        add("com/myapp/A", "com/myapp/Missing", false);
+
+        assertNull(hierarchy.getCommonSuperClass(loader, "com/myapp/A", "java/lang/String"));
+        assertNull(hierarchy.getCommonSuperClass(loader, "com/myapp/NoSuchClass", "java/lang/String"));
+    }
+
+}
@@ -16,7 +16,11 @@
 
 package com.jitlogic.zorka.core.test.spy;
 
+import com.jitlogic.zorka.common.stats.LatencyHistogram;
 import com.jitlogic.zorka.common.stats.MethodCallStatistic;
+import com.jitlogic.zorka.common.stats.RollingWindowStatistic;
+import com.jitlogic.zorka.common.stats.StripedMethodCallStatistic;
+import com.jitlogic.zorka.common.stats.TopKMethodCallStatistics;
 import com.jitlogic.zorka.core.test.support.ZorkaFixture;
 import com.jitlogic.zorka.common.stats.MethodCallStatistics;
 import com.jitlogic.zorka.core.spy.SpyContext;
@@ -35,6 +39,24 @@ import static com.jitlogic.zorka.core.spy.SpyLib.*;
 
 public class ZorkaStatsCollectionUnitTest extends ZorkaFixture {
 
+    private ZorkaStatsCollector collector(String key, int actions) {
+        return new ZorkaStatsCollector(mBeanServerRegistry, "test", "test:name=Test", "stats",
+                key, "T", null, actions);
+    }
+
+
+    private Map<String, Object> record(int stage, long time) {
+        SpyContext ctx = new SpyContext(spy.instance("x"), "TClass", "testMethod", "()V", 1);
+        return ZorkaUtil.map(".CTX", ctx, ".STAGE", ON_SUBMIT, ".STAGES", (1 << stage), "T", time);
+    }
+
+
+    private MethodCallStatistic statistic(String name) throws Exception {
+        MethodCallStatistics stats = (MethodCallStatistics) getAttr(testMbs, "test:name=Test", "stats");
+        return (MethodCallStatistic) stats.getStatistic(name);
+    }
+
+
     @Test
     public void testCollectToStatsMbeanWithoutPlaceholders() throws Exception {
         ZorkaStatsCollector collector = new ZorkaStatsCollector(mBeanServerRegistry, "test", "test:name=Test", "stats",
@@ -182,4 +204,280 @@ public class ZorkaStatsCollectionUnitTest extends ZorkaFixture {
         assertEquals(0L, stat.getCurThreads());
     }
 
+
+    @Test
+    public void testCollectToStripedStatistic() throws Exception {
+        ZorkaStatsCollector collector = collector("test",
+                ZorkaStatsCollector.ACTION_STATS | ZorkaStatsCollector.ACTION_STRIPED);
+
+        collector.process(record(ON_RETURN, 10 * MS));
+        collector.process(record(ON_ERROR, 20 * MS));
+
+        MethodCallStatistic stat = statistic("test");
+
+        assertTrue(stat instanceof StripedMethodCallStatistic);
+        assertEquals(2L, zorka.jmx("test", "test:name=Test", "stats", "test", "calls"));
+        assertEquals(1L, zorka.jmx("test", "test:name=Test", "stats", "test", "errors"));
+        assertEquals(30L, zorka.jmx("test", "test:name=Test", "stats", "test", "time"));
+        assertEquals(20L, zorka.jmx("test", "test:name=Test", "stats", "test", "maxTimeCLR"));
+        assertEquals(0L, stat.getMaxTime());
+    }
+
+
+    @Test
+    public void testStripedStatisticAggregatesCellsUpdatedByManyThreads() throws Exception {
+        final MethodCallStatistic stat = new StripedMethodCallStatistic("test", 4);
+        Thread[] threads = new Thread[8];
+
+        for (int i = 0; i < threads.length; i++) {
+            final long t = (i + 1) * MS;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        if (j % 10 == 0) {
+                            stat.logError(t);
+                        } else {
+                            stat.logCall(t);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(8000L, stat.getCalls());
+        assertEquals(800L, stat.getErrors());
+        assertEquals(36000L, stat.getTime());
+        assertEquals(8L, stat.getMaxTimeCLR());
+        assertEquals(0L, stat.getMaxTimeCLR());
+    }
+
+
+    @Test
+    public void testLatencyHistogramPercentiles() throws Exception {
+        LatencyHistogram h = new LatencyHistogram("test", 0);
+
+        assertEquals(0L, h.getPercentileNs(99.0));
+
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * MS);
+        }
+
+        assertEquals(1000L, h.getCount());
+        assertEquals(500.0, h.getP50(), 500 * 0.07);
+        assertEquals(990.0, h.getP99(), 990 * 0.07);
+        assertEquals(1000.0, h.getP999(), 1000 * 0.07);
+        assertEquals(10000.0, h.getPercentileNs(1.0) / 1000.0, 10000 * 0.07);
+    }
+
+
+    @Test
+    public void testQueryPercentilesOfWindowedHistogram() throws Exception {
+        collector("test", ZorkaStatsCollector.ACTION_STATS).process(record(ON_RETURN, 100 * MS));
+
+        MethodCallStatistic stat = statistic("test");
+
+        assertEquals(LatencyHistogram.getDefaultWindow(), stat.getHistogram().getWindow());
+        assertEquals(0.0, (Double) zorka.jmx("test", "test:name=Test", "stats", "test", "p99"), 0.001);
+
+        long t0 = 1000000000000L;
+        LatencyHistogram h = new LatencyHistogram("test", 10, t0);
+        h.record(100 * MS);
+        assertEquals(0L, h.getPercentileNs(99.0, t0 + 5));
+        assertEquals(100.0 * MS, h.getPercentileNs(99.0, t0 + 10), 7.0 * MS);
+        assertEquals(100.0 * MS, h.getPercentileNs(99.0, t0 + 15), 7.0 * MS);
+        assertEquals(0L, h.getPercentileNs(99.0, t0 + 20));
+    }
+
+
+    @Test
+    public void testReportPercentilesOfSubMillisecondCallsAsFractions() throws Exception {
+        LatencyHistogram h = new LatencyHistogram("test", 0);
+
+        for (int i = 0; i < 100; i++) {
+            h.record(250 * MS / 1000);
+        }
+
+        assertEquals(0.25, h.getP50(), 0.25 * 0.07);
+        assertEquals(250L, h.getP99Us(), 250 * 0.07);
+    }
+
+
+    @Test
+    public void testRollingWindowStatisticSumsCompletedSeconds() throws Exception {
+        RollingWindowStatistic r = new RollingWindowStatistic("test");
+        long t0 = 1000000000000L;
+
+        for (int i = 0; i < 120; i++) {
+            r.log(t0 + i * 1000L, 10 * MS, false);
+            r.log(t0 + i * 1000L + 500, 20 * MS, i % 2 == 0);
+        }
+
+        long[] s1 = r.sum(t0 + 120 * 1000L, 60);
+        assertEquals(120L, s1[0]);
+        assertEquals(30L, s1[1]);
+        assertEquals(1800 * MS, s1[2]);
+
+        long[] s5 = r.sum(t0 + 120 * 1000L + 999, 300);
+        assertEquals(240L, s5[0]);
+
+        // Slots are reused after 15 minutes
+        r.log(t0 + 901 * 1000L, 10 * MS, true);
+        long[] s15 = r.sum(t0 + 902 * 1000L, 900);
+        assertEquals(237L, s15[0]);
+        assertEquals(60L, s15[1]);
+    }
+
+
+    @Test
+    public void testRollingWindowRatesOfNewStatisticAreCalculatedOverItsLifetime() throws Exception {
+        long t0 = 1000000000000L;
+        RollingWindowStatistic r = new RollingWindowStatistic("test", t0);
+
+        for (int i = 0; i < 10; i++) {
+            r.log(t0 + i * 1000L, 10 * MS, false);
+            r.log(t0 + i * 1000L + 500, 10 * MS, false);
+        }
+
+        assertEquals(0.0, r.getRate(t0 + 500, 60), 0.001);
+        assertEquals(2.0, r.getRate(t0 + 10 * 1000L, 60), 0.001);
+        assertEquals(2.0, r.getRate(t0 + 10 * 1000L, 900), 0.001);
+        assertEquals(20.0 / 30, r.getRate(t0 + 30 * 1000L, 60), 0.001);
+        assertEquals(0.0, r.getRate(t0 + 70 * 1000L, 60), 0.001);
+        assertEquals(20.0 / 70, r.getRate(t0 + 70 * 1000L, 300), 0.001);
+    }
+
+
+    @Test
+    public void testQueryRollingWindowStatisticsViaJmx() throws Exception {
+        ZorkaStatsCollector collector = collector("test", ZorkaStatsCollector.ACTION_STATS);
+
+        assertEquals(0.0, (Double) zorka.jmx("test", "test:name=Test", "stats", "test", "rate1m"), 0.001);
+
+        collector.process(record(ON_RETURN, 100 * MS));
+
+        MethodCallStatistic stat = statistic("test");
+        long[] s = stat.getRolling().sum(System.currentTimeMillis() + 1000L, 60);
+
+        assertEquals(1L, s[0]);
+        assertEquals(100 * MS, s[2]);
+    }
+
+
+    @Test
+    public void testTopKStatisticsFoldLongTailIntoOtherStatistic() throws Exception {
+        TopKMethodCallStatistics stats = new TopKMethodCallStatistics(4);
+
+        for (int i = 0; i < 100; i++) {
+            for (int k = 0; k < 4; k++) {
+                stats.getMethodCallStatistic("hot" + k).logCall(MS);
+            }
+            stats.getMethodCallStatistic("cold" + i).logCall(MS);
+        }
+
+        assertNotNull(stats.getStatistic("hot0"));
+        assertEquals(100L, ((MethodCallStatistic) stats.getStatistic("hot3")).getCalls());
+        assertNull(stats.getStatistic("cold50"));
+
+        MethodCallStatistic other = (MethodCallStatistic) stats.getStatistic(TopKMethodCallStatistics.OTHER);
+        assertEquals(100L, other.getCalls());
+        assertEquals(5, stats.getStatisticNames().length);
+        assertEquals(100L, stats.getFoldedCalls());
+    }
+
+
+    @Test
+    public void testTopKStatisticsEvictLeastFrequentStatistic() throws Exception {
+        TopKMethodCallStatistics stats = new TopKMethodCallStatistics(2, true);
+
+        stats.getMethodCallStatistic("a").logCall(MS);
+        stats.getMethodCallStatistic("b").logCall(2 * MS);
+
+        for (int i = 0; i < 10; i++) {
+            stats.getMethodCallStatistic("a").logCall(MS);
+            stats.getMethodCallStatistic("c").logCall(MS);
+        }
+
+        assertNull(stats.getStatistic("b"));
+        assertNotNull(stats.getStatistic("c"));
+        assertEquals(1L, stats.getEvictions());
+
+        MethodCallStatistic other = (MethodCallStatistic) stats.getStatistic(TopKMethodCallStatistics.OTHER);
+        assertTrue(other instanceof StripedMethodCallStatistic);
+        assertEquals(1L + stats.getFoldedCalls(), other.getCalls());
+        assertEquals(2L, other.getMaxTime());
+    }
+
+
+    @Test
+    public void testTopKStatisticsCountLookupsOfThreadsThatWentIdle() throws Exception {
+        final TopKMethodCallStatistics stats = new TopKMethodCallStatistics(4);
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    stats.getMethodCallStatistic("a").logCall(MS);
+                }
+            }
+        });
+        t.start();
+        t.join();
+
+        assertTrue(stats.estimate("a") >= 10);
+    }
+
+
+    @Test
+    public void testCollectToTopKStatistics() throws Exception {
+        ZorkaStatsCollector collector = new ZorkaStatsCollector(mBeanServerRegistry, "test", "test:name=Test", "stats",
+                "${K}", "T", null, ZorkaStatsCollector.ACTION_STATS, 8);
+
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> rec = record(ON_RETURN, MS);
+            rec.put("K", "/uri/" + i);
+            collector.process(rec);
+        }
+
+        Object stats = getAttr(testMbs, "test:name=Test", "stats");
+        assertTrue(stats instanceof TopKMethodCallStatistics);
+        assertTrue(((TopKMethodCallStatistics) stats).getStatisticNames().length <= 9);
+        assertEquals(92L, zorka.jmx("test", "test:name=Test", "stats", TopKMethodCallStatistics.OTHER, "calls"));
+    }
+
+
+    @Test
+    public void testMarkExitOnStatisticChosenOnEnterEvenIfItHasBeenEvicted() throws Exception {
+        ZorkaStatsCollector enter = new ZorkaStatsCollector(mBeanServerRegistry, "test", "test:name=Test", "stats",
+                "${K}", "T", null, ZorkaStatsCollector.ACTION_ENTER, 1);
+        ZorkaStatsCollector exit = new ZorkaStatsCollector(mBeanServerRegistry, "test", "test:name=Test", "stats",
+                "${K}", "T", null, ZorkaStatsCollector.ACTION_EXIT | ZorkaStatsCollector.ACTION_STATS, 1);
+        ZorkaStatsCollector stats = new ZorkaStatsCollector(mBeanServerRegistry, "test", "test:name=Test", "stats",
+                "${K}", "T", null, ZorkaStatsCollector.ACTION_STATS, 1);
+
+        Map<String, Object> rec = record(ON_RETURN, MS);
+        rec.put("K", "a");
+        enter.process(rec);
+
+        MethodCallStatistic a = statistic("a");
+        assertEquals(1L, a.getCurThreads());
+
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> r = record(ON_RETURN, MS);
+            r.put("K", "b");
+            stats.process(r);
+        }
+
+        assertNull(statistic("a"));
+
+        exit.process(rec);
+
+        assertEquals(0L, a.getCurThreads());
+        assertEquals(0L, statistic(TopKMethodCallStatistics.OTHER).getCurThreads());
+    }
 }
@@ -53,10 +53,37 @@ public class TestSubmitter implements SpySubmitter {
 
     private List<SubmitEntry> entries = new ArrayList<SubmitEntry>();
 
+    private int longSubmits;
+
     public void submit(int stage, int id, int submitFlags, Object[] vals) {
         entries.add(new SubmitEntry(stage, id, submitFlags, vals));
     }
 
+    public void submit(int stage, int id, int submitFlags) {
+        submit(stage, id, submitFlags, (Object[])null);
+    }
+
+    public void submit(int stage, int id, int submitFlags, long v0) {
+        longSubmits++;
+        submit(stage, id, submitFlags, new Object[]{v0});
+    }
+
+    public void submit(int stage, int id, int submitFlags, Object v0) {
+        submit(stage, id, submitFlags, new Object[]{v0});
+    }
+
+    public void submit(int stage, int id, int submitFlags, Object v0, Object v1) {
+        submit(stage, id, submitFlags, new Object[]{v0, v1});
+    }
+
+    public void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2) {
+        submit(stage, id, submitFlags, new Object[]{v0, v1, v2});
+    }
+
+    public void submit(int stage, int id, int submitFlags, Object v0, Object v1, Object v2, Object v3) {
+        submit(stage, id, submitFlags, new Object[]{v0, v1, v2, v3});
+    }
+
     public SubmitEntry get(int idx) {
         return entries.get(idx);
     }
@@ -64,4 +91,8 @@ public class TestSubmitter implements SpySubmitter {
     public int size() {
         return entries.size();
     }
+
+    public int getLongSubmits() {
+        return longSubmits;
+    }
 }
@@ -47,6 +47,11 @@ public class TestTraceBuilder extends TraceBuilder {
         data.add(ZorkaUtil.map("action", "traceReturn", "tstamp", tstamp));
     }
 
+    @Override
+    public boolean traceLeave() {
+        return false;
+    }
+
     @Override
     public void traceError(Object exception, long tstamp) {
         data.add(ZorkaUtil.map("action", "traceError", "exception", exception, "tstamp", tstamp));
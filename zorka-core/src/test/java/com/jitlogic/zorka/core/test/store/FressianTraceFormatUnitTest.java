@@ -288,6 +288,36 @@ public class FressianTraceFormatUnitTest {
     }
 
 
+    @Test
+    public void testReadWriteBufferedTraceWithException() throws Exception {
+        TraceBuffer buf = new TraceBuffer(symbols, 1);
+        TraceMarker tm = new TraceMarker(sid("TRACE"), 100L);
+        buf.add(sid("other.Class"), sid("otherMethod"), sid("()V"), 0, 50, 1, 1, 0, new Exception("oja!"), null, null);
+        buf.add(sid("some.Class"), sid("someMethod"), sid("()V"), TraceRecord.TRACE_BEGIN, 100, 2, 1, 1, null, null, tm);
+
+        writer.write(buf);
+
+        FressianReader reader = reader();
+
+        Object obj = reader.readObject();
+
+        while (obj instanceof Symbol) {
+            Symbol s = (Symbol) obj;
+            assertThat(s.getId()).isEqualTo(sid(s.getName()));
+            obj = reader.readObject();
+        }
+
+        TraceRecord tr2 = (TraceRecord) obj;
+        assertThat(tr2.getMarker().getTraceId()).isEqualTo(sid("TRACE"));
+        assertThat(tr2.getCalls()).isEqualTo(2L);
+        assertThat(tr2.numChildren()).isEqualTo(1);
+        assertThat(tr2.getChild(0).getTime()).isEqualTo(50L);
+
+        SymbolicException se = (SymbolicException) tr2.getChild(0).getException();
+        assertThat(se.getMessage()).isEqualTo("oja!");
+    }
+
+
     private PerfSample ps(Metric m, long clock, Number val) {
         PerfSample ps = new PerfSample(m.getId(), val);
         ps.setClock(clock);
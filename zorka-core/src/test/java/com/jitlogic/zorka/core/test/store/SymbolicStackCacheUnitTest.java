@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jitlogic.zorka.core.test.store;
+
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.tracedata.SymbolicException;
+import com.jitlogic.zorka.common.tracedata.SymbolicStackCache;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SymbolicStackCacheUnitTest {
+
+    private SymbolRegistry symbols = new SymbolRegistry();
+
+
+    @After
+    public void tearDown() {
+        SymbolicStackCache.setCacheSize(256);
+        SymbolicStackCache.setMaxStackDepth(0);
+    }
+
+
+    private Exception newException(String msg) {
+        return new IllegalArgumentException(msg);
+    }
+
+
+    @Test
+    public void testIdenticalStackTracesAreSymbolizedOnlyOnce() {
+        long hits = AgentDiagnostics.get(AgentDiagnostics.EXCEPTION_CACHE_HITS);
+        long misses = AgentDiagnostics.get(AgentDiagnostics.EXCEPTION_CACHE_MISSES);
+
+        SymbolicException[] sex = new SymbolicException[2];
+        for (int i = 0; i < 2; i++) {
+            sex[i] = new SymbolicException(newException("oops" + i), symbols, true);
+        }
+
+        assertSame(sex[0].getStackTrace(), sex[1].getStackTrace());
+        assertEquals("oops1", sex[1].getMessage());
+        assertEquals(hits + 1, AgentDiagnostics.get(AgentDiagnostics.EXCEPTION_CACHE_HITS));
+        assertEquals(misses + 1, AgentDiagnostics.get(AgentDiagnostics.EXCEPTION_CACHE_MISSES));
+    }
+
+
+    @Test
+    public void testCachedStackTraceIsEqualToConvertedOne() {
+        Exception e = newException("oops");
+        SymbolicException sex1 = new SymbolicException(e, symbols, true);
+        SymbolicException sex2 = new SymbolicException(e, symbols, true);
+
+        SymbolicStackCache.setCacheSize(0);
+        SymbolicException sex3 = new SymbolicException(e, symbols, true);
+
+        assertSame(sex1.getStackTrace(), sex2.getStackTrace());
+        assertNotSame(sex1.getStackTrace(), sex3.getStackTrace());
+        assertEquals(sex1, sex3);
+        assertEquals(e.getStackTrace().length, sex3.getStackTrace().length);
+    }
+
+
+    @Test
+    public void testStackTracesFromDifferentRegistriesAreNotShared() {
+        Exception e = newException("oops");
+        SymbolicException sex1 = new SymbolicException(e, symbols, true);
+        SymbolicException sex2 = new SymbolicException(e, new SymbolRegistry(), true);
+
+        assertNotSame(sex1.getStackTrace(), sex2.getStackTrace());
+    }
+
+
+    @Test
+    public void testClearStackTracesCachedForRegistry() {
+        Exception e = newException("oops");
+        SymbolicException sex1 = new SymbolicException(e, symbols, true);
+
+        SymbolicStackCache.clear(symbols);
+        SymbolicException sex2 = new SymbolicException(e, symbols, true);
+        SymbolicException sex3 = new SymbolicException(e, symbols, true);
+
+        assertNotSame(sex1.getStackTrace(), sex2.getStackTrace());
+        assertSame(sex2.getStackTrace(), sex3.getStackTrace());
+    }
+
+
+    @Test
+    public void testLimitStackDepth() {
+        SymbolicStackCache.setMaxStackDepth(2);
+
+        Exception e = new RuntimeException("oops", newException("cause"));
+        SymbolicException sex = new SymbolicException(e, symbols, true);
+
+        assertEquals(2, sex.getStackTrace().length);
+        assertEquals(2, sex.getCause().getStackTrace().length);
+        assertEquals(symbols.symbolId(getClass().getName()), sex.getStackTrace()[0].getClassId());
+    }
+}
@@ -56,7 +56,7 @@ public class BytecodeInstrumentationFixture extends ZorkaFixture {
         traceBuilder = new TestTraceBuilder();
         tracerObj = new Tracer(agentInstance.getTracerMatcherSet(),
                 agentInstance.getSymbolRegistry()) {
-            public TraceBuilder getHandler() {
+            public TraceBuilder newHandler() {
                 return traceBuilder;
             }
         };
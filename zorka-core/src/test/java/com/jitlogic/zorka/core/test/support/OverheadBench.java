@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012-2015 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ *
+ * ZORKA is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * ZORKA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * ZORKA. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.test.support;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Simple microbenchmark harness used by overhead integration tests. Runs call() given number of
+ * times in each round and prints best per-call time. With single thread calls are made from
+ * calling thread, so thread-bound agent state set up by test is visible to benchmarked code.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public abstract class OverheadBench {
+
+    private final String name;
+
+    private final int rounds;
+
+    private final int threads;
+
+    private final int calls;
+
+    /** Sum of values returned by call(), so JIT cannot optimize calls out. */
+    private volatile long sink;
+
+
+    public OverheadBench(String name, int rounds, int threads, int calls) {
+        this.name = name;
+        this.rounds = rounds;
+        this.threads = threads;
+        this.calls = calls;
+    }
+
+
+    public abstract long call(int i);
+
+
+    public double run() throws InterruptedException {
+        double best = Double.MAX_VALUE;
+        for (int r = 0; r < rounds; r++) {
+            best = Math.min(best, 1.0 * (threads > 1 ? runThreads() : runLocal()) / calls);
+        }
+        if (threads > 1) {
+            System.out.println(String.format("%-40s %8.2f ns/call (%d threads)", name, best, threads));
+        } else {
+            System.out.println(String.format("%-40s %8.2f ns/call", name, best));
+        }
+        return best;
+    }
+
+
+    private long runLocal() {
+        long sum = 0;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            sum += call(i);
+        }
+        long t = System.nanoTime() - t0;
+        sink += sum;
+        return t;
+    }
+
+
+    private long runThreads() throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] sums = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int tn = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < calls; i++) {
+                        sums[tn] += call(i);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        long t = System.nanoTime() - t0;
+        for (long s : sums) {
+            sink += s;
+        }
+        return t;
+    }
+
+}